@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.divolte.record.DefaultEventRecord;
+
+/**
+ * Benchmark for serializing records into an {@link AvroRecordBuffer}, using the default schema.
+ * <p>
+ * The <code>baseline</code> benchmark serializes records the way we used to, creating a new
+ * datum writer and encoder for each record, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvroRecordBufferBenchmark {
+    private final DivolteIdentifier partyId = DivolteIdentifier.generate(0L);
+    private final DivolteIdentifier sessionId = DivolteIdentifier.generate(1L);
+    private final String eventId = "0:OxVC1WJ4PZNEGIUuzdXPsy_bztnKMuoH0";
+    private final Instant timestamp = Instant.EPOCH;
+
+    private GenericRecord record;
+    private int baselineBufferSize;
+
+    @Setup
+    public void setup() {
+        record = new GenericRecordBuilder(DefaultEventRecord.getClassSchema())
+            .set("detectedDuplicate", false)
+            .set("detectedCorruption", false)
+            .set("firstInSession", true)
+            .set("timestamp", timestamp.toEpochMilli())
+            .set("clientTimestamp", timestamp.toEpochMilli())
+            .set("remoteHost", "192.168.1.42")
+            .set("referer", "https://www.example.com/search?q=divolte")
+            .set("location", "https://www.example.com/products/1234?utm_source=newsletter&utm_medium=email")
+            .set("viewportPixelWidth", 1280)
+            .set("viewportPixelHeight", 800)
+            .set("screenPixelWidth", 2560)
+            .set("screenPixelHeight", 1600)
+            .set("partyId", partyId.value)
+            .set("sessionId", sessionId.value)
+            .set("pageViewId", "0:OxVC1WJ4PZNEGIUuzdXPsy_bztnKMuoH")
+            .set("eventType", "pageView")
+            .set("userAgentString", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_3) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/80.0.3987.132 Safari/537.36")
+            .set("userAgentName", "Chrome")
+            .set("userAgentFamily", "Chrome")
+            .set("userAgentVendor", "Google Inc.")
+            .set("userAgentType", "Browser")
+            .set("userAgentVersion", "80.0.3987.132")
+            .set("userAgentDeviceCategory", "Personal computer")
+            .set("userAgentOsFamily", "OS X")
+            .set("userAgentOsVersion", "10.15.3")
+            .set("userAgentOsVendor", "Apple Computer, Inc.")
+            .build();
+        // The shared size estimate used to grow to about 10% larger than the largest record.
+        baselineBufferSize = (int) (fromRecord().size() * 1.1);
+    }
+
+    @Benchmark
+    public AvroRecordBuffer fromRecord() {
+        return AvroRecordBuffer.fromRecord(partyId, sessionId, eventId, timestamp, record);
+    }
+
+    @Benchmark
+    public ByteBuffer baseline() throws IOException {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(baselineBufferSize);
+        final DatumWriter<GenericRecord> writer = new SpecificDatumWriter<>(record.getSchema());
+        final Encoder encoder = EncoderFactory.get().directBinaryEncoder(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                byteBuffer.put((byte) b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                byteBuffer.put(b, off, len);
+            }
+        }, null);
+        writer.write(record, encoder);
+        byteBuffer.flip();
+        return byteBuffer.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import com.typesafe.config.ConfigFactory;
+
+import io.divolte.server.config.ValidatedConfiguration;
+import io.divolte.server.recordmapping.DslRecordMapper;
+import io.divolte.server.recordmapping.UserAgentParserAndCache;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+
+/**
+ * Benchmark for mapping a (single, representative) event using some of the mapping scripts
+ * from the test suite.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DslRecordMapperBenchmark {
+    private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_10_1) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/38.0.2125.122 Safari/537.36";
+    private static final String EVENT_PARAMETERS =
+            "{\"foo\":\"string\",\"bar\":\"42\",\"items\":[{\"name\":\"apple\",\"count\":3,\"price\":1.23},{\"name\":\"pear\",\"count\":1,\"price\":0.89}]}";
+
+    @Param({
+        "flat-mapping.groovy",
+        "uri-mapping.groovy",
+        "regex-mapping.groovy",
+        "header-mapping.groovy",
+        "event-param-all.groovy",
+        "boolean-logic.groovy",
+        "digest-chaining.groovy",
+    })
+    public String mappingScript;
+
+    private DslRecordMapper mapper;
+    private DivolteEvent event;
+    private BinaryEncoder encoder;
+
+    @Setup
+    public void setup() throws IOException {
+        final Schema schema = new Schema.Parser().parse(Resources.toString(Resources.getResource("TestRecord.avsc"), StandardCharsets.UTF_8));
+        final ValidatedConfiguration vc = new ValidatedConfiguration(ConfigFactory::load);
+        final File mappingFile = File.createTempFile("benchmark-mapping", ".groovy");
+        try {
+            Files.write(mappingFile.toPath(), Resources.toByteArray(Resources.getResource(mappingScript)));
+            mapper = new DslRecordMapper(mappingFile.getAbsolutePath(), schema, new UserAgentParserAndCache(vc), Optional.empty());
+        } finally {
+            Files.delete(mappingFile.toPath());
+        }
+
+        final HttpServerExchange exchange = new HttpServerExchange(null);
+        exchange.setSourceAddress(new InetSocketAddress("192.168.1.42", 0));
+        exchange.getRequestHeaders()
+                .put(Headers.USER_AGENT, USER_AGENT)
+                .put(Headers.COOKIE, "custom_cookie=custom_cookie_value;")
+                .addAll(HttpString.tryFromString("X-Divolte-Test"), ImmutableList.of("first", "second", "last"));
+        final RequestSnapshot request = RequestSnapshot.capture(exchange, mapper.requestCapture());
+        request.putAttachment(IncomingRequestProcessor.DUPLICATE_EVENT_KEY, false);
+
+        final JsonNode eventParameters = new ObjectMapper().readTree(EVENT_PARAMETERS);
+        final Instant now = Instant.now();
+        final DivolteEvent.BrowserEventData browserEventData = new DivolteEvent.BrowserEventData(
+                "0:OxVC1WJ4PZNEGIUuzdXPsy_bztnKMuoH",
+                Optional.of("http://www.example.com/path/with/42/about.html?q=divolte&p=a&p=b#fragment"),
+                Optional.of("https://www.example.com/search?q=divolte#results"),
+                Optional.of(1280), Optional.of(800),
+                Optional.of(2560), Optional.of(1600),
+                Optional.of(2));
+        event = DivolteEvent.createBrowserEvent(
+                request,
+                false,
+                DivolteIdentifier.generate(),
+                DivolteIdentifier.generate(),
+                "0:OxVC1WJ4PZNEGIUuzdXPsy_bztnKMuoH0",
+                now, now,
+                false,
+                true,
+                Optional.of("pageView"),
+                () -> Optional.of(eventParameters),
+                browserEventData);
+
+        encoder = EncoderFactory.get().directBinaryEncoder(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }, null);
+    }
+
+    @Benchmark
+    public GenericRecord newRecordFromExchange() {
+        return mapper.newRecordFromExchange(event);
+    }
+
+    @Benchmark
+    public void writeRecordFromExchange() throws IOException {
+        mapper.writeRecordFromExchange(event, encoder);
+    }
+}
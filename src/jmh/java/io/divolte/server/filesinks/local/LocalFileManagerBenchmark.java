@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.local;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Strings;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.config.FileFormat;
+import io.divolte.server.config.ParquetCompressionCodec;
+import io.divolte.server.config.ParquetConfiguration;
+import io.divolte.server.filesinks.FileManager.DivolteFile;
+
+/**
+ * Benchmark for writing records to a local file, syncing after a fixed number of records
+ * the way the file flusher does. Files are written to the system temporary directory, and
+ * a new file is started for each iteration.
+ * <p>
+ * The score is the number of records written per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalFileManagerBenchmark {
+    private static final int RECORD_COUNT = 1000;
+
+    private static final Schema SCHEMA = SchemaBuilder.record("BenchmarkRecord").fields()
+            .requiredString("value")
+            .endRecord();
+
+    @Param({"65536", "1048576"})
+    public int writeBufferSize;
+
+    @Param({"1000", "10000"})
+    public int syncFileAfterRecords;
+
+    @Param({"AVRO", "PARQUET"})
+    public FileFormat format;
+
+    private Path directory;
+    private LocalFileManager manager;
+    private List<AvroRecordBuffer> records;
+
+    private DivolteFile file;
+    private int unsyncedRecords;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("divolte-benchmark");
+        manager = new LocalFileManager(directory, directory, writeBufferSize, SCHEMA, format,
+                                       new ParquetConfiguration(null, ParquetCompressionCodec.SNAPPY));
+        // Roughly the size of a typical event.
+        final String value = Strings.repeat("x", 500);
+        records = IntStream.range(0, RECORD_COUNT)
+                           .mapToObj(i -> record(value))
+                           .collect(Collectors.toList());
+    }
+
+    @Setup(Level.Iteration)
+    public void createFile() throws IOException {
+        file = manager.createFile("benchmark" + format.extension);
+        unsyncedRecords = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void discardFile() throws IOException {
+        file.discard();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public void appendRecords() throws IOException {
+        for (final AvroRecordBuffer record : records) {
+            file.append(record);
+            if (++unsyncedRecords == syncFileAfterRecords) {
+                file.sync();
+                unsyncedRecords = 0;
+            }
+        }
+    }
+
+    private static AvroRecordBuffer record(final String value) {
+        final GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("value", value);
+        return AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(), DivolteIdentifier.generate(), "eventId", Instant.now(), record);
+    }
+}
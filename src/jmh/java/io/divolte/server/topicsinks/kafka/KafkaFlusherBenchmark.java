@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.kafka;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemProcessor.ProcessingDirective;
+import io.divolte.server.topicsinks.InFlightLimit;
+
+/**
+ * Benchmark for sending batches of events to Kafka, with a mock producer that only acknowledges
+ * events after a delay. This mimics the round-trip to the brokers, during which a synchronous
+ * flusher blocks.
+ * <p>
+ * The score is the number of events sent per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KafkaFlusherBenchmark {
+    private static final int BATCH_SIZE = 128;
+    private static final int MAX_IN_FLIGHT = 65536;
+    private static final int MAX_IN_FLIGHT_BYTES = 67108864;
+
+    private static final Schema SCHEMA = SchemaBuilder.record("BenchmarkRecord").fields()
+            .requiredString("value")
+            .endRecord();
+
+    @Param({"1", "5"})
+    public int latencyMillis;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private LatentProducer producer;
+    private KafkaFlusher flusher;
+    private List<Item<AvroRecordBuffer>> items;
+    private Queue<Item<AvroRecordBuffer>> batch;
+
+    @Setup
+    public void setup() {
+        producer = new LatentProducer(latencyMillis);
+        flusher = new KafkaFlusher(ImmutableList.of("benchmark"),
+                                   producer,
+                                   async ? Optional.of(new InFlightLimit(MAX_IN_FLIGHT, MAX_IN_FLIGHT_BYTES)) : Optional.empty());
+        items = IntStream.range(0, BATCH_SIZE)
+                         .mapToObj(i -> item(Integer.toString(i)))
+                         .collect(Collectors.toList());
+        batch = new ArrayDeque<>(BATCH_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        producer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void sendBatch() throws InterruptedException {
+        batch.addAll(items);
+        // This is what the processing pool does: while paused, heartbeats are delivered until we can continue.
+        ProcessingDirective directive = flusher.process(batch);
+        while (directive == ProcessingDirective.PAUSE) {
+            TimeUnit.MILLISECONDS.sleep(1);
+            directive = flusher.heartbeat();
+        }
+    }
+
+    private static Item<AvroRecordBuffer> item(final String value) {
+        final GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("value", value);
+        final DivolteIdentifier partyId = DivolteIdentifier.generate();
+        return Item.of(0,
+                       partyId.value,
+                       AvroRecordBuffer.fromRecord(partyId, DivolteIdentifier.generate(), value, Instant.now(), record));
+    }
+
+    /*
+     * A mock producer that acknowledges the events sent to it once the latency has passed.
+     * (Flushing blocks for the latency, and then acknowledges everything sent so far.)
+     */
+    private static final class LatentProducer extends MockProducer<DivolteIdentifier, AvroRecordBuffer> {
+        private final long latencyMillis;
+        private final ScheduledExecutorService acknowledger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Benchmark Acknowledger");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        LatentProducer(final long latencyMillis) {
+            super(false, Serializers.createKeySerializer(), Serializers.createNakedAvroSerializer(null));
+            this.latencyMillis = latencyMillis;
+            acknowledger.scheduleWithFixedDelay(this::acknowledge, latencyMillis, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void acknowledge() {
+            super.flush();
+            // Don't let the history of sent records grow without bounds.
+            clear();
+        }
+
+        @Override
+        public void flush() {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            acknowledge();
+        }
+
+        @Override
+        public void close() {
+            acknowledger.shutdownNow();
+            acknowledge();
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.pubsub;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.AlreadyExistsException;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import com.google.pubsub.v1.ProjectTopicName;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.DivolteSchema;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemProcessor.ProcessingDirective;
+import io.divolte.server.topicsinks.InFlightLimit;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * Benchmark for publishing batches of events to Google Cloud Pub/Sub, synchronously and
+ * asynchronously. This needs the Pub/Sub emulator: set <code>PUBSUB_EMULATOR_HOST</code> to its
+ * address, the same as when running the server against it.
+ * <p>
+ * The score is the number of events published per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GoogleCloudPubSubFlusherBenchmark {
+    private static final int BATCH_SIZE = 128;
+    private static final int MAX_IN_FLIGHT = 65536;
+    private static final int MAX_IN_FLIGHT_BYTES = 67108864;
+
+    private static final Schema SCHEMA = SchemaBuilder.record("BenchmarkRecord").fields()
+            .requiredString("value")
+            .endRecord();
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private ManagedChannel channel;
+    private Publisher publisher;
+    private GoogleCloudPubSubFlusher flusher;
+    private List<Item<AvroRecordBuffer>> items;
+    private Queue<Item<AvroRecordBuffer>> batch;
+
+    @Setup
+    public void setup() throws IOException {
+        final String hostPort = Optional.ofNullable(System.getenv("PUBSUB_EMULATOR_HOST"))
+                                        .orElseThrow(() -> new IllegalStateException("PUBSUB_EMULATOR_HOST must be set to the address of the Pub/Sub emulator."));
+        channel = ManagedChannelBuilder.forTarget(hostPort).usePlaintext().build();
+        final TransportChannelProvider channelProvider =
+            FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel));
+        final ProjectTopicName topicName = ProjectTopicName.of("divolte-benchmark", "benchmark");
+        try (final TopicAdminClient topicClient =
+                 TopicAdminClient.create(TopicAdminSettings.newBuilder()
+                                                           .setTransportChannelProvider(channelProvider)
+                                                           .setCredentialsProvider(NoCredentialsProvider.create())
+                                                           .build())) {
+            topicClient.createTopic(topicName);
+        } catch (final AlreadyExistsException e) {
+            // Left over from a previous run.
+        }
+        publisher = Publisher.newBuilder(topicName)
+                             .setChannelProvider(channelProvider)
+                             .setCredentialsProvider(NoCredentialsProvider.create())
+                             .build();
+        flusher = new GoogleCloudPubSubFlusher(publisher,
+                                               new DivolteSchema(SCHEMA, Optional.empty()),
+                                               async ? Optional.of(new InFlightLimit(MAX_IN_FLIGHT, MAX_IN_FLIGHT_BYTES)) : Optional.empty());
+        items = IntStream.range(0, BATCH_SIZE)
+                         .mapToObj(i -> item(Integer.toString(i)))
+                         .collect(Collectors.toList());
+        batch = new ArrayDeque<>(BATCH_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        publisher.shutdown();
+        publisher.awaitTermination(1, TimeUnit.MINUTES);
+        channel.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void publishBatch() throws InterruptedException {
+        batch.addAll(items);
+        // This is what the processing pool does: while paused, heartbeats are delivered until we can continue.
+        ProcessingDirective directive = flusher.process(batch);
+        while (directive == ProcessingDirective.PAUSE) {
+            TimeUnit.MILLISECONDS.sleep(1);
+            directive = flusher.heartbeat();
+        }
+    }
+
+    private static Item<AvroRecordBuffer> item(final String value) {
+        final GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("value", value);
+        final DivolteIdentifier partyId = DivolteIdentifier.generate();
+        return Item.of(0,
+                       partyId.value,
+                       AvroRecordBuffer.fromRecord(partyId, DivolteIdentifier.generate(), value, Instant.now(), record));
+    }
+}
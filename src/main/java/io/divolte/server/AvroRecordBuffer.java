@@ -19,16 +19,25 @@ package io.divolte.server;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Utf8;
+import io.divolte.server.processing.ItemCodec;
+import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.Encoder;
 import org.apache.avro.io.EncoderFactory;
@@ -36,42 +45,33 @@ import org.apache.avro.specific.SpecificDatumWriter;
 
 @ParametersAreNonnullByDefault
 public final class AvroRecordBuffer {
-    private static final int INITIAL_BUFFER_SIZE = 100;
-    private static final AtomicInteger BUFFER_SIZE = new AtomicInteger(INITIAL_BUFFER_SIZE);
+    private static final ThreadLocal<RecordSerializer> SERIALIZER = ThreadLocal.withInitial(RecordSerializer::new);
+    private static final byte[] NO_HEADER = new byte[0];
 
     private final DivolteIdentifier partyId;
     private final DivolteIdentifier sessionId;
     private final String eventId;
     private final Instant timestamp;
+    // The serialized record, preceded by the header that was reserved for it (if any).
+    private final byte[] headerAndRecord;
+    private final int headerLength;
     private final ByteBuffer byteBuffer;
 
     private AvroRecordBuffer(final DivolteIdentifier partyId,
                              final DivolteIdentifier sessionId,
                              final String eventId,
                              final Instant timestamp,
-                             final GenericRecord record) throws IOException {
+                             final byte[] headerAndRecord,
+                             final int headerLength) {
         this.partyId = Objects.requireNonNull(partyId);
         this.sessionId = Objects.requireNonNull(sessionId);
         this.eventId = Objects.requireNonNull(eventId);
         this.timestamp = Objects.requireNonNull(timestamp);
-
-        /*
-         * We avoid ByteArrayOutputStream as it is fully synchronized and performs
-         * a lot of copying. Instead, we create a byte array and point a
-         * ByteBuffer to it and create a custom OutputStream implementation that
-         * writes directly to the ByteBuffer. If we under-allocate, we recreate
-         * the entire object using a larger byte array. All subsequent instances
-         * will also allocate the larger size array from that point onward.
-         */
-        final ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE.get());
-        final DatumWriter<GenericRecord> writer = new SpecificDatumWriter<>(record.getSchema());
-        final Encoder encoder = EncoderFactory.get().directBinaryEncoder(new ByteBufferOutputStream(byteBuffer), null);
-
-        writer.write(record, encoder);
-
-        // Prepare buffer for reading, and store it (read-only).
-        byteBuffer.flip();
-        this.byteBuffer = byteBuffer.asReadOnlyBuffer();
+        this.headerAndRecord = Objects.requireNonNull(headerAndRecord);
+        this.headerLength = headerLength;
+        this.byteBuffer = ByteBuffer.wrap(headerAndRecord, headerLength, headerAndRecord.length - headerLength)
+                                    .slice()
+                                    .asReadOnlyBuffer();
     }
 
     public DivolteIdentifier getPartyId() {
@@ -95,19 +95,64 @@ public final class AvroRecordBuffer {
                                               final String eventId,
                                               final Instant timestamp,
                                               final GenericRecord record) {
-        for (;;) {
-            try {
-                return new AvroRecordBuffer(partyId, sessionId, eventId, timestamp, record);
-            } catch (final BufferOverflowException boe) {
-                // Increase the buffer size by about 10%
-                // Because we only ever increase the buffer size, we discard the
-                // scenario where this thread fails to set the new size,
-                // as we can assume another thread increased it.
-                int currentSize = BUFFER_SIZE.get();
-                BUFFER_SIZE.compareAndSet(currentSize, (int) (currentSize * 1.1));
-            } catch (final IOException ioe) {
-                throw new UncheckedIOException("Serialization error.", ioe);
-            }
+        final RecordSerializer serializer = SERIALIZER.get();
+        return fromRecord(partyId, sessionId, eventId, timestamp, record, serializer.defaultSizeEstimator);
+    }
+
+    static AvroRecordBuffer fromRecord(final DivolteIdentifier partyId,
+                                       final DivolteIdentifier sessionId,
+                                       final String eventId,
+                                       final Instant timestamp,
+                                       final GenericRecord record,
+                                       final RecordSizeEstimator sizeEstimator) {
+        return fromRecord(partyId, sessionId, eventId, timestamp, record, sizeEstimator, NO_HEADER);
+    }
+
+    static AvroRecordBuffer fromRecord(final DivolteIdentifier partyId,
+                                       final DivolteIdentifier sessionId,
+                                       final String eventId,
+                                       final Instant timestamp,
+                                       final GenericRecord record,
+                                       final RecordSizeEstimator sizeEstimator,
+                                       final byte[] header) {
+        final DatumWriter<GenericRecord> writer = SERIALIZER.get().writerFor(record.getSchema());
+        return fromEncodedRecord(partyId, sessionId, eventId, timestamp,
+                                 encoder -> writer.write(record, encoder), sizeEstimator, header);
+    }
+
+    /*
+     * Used when a record is encoded directly, without a GenericRecord to hand.
+     */
+    @FunctionalInterface
+    interface RecordEncoder {
+        void encode(Encoder encoder) throws IOException;
+    }
+
+    static AvroRecordBuffer fromEncodedRecord(final DivolteIdentifier partyId,
+                                              final DivolteIdentifier sessionId,
+                                              final String eventId,
+                                              final Instant timestamp,
+                                              final RecordEncoder recordEncoder,
+                                              final RecordSizeEstimator sizeEstimator) {
+        return fromEncodedRecord(partyId, sessionId, eventId, timestamp, recordEncoder, sizeEstimator, NO_HEADER);
+    }
+
+    /*
+     * The header is written ahead of the record, so that a sink which prefixes records with
+     * that header can use the buffer as-is. (See toByteArray().)
+     */
+    static AvroRecordBuffer fromEncodedRecord(final DivolteIdentifier partyId,
+                                              final DivolteIdentifier sessionId,
+                                              final String eventId,
+                                              final Instant timestamp,
+                                              final RecordEncoder recordEncoder,
+                                              final RecordSizeEstimator sizeEstimator,
+                                              final byte[] header) {
+        try {
+            final byte[] headerAndRecord = SERIALIZER.get().serialize(header, recordEncoder, sizeEstimator);
+            return new AvroRecordBuffer(partyId, sessionId, eventId, timestamp, headerAndRecord, header.length);
+        } catch (final IOException ioe) {
+            throw new UncheckedIOException("Serialization error.", ioe);
         }
     }
 
@@ -115,6 +160,26 @@ public final class AvroRecordBuffer {
         return byteBuffer.slice();
     }
 
+    /**
+     * Get the serialized record as an array, preceded by a header. If the buffer was created
+     * with the same header reserved ahead of the record, the array backing this buffer is
+     * returned instead of a copy. The result must therefore not be modified.
+     *
+     * @param header the bytes that should precede the record, possibly none.
+     * @return an array containing the header followed by the serialized record.
+     */
+    public byte[] toByteArray(final byte[] header) {
+        if (header.length == headerLength
+            && ByteBuffer.wrap(headerAndRecord, 0, headerLength).equals(ByteBuffer.wrap(header))) {
+            return headerAndRecord;
+        }
+        final int recordLength = size();
+        final byte[] result = new byte[header.length + recordLength];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(headerAndRecord, headerLength, result, header.length, recordLength);
+        return result;
+    }
+
     /**
      * Convenience getter for determining the size without materializing a slice of the buffer.
      * @return The internal buffer's size.
@@ -123,6 +188,13 @@ public final class AvroRecordBuffer {
         return byteBuffer.limit();
     }
 
+    /**
+     * @return a codec for storing buffers outside the heap.
+     */
+    public static ItemCodec<AvroRecordBuffer> codec() {
+        return Codec.INSTANCE;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -132,22 +204,178 @@ public final class AvroRecordBuffer {
                 .toString();
     }
 
+    /*
+     * Buffers are encoded as their identifiers, timestamp and the serialized record.
+     * Strings are prefixed by their length in bytes.
+     */
+    private static final class Codec implements ItemCodec<AvroRecordBuffer> {
+        private static final Codec INSTANCE = new Codec();
+
+        @Override
+        public int encodedSize(final AvroRecordBuffer buffer) {
+            return 4 + Utf8.encodedLength(buffer.partyId.value)
+                 + 4 + Utf8.encodedLength(buffer.sessionId.value)
+                 + 4 + Utf8.encodedLength(buffer.eventId)
+                 + 8 + 4
+                 + buffer.size();
+        }
+
+        @Override
+        public void encode(final AvroRecordBuffer buffer, final ByteBuffer target) {
+            putString(target, buffer.partyId.value);
+            putString(target, buffer.sessionId.value);
+            putString(target, buffer.eventId);
+            target.putLong(buffer.timestamp.getEpochSecond())
+                  .putInt(buffer.timestamp.getNano())
+                  .put(buffer.getByteBuffer());
+        }
+
+        @Override
+        public AvroRecordBuffer decode(final ByteBuffer source) {
+            final DivolteIdentifier partyId = getIdentifier(source);
+            final DivolteIdentifier sessionId = getIdentifier(source);
+            final String eventId = getString(source);
+            final Instant timestamp = Instant.ofEpochSecond(source.getLong(), source.getInt());
+            final byte[] serializedRecord = new byte[source.remaining()];
+            source.get(serializedRecord);
+            // The header isn't encoded; sinks that need one will add it when the buffer is written.
+            return new AvroRecordBuffer(partyId, sessionId, eventId, timestamp, serializedRecord, 0);
+        }
+
+        private static void putString(final ByteBuffer target, final String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            target.putInt(bytes.length).put(bytes);
+        }
+
+        private static String getString(final ByteBuffer source) {
+            final byte[] bytes = new byte[source.getInt()];
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static DivolteIdentifier getIdentifier(final ByteBuffer source) {
+            final String value = getString(source);
+            return DivolteIdentifier.tryParse(value)
+                                    .orElseThrow(() -> new IllegalArgumentException("Invalid identifier: " + value));
+        }
+    }
+
+    /*
+     * Serialization state that is reused between records serialized on the same thread:
+     *  - A datum writer per schema. (Creating these is expensive because the schema has
+     *    to be resolved.) Schemas are compared by identity: in practice there is a single
+     *    instance per mapping.
+     *  - The binary encoder.
+     *  - A scratch stream into which records are serialized (after their header, if any)
+     *    before being copied into an array of exactly the right size.
+     */
+    @ParametersAreNonnullByDefault
+    @NotThreadSafe
+    private static final class RecordSerializer {
+        private final Map<Schema, DatumWriter<GenericRecord>> writers = new IdentityHashMap<>();
+        private final ChunkedOutputStream scratch = new ChunkedOutputStream();
+        // Used when the caller doesn't track record sizes itself.
+        private final RecordSizeEstimator defaultSizeEstimator = new RecordSizeEstimator();
+        @Nullable
+        private BinaryEncoder encoder;
+
+        DatumWriter<GenericRecord> writerFor(final Schema schema) {
+            return writers.computeIfAbsent(schema, SpecificDatumWriter::new);
+        }
+
+        byte[] serialize(final byte[] header,
+                         final RecordEncoder recordEncoder,
+                         final RecordSizeEstimator sizeEstimator) throws IOException {
+            /*
+             * We avoid ByteArrayOutputStream as it is fully synchronized and performs
+             * a lot of copying. Instead, we write into a chunked scratch stream whose first
+             * chunk is sized according to the records seen so far. Records that don't fit
+             * spill over into additional chunks, so each record is encoded exactly once.
+             */
+            scratch.reset(header.length + sizeEstimator.estimate());
+            scratch.write(header, 0, header.length);
+            encoder = EncoderFactory.get().directBinaryEncoder(scratch, encoder);
+            recordEncoder.encode(encoder);
+            sizeEstimator.record(scratch.size() - header.length);
+            return scratch.toByteArray();
+        }
+    }
+
+    /*
+     * An output stream that writes into a chain of byte arrays. The first chunk is reused
+     * between records; further chunks are allocated as needed, each at least as large as
+     * all the preceding chunks together.
+     */
     @ParametersAreNonnullByDefault
-    private static final class ByteBufferOutputStream extends OutputStream {
-        private final ByteBuffer underlying;
+    @NotThreadSafe
+    private static final class ChunkedOutputStream extends OutputStream {
+        private static final int MINIMUM_CHUNK_SIZE = 256;
+        // The first chunk is replaced if it's this many times larger than needed.
+        private static final int SHRINK_FACTOR = 4;
 
-        public ByteBufferOutputStream(final ByteBuffer underlying) {
-            this.underlying = Objects.requireNonNull(underlying);
+        private final List<byte[]> chunks = new ArrayList<>();
+        private byte[] currentChunk = new byte[0];
+        private int currentChunkPosition;
+        // The total size of the chunks preceding the current one.
+        private int precedingChunksSize;
+
+        void reset(final int firstChunkSize) {
+            final byte[] firstChunk = chunks.isEmpty() ? currentChunk : chunks.get(0);
+            chunks.clear();
+            // Small records still get a chunk of the minimum size, which isn't too large for them.
+            final int wantedSize = Math.max(firstChunkSize, MINIMUM_CHUNK_SIZE);
+            currentChunk = firstChunk.length < wantedSize || firstChunk.length > wantedSize * SHRINK_FACTOR
+                    ? new byte[wantedSize]
+                    : firstChunk;
+            chunks.add(currentChunk);
+            currentChunkPosition = 0;
+            precedingChunksSize = 0;
+        }
+
+        int size() {
+            return precedingChunksSize + currentChunkPosition;
+        }
+
+        byte[] toByteArray() {
+            final byte[] result = new byte[size()];
+            int position = 0;
+            for (final byte[] chunk : chunks) {
+                final int length = Math.min(chunk.length, result.length - position);
+                System.arraycopy(chunk, 0, result, position, length);
+                position += length;
+            }
+            return result;
         }
 
         @Override
-        public void write(final int b) throws IOException {
-            underlying.put((byte) b);
+        public void write(final int b) {
+            if (currentChunkPosition == currentChunk.length) {
+                nextChunk();
+            }
+            currentChunk[currentChunkPosition++] = (byte) b;
         }
 
         @Override
-        public void write(final byte[] b, final int off, final int len) throws IOException {
-            underlying.put(b, off, len);
+        public void write(final byte[] b, final int off, final int len) {
+            int offset = off;
+            int remaining = len;
+            while (0 < remaining) {
+                if (currentChunkPosition == currentChunk.length) {
+                    nextChunk();
+                }
+                final int length = Math.min(remaining, currentChunk.length - currentChunkPosition);
+                System.arraycopy(b, offset, currentChunk, currentChunkPosition, length);
+                currentChunkPosition += length;
+                offset += length;
+                remaining -= length;
+            }
+        }
+
+        private void nextChunk() {
+            precedingChunksSize += currentChunk.length;
+            currentChunk = new byte[Math.max(MINIMUM_CHUNK_SIZE, precedingChunksSize)];
+            currentChunkPosition = 0;
+            chunks.add(currentChunk);
         }
     }
 }
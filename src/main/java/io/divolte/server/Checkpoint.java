@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemCodec;
+import io.divolte.server.processing.PoolRoute;
+
+/**
+ * A file holding the events that were still queued for the sinks when the server stopped.
+ * <p>
+ * The file starts with a magic number and version, followed by a record for each event:
+ * <ol>
+ *     <li>The name of the sink, in modified UTF-8.</li>
+ *     <li>The length of the encoded event, as an int.</li>
+ *     <li>The CRC-32 checksum of the encoded event, as an int.</li>
+ *     <li>The encoded event.</li>
+ * </ol>
+ * The file is written next to its final location and then moved into place, so a
+ * checkpoint is either complete or absent.
+ */
+@ParametersAreNonnullByDefault
+final class Checkpoint {
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final int MAGIC = 0x44564350; // "DVCP"
+    private static final int VERSION = 1;
+
+    private static final ItemCodec<Item<AvroRecordBuffer>> CODEC = Item.codec(AvroRecordBuffer.codec());
+
+    private Checkpoint() {
+        // Prevent external instantiation.
+    }
+
+    /**
+     * Write the events that remain for each sink to a checkpoint file, replacing any
+     * existing checkpoint.
+     *
+     * @param file      the checkpoint file.
+     * @param remaining the events that remain, by sink name.
+     * @return the number of events that were written.
+     * @throws IOException if the checkpoint could not be written.
+     */
+    static int write(final Path file, final Map<String, List<Item<AvroRecordBuffer>>> remaining) throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        final Path temporaryFile = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        int count = 0;
+        try {
+            try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                final CRC32 crc = new CRC32();
+                for (final Map.Entry<String, List<Item<AvroRecordBuffer>>> entry : remaining.entrySet()) {
+                    for (final Item<AvroRecordBuffer> item : entry.getValue()) {
+                        final ByteBuffer buffer = ByteBuffer.allocate(CODEC.encodedSize(item));
+                        CODEC.encode(item, buffer);
+                        crc.reset();
+                        crc.update(buffer.array());
+                        output.writeUTF(entry.getKey());
+                        output.writeInt(buffer.capacity());
+                        output.writeInt((int) crc.getValue());
+                        output.write(buffer.array());
+                        ++count;
+                    }
+                }
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+        return count;
+    }
+
+    /**
+     * Replay the events in a checkpoint file into the pools of the sinks they were queued
+     * for, and remove the file. Events for sinks that no longer exist are discarded.
+     * <p>
+     * This waits for space in the pools if they are full, so it should be done before
+     * anything else starts queuing events for the sinks.
+     *
+     * @param file  the checkpoint file.
+     * @param sinks the sinks into which events should be replayed, by name.
+     * @return the number of events that were replayed.
+     * @throws IOException if the checkpoint could not be read, or replaying was interrupted.
+     */
+    static int replay(final Path file, final Map<String, PoolRoute<AvroRecordBuffer>> sinks) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int replayed = 0;
+        int discarded = 0;
+        boolean interrupted = false;
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            try {
+                final CRC32 crc = new CRC32();
+                for (;;) {
+                    final String sinkName;
+                    try {
+                        sinkName = input.readUTF();
+                    } catch (final EOFException e) {
+                        break;
+                    }
+                    final byte[] bytes = new byte[input.readInt()];
+                    final int checksum = input.readInt();
+                    input.readFully(bytes);
+                    crc.reset();
+                    crc.update(bytes);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Corrupt record in checkpoint file: " + file);
+                    }
+                    final PoolRoute<AvroRecordBuffer> sink = sinks.get(sinkName);
+                    if (null == sink) {
+                        ++discarded;
+                    } else {
+                        sink.put(CODEC.decode(ByteBuffer.wrap(bytes)));
+                        ++replayed;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                interrupted = true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted after replaying " + replayed + " events from checkpoint: " + file);
+            } finally {
+                // Even if the checkpoint is damaged part-way, we don't want to replay it twice.
+                // If we're interrupted it's kept, because the rest of its events would otherwise be lost.
+                if (!interrupted) {
+                    Files.delete(file);
+                }
+                if (0 < discarded) {
+                    logger.warn("Discarded {} checkpointed events for sinks that no longer exist.", discarded);
+                }
+            }
+        }
+        return replayed;
+    }
+}
@@ -20,7 +20,6 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Resources;
@@ -118,15 +117,23 @@ public final class ClientSideCookieEventHandler implements HttpHandler {
 
         // If an ETag is present, this is a duplicate event.
         if (ETagUtils.handleIfNoneMatch(exchange, SENTINEL_ETAG, true)) {
-            // Default status code what we want: 200 OK.
-            // Sending the response before logging the event!
-            exchange.getResponseSender().send(transparentImage.slice());
-
+            // The event is queued before responding: if it isn't admitted for processing,
+            // the client should be told to try again later.
+            boolean admitted;
             try {
-                logEvent(exchange);
+                admitted = logEvent(exchange);
             } catch (final IncompleteRequestException ire) {
                 // improper request, could be anything
                 logger.debug("Improper request received from {}.", Optional.ofNullable(exchange.getSourceAddress()).map(InetSocketAddress::getHostString).orElse("<UNKNOWN HOST>"));
+                admitted = true;
+            }
+
+            if (admitted) {
+                // Default status code what we want: 200 OK.
+                exchange.getResponseSender().send(transparentImage.slice());
+            } else {
+                setServiceUnavailable(exchange, processingPool.retryAfter());
+                exchange.endExchange();
             }
         } else {
             if (logger.isDebugEnabled()) {
@@ -145,40 +152,41 @@ public final class ClientSideCookieEventHandler implements HttpHandler {
                 : requestUrl + '?' + queryString;
     }
 
-    private void logEvent(final HttpServerExchange exchange) throws IncompleteRequestException {
+    private boolean logEvent(final HttpServerExchange exchange) throws IncompleteRequestException {
         final DivolteIdentifier partyId = queryParamFromExchange(exchange, PARTY_ID_QUERY_PARAM).flatMap(DivolteIdentifier::tryParse).orElseThrow(IncompleteRequestException::new);
-        final UndertowEvent event = new BrowserUndertowEvent(Instant.now(), exchange, partyId);
-        processingPool.enqueue(Item.of(sourceIndex, partyId.value, event));
+        final RequestSnapshot request = RequestSnapshot.capture(exchange, processingPool.requestCapture());
+        final UndertowEvent event = new BrowserUndertowEvent(Instant.now(), request, partyId, exchange.getQueryString().length());
+        return processingPool.admit(Item.of(sourceIndex, partyId.value, event));
     }
 
     private static final class BrowserUndertowEvent extends UndertowEvent {
-        private BrowserUndertowEvent(final Instant requestTime, final HttpServerExchange exchange, final DivolteIdentifier partyId) {
-            super(requestTime, exchange, partyId);
+        private BrowserUndertowEvent(final Instant requestTime, final RequestSnapshot request, final DivolteIdentifier partyId, final int size) {
+            super(requestTime, request, partyId, size);
         }
 
         @Override
         public DivolteEvent parseRequest() throws IncompleteRequestException {
-            final boolean corrupt = !isRequestChecksumCorrect(exchange);
-            final DivolteIdentifier partyId = queryParamFromExchange(exchange, PARTY_ID_QUERY_PARAM).flatMap(DivolteIdentifier::tryParse).orElseThrow(IncompleteRequestException::new);
-            final DivolteIdentifier sessionId = queryParamFromExchange(exchange, SESSION_ID_QUERY_PARAM).flatMap(DivolteIdentifier::tryParse).orElseThrow(IncompleteRequestException::new);
-            final String pageViewId = queryParamFromExchange(exchange, PAGE_VIEW_ID_QUERY_PARAM).orElseThrow(IncompleteRequestException::new);
-            final String eventId = queryParamFromExchange(exchange, EVENT_ID_QUERY_PARAM).orElseThrow(IncompleteRequestException::new);
-            final boolean isNewPartyId = queryParamFromExchange(exchange, NEW_PARTY_ID_QUERY_PARAM).map(TRUE_STRING::equals).orElseThrow(IncompleteRequestException::new);
-            final boolean isFirstInSession = queryParamFromExchange(exchange, FIRST_IN_SESSION_QUERY_PARAM).map(TRUE_STRING::equals).orElseThrow(IncompleteRequestException::new);
-            final Instant clientTimeStamp = Instant.ofEpochMilli(queryParamFromExchange(exchange, CLIENT_TIMESTAMP_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Long).orElseThrow(IncompleteRequestException::new));
-
-            final DivolteEvent event = DivolteEvent.createBrowserEvent(exchange, corrupt, partyId, sessionId, eventId,
+            final boolean corrupt = !isRequestChecksumCorrect(request);
+            final DivolteIdentifier partyId = request.queryParameter(PARTY_ID_QUERY_PARAM).flatMap(DivolteIdentifier::tryParse).orElseThrow(IncompleteRequestException::new);
+            final DivolteIdentifier sessionId = request.queryParameter(SESSION_ID_QUERY_PARAM).flatMap(DivolteIdentifier::tryParse).orElseThrow(IncompleteRequestException::new);
+            final String pageViewId = request.queryParameter(PAGE_VIEW_ID_QUERY_PARAM).orElseThrow(IncompleteRequestException::new);
+            final String eventId = request.queryParameter(EVENT_ID_QUERY_PARAM).orElseThrow(IncompleteRequestException::new);
+            final boolean isNewPartyId = request.queryParameter(NEW_PARTY_ID_QUERY_PARAM).map(TRUE_STRING::equals).orElseThrow(IncompleteRequestException::new);
+            final boolean isFirstInSession = request.queryParameter(FIRST_IN_SESSION_QUERY_PARAM).map(TRUE_STRING::equals).orElseThrow(IncompleteRequestException::new);
+            final Instant clientTimeStamp = Instant.ofEpochMilli(request.queryParameter(CLIENT_TIMESTAMP_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Long).orElseThrow(IncompleteRequestException::new));
+
+            final DivolteEvent event = DivolteEvent.createBrowserEvent(request, corrupt, partyId, sessionId, eventId,
                                                                        requestTime, clientTimeStamp,
                                                                        isNewPartyId, isFirstInSession,
-                                                                       queryParamFromExchange(exchange, EVENT_TYPE_QUERY_PARAM),
-                                                                       eventParameterSupplier(exchange),
-                                                                       browserEventData(exchange, pageViewId));
+                                                                       request.queryParameter(EVENT_TYPE_QUERY_PARAM),
+                                                                       eventParameterSupplier(request),
+                                                                       browserEventData(request, pageViewId));
             return event;
         }
     }
 
-    private static Supplier<Optional<JsonNode>> eventParameterSupplier(final HttpServerExchange exchange) {
-        return () -> queryParamFromExchange(exchange, EVENT_PARAMETERS_QUERY_PARAM)
+    private static Supplier<Optional<JsonNode>> eventParameterSupplier(final RequestSnapshot request) {
+        return () -> request.queryParameter(EVENT_PARAMETERS_QUERY_PARAM)
                 .map(encodedParameters -> {
                     try {
                         return EVENT_PARAMETERS_READER.readTree(encodedParameters);
@@ -191,25 +199,25 @@ public final class ClientSideCookieEventHandler implements HttpHandler {
                 });
     }
 
-    private static BrowserEventData browserEventData(final HttpServerExchange exchange, final String pageViewId) {
+    private static BrowserEventData browserEventData(final RequestSnapshot request, final String pageViewId) {
         return new DivolteEvent.BrowserEventData(
                 pageViewId,
-                queryParamFromExchange(exchange, LOCATION_QUERY_PARAM),
-                queryParamFromExchange(exchange, REFERER_QUERY_PARAM),
-                queryParamFromExchange(exchange, VIEWPORT_PIXEL_WIDTH_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
-                queryParamFromExchange(exchange, VIEWPORT_PIXEL_HEIGHT_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
-                queryParamFromExchange(exchange, SCREEN_PIXEL_WIDTH_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
-                queryParamFromExchange(exchange, SCREEN_PIXEL_HEIGHT_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
-                queryParamFromExchange(exchange, DEVICE_PIXEL_RATIO_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int));
+                request.queryParameter(LOCATION_QUERY_PARAM),
+                request.queryParameter(REFERER_QUERY_PARAM),
+                request.queryParameter(VIEWPORT_PIXEL_WIDTH_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
+                request.queryParameter(VIEWPORT_PIXEL_HEIGHT_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
+                request.queryParameter(SCREEN_PIXEL_WIDTH_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
+                request.queryParameter(SCREEN_PIXEL_HEIGHT_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int),
+                request.queryParameter(DEVICE_PIXEL_RATIO_QUERY_PARAM).map(ClientSideCookieEventHandler::tryParseBase36Int));
     }
 
     private static final HashFunction CHECKSUM_HASH = Hashing.murmur3_32();
 
-    private static boolean isRequestChecksumCorrect(final HttpServerExchange exchange) {
+    private static boolean isRequestChecksumCorrect(final RequestSnapshot request) {
         // This is not intended to be robust against intentional tampering; it is intended to guard
         // against proxies and the like that may have truncated the request.
 
-        return queryParamFromExchange(exchange, CHECKSUM_QUERY_PARAM)
+        return request.queryParameter(CHECKSUM_QUERY_PARAM)
                 .map(ClientSideCookieEventHandler::tryParseBase36Long)
                 .map((expectedChecksum) -> {
                     /*
@@ -217,7 +225,7 @@ public final class ClientSideCookieEventHandler implements HttpHandler {
                      * the intermediate string representation. For now the debug value of the string exceeds
                      * the benefits of going slightly faster.
                      */
-                    final String canonicalRequestString = buildNormalizedChecksumString(sorted(exchange.getQueryParameters()));
+                    final String canonicalRequestString = buildNormalizedChecksumString(request.queryParameters);
                     final int requestChecksum =
                             CHECKSUM_HASH.hashString(canonicalRequestString, StandardCharsets.UTF_8).asInt();
                     final boolean isRequestChecksumCorrect = expectedChecksum == requestChecksum;
@@ -232,13 +240,7 @@ public final class ClientSideCookieEventHandler implements HttpHandler {
                 .orElse(false);
     }
 
-    private static <K,V> SortedMap<K, V> sorted(final Map<K, V> map) {
-        return map instanceof SortedMap
-            ? (SortedMap<K,V>)map
-            : ImmutableSortedMap.copyOf(map);
-    }
-
-    private static String buildNormalizedChecksumString(final SortedMap<String,Deque<String>> queryParameters) {
+    private static String buildNormalizedChecksumString(final SortedMap<String,? extends List<String>> queryParameters) {
         /*
          * Build up a canonical representation of the query parameters. The canonical order is:
          *  1) Sort the query parameters by key, preserving multiple values (and their order).
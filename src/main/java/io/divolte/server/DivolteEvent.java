@@ -19,8 +19,6 @@ package io.divolte.server;
 import javax.annotation.ParametersAreNonnullByDefault;
 import com.fasterxml.jackson.databind.JsonNode;
 
-import io.undertow.server.HttpServerExchange;
-
 import java.time.Instant;
 import java.util.Objects;
 import java.util.Optional;
@@ -34,7 +32,7 @@ import java.util.function.Supplier;
  */
 @ParametersAreNonnullByDefault
 public final class DivolteEvent {
-    public final HttpServerExchange exchange;
+    public final RequestSnapshot request;
 
     // Events from all sources support these attributes.
     public final boolean corruptEvent;
@@ -104,7 +102,7 @@ public final class DivolteEvent {
         }
     }
 
-    DivolteEvent(final HttpServerExchange originatingExchange,
+    DivolteEvent(final RequestSnapshot request,
                  final boolean corruptEvent,
                  final DivolteIdentifier partyCookie,
                  final DivolteIdentifier sessionCookie,
@@ -118,7 +116,7 @@ public final class DivolteEvent {
                  final Supplier<Optional<JsonNode>> eventParametersProducer,
                  final Optional<BrowserEventData> browserEvent,
                  final Optional<JsonEventData> jsonEvent) {
-        this.exchange                = originatingExchange;
+        this.request                 = Objects.requireNonNull(request);
         this.corruptEvent            = corruptEvent;
         this.partyId                 = Objects.requireNonNull(partyCookie);
         this.sessionId               = Objects.requireNonNull(sessionCookie);
@@ -135,7 +133,7 @@ public final class DivolteEvent {
     }
 
     static DivolteEvent createBrowserEvent(
-            final HttpServerExchange originatingExchange,
+            final RequestSnapshot request,
             final boolean corruptEvent,
             final DivolteIdentifier partyCookie,
             final DivolteIdentifier sessionCookie,
@@ -148,7 +146,7 @@ public final class DivolteEvent {
             final Supplier<Optional<JsonNode>> eventParametersProducer,
             final BrowserEventData browserEvent) {
         return new DivolteEvent(
-                originatingExchange,
+                request,
                 corruptEvent,
                 partyCookie,
                 sessionCookie,
@@ -166,7 +164,7 @@ public final class DivolteEvent {
     }
 
     static DivolteEvent createJsonEvent(
-            final HttpServerExchange originatingExchange,
+            final RequestSnapshot request,
             final DivolteIdentifier partyCookie,
             final DivolteIdentifier sessionCookie,
             final String eventId,
@@ -179,7 +177,7 @@ public final class DivolteEvent {
             final Supplier<Optional<JsonNode>> eventParametersProducer,
             final JsonEventData jsonEvent) {
         return new DivolteEvent(
-                originatingExchange,
+                request,
                 // Corruption in JSON events can't currently be detected.
                 false,
                 partyCookie,
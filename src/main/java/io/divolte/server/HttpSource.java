@@ -18,10 +18,13 @@ package io.divolte.server;
 
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.PathHandler;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.Deque;
 import java.util.Objects;
 import java.util.Optional;
@@ -47,6 +50,16 @@ public abstract class HttpSource {
         return sourceAddress;
     }
 
+    protected static void setServiceUnavailable(final HttpServerExchange exchange, final Duration retryAfter) {
+        /*
+         * Used when an event was not admitted for processing. Retry-After is specified in
+         * whole seconds; we round up so that clients never retry sooner than requested.
+         */
+        final long retryAfterSeconds = Math.max(1, retryAfter.plusNanos(999_999_999).getSeconds());
+        exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+        exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfterSeconds);
+    }
+
     public static Optional<String> queryParamFromExchange(final HttpServerExchange exchange, final String param) {
         return Optional.ofNullable(exchange.getQueryParameters().get(param)).map(Deque::getFirst);
     }
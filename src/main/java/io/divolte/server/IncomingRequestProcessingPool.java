@@ -19,7 +19,11 @@ package io.divolte.server;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -28,24 +32,39 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 
+import io.divolte.server.config.AdmissionConfiguration;
 import io.divolte.server.config.ValidatedConfiguration;
 import io.divolte.server.ip2geo.ExternalDatabaseLookupService;
 import io.divolte.server.ip2geo.LookupService;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.PoolRoute;
 import io.divolte.server.processing.ProcessingPool;
+import io.divolte.server.recordmapping.CompiledMappingScript;
+import io.divolte.server.recordmapping.UserAgentParserAndCache;
 
 @ParametersAreNonnullByDefault
 public final class IncomingRequestProcessingPool extends ProcessingPool<IncomingRequestProcessor, UndertowEvent> {
     private final static Logger logger = LoggerFactory.getLogger(IncomingRequestProcessingPool.class);
 
+    private final UserAgentParserAndCache userAgentParser;
+    private final RequestSnapshot.Capture requestCapture;
+    private final AdmissionConfiguration admission;
+    private final LongAdder shedEvents = new LongAdder();
+
     public IncomingRequestProcessingPool(final ValidatedConfiguration vc,
                                          final SchemaRegistry schemaRegistry,
-                                         final ImmutableMap<String, ProcessingPool<?, AvroRecordBuffer>> sinksByName,
-                                         final IncomingRequestListener listener) {
+                                         final ImmutableMap<String, PoolRoute<AvroRecordBuffer>> sinksByName,
+                                         final ByteBudget globalByteBudget,
+                                         final Optional<IncomingRequestListener> listener) {
         this (
                 vc,
                 schemaRegistry,
                 sinksByName,
+                globalByteBudget,
                 lookupServiceFromConfig(vc),
+                new UserAgentParserAndCache(vc),
+                compileMappingScripts(vc),
                 listener
                 );
     }
@@ -53,14 +72,102 @@ public final class IncomingRequestProcessingPool extends ProcessingPool<Incoming
     public IncomingRequestProcessingPool(
             final ValidatedConfiguration vc,
             final SchemaRegistry schemaRegistry,
-            final ImmutableMap<String, ProcessingPool<?, AvroRecordBuffer>> sinksByName,
+            final ImmutableMap<String, PoolRoute<AvroRecordBuffer>> sinksByName,
+            final ByteBudget globalByteBudget,
             final Optional<LookupService> geoipLookupService,
-            final IncomingRequestListener listener) {
+            final UserAgentParserAndCache userAgentParser,
+            final ImmutableMap<String, CompiledMappingScript> mappingScripts,
+            final Optional<IncomingRequestListener> listener) {
         super(
                 vc.configuration().global.mapper.threads,
                 vc.configuration().global.mapper.bufferSize,
+                vc.configuration().global.mapper.queue.getFactory(),
+                vc.configuration().global.mapper.queue.createByteBudget(globalByteBudget),
+                event -> event.size,
                 "Incoming Request Processor",
-                () -> new IncomingRequestProcessor(vc, sinksByName, geoipLookupService, schemaRegistry, listener));
+                () -> new IncomingRequestProcessor(vc, sinksByName, geoipLookupService, userAgentParser, mappingScripts, schemaRegistry, listener));
+        this.userAgentParser = userAgentParser;
+        this.admission = vc.configuration().global.mapper.admission;
+        this.requestCapture = requestCapture(vc, geoipLookupService, userAgentParser, mappingScripts, schemaRegistry);
+        logger.debug("Request data captured for mappings: {}", requestCapture);
+    }
+
+    /**
+     * @return the parts of each request that need to be captured when queueing an event.
+     */
+    public RequestSnapshot.Capture requestCapture() {
+        return requestCapture;
+    }
+
+    /**
+     * Offer an incoming event for processing, subject to the configured admission policy.
+     *
+     * @param item the event to process.
+     * @return <code>true</code> if the client should receive a normal response, or <code>false</code>
+     *         if the event was not admitted and the client should be told to retry later.
+     */
+    public boolean admit(final Item<UndertowEvent> item) {
+        switch (admission.policy) {
+            case SHED:
+                if (admission.highWaterMark <= saturation()
+                        && ThreadLocalRandom.current().nextInt(100) < admission.shedPercentage) {
+                    shedEvents.increment();
+                    return false;
+                }
+                return enqueue(item);
+            case REJECT:
+                return enqueue(item);
+            case ACCEPT:
+            default:
+                enqueue(item);
+                return true;
+        }
+    }
+
+    /**
+     * @return how long clients should wait before retrying events that were not admitted.
+     */
+    public Duration retryAfter() {
+        return admission.retryAfter;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (0 < shedEvents.sum()) {
+            logger.warn("Shed {} events while above the high-water mark.", shedEvents.sum());
+        }
+        logger.info("User agent cache statistics: {}", userAgentParser.stats());
+    }
+
+    private static ImmutableMap<String, CompiledMappingScript> compileMappingScripts(final ValidatedConfiguration vc) {
+        // Scripts are compiled once here, and then applied to the mappings of each mapper thread.
+        return vc.configuration()
+                 .mappings
+                 .entrySet()
+                 .stream()
+                 .filter(kv -> kv.getValue().mappingScriptFile.isPresent())
+                 .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey,
+                                                      kv -> CompiledMappingScript.compile(kv.getValue().mappingScriptFile.get())));
+    }
+
+    private static RequestSnapshot.Capture requestCapture(final ValidatedConfiguration vc,
+                                                          final Optional<LookupService> geoipLookupService,
+                                                          final UserAgentParserAndCache userAgentParser,
+                                                          final ImmutableMap<String, CompiledMappingScript> mappingScripts,
+                                                          final SchemaRegistry schemaRegistry) {
+        // The only way to find out which headers and cookies a mapping refers to is to set it up.
+        return vc.configuration()
+                 .mappings
+                 .keySet()
+                 .stream()
+                 .map(mappingName -> Mapping.createMapper(mappingName,
+                                                          geoipLookupService,
+                                                          userAgentParser,
+                                                          Optional.ofNullable(mappingScripts.get(mappingName)),
+                                                          schemaRegistry)
+                                            .requestCapture())
+                 .reduce(RequestSnapshot.Capture.NONE, RequestSnapshot.Capture::union);
     }
 
     private static Optional<LookupService> lookupServiceFromConfig(final ValidatedConfiguration vc) {
@@ -36,7 +36,9 @@ import io.divolte.server.config.ValidatedConfiguration;
 import io.divolte.server.ip2geo.LookupService;
 import io.divolte.server.processing.Item;
 import io.divolte.server.processing.ItemProcessor;
-import io.divolte.server.processing.ProcessingPool;
+import io.divolte.server.processing.PoolRoute;
+import io.divolte.server.recordmapping.CompiledMappingScript;
+import io.divolte.server.recordmapping.UserAgentParserAndCache;
 import io.undertow.util.AttachmentKey;
 
 @ParametersAreNonnullByDefault
@@ -50,13 +52,15 @@ public final class IncomingRequestProcessor implements ItemProcessor<UndertowEve
     // Given a source index, which mappings do we need to apply.
     private final ImmutableList<ImmutableList<Mapping>> mappingsBySourceIndex;
     // Given a mapping index, which sinks do we need to send it to.
-    private final ImmutableList<ImmutableList<ProcessingPool<?, AvroRecordBuffer>>> sinksByMappingIndex;
+    private final ImmutableList<ImmutableList<PoolRoute<AvroRecordBuffer>>> sinksByMappingIndex;
 
     public IncomingRequestProcessor(final ValidatedConfiguration vc,
-                                    final ImmutableMap<String, ProcessingPool<?, AvroRecordBuffer>> sinksByName,
+                                    final ImmutableMap<String, PoolRoute<AvroRecordBuffer>> sinksByName,
                                     final Optional<LookupService> geoipLookupService,
+                                    final UserAgentParserAndCache userAgentParser,
+                                    final ImmutableMap<String, CompiledMappingScript> mappingScripts,
                                     final SchemaRegistry schemaRegistry,
-                                    final IncomingRequestListener listener) {
+                                    final Optional<IncomingRequestListener> listener) {
 
         memory = new ShortTermDuplicateMemory(vc.configuration().global.mapper.duplicateMemorySize);
 
@@ -71,7 +75,10 @@ public final class IncomingRequestProcessor implements ItemProcessor<UndertowEve
                                     kv -> new Mapping(vc,
                                                       kv.getKey(),
                                                       geoipLookupService,
+                                                      userAgentParser,
+                                                      Optional.ofNullable(mappingScripts.get(kv.getKey())),
                                                       schemaRegistry,
+                                                      recordHeader(vc, kv.getKey(), sinksByName, schemaRegistry),
                                                       listener)));
 
         /*
@@ -105,22 +112,20 @@ public final class IncomingRequestProcessor implements ItemProcessor<UndertowEve
         mappingsBySourceIndex = ImmutableList.copyOf(sourceMappingResult);        // Make immutable copy
 
         /*
-         * Create a mapping from mapping index to a list of sinks (ProcessingPools)
-         * that apply for events that came from the given mapping. Similar as above,
-         * we transform the result into a list of lists, instead of a map in order
-         * to make sure the underlying lookups are array index lookups instead of
-         * hash map lookups.
+         * Create a mapping from mapping index to a list of sinks (routes into their
+         * ProcessingPools) that apply for events that came from the given mapping.
+         * Similar as above, we transform the result into a list of lists, instead of
+         * a map in order to make sure the underlying lookups are array index lookups
+         * instead of hash map lookups.
          *
-         * Note that we need to know the sinks for a mapping here, instead of on the
-         * sink thread side, since we have one pool per sink at this moment. Later
-         * we'll likely move to one pool per sink type (i.e. Kafka, HDFS) and leave
-         * it to that pool to multiplex events to different sinks destinations (HDFS
-         * files or Kafka topics), which should move this code elsewhere.
+         * Sink types may share a single pool between their sinks (i.e. Kafka); the
+         * route tags each event with the destination of its sink, which the pool uses
+         * to multiplex events to the different sink destinations (Kafka topics).
          */
         // Temporary buffer into which we assemble results.
-        final ArrayList<ImmutableList<ProcessingPool<?,AvroRecordBuffer>>> mappingMappingResult =
+        final ArrayList<ImmutableList<PoolRoute<AvroRecordBuffer>>> mappingMappingResult =
                 IntStream.range(0, vc.configuration().mappings.size())
-                         .<ImmutableList<ProcessingPool<?,AvroRecordBuffer>>>mapToObj(ignored -> ImmutableList.of())
+                         .<ImmutableList<PoolRoute<AvroRecordBuffer>>>mapToObj(ignored -> ImmutableList.of())
                          .collect(Collectors.toCollection(ArrayList::new));
         vc.configuration()
             .mappings
@@ -137,18 +142,40 @@ public final class IncomingRequestProcessor implements ItemProcessor<UndertowEve
         sinksByMappingIndex = ImmutableList.copyOf(mappingMappingResult);
     }
 
+    private static Optional<byte[]> recordHeader(final ValidatedConfiguration vc,
+                                                 final String mappingName,
+                                                 final ImmutableMap<String, PoolRoute<AvroRecordBuffer>> sinksByName,
+                                                 final SchemaRegistry schemaRegistry) {
+        /*
+         * Records can be serialized with room for the header of one of the (enabled) sinks
+         * of their mapping; any other sink that needs a (different) header copies the record.
+         * In practice the header depends on the sink type and the schema, and the schema
+         * is the same for all sinks of a mapping.
+         */
+        return vc.configuration()
+                 .mappings
+                 .get(mappingName)
+                 .sinks
+                 .stream()
+                 .filter(sinksByName::containsKey)
+                 .map(sinkName -> vc.configuration().sinks.get(sinkName).recordHeader(schemaRegistry.getSchemaBySinkName(sinkName)))
+                 .filter(Optional::isPresent)
+                 .map(Optional::get)
+                 .findFirst();
+    }
+
     @Override
     public ProcessingDirective process(final Item<UndertowEvent> item) {
         final DivolteEvent event;
         try {
             event = item.payload.parseRequest();
         } catch (final IncompleteRequestException e) {
-            logger.debug("Improper request received from {}.", Optional.ofNullable(item.payload.exchange.getSourceAddress()).map(InetSocketAddress::getHostString).orElse("<UNKNOWN HOST>"));
+            logger.debug("Improper request received from {}.", item.payload.request.sourceAddress.map(InetSocketAddress::getHostString).orElse("<UNKNOWN HOST>"));
             return CONTINUE;
         }
 
         final boolean duplicate = memory.isProbableDuplicate(event.partyId.value, event.sessionId.value, event.eventId);
-        event.exchange.putAttachment(DUPLICATE_EVENT_KEY, duplicate);
+        event.request.putAttachment(DUPLICATE_EVENT_KEY, duplicate);
 
         mappingsBySourceIndex.get(item.sourceId)
                              .stream()
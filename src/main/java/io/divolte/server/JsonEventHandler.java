@@ -74,8 +74,11 @@ public class JsonEventHandler implements HttpHandler {
         receiver.receive((body,length) -> {
             try {
                 if (0 < length) {
-                    logEvent(exchange, body);
-                    exchange.setStatusCode(StatusCodes.NO_CONTENT);
+                    if (logEvent(exchange, body, length)) {
+                        exchange.setStatusCode(StatusCodes.NO_CONTENT);
+                    } else {
+                        setServiceUnavailable(exchange, processingPool.retryAfter());
+                    }
                 } else {
                     // Empty body; bad by definition.
                     exchange.setStatusCode(StatusCodes.BAD_REQUEST);
@@ -94,11 +97,12 @@ public class JsonEventHandler implements HttpHandler {
     }
 
 
-    private void logEvent(final HttpServerExchange exchange, final InputStream body) throws IncompleteRequestException {
+    private boolean logEvent(final HttpServerExchange exchange, final InputStream body, final int length) throws IncompleteRequestException {
         final DivolteIdentifier partyId = queryParamFromExchange(exchange, partyIdParameter).flatMap(DivolteIdentifier::tryParse)
                                                                                             .orElseThrow(IncompleteRequestException::new);
-        final UndertowEvent event = new JsonUndertowEvent(Instant.now(), exchange, partyId, body);
-        processingPool.enqueue(Item.of(sourceIndex, partyId.value, event));
+        final RequestSnapshot request = RequestSnapshot.capture(exchange, processingPool.requestCapture());
+        final UndertowEvent event = new JsonUndertowEvent(Instant.now(), request, partyId, body, length);
+        return processingPool.admit(Item.of(sourceIndex, partyId.value, event));
     }
 
     @ParametersAreNonnullByDefault
@@ -117,10 +121,11 @@ public class JsonEventHandler implements HttpHandler {
 
         private JsonUndertowEvent(
                 final Instant requestTime,
-                final HttpServerExchange exchange,
+                final RequestSnapshot request,
                 final DivolteIdentifier partyId,
-                final InputStream requestBody) throws IncompleteRequestException {
-            super(requestTime, exchange, partyId);
+                final InputStream requestBody,
+                final int length) throws IncompleteRequestException {
+            super(requestTime, request, partyId, length);
             this.requestBody = Objects.requireNonNull(requestBody);
         }
 
@@ -148,7 +153,7 @@ public class JsonEventHandler implements HttpHandler {
             final TemporalAccessor parsed = DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(container.clientTimestampIso);
             final Instant clientTime = Instant.from(parsed);
             final DivolteEvent event = DivolteEvent.createJsonEvent(
-                    exchange, partyId,
+                    request, partyId,
                     DivolteIdentifier.tryParse(container.sessionId).orElseThrow(IncompleteRequestException::new),
                     container.eventId, JsonSource.EVENT_SOURCE_NAME, requestTime, clientTime,
                     container.isNewParty, container.isNewSession, container.eventType,
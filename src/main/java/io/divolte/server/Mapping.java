@@ -28,6 +28,7 @@ import io.divolte.server.config.MappingConfiguration;
 import io.divolte.server.config.ValidatedConfiguration;
 import io.divolte.server.ip2geo.LookupService;
 import io.divolte.server.processing.Item;
+import io.divolte.server.recordmapping.CompiledMappingScript;
 import io.divolte.server.recordmapping.DslRecordMapper;
 import io.divolte.server.recordmapping.DslRecordMapping;
 import io.divolte.server.recordmapping.UserAgentParserAndCache;
@@ -39,36 +40,49 @@ public class Mapping {
     private final boolean keepCorrupted;
     private final boolean keepDuplicates;
     private final int mappingIndex;
+    // Each mapping has its own schema, so record sizes are tracked per mapping.
+    private final RecordSizeEstimator recordSizeEstimator = new RecordSizeEstimator();
+    // Reserved ahead of each serialized record, for a sink that prefixes records with it.
+    private final byte[] recordHeader;
 
-    private final IncomingRequestListener listener;
+    private final Optional<IncomingRequestListener> listener;
 
     public Mapping(
             final ValidatedConfiguration vc,
             final String mappingName,
             final Optional<LookupService> geoipLookupService,
+            final UserAgentParserAndCache userAgentParser,
+            final Optional<CompiledMappingScript> mappingScript,
             final SchemaRegistry schemaRegistry,
-            final IncomingRequestListener listener) {
+            final Optional<byte[]> recordHeader,
+            final Optional<IncomingRequestListener> listener) {
         this.listener = listener;
+        this.recordHeader = recordHeader.orElseGet(() -> new byte[0]);
 
         final MappingConfiguration mappingConfiguration = vc.configuration().mappings.get(mappingName);
-        final Schema schema = schemaRegistry.getSchemaByMappingName(mappingName).avroSchema;
 
         this.mappingIndex = vc.configuration().mappingIndex(mappingName);
         this.keepCorrupted = !mappingConfiguration.discardCorrupted;
         this.keepDuplicates = !mappingConfiguration.discardDuplicates;
 
-        this.mapper = mappingConfiguration.mappingScriptFile
-            .map((mappingScriptFile) -> {
-                logger.info("Using script based schema mapping.");
-                return new DslRecordMapper(vc, mappingScriptFile, schema, geoipLookupService);
-            }).orElseGet(() -> {
-                logger.info("Using built in default schema mapping.");
-                return new DslRecordMapper(DefaultEventRecord.getClassSchema(), defaultRecordMapping(vc));
-            });
+        logger.info(mappingScript.isPresent() ? "Using script based schema mapping." : "Using built in default schema mapping.");
+        this.mapper = createMapper(mappingName, geoipLookupService, userAgentParser, mappingScript, schemaRegistry);
     }
 
-    private DslRecordMapping defaultRecordMapping(final ValidatedConfiguration vc) {
-        final DslRecordMapping result = new DslRecordMapping(DefaultEventRecord.getClassSchema(), new UserAgentParserAndCache(vc), Optional.empty());
+    static DslRecordMapper createMapper(final String mappingName,
+                                        final Optional<LookupService> geoipLookupService,
+                                        final UserAgentParserAndCache userAgentParser,
+                                        final Optional<CompiledMappingScript> mappingScript,
+                                        final SchemaRegistry schemaRegistry) {
+        return mappingScript
+            .map((script) -> {
+                final Schema schema = schemaRegistry.getSchemaByMappingName(mappingName).avroSchema;
+                return new DslRecordMapper(script, schema, userAgentParser, geoipLookupService);
+            }).orElseGet(() -> new DslRecordMapper(DefaultEventRecord.getClassSchema(), defaultRecordMapping(userAgentParser)));
+    }
+
+    private static DslRecordMapping defaultRecordMapping(final UserAgentParserAndCache userAgentParser) {
+        final DslRecordMapping result = new DslRecordMapping(DefaultEventRecord.getClassSchema(), userAgentParser, Optional.empty());
         result.map("detectedCorruption", result.corrupt());
         result.map("detectedDuplicate", result.duplicate());
         result.map("firstInSession", result.firstInSession());
@@ -105,19 +119,33 @@ public class Mapping {
         if (
                 (keepDuplicates || !duplicate) &&
                 (keepCorrupted || !parsedEvent.corruptEvent)) {
-            final GenericRecord avroRecord = mapper.newRecordFromExchange(parsedEvent);
-            final AvroRecordBuffer avroBuffer = AvroRecordBuffer.fromRecord(parsedEvent.partyId,
-                                                                            parsedEvent.sessionId,
-                                                                            parsedEvent.eventId,
-                                                                            parsedEvent.requestStartTime,
-                                                                            avroRecord);
-
-            /*
-             * We should really think of a way to get rid of this and test the
-             * mapping process in isolation of the server.
-             * In the many-to-many setup, this call is potentially amplified.
-             */
-            listener.incomingRequest(parsedEvent, avroBuffer, avroRecord);
+            final AvroRecordBuffer avroBuffer;
+            if (listener.isPresent()) {
+                final GenericRecord avroRecord = mapper.newRecordFromExchange(parsedEvent);
+                avroBuffer = AvroRecordBuffer.fromRecord(parsedEvent.partyId,
+                                                         parsedEvent.sessionId,
+                                                         parsedEvent.eventId,
+                                                         parsedEvent.requestStartTime,
+                                                         avroRecord,
+                                                         recordSizeEstimator,
+                                                         recordHeader);
+
+                /*
+                 * We should really think of a way to get rid of this and test the
+                 * mapping process in isolation of the server.
+                 * In the many-to-many setup, this call is potentially amplified.
+                 */
+                listener.get().incomingRequest(parsedEvent, avroBuffer, avroRecord);
+            } else {
+                // Nobody needs the record itself, so encode the mapped values directly.
+                avroBuffer = AvroRecordBuffer.fromEncodedRecord(parsedEvent.partyId,
+                                                                parsedEvent.sessionId,
+                                                                parsedEvent.eventId,
+                                                                parsedEvent.requestStartTime,
+                                                                encoder -> mapper.writeRecordFromExchange(parsedEvent, encoder),
+                                                                recordSizeEstimator,
+                                                                recordHeader);
+            }
 
             return Optional.of(Item.withCopiedAffinity(mappingIndex, originalIem, avroBuffer));
         } else {
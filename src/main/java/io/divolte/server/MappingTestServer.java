@@ -25,7 +25,9 @@ import com.typesafe.config.ConfigFactory;
 import io.divolte.server.config.ValidatedConfiguration;
 import io.divolte.server.ip2geo.ExternalDatabaseLookupService;
 import io.divolte.server.ip2geo.LookupService;
+import io.divolte.server.recordmapping.CompiledMappingScript;
 import io.divolte.server.recordmapping.DslRecordMapper;
+import io.divolte.server.recordmapping.UserAgentParserAndCache;
 import io.undertow.Undertow;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
@@ -63,7 +65,8 @@ public class MappingTestServer {
 
     private static final ObjectReader EVENT_PARAMETERS_READER = new ObjectMapper().reader();
 
-    private final DslRecordMapper mapper;
+    // Requests are handled on all of the IO threads, and mappers can't be shared between threads.
+    private final ThreadLocal<DslRecordMapper> mappers;
     private final Undertow undertow;
 
     public static void main(final String[] args) throws IOException {
@@ -91,7 +94,10 @@ public class MappingTestServer {
     public MappingTestServer(final String schemaFilename, final String mappingFilename, final int port, final String host) throws IOException {
         final Schema schema = loadSchema(schemaFilename);
         final ValidatedConfiguration vc = new ValidatedConfiguration(ConfigFactory::load);
-        mapper = new DslRecordMapper(vc, mappingFilename, schema, Optional.ofNullable(lookupServiceFromConfig(vc)));
+        final CompiledMappingScript mappingScript = CompiledMappingScript.compile(mappingFilename);
+        final UserAgentParserAndCache uaParser = new UserAgentParserAndCache(vc);
+        final Optional<LookupService> geoipService = Optional.ofNullable(lookupServiceFromConfig(vc));
+        mappers = ThreadLocal.withInitial(() -> new DslRecordMapper(mappingScript, schema, uaParser, geoipService));
 
         final HttpHandler handler = new AllowedMethodsHandler(this::handleEvent, Methods.POST);
         final HttpHandler rootHandler = new ProxyAdjacentPeerAddressHandler(handler);
@@ -127,6 +133,7 @@ public class MappingTestServer {
     }
 
     private void handleEvent(final HttpServerExchange exchange) throws Exception {
+        final DslRecordMapper mapper = mappers.get();
         try (final ChannelInputStream cis = new ChannelInputStream(exchange.getRequestChannel())) {
             final JsonNode payload = EVENT_PARAMETERS_READER.readTree(cis);
             final String generatedPageViewId = DivolteIdentifier.generate().value;
@@ -140,19 +147,6 @@ public class MappingTestServer {
                     get(payload, "screen_pixel_width", Integer.class),
                     get(payload, "screen_pixel_height", Integer.class),
                     get(payload, "device_pixel_ratio", Integer.class));
-            final Instant now = Instant.now();
-            final DivolteEvent divolteEvent = DivolteEvent.createBrowserEvent(
-                    exchange,
-                    get(payload, "corrupt", Boolean.class).orElse(false),
-                    get(payload, "party_id", String.class).flatMap(DivolteIdentifier::tryParse).orElse(DivolteIdentifier.generate()),
-                    get(payload, "session_id", String.class).flatMap(DivolteIdentifier::tryParse).orElse(DivolteIdentifier.generate()),
-                    get(payload, "event_id", String.class).orElse(generatedPageViewId + "0"),
-                    now, now,
-                    get(payload, "new_party_id", Boolean.class).orElse(false),
-                    get(payload, "first_in_session", Boolean.class).orElse(false),
-                    get(payload, "event_type", String.class),
-                    () -> get(payload, "parameters", JsonNode.class),
-                    browserEventData);
 
             get(payload, "remote_host", String.class)
                 .ifPresent(ip -> {
@@ -164,8 +158,22 @@ public class MappingTestServer {
                         log.warn("Could not parse remote host: " + ip, e);
                     }
                 });
+            final RequestSnapshot request = RequestSnapshot.capture(exchange, mapper.requestCapture());
+            request.putAttachment(DUPLICATE_EVENT_KEY, get(payload, "duplicate", Boolean.class).orElse(false));
 
-            exchange.putAttachment(DUPLICATE_EVENT_KEY, get(payload, "duplicate", Boolean.class).orElse(false));
+            final Instant now = Instant.now();
+            final DivolteEvent divolteEvent = DivolteEvent.createBrowserEvent(
+                    request,
+                    get(payload, "corrupt", Boolean.class).orElse(false),
+                    get(payload, "party_id", String.class).flatMap(DivolteIdentifier::tryParse).orElse(DivolteIdentifier.generate()),
+                    get(payload, "session_id", String.class).flatMap(DivolteIdentifier::tryParse).orElse(DivolteIdentifier.generate()),
+                    get(payload, "event_id", String.class).orElse(generatedPageViewId + "0"),
+                    now, now,
+                    get(payload, "new_party_id", Boolean.class).orElse(false),
+                    get(payload, "first_in_session", Boolean.class).orElse(false),
+                    get(payload, "event_type", String.class),
+                    () -> get(payload, "parameters", JsonNode.class),
+                    browserEventData);
 
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
             exchange.getResponseChannel().write(ByteBuffer.wrap(mapper.newRecordFromExchange(divolteEvent).toString().getBytes(StandardCharsets.UTF_8)));
@@ -24,20 +24,39 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.function.DoubleSupplier;
 
 import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 /**
  * Event handler for ping requests.
  *
- * Ping requests are immediately and always responded to with a "pong" text response.
+ * Ping requests are immediately responded to with a "pong" text response, unless the
+ * server is shutting down or has stayed above its high-water mark for too long. In
+ * that case a 503 response is returned so that load balancers can route traffic elsewhere.
  */
 @ParametersAreNonnullByDefault
 final class PingHandler implements HttpHandler {
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
 
+    private final DoubleSupplier saturation;
+    private final double highWaterMark;
+    private final long unhealthyAfterNanos;
+
     private volatile boolean shutdown;
 
+    // When the server was first seen above its high-water mark, if it still is.
+    private volatile boolean aboveHighWaterMark;
+    private volatile long aboveHighWaterMarkSince;
+
+    public PingHandler(final DoubleSupplier saturation, final double highWaterMark, final Duration unhealthyAfter) {
+        this.saturation = Objects.requireNonNull(saturation);
+        this.highWaterMark = highWaterMark;
+        this.unhealthyAfterNanos = unhealthyAfter.toNanos();
+    }
+
     public void shutdown() {
         this.shutdown = true;
     }
@@ -52,8 +71,26 @@ final class PingHandler implements HttpHandler {
             // indicate that we are shutting down and won't be available soon.
             exchange.setStatusCode(HTTP_UNAVAILABLE)
                     .getResponseSender().send("No p*ng for you, shutting down", StandardCharsets.UTF_8);
+        } else if (isOverloaded()) {
+            logger.debug("Health check indicating unavailable; above high-water mark.");
+            exchange.setStatusCode(HTTP_UNAVAILABLE)
+                    .getResponseSender().send("No p*ng for you, overloaded", StandardCharsets.UTF_8);
         } else {
             exchange.getResponseSender().send("pong", StandardCharsets.UTF_8);
         }
     }
+
+    private boolean isOverloaded() {
+        // Health checks are infrequent, so we only sample the saturation when asked.
+        if (saturation.getAsDouble() < highWaterMark) {
+            aboveHighWaterMark = false;
+            return false;
+        }
+        final long now = System.nanoTime();
+        if (!aboveHighWaterMark) {
+            aboveHighWaterMarkSince = now;
+            aboveHighWaterMark = true;
+        }
+        return unhealthyAfterNanos <= now - aboveHighWaterMarkSince;
+    }
 }
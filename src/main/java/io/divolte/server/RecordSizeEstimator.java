@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Tracks the sizes of serialized records, to estimate how much space to allocate up front
+ * when serializing the next record.
+ * <p>
+ * The estimate is an approximation of the 99th percentile of recent record sizes, so that
+ * almost all records fit in the initial allocation. Sizes are tracked in a histogram with
+ * fixed-width buckets; the counts are periodically halved so that the estimate follows
+ * changes in the traffic mix instead of only ever growing.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class RecordSizeEstimator {
+    private static final int BUCKET_WIDTH = 64;
+    // Sizes beyond the last bucket are counted in the last bucket.
+    private static final int BUCKET_COUNT = 256;
+    private static final int INITIAL_ESTIMATE = 512;
+
+    // How often (in records) to recalculate the estimate.
+    private static final int RECALCULATE_INTERVAL = 128;
+    // How often (in records) to halve the histogram counts.
+    private static final int DECAY_INTERVAL = 16384;
+
+    private static final double PERCENTILE = 0.99;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private int totalCount;
+    private int recordsSinceDecay;
+    private int estimate = INITIAL_ESTIMATE;
+
+    void record(final int size) {
+        final int bucket = Math.min(size / BUCKET_WIDTH, BUCKET_COUNT - 1);
+        ++counts[bucket];
+        ++totalCount;
+        if (DECAY_INTERVAL == ++recordsSinceDecay) {
+            decay();
+        }
+        if (0 == totalCount % RECALCULATE_INTERVAL) {
+            recalculate();
+        }
+    }
+
+    /**
+     * @return an estimate of the size, in bytes, that almost all records will fit into.
+     */
+    int estimate() {
+        return estimate;
+    }
+
+    private void decay() {
+        totalCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] >>>= 1;
+            totalCount += counts[i];
+        }
+        recordsSinceDecay = 0;
+    }
+
+    private void recalculate() {
+        final int threshold = (int) Math.ceil(totalCount * PERCENTILE);
+        int cumulativeCount = 0;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && (cumulativeCount += counts[bucket]) < threshold) {
+            ++bucket;
+        }
+        // Use the upper bound of the bucket.
+        estimate = (bucket + 1) * BUCKET_WIDTH;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("estimate", estimate)
+                .toString();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Sets;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.Cookie;
+import io.undertow.util.AbstractAttachable;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.HttpString;
+
+/**
+ * The parts of a HTTP request that are needed to parse and map an event.
+ * <p>
+ * Events are parsed and mapped on the mapper threads, after the request has been dealt
+ * with. Instead of holding on to the {@link HttpServerExchange} (and with it the connection,
+ * buffers, etc.) while the event is queued, the IO thread takes a snapshot of the request
+ * and queues that instead. Only the headers and cookies that the mappings actually refer to
+ * are included in the snapshot; these are described by a {@link Capture}.
+ * <p>
+ * The request data is immutable. Attachments can be used to associate additional
+ * information with the request during processing.
+ */
+@ParametersAreNonnullByDefault
+public final class RequestSnapshot extends AbstractAttachable {
+    public final Optional<InetSocketAddress> sourceAddress;
+    // Decoded query parameters, sorted by name.
+    public final ImmutableSortedMap<String, ImmutableList<String>> queryParameters;
+    private final ImmutableMap<HttpString, ImmutableList<String>> headers;
+    private final ImmutableMap<String, String> cookies;
+
+    public RequestSnapshot(final Optional<InetSocketAddress> sourceAddress,
+                           final ImmutableSortedMap<String, ImmutableList<String>> queryParameters,
+                           final ImmutableMap<HttpString, ImmutableList<String>> headers,
+                           final ImmutableMap<String, String> cookies) {
+        this.sourceAddress = Objects.requireNonNull(sourceAddress);
+        this.queryParameters = Objects.requireNonNull(queryParameters);
+        this.headers = Objects.requireNonNull(headers);
+        this.cookies = Objects.requireNonNull(cookies);
+    }
+
+    public static RequestSnapshot capture(final HttpServerExchange exchange, final Capture capture) {
+        final ImmutableSortedMap.Builder<String, ImmutableList<String>> queryParameters = ImmutableSortedMap.naturalOrder();
+        for (final Map.Entry<String, Deque<String>> parameter : exchange.getQueryParameters().entrySet()) {
+            queryParameters.put(parameter.getKey(), ImmutableList.copyOf(parameter.getValue()));
+        }
+        final ImmutableMap.Builder<HttpString, ImmutableList<String>> headers = ImmutableMap.builder();
+        for (final HttpString headerName : capture.headerNames) {
+            final HeaderValues values = exchange.getRequestHeaders().get(headerName);
+            if (null != values) {
+                headers.put(headerName, ImmutableList.copyOf(values));
+            }
+        }
+        final ImmutableMap.Builder<String, String> cookies = ImmutableMap.builder();
+        if (!capture.cookieNames.isEmpty()) {
+            final Map<String, Cookie> requestCookies = exchange.getRequestCookies();
+            for (final String cookieName : capture.cookieNames) {
+                final Cookie cookie = requestCookies.get(cookieName);
+                if (null != cookie) {
+                    cookies.put(cookieName, cookie.getValue());
+                }
+            }
+        }
+        return new RequestSnapshot(Optional.ofNullable(exchange.getSourceAddress()),
+                                   queryParameters.build(),
+                                   headers.build(),
+                                   cookies.build());
+    }
+
+    public Optional<String> queryParameter(final String name) {
+        return Optional.ofNullable(queryParameters.get(name)).map(values -> values.get(0));
+    }
+
+    /**
+     * Get the values of a request header.
+     * @param name the (case-insensitive) name of the header.
+     * @return the header values, if present. Headers that were not captured are never present.
+     */
+    public Optional<ImmutableList<String>> header(final HttpString name) {
+        return Optional.ofNullable(headers.get(name));
+    }
+
+    public Optional<String> firstHeader(final HttpString name) {
+        return header(name).map(values -> values.get(0));
+    }
+
+    /**
+     * Get the value of a cookie.
+     * @param name the name of the cookie.
+     * @return the cookie value, if present. Cookies that were not captured are never present.
+     */
+    public Optional<String> cookie(final String name) {
+        return Optional.ofNullable(cookies.get(name));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("sourceAddress", sourceAddress)
+                .add("queryParameters", queryParameters)
+                .add("headers", headers)
+                .add("cookies", cookies)
+                .toString();
+    }
+
+    /**
+     * Describes which headers and cookies to include in a snapshot of a request.
+     */
+    @ParametersAreNonnullByDefault
+    public static final class Capture {
+        public static final Capture NONE = new Capture(ImmutableSet.of(), ImmutableSet.of());
+
+        public final ImmutableSet<HttpString> headerNames;
+        public final ImmutableSet<String> cookieNames;
+
+        public Capture(final Iterable<HttpString> headerNames, final Iterable<String> cookieNames) {
+            this.headerNames = ImmutableSet.copyOf(headerNames);
+            this.cookieNames = ImmutableSet.copyOf(cookieNames);
+        }
+
+        public Capture union(final Capture other) {
+            return new Capture(Sets.union(headerNames, other.headerNames),
+                               Sets.union(cookieNames, other.cookieNames));
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("headerNames", headerNames)
+                    .add("cookieNames", cookieNames)
+                    .toString();
+        }
+    }
+}
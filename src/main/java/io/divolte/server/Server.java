@@ -16,10 +16,16 @@
 
 package io.divolte.server;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.typesafe.config.ConfigFactory;
 import io.divolte.server.config.*;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.PoolRoute;
 import io.divolte.server.processing.ProcessingPool;
 import io.undertow.Undertow;
 import io.undertow.server.HttpHandler;
@@ -36,10 +42,19 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @ParametersAreNonnullByDefault
 public final class Server implements Runnable {
@@ -48,7 +63,9 @@ public final class Server implements Runnable {
     private final GracefulShutdownHandler shutdownHandler;
     private final PingHandler pingHandler;
 
-    private final ImmutableMap<String, ProcessingPool<?, AvroRecordBuffer>> sinks;
+    private final ImmutableMap<String, PoolRoute<AvroRecordBuffer>> sinks;
+    // The pools behind the sinks, with the names of the sinks they serve by destination.
+    private final ImmutableMap<ProcessingPool<?, AvroRecordBuffer>, ImmutableList<String>> sinkPools;
     private final IncomingRequestProcessingPool incomingRequestProcessingPool;
 
     private final Optional<String> host;
@@ -56,17 +73,23 @@ public final class Server implements Runnable {
 
     private final Duration shutdownDelay;
     private final Duration shutdownTimeout;
+    private final CheckpointConfiguration checkpoint;
 
     public Server(final ValidatedConfiguration vc) {
-        this(vc, (e,b,r) -> {});
+        this(vc, Optional.empty());
     }
 
     Server(final ValidatedConfiguration vc, final IncomingRequestListener listener) {
+        this(vc, Optional.of(listener));
+    }
+
+    private Server(final ValidatedConfiguration vc, final Optional<IncomingRequestListener> listener) {
         host = vc.configuration().global.server.host;
         port = vc.configuration().global.server.port;
 
         shutdownDelay = vc.configuration().global.server.shutdownDelay;
         shutdownTimeout = vc.configuration().global.server.shutdownTimeout;
+        checkpoint = vc.configuration().global.server.checkpoint;
 
         // First thing we need to do is load all the schemas: the sinks need these, but they come from the
         // mappings.
@@ -79,26 +102,51 @@ public final class Server implements Runnable {
                                            .flatMap(mc -> mc.sinks.stream())
                                            .collect(ImmutableSet.toImmutableSet());
 
+        // All pools draw from the same budget when limiting the number of bytes they queue.
+        final ByteBudget globalByteBudget = ByteBudget.create(vc.configuration().global.maxQueuedBytes);
+
         // Instantiate the active sinks:
         //  - As a practical matter, unreferenced sinks have no associated schema, which means they
         //    can't be initialized.
         //  - This is also where we check whether HDFS and Kafka are globally enabled/disabled.
+        //  - Sinks of a type that shares its pool are grouped, so they can be created together.
         logger.debug("Initializing active sinks...");
-        sinks = vc.configuration().sinks.entrySet()
+        final Map<Object, ImmutableList<String>> sinkGroups =
+                vc.configuration().sinks.entrySet()
                   .stream()
                   .filter(sink -> referencedSinkNames.contains(sink.getKey()))
                   .filter(sink -> vc.configuration().global.hdfs.enabled || !(sink.getValue() instanceof HdfsSinkConfiguration))
                   .filter(sink -> vc.configuration().global.gcs.enabled || !(sink.getValue() instanceof GoogleCloudStorageSinkConfiguration))
+                  .filter(sink -> vc.configuration().global.local.enabled || !(sink.getValue() instanceof LocalFileSinkConfiguration))
                   .filter(sink -> vc.configuration().global.kafka.enabled || !(sink.getValue() instanceof KafkaSinkConfiguration))
                   .filter(sink -> vc.configuration().global.gcps.enabled || !(sink.getValue() instanceof GoogleCloudPubSubSinkConfiguration))
-                  .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey,
-                                                       sink -> sink.getValue()
-                                                                   .getFactory()
-                                                                   .create(vc, sink.getKey(), schemaRegistry)));
+                  .collect(Collectors.groupingBy(sink -> sink.getValue().sharesPool() ? sink.getValue().getClass() : sink.getKey(),
+                                                 LinkedHashMap::new,
+                                                 Collectors.mapping(Map.Entry::getKey, ImmutableList.toImmutableList())));
+        sinkPools = sinkGroups.values()
+                              .stream()
+                              .collect(ImmutableMap.toImmutableMap(sinkNames -> vc.configuration()
+                                                                                  .sinks
+                                                                                  .get(sinkNames.get(0))
+                                                                                  .getFactory()
+                                                                                  .create(vc, sinkNames, schemaRegistry, globalByteBudget),
+                                                                   sinkNames -> sinkNames));
+        final ImmutableMap.Builder<String, PoolRoute<AvroRecordBuffer>> routes = ImmutableMap.builder();
+        sinkPools.forEach((pool, sinkNames) -> {
+            for (int destination = 0; destination < sinkNames.size(); ++destination) {
+                routes.put(sinkNames.get(destination), new PoolRoute<>(pool, destination));
+            }
+        });
+        sinks = routes.build();
         logger.info("Initialized sinks: {}", sinks.keySet());
 
+        // Events left over from a bounded shutdown go back into their sinks before anything new arrives.
+        if (checkpoint.enabled) {
+            replayCheckpoint();
+        }
+
         logger.debug("Initializing mappings...");
-        incomingRequestProcessingPool = new IncomingRequestProcessingPool(vc, schemaRegistry, sinks, listener);
+        incomingRequestProcessingPool = new IncomingRequestProcessingPool(vc, schemaRegistry, sinks, globalByteBudget, listener);
 
         logger.debug("Initializing sources...");
         // Now instantiate all the sources. We do this in parallel because instantiation can be quite slow.
@@ -121,7 +169,9 @@ public final class Server implements Runnable {
         }
         logger.info("Initialized sources: {}", sources.keySet());
 
-        pingHandler = new PingHandler();
+        pingHandler = new PingHandler(this::saturation,
+                                      vc.configuration().global.mapper.admission.highWaterMark,
+                                      vc.configuration().global.mapper.admission.unhealthyAfter);
         pathHandler.addExactPath("/ping", pingHandler);
 
         if (vc.configuration().global.server.serveStaticResources) {
@@ -169,6 +219,12 @@ public final class Server implements Runnable {
         undertow.start();
     }
 
+    private double saturation() {
+        // The server is as saturated as the fullest of its pools.
+        return Math.max(incomingRequestProcessingPool.saturation(),
+                        sinkPools.keySet().stream().mapToDouble(ProcessingPool::saturation).max().orElse(0.0));
+    }
+
     public void shutdown() {
         logger.warn("Requested to kill process, init graceful shutdown");
         try {
@@ -200,7 +256,11 @@ public final class Server implements Runnable {
         incomingRequestProcessingPool.stop();
 
         logger.info("Stopping all sinks.");
-        sinks.values().forEach(ProcessingPool::stop);
+        if (checkpoint.enabled) {
+            stopSinksWithCheckpoint();
+        } else {
+            sinkPools.keySet().forEach(ProcessingPool::stop);
+        }
 
         logger.info("Closing HDFS filesystem connection.");
         try {
@@ -210,6 +270,48 @@ public final class Server implements Runnable {
         }
     }
 
+    private void replayCheckpoint() {
+        final Path file = checkpoint.checkpointFile();
+        try {
+            final int replayed = Checkpoint.replay(file, sinks);
+            if (0 < replayed) {
+                logger.info("Replayed {} events from checkpoint: {}", replayed, file);
+            }
+        } catch (final IOException e) {
+            logger.error("Failed to replay checkpoint: " + file, e);
+        }
+    }
+
+    private void stopSinksWithCheckpoint() {
+        // The pools are stopped concurrently, each on its own thread, so they all drain until the same deadline.
+        final ExecutorService stoppers = Executors.newFixedThreadPool(Math.max(1, sinkPools.size()),
+                                                                      new ThreadFactoryBuilder().setNameFormat("Sink Stopper %d").build());
+        final Map<ProcessingPool<?, AvroRecordBuffer>, Future<List<Item<AvroRecordBuffer>>>> stopping = new LinkedHashMap<>();
+        sinkPools.keySet().forEach(pool -> stopping.put(pool, stoppers.submit(() -> pool.stop(checkpoint.drainTimeout))));
+        stoppers.shutdown();
+
+        final Map<String, List<Item<AvroRecordBuffer>>> remaining = new LinkedHashMap<>();
+        stopping.forEach((pool, stopped) -> {
+            final ImmutableList<String> sinkNames = sinkPools.get(pool);
+            try {
+                // Items from a pool carry the destination of their sink.
+                Uninterruptibles.getUninterruptibly(stopped)
+                                .forEach(item -> remaining.computeIfAbsent(sinkNames.get(item.sourceId), ignored -> new ArrayList<>()).add(item));
+            } catch (final ExecutionException e) {
+                logger.error("Failed to stop sinks " + sinkNames + "; their remaining events are lost.", e.getCause());
+            }
+        });
+        if (remaining.values().stream().anyMatch(events -> !events.isEmpty())) {
+            final Path file = checkpoint.checkpointFile();
+            try {
+                final int written = Checkpoint.write(file, remaining);
+                logger.info("Wrote {} events that remain in the sinks to checkpoint: {}", written, file);
+            } catch (final IOException e) {
+                logger.error("Failed to write checkpoint; discarding events: " + file, e);
+            }
+        }
+    }
+
     public static void main(final String[] args) {
         final ValidatedConfiguration vc = new ValidatedConfiguration(ConfigFactory::load);
         if (!vc.isValid()) {
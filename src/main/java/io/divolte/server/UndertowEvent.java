@@ -16,8 +16,6 @@
 
 package io.divolte.server;
 
-import io.undertow.server.HttpServerExchange;
-
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.time.Instant;
 import java.util.Objects;
@@ -25,13 +23,16 @@ import java.util.Objects;
 @ParametersAreNonnullByDefault
 public abstract class UndertowEvent {
     public final Instant requestTime;
-    public final HttpServerExchange exchange;
+    public final RequestSnapshot request;
     public final DivolteIdentifier partyId;
+    /** The number of bytes of event data carried by the request, used to limit how much is queued. */
+    public final int size;
 
-    public UndertowEvent(final Instant requestTime, final HttpServerExchange exchange, final DivolteIdentifier partyId) {
+    public UndertowEvent(final Instant requestTime, final RequestSnapshot request, final DivolteIdentifier partyId, final int size) {
         this.requestTime = Objects.requireNonNull(requestTime);
-        this.exchange = Objects.requireNonNull(exchange);
+        this.request = Objects.requireNonNull(request);
         this.partyId = Objects.requireNonNull(partyId);
+        this.size = size;
     }
 
     public abstract DivolteEvent parseRequest() throws IncompleteRequestException;
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+
+@ParametersAreNonnullByDefault
+public final class AdmissionConfiguration {
+    public final AdmissionPolicy policy;
+    public final Duration retryAfter;
+    @Min(0) @Max(100)
+    public final int shedPercentage;
+    @DecimalMin("0.0") @DecimalMax("1.0")
+    public final double highWaterMark;
+    public final Duration unhealthyAfter;
+
+    @JsonCreator
+    AdmissionConfiguration(final AdmissionPolicy policy,
+                           final Duration retryAfter,
+                           final int shedPercentage,
+                           final double highWaterMark,
+                           final Duration unhealthyAfter) {
+        this.policy = Objects.requireNonNull(policy);
+        this.retryAfter = Objects.requireNonNull(retryAfter);
+        this.shedPercentage = shedPercentage;
+        this.highWaterMark = highWaterMark;
+        this.unhealthyAfter = Objects.requireNonNull(unhealthyAfter);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("policy", policy)
+                .add("retryAfter", retryAfter)
+                .add("shedPercentage", shedPercentage)
+                .add("highWaterMark", highWaterMark)
+                .add("unhealthyAfter", unhealthyAfter)
+                .toString();
+    }
+
+    public enum AdmissionPolicy {
+        /** Respond normally to all events, even if they are dropped. */
+        @JsonProperty("accept")
+        ACCEPT,
+        /** Respond with 503 to events that are dropped because there's no space for them. */
+        @JsonProperty("reject")
+        REJECT,
+        /** As {@link #REJECT}, but also reject a percentage of events while above the high-water mark. */
+        @JsonProperty("shed")
+        SHED
+    }
+}
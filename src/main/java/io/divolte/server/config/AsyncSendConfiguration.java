@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.util.Optional;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+
+import io.divolte.server.topicsinks.InFlightLimit;
+
+@ParametersAreNonnullByDefault
+public final class AsyncSendConfiguration {
+    public final boolean enabled;
+    @Min(1)
+    public final int maxInFlight;
+    @Min(1)
+    public final int maxInFlightBytes;
+
+    @JsonCreator
+    AsyncSendConfiguration(final boolean enabled,
+                           final int maxInFlight,
+                           final int maxInFlightBytes) {
+        this.enabled = enabled;
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Create the limit on the events in flight, shared by all threads of a sink.
+     *
+     * @return the limit, or nothing if events are sent synchronously.
+     */
+    public Optional<InFlightLimit> createLimit() {
+        return enabled
+                ? Optional.of(new InFlightLimit(maxInFlight, maxInFlightBytes))
+                : Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", enabled)
+                .add("maxInFlight", maxInFlight)
+                .add("maxInFlightBytes", maxInFlightBytes)
+                .toString();
+    }
+}
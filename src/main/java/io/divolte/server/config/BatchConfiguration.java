@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+
+import io.divolte.server.config.constraint.MinimumBatchSizeMustNotExceedMaximum;
+import io.divolte.server.processing.BatchSettings;
+
+@ParametersAreNonnullByDefault
+@MinimumBatchSizeMustNotExceedMaximum
+public final class BatchConfiguration {
+    @Min(1)
+    public final int minSize;
+    @Min(1)
+    public final int maxSize;
+    public final Duration latencyTarget;
+
+    @JsonCreator
+    BatchConfiguration(final int minSize,
+                       final int maxSize,
+                       final Duration latencyTarget) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.latencyTarget = Objects.requireNonNull(latencyTarget);
+    }
+
+    public BatchSettings createSettings() {
+        return new BatchSettings(minSize, maxSize, latencyTarget);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("minSize", minSize)
+                .add("maxSize", maxSize)
+                .add("latencyTarget", latencyTarget)
+                .toString();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+import io.divolte.server.config.constraint.CheckpointFileRequiredWhenEnabled;
+
+@ParametersAreNonnullByDefault
+@CheckpointFileRequiredWhenEnabled
+public final class CheckpointConfiguration {
+    public final boolean enabled;
+    public final Duration drainTimeout;
+    public final Optional<String> file;
+
+    @JsonCreator
+    CheckpointConfiguration(final boolean enabled,
+                            final Duration drainTimeout,
+                            final Optional<String> file) {
+        this.enabled = enabled;
+        this.drainTimeout = Objects.requireNonNull(drainTimeout);
+        this.file = Objects.requireNonNull(file);
+    }
+
+    /**
+     * @return the location of the checkpoint file.
+     * @throws IllegalStateException if no checkpoint file is configured.
+     */
+    public Path checkpointFile() {
+        return file.map(Paths::get)
+                   .orElseThrow(() -> new IllegalStateException("No checkpoint file configured."));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", enabled)
+                .add("drainTimeout", drainTimeout)
+                .add("file", file)
+                .toString();
+    }
+}
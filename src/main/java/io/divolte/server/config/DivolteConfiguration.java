@@ -41,6 +41,7 @@ import io.divolte.server.config.constraint.MappingSourceSinkReferencesMustExist;
 import io.divolte.server.config.constraint.MappingToConfluentSinksMustHaveSchemaId;
 import io.divolte.server.config.constraint.OneConfluentIdPerSink;
 import io.divolte.server.config.constraint.OneSchemaPerSink;
+import io.divolte.server.config.constraint.OneSerializationPerKafkaTopic;
 import io.divolte.server.config.constraint.SourceAndSinkNamesCannotCollide;
 
 @ParametersAreNonnullByDefault
@@ -49,6 +50,7 @@ import io.divolte.server.config.constraint.SourceAndSinkNamesCannotCollide;
 @OneSchemaPerSink
 @MappingToConfluentSinksMustHaveSchemaId
 @OneConfluentIdPerSink
+@OneSerializationPerKafkaTopic
 public final class DivolteConfiguration {
     @Valid public final GlobalConfiguration global;
 
@@ -168,9 +170,9 @@ public final class DivolteConfiguration {
     }
 
     private static ImmutableMap<String,SinkConfiguration> defaultSinkConfigurations() {
-        return ImmutableMap.of("hdfs", new HdfsSinkConfiguration((short) 1, FileStrategyConfiguration.DEFAULT_FILE_STRATEGY_CONFIGURATION),
+        return ImmutableMap.of("hdfs", new HdfsSinkConfiguration((short) 1, FileStrategyConfiguration.DEFAULT_FILE_STRATEGY_CONFIGURATION, null, null),
                                "kafka", new KafkaSinkConfiguration(null, KafkaSinkMode.NAKED),
-                               "gcps", new GoogleCloudPubSubSinkConfiguration(null, null, null));
+                               "gcps", new GoogleCloudPubSubSinkConfiguration(null, null, null, null));
     }
 
     private static ImmutableMap<String,MappingConfiguration> defaultMappingConfigurations(final ImmutableSet<String> sourceNames,
@@ -246,6 +248,32 @@ public final class DivolteConfiguration {
         return Maps.filterValues(countsBySink, count -> count > 1L).keySet();
     }
 
+    public Set<String> kafkaTopicsWithMultipleSerializations() {
+        // All Kafka sinks share a producer, which can only pick a serializer by topic. Sinks
+        // writing to the same topic therefore need to serialize their records in the same way.
+        // (Naked records don't depend on the schema.)
+        final Map<String, Long> countsByTopic =
+                sinks.entrySet()
+                     .stream()
+                     .filter(sink -> sink.getValue() instanceof KafkaSinkConfiguration)
+                     .map(sink -> {
+                         final KafkaSinkConfiguration kafkaSink = (KafkaSinkConfiguration) sink.getValue();
+                         final Optional<Integer> confluentId = KafkaSinkMode.CONFLUENT == kafkaSink.mode
+                                 ? mappings.values()
+                                           .stream()
+                                           .filter(mapping -> mapping.sinks.contains(sink.getKey()))
+                                           .map(mapping -> mapping.confluentId)
+                                           .filter(Optional::isPresent)
+                                           .findFirst()
+                                           .orElse(Optional.empty())
+                                 : Optional.empty();
+                         return Maps.immutableEntry(kafkaSink.topic, confluentId);
+                     })
+                     .distinct()
+                     .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.counting()));
+        return Maps.filterValues(countsByTopic, count -> count > 1L).keySet();
+    }
+
     public Set<String> mappingsToConfluentSinksWithoutSchemaIds() {
         // First assemble the names of the sinks that are in confluent-mode.
         final Set<String> confluentSinkNames = getConfluentSinkNames();
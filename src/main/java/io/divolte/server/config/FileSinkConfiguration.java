@@ -26,17 +26,28 @@ import javax.validation.Valid;
 
 @ParametersAreNonnullByDefault
 public abstract class FileSinkConfiguration extends SinkConfiguration {
+    private static final FileFormat DEFAULT_FORMAT = FileFormat.AVRO;
+
     @Valid public final FileStrategyConfiguration fileStrategy;
+    public final FileFormat format;
+    @Valid public final ParquetConfiguration parquet;
 
     @ParametersAreNullableByDefault
-    public FileSinkConfiguration(final FileStrategyConfiguration fileStrategy) {
+    public FileSinkConfiguration(final FileStrategyConfiguration fileStrategy,
+                                 final FileFormat format,
+                                 final ParquetConfiguration parquet) {
         this.fileStrategy = Optional.ofNullable(fileStrategy).orElse(FileStrategyConfiguration.DEFAULT_FILE_STRATEGY_CONFIGURATION);
+        this.format = Optional.ofNullable(format).orElse(DEFAULT_FORMAT);
+        this.parquet = Optional.ofNullable(parquet).orElse(ParquetConfiguration.DEFAULT_PARQUET_CONFIGURATION);
     }
 
     public abstract String getReadableType();
 
     @Override
     protected ToStringHelper toStringHelper() {
-        return super.toStringHelper().add("file strategy", fileStrategy);
+        return super.toStringHelper()
+                .add("file strategy", fileStrategy)
+                .add("format", format)
+                .add("parquet", parquet);
     }
 }
@@ -17,6 +17,7 @@
 package io.divolte.server.config;
 
 import java.util.Objects;
+import java.util.Optional;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.validation.Valid;
@@ -31,7 +32,9 @@ public class GlobalConfiguration {
     @Valid public final HdfsConfiguration hdfs;
     @Valid public final KafkaConfiguration kafka;
     @Valid public final GoogleCloudStorageConfiguration gcs;
+    @Valid public final LocalFileConfiguration local;
     @Valid public final GoogleCloudPubSubConfiguration gcps;
+    public final Optional<Long> maxQueuedBytes;
 
     @JsonCreator
     GlobalConfiguration(final ServerConfiguration server,
@@ -39,13 +42,17 @@ public class GlobalConfiguration {
                         final HdfsConfiguration hdfs,
                         final KafkaConfiguration kafka,
                         final GoogleCloudStorageConfiguration gcs,
-                        final GoogleCloudPubSubConfiguration gcps) {
+                        final LocalFileConfiguration local,
+                        final GoogleCloudPubSubConfiguration gcps,
+                        final Optional<Long> maxQueuedBytes) {
         this.server = Objects.requireNonNull(server);
         this.mapper = Objects.requireNonNull(mapper);
         this.hdfs = Objects.requireNonNull(hdfs);
         this.kafka = Objects.requireNonNull(kafka);
         this.gcs = Objects.requireNonNull(gcs);
+        this.local = Objects.requireNonNull(local);
         this.gcps = Objects.requireNonNull(gcps);
+        this.maxQueuedBytes = Objects.requireNonNull(maxQueuedBytes);
     }
 
     @Override
@@ -55,8 +62,10 @@ public class GlobalConfiguration {
                 .add("mapper", mapper)
                 .add("hdfs", hdfs)
                 .add("gcs", gcs)
+                .add("local", local)
                 .add("kafka", kafka)
                 .add("gcps", gcps)
+                .add("maxQueuedBytes", maxQueuedBytes)
                 .toString();
     }
 }
@@ -25,6 +25,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.Valid;
+import java.util.Objects;
 import java.util.Optional;
 
 @ParametersAreNonnullByDefault
@@ -32,14 +34,21 @@ import java.util.Optional;
 public class GoogleCloudPubSubConfiguration extends SinkTypeConfiguration {
     private static final Logger logger = LoggerFactory.getLogger(GoogleCloudPubSubConfiguration.class);
 
+    @Valid
+    public final AsyncSendConfiguration async;
     public final Optional<String> projectId;
 
     @JsonCreator
     GoogleCloudPubSubConfiguration(final int bufferSize,
                                    final int threads,
+                                   final QueueConfiguration queue,
+                                   final SpillConfiguration spill,
+                                   final BatchConfiguration batch,
                                    final boolean enabled,
+                                   final AsyncSendConfiguration async,
                                    @Nullable final String projectId) {
-        super(bufferSize, threads, enabled);
+        super(bufferSize, threads, queue, spill, batch, enabled);
+        this.async = Objects.requireNonNull(async);
         this.projectId = null != projectId ? Optional.of(projectId) : getDefaultProjectId();
     }
 
@@ -56,6 +65,7 @@ public class GoogleCloudPubSubConfiguration extends SinkTypeConfiguration {
     @Override
     protected MoreObjects.ToStringHelper toStringHelper() {
         return super.toStringHelper()
+            .add("async", async)
             .add("projectId", projectId);
     }
 }
@@ -26,10 +26,12 @@ import com.google.api.gax.rpc.FixedTransportChannelProvider;
 import com.google.api.gax.rpc.TransportChannelProvider;
 import com.google.cloud.pubsub.v1.*;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Streams;
 import com.google.pubsub.v1.ProjectName;
 import com.google.pubsub.v1.ProjectTopicName;
 import com.google.pubsub.v1.Topic;
+import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.IOExceptions;
 import io.divolte.server.topicsinks.pubsub.GoogleCloudPubSubFlushingPool;
 import io.grpc.ManagedChannel;
@@ -53,25 +55,31 @@ public class GoogleCloudPubSubSinkConfiguration extends TopicSinkConfiguration {
         new GooglePubSubRetryConfiguration(null, null, null, null, null, null, null, null);
     static final GoogleBatchingConfiguration DEFAULT_BATCHING_SETTINGS =
         new GoogleBatchingConfiguration(null, null, null);
+    static final GooglePubSubPackingConfiguration DEFAULT_PACKING_SETTINGS =
+        new GooglePubSubPackingConfiguration(null, null, null);
 
     @Valid public final GooglePubSubRetryConfiguration retrySettings;
     @Valid public final GoogleBatchingConfiguration batchingSettings;
+    @Valid public final GooglePubSubPackingConfiguration packingSettings;
 
     @JsonCreator
     @ParametersAreNullableByDefault
     GoogleCloudPubSubSinkConfiguration(@JsonProperty(defaultValue=DEFAULT_TOPIC) final String topic,
                                        final GooglePubSubRetryConfiguration retrySettings,
-                                       final GoogleBatchingConfiguration batchingSettings) {
+                                       final GoogleBatchingConfiguration batchingSettings,
+                                       final GooglePubSubPackingConfiguration packingSettings) {
         super(topic);
         this.retrySettings = Optional.ofNullable(retrySettings).orElse(DEFAULT_RETRY_SETTINGS);
         this.batchingSettings = Optional.ofNullable(batchingSettings).orElse(DEFAULT_BATCHING_SETTINGS);
+        this.packingSettings = Optional.ofNullable(packingSettings).orElse(DEFAULT_PACKING_SETTINGS);
     }
 
     @Override
     protected MoreObjects.ToStringHelper toStringHelper() {
         return super.toStringHelper()
             .add("retrySettings", retrySettings)
-            .add("batchingSettings", batchingSettings);
+            .add("batchingSettings", batchingSettings)
+            .add("packingSettings", packingSettings);
     }
 
     @Override
@@ -85,7 +93,8 @@ public class GoogleCloudPubSubSinkConfiguration extends TopicSinkConfiguration {
 
     private SinkFactory createFlushingPool(final RetrySettings retrySettings,
                                            final BatchingSettings batchingSettings) {
-        return (vc, sinkName, registry) -> {
+        return (vc, sinkNames, registry, globalByteBudget) -> {
+            final String sinkName = Iterables.getOnlyElement(sinkNames);
             final String projectId = vc.configuration().global.gcps.projectId.orElseThrow(IllegalStateException::new);
             final ProjectTopicName topicName = ProjectTopicName.of(projectId, topic);
             final Publisher.Builder builder =
@@ -96,6 +105,12 @@ public class GoogleCloudPubSubSinkConfiguration extends TopicSinkConfiguration {
             return new GoogleCloudPubSubFlushingPool(sinkName,
                                                      vc.configuration().global.gcps.threads,
                                                      vc.configuration().global.gcps.bufferSize,
+                                                     vc.configuration().global.gcps.queue.getFactory(),
+                                                     vc.configuration().global.gcps.queue.createByteBudget(globalByteBudget),
+                                                     vc.configuration().global.gcps.spill.createSettings(AvroRecordBuffer.codec()),
+                                                     vc.configuration().global.gcps.batch.createSettings(),
+                                                     vc.configuration().global.gcps.async.createLimit(),
+                                                     packingSettings.createPackingSettings(),
                                                      publisher,
                                                      Optional.empty(),
                                                      registry.getSchemaBySinkName(sinkName));
@@ -113,7 +128,8 @@ public class GoogleCloudPubSubSinkConfiguration extends TopicSinkConfiguration {
         //    own endpoint instead. This channel also has TLS disabled, because the emulator doesn't need, use
         //    or support it.
         //
-        return (vc, sinkName, registry) -> {
+        return (vc, sinkNames, registry, globalByteBudget) -> {
+            final String sinkName = Iterables.getOnlyElement(sinkNames);
             logger.info("Configuring sink to use Google Cloud Pub/Sub emulator: {}", sinkName, hostPort);
             final String projectId = vc.configuration().global.gcps.projectId.orElseThrow(IllegalStateException::new);
             final ProjectTopicName topicName = ProjectTopicName.of(projectId, topic);
@@ -132,6 +148,12 @@ public class GoogleCloudPubSubSinkConfiguration extends TopicSinkConfiguration {
             return new GoogleCloudPubSubFlushingPool(sinkName,
                                                      vc.configuration().global.gcps.threads,
                                                      vc.configuration().global.gcps.bufferSize,
+                                                     vc.configuration().global.gcps.queue.getFactory(),
+                                                     vc.configuration().global.gcps.queue.createByteBudget(globalByteBudget),
+                                                     vc.configuration().global.gcps.spill.createSettings(AvroRecordBuffer.codec()),
+                                                     vc.configuration().global.gcps.batch.createSettings(),
+                                                     vc.configuration().global.gcps.async.createLimit(),
+                                                     packingSettings.createPackingSettings(),
                                                      publisher,
                                                      Optional.of(channel),
                                                      registry.getSchemaBySinkName(sinkName));
@@ -17,7 +17,12 @@
 package io.divolte.server.config;
 
 public class GoogleCloudStorageConfiguration extends SinkTypeConfiguration {
-    protected GoogleCloudStorageConfiguration(final int bufferSize, final int threads, final boolean enabled) {
-        super(bufferSize, threads, enabled);
+    protected GoogleCloudStorageConfiguration(final int bufferSize,
+                                              final int threads,
+                                              final QueueConfiguration queue,
+                                              final SpillConfiguration spill,
+                                              final BatchConfiguration batch,
+                                              final boolean enabled) {
+        super(bufferSize, threads, queue, spill, batch, enabled);
     }
 }
@@ -19,9 +19,16 @@ package io.divolte.server.config;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.Iterables;
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.config.constraint.ParquetNotSupportedForGoogleCloudStorage;
 import io.divolte.server.filesinks.FileFlushingPool;
 import io.divolte.server.filesinks.FileManager.FileManagerFactory;
 import io.divolte.server.filesinks.gcs.GoogleCloudStorageFileManager;
+import io.divolte.server.processing.BatchSettings;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.SpillSettings;
 import org.apache.avro.Schema;
 
 import javax.annotation.Nullable;
@@ -31,41 +38,61 @@ import java.util.Objects;
 import java.util.Optional;
 
 @ParametersAreNonnullByDefault
+@ParquetNotSupportedForGoogleCloudStorage
 public class GoogleCloudStorageSinkConfiguration extends FileSinkConfiguration {
 
     static final GoogleCloudStorageRetryConfiguration DEFAULT_RETRY_SETTINGS =
         new GoogleCloudStorageRetryConfiguration(null, null, null, null, null, null, null);
+    static final GoogleCloudStorageUploadMode DEFAULT_UPLOAD_MODE = GoogleCloudStorageUploadMode.COMPOSE;
+    static final GoogleCloudStorageSpoolConfiguration DEFAULT_SPOOL_SETTINGS =
+        new GoogleCloudStorageSpoolConfiguration(null, null);
 
     public final String bucket;
     @Valid public final GoogleCloudStorageRetryConfiguration retrySettings;
+    public final GoogleCloudStorageUploadMode uploadMode;
+    public final GoogleCloudStorageSpoolConfiguration spool;
 
     @JsonCreator
     GoogleCloudStorageSinkConfiguration(@Nullable final FileStrategyConfiguration fileStrategy,
+                                        @Nullable final FileFormat format,
+                                        @Nullable final ParquetConfiguration parquet,
                                         @JsonProperty(required=true) final String bucket,
-                                        @Nullable final GoogleCloudStorageRetryConfiguration retrySettings) {
-        super(fileStrategy);
+                                        @Nullable final GoogleCloudStorageRetryConfiguration retrySettings,
+                                        @Nullable final GoogleCloudStorageUploadMode uploadMode,
+                                        @Nullable final GoogleCloudStorageSpoolConfiguration spool) {
+        super(fileStrategy, format, parquet);
         this.bucket = Objects.requireNonNull(bucket);
         this.retrySettings = Optional.ofNullable(retrySettings).orElse(DEFAULT_RETRY_SETTINGS);
+        this.uploadMode = Optional.ofNullable(uploadMode).orElse(DEFAULT_UPLOAD_MODE);
+        this.spool = Optional.ofNullable(spool).orElse(DEFAULT_SPOOL_SETTINGS);
     }
 
     @Override
     protected MoreObjects.ToStringHelper toStringHelper() {
         return super.toStringHelper()
             .add("bucket", bucket)
-            .add("retrySettings", retrySettings);
+            .add("retrySettings", retrySettings)
+            .add("uploadMode", uploadMode)
+            .add("spool", spool);
     }
 
     @Override
     public SinkFactory getFactory() {
-        return (config, name, registry) -> {
+        return (config, sinkNames, registry, globalByteBudget) -> {
+            final String name = Iterables.getOnlyElement(sinkNames);
             final Schema avroSchema = registry.getSchemaBySinkName(name).avroSchema;
             final FileManagerFactory fileManagerFactory = GoogleCloudStorageFileManager.newFactory(config, name, avroSchema);
             fileManagerFactory.verifyFileSystemConfiguration();
 
             final int threads = config.configuration().global.gcs.threads;
             final int bufferSize = config.configuration().global.gcs.bufferSize;
+            final ItemQueueFactory queueFactory = config.configuration().global.gcs.queue.getFactory();
+            final ByteBudget byteBudget = config.configuration().global.gcs.queue.createByteBudget(globalByteBudget);
+            final Optional<SpillSettings<AvroRecordBuffer>> spillSettings =
+                    config.configuration().global.gcs.spill.createSettings(AvroRecordBuffer.codec());
+            final BatchSettings batchSettings = config.configuration().global.gcs.batch.createSettings();
 
-            return new FileFlushingPool(config, name, threads, bufferSize, fileManagerFactory);
+            return new FileFlushingPool(config, name, threads, bufferSize, queueFactory, byteBudget, spillSettings, batchSettings, fileManagerFactory);
         };
     }
 
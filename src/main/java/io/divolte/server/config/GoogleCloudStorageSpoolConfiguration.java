@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.ParametersAreNullableByDefault;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+@ParametersAreNonnullByDefault
+public class GoogleCloudStorageSpoolConfiguration {
+    private static final boolean DEFAULT_ENABLED = false;
+
+    public final boolean enabled;
+    public final Optional<String> directory;
+
+    @JsonCreator
+    @ParametersAreNullableByDefault
+    public GoogleCloudStorageSpoolConfiguration(final Boolean enabled,
+                                                final String directory) {
+        this.enabled = Optional.ofNullable(enabled).orElse(DEFAULT_ENABLED);
+        this.directory = Optional.ofNullable(directory);
+    }
+
+    /**
+     * Determine where records should be spooled between syncs.
+     *
+     * @return the directory for spool files, or nothing if records should be kept in memory.
+     */
+    public Optional<Path> spoolDirectory() {
+        return enabled
+                ? Optional.of(directory.map(Paths::get)
+                                       .orElseGet(() -> Paths.get(System.getProperty("java.io.tmpdir"), "divolte-spool")))
+                : Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", enabled)
+                .add("directory", directory)
+                .toString();
+    }
+}
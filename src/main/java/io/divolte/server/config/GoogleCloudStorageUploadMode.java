@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/*
+ * How a Google Cloud Storage sink gets records into its files: either by uploading
+ * each sync as a separate part and composing it into the file, or by appending
+ * each sync to a single resumable upload that is finalized when the file is rolled.
+ */
+public enum GoogleCloudStorageUploadMode {
+    @JsonProperty("compose")
+    COMPOSE,
+    @JsonProperty("resumable")
+    RESUMABLE
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+import io.divolte.server.topicsinks.pubsub.PackingSettings;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.ParametersAreNullableByDefault;
+import javax.validation.constraints.Min;
+import java.util.Optional;
+
+@ParametersAreNonnullByDefault
+public class GooglePubSubPackingConfiguration {
+    private static final boolean DEFAULT_ENABLED = false;
+    private static final int DEFAULT_MAX_RECORDS = 100;
+    // Comfortably below the limit of 10 MB that Pub/Sub imposes on the size of messages.
+    private static final int DEFAULT_MAX_BYTES = 1_000_000;
+
+    public final boolean enabled;
+    @Min(1)
+    public final int maxRecords;
+    @Min(1)
+    public final int maxBytes;
+
+    @JsonCreator
+    @ParametersAreNullableByDefault
+    public GooglePubSubPackingConfiguration(final Boolean enabled,
+                                            final Integer maxRecords,
+                                            final Integer maxBytes) {
+        this.enabled = Optional.ofNullable(enabled).orElse(DEFAULT_ENABLED);
+        this.maxRecords = Optional.ofNullable(maxRecords).orElse(DEFAULT_MAX_RECORDS);
+        this.maxBytes = Optional.ofNullable(maxBytes).orElse(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @return the settings, or nothing if records are not packed.
+     */
+    public Optional<PackingSettings> createPackingSettings() {
+        return enabled
+                ? Optional.of(new PackingSettings(maxRecords, maxBytes))
+                : Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+            .add("enabled", enabled)
+            .add("maxRecords", maxRecords)
+            .add("maxBytes", maxBytes)
+            .toString();
+    }
+}
@@ -30,8 +30,14 @@ public final class HdfsConfiguration extends SinkTypeConfiguration {
     public final Optional<Properties> client;
 
     @JsonCreator
-    HdfsConfiguration(final boolean enabled, final int bufferSize, final int threads, final Optional<Properties> client) {
-        super(bufferSize, threads, enabled);
+    HdfsConfiguration(final boolean enabled,
+                      final int bufferSize,
+                      final int threads,
+                      final QueueConfiguration queue,
+                      final SpillConfiguration spill,
+                      final BatchConfiguration batch,
+                      final Optional<Properties> client) {
+        super(bufferSize, threads, queue, spill, batch, enabled);
         this.client = client.map(ImmutableProperties::fromSource);
     }
 
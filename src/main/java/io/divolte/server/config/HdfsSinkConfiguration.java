@@ -24,10 +24,16 @@ import javax.annotation.ParametersAreNullableByDefault;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.Iterables;
 
+import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.filesinks.FileFlushingPool;
 import io.divolte.server.filesinks.FileManager.FileManagerFactory;
 import io.divolte.server.filesinks.hdfs.HdfsFileManager;
+import io.divolte.server.processing.BatchSettings;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.SpillSettings;
 import org.apache.avro.Schema;
 
 @ParametersAreNonnullByDefault
@@ -39,8 +45,10 @@ public class HdfsSinkConfiguration extends FileSinkConfiguration {
     @JsonCreator
     @ParametersAreNullableByDefault
     HdfsSinkConfiguration(@JsonProperty(defaultValue=DEFAULT_REPLICATION) final Short replication,
-                          final FileStrategyConfiguration fileStrategy) {
-        super(fileStrategy);
+                          final FileStrategyConfiguration fileStrategy,
+                          final FileFormat format,
+                          final ParquetConfiguration parquet) {
+        super(fileStrategy, format, parquet);
         // TODO: register a custom deserializer with Jackson that uses the defaultValue property from the annotation to fix this
         this.replication = Optional.ofNullable(replication).orElseGet(() -> Short.valueOf(DEFAULT_REPLICATION));
     }
@@ -53,15 +61,21 @@ public class HdfsSinkConfiguration extends FileSinkConfiguration {
 
     @Override
     public SinkFactory getFactory() {
-        return (config, name, registry) -> {
+        return (config, sinkNames, registry, globalByteBudget) -> {
+            final String name = Iterables.getOnlyElement(sinkNames);
             final Schema avroschema = registry.getSchemaBySinkName(name).avroSchema;
             final FileManagerFactory fileManagerFactory = HdfsFileManager.newFactory(config, name, avroschema);
             fileManagerFactory.verifyFileSystemConfiguration();
 
             final int threads = config.configuration().global.hdfs.threads;
             final int bufferSize = config.configuration().global.hdfs.bufferSize;
+            final ItemQueueFactory queueFactory = config.configuration().global.hdfs.queue.getFactory();
+            final ByteBudget byteBudget = config.configuration().global.hdfs.queue.createByteBudget(globalByteBudget);
+            final Optional<SpillSettings<AvroRecordBuffer>> spillSettings =
+                    config.configuration().global.hdfs.spill.createSettings(AvroRecordBuffer.codec());
+            final BatchSettings batchSettings = config.configuration().global.hdfs.batch.createSettings();
 
-            return new FileFlushingPool(config, name, threads, bufferSize, fileManagerFactory);
+            return new FileFlushingPool(config, name, threads, bufferSize, queueFactory, byteBudget, spillSettings, batchSettings, fileManagerFactory);
         };
     }
 
@@ -20,22 +20,35 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.base.MoreObjects;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.Valid;
+import java.util.Objects;
 import java.util.Properties;
 
 @ParametersAreNonnullByDefault
 public class KafkaConfiguration extends SinkTypeConfiguration {
 
+    @Valid
+    public final AsyncSendConfiguration async;
     public final Properties producer;
 
     @JsonCreator
-    KafkaConfiguration(final int bufferSize, final int threads, final boolean enabled, final Properties producer) {
-        super(bufferSize, threads, enabled);
+    KafkaConfiguration(final int bufferSize,
+                       final int threads,
+                       final QueueConfiguration queue,
+                       final SpillConfiguration spill,
+                       final BatchConfiguration batch,
+                       final boolean enabled,
+                       final AsyncSendConfiguration async,
+                       final Properties producer) {
+        super(bufferSize, threads, queue, spill, batch, enabled);
+        this.async = Objects.requireNonNull(async);
         this.producer = ImmutableProperties.fromSource(producer);
     }
 
     @Override
     protected MoreObjects.ToStringHelper toStringHelper() {
         return super.toStringHelper()
+                .add("async", async)
                 .add("producer", producer);
     }
 }
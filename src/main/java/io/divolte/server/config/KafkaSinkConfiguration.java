@@ -16,6 +16,8 @@
 
 package io.divolte.server.config;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -24,12 +26,17 @@ import javax.annotation.ParametersAreNullableByDefault;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.DivolteSchema;
+import io.divolte.server.SchemaRegistry;
 import io.divolte.server.topicsinks.kafka.KafkaFlushingPool;
 import io.divolte.server.topicsinks.kafka.Serializers;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.serialization.Serializer;
 
 @ParametersAreNonnullByDefault
 public class KafkaSinkConfiguration extends TopicSinkConfiguration {
@@ -52,19 +59,54 @@ public class KafkaSinkConfiguration extends TopicSinkConfiguration {
             .add("mode", mode);
     }
 
+    @Override
+    public boolean sharesPool() {
+        // All Kafka sinks share a producer, and the threads that feed it.
+        return true;
+    }
+
+    @Override
+    public Optional<byte[]> recordHeader(final DivolteSchema schema) {
+        // (A schema without registry id is rejected when the serializer is created.)
+        return KafkaSinkMode.CONFLUENT == mode ? schema.confluentId.map(Serializers::createConfluentRecordHeader) : Optional.empty();
+    }
+
     @Override
     public SinkFactory getFactory() {
-        return (vc, sink, registry) -> {
+        return (vc, sinkNames, registry, globalByteBudget) -> {
+            final ImmutableList<String> topics =
+                sinkNames.stream()
+                         .map(name -> vc.configuration().getSinkConfiguration(name, KafkaSinkConfiguration.class).topic)
+                         .collect(ImmutableList.toImmutableList());
             final KafkaProducer<DivolteIdentifier, AvroRecordBuffer> producer =
                 new KafkaProducer<>(vc.configuration().global.kafka.producer,
                                     Serializers.createKeySerializer(),
-                                    mode.serializerFactory.apply(registry.getSchemaBySinkName(sink)));
-            return new KafkaFlushingPool(sink,
+                                    Serializers.createTopicRoutingSerializer(createSerializersByTopic(vc, sinkNames, registry)));
+            return new KafkaFlushingPool(topics,
                                          vc.configuration().global.kafka.threads,
                                          vc.configuration().global.kafka.bufferSize,
-                                         topic,
+                                         vc.configuration().global.kafka.queue.getFactory(),
+                                         vc.configuration().global.kafka.queue.createByteBudget(globalByteBudget),
+                                         // Spilled events are kept across restarts, during which sinks may come and go.
+                                         vc.configuration().global.kafka.spill.createSettings(AvroRecordBuffer.codec())
+                                                                              .map(settings -> settings.withDestinations(sinkNames)),
+                                         vc.configuration().global.kafka.batch.createSettings(),
+                                         vc.configuration().global.kafka.async.createLimit(),
                                          producer
             );
         };
     }
+
+    private static ImmutableMap<String, Serializer<AvroRecordBuffer>> createSerializersByTopic(final ValidatedConfiguration vc,
+                                                                                             final ImmutableList<String> sinkNames,
+                                                                                             final SchemaRegistry registry) {
+        // The producer can only pick a serializer by topic. Validation ensures that sinks sharing a
+        // topic serialize their records in the same way, so the first sink for each topic will do.
+        final Map<String, Serializer<AvroRecordBuffer>> serializersByTopic = new LinkedHashMap<>();
+        for (final String sinkName : sinkNames) {
+            final KafkaSinkConfiguration sink = vc.configuration().getSinkConfiguration(sinkName, KafkaSinkConfiguration.class);
+            serializersByTopic.computeIfAbsent(sink.topic, topic -> sink.mode.serializerFactory.apply(registry.getSchemaBySinkName(sinkName)));
+        }
+        return ImmutableMap.copyOf(serializersByTopic);
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.util.Optional;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.ParametersAreNullableByDefault;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Iterables;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.filesinks.FileFlushingPool;
+import io.divolte.server.filesinks.FileManager.FileManagerFactory;
+import io.divolte.server.filesinks.local.LocalFileManager;
+import io.divolte.server.processing.BatchSettings;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.SpillSettings;
+import org.apache.avro.Schema;
+
+@ParametersAreNonnullByDefault
+public class LocalFileSinkConfiguration extends FileSinkConfiguration {
+    private static final String DEFAULT_WRITE_BUFFER_SIZE = "1048576";
+
+    // Also the size of Avro blocks, which Avro limits to 1 GiB.
+    @Min(64)
+    @Max(1 << 30)
+    public final int writeBufferSize;
+
+    @JsonCreator
+    @ParametersAreNullableByDefault
+    LocalFileSinkConfiguration(@JsonProperty(defaultValue=DEFAULT_WRITE_BUFFER_SIZE) final Integer writeBufferSize,
+                               final FileStrategyConfiguration fileStrategy,
+                               final FileFormat format,
+                               final ParquetConfiguration parquet) {
+        super(fileStrategy, format, parquet);
+        // TODO: register a custom deserializer with Jackson that uses the defaultValue property from the annotation to fix this
+        this.writeBufferSize = Optional.ofNullable(writeBufferSize).orElseGet(() -> Integer.valueOf(DEFAULT_WRITE_BUFFER_SIZE));
+    }
+
+    @Override
+    protected MoreObjects.ToStringHelper toStringHelper() {
+        return super.toStringHelper()
+                .add("writeBufferSize", writeBufferSize);
+    }
+
+    @Override
+    public SinkFactory getFactory() {
+        return (config, sinkNames, registry, globalByteBudget) -> {
+            final String name = Iterables.getOnlyElement(sinkNames);
+            final Schema avroSchema = registry.getSchemaBySinkName(name).avroSchema;
+            final FileManagerFactory fileManagerFactory = LocalFileManager.newFactory(config, name, avroSchema);
+            fileManagerFactory.verifyFileSystemConfiguration();
+
+            final int threads = config.configuration().global.local.threads;
+            final int bufferSize = config.configuration().global.local.bufferSize;
+            final ItemQueueFactory queueFactory = config.configuration().global.local.queue.getFactory();
+            final ByteBudget byteBudget = config.configuration().global.local.queue.createByteBudget(globalByteBudget);
+            final Optional<SpillSettings<AvroRecordBuffer>> spillSettings =
+                    config.configuration().global.local.spill.createSettings(AvroRecordBuffer.codec());
+            final BatchSettings batchSettings = config.configuration().global.local.batch.createSettings();
+
+            return new FileFlushingPool(config, name, threads, bufferSize, queueFactory, byteBudget, spillSettings, batchSettings, fileManagerFactory);
+        };
+    }
+
+    @Override
+    public String getReadableType() {
+        return "Local file system";
+    }
+}
@@ -20,6 +20,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.base.MoreObjects;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.Valid;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -27,6 +28,8 @@ import java.util.Optional;
 public class MapperConfiguration {
     public final int bufferSize;
     public final int threads;
+    public final QueueConfiguration queue;
+    @Valid public final AdmissionConfiguration admission;
     public final int duplicateMemorySize;
     public final UserAgentParserConfiguration userAgentParser;
     public final Optional<String> ip2geoDatabase;
@@ -34,11 +37,15 @@ public class MapperConfiguration {
     @JsonCreator
     MapperConfiguration(final int bufferSize,
                         final int threads,
+                        final QueueConfiguration queue,
+                        final AdmissionConfiguration admission,
                         final int duplicateMemorySize,
                         final UserAgentParserConfiguration userAgentParser,
                         final Optional<String> ip2geoDatabase) {
         this.bufferSize = bufferSize;
         this.threads = threads;
+        this.queue = Objects.requireNonNull(queue);
+        this.admission = Objects.requireNonNull(admission);
         this.duplicateMemorySize = duplicateMemorySize;
         this.userAgentParser = Objects.requireNonNull(userAgentParser);
         this.ip2geoDatabase = Objects.requireNonNull(ip2geoDatabase);
@@ -49,6 +56,8 @@ public class MapperConfiguration {
         return MoreObjects.toStringHelper(this)
                 .add("bufferSize", bufferSize)
                 .add("threads", threads)
+                .add("queue", queue)
+                .add("admission", admission)
                 .add("duplicateMemorySize", duplicateMemorySize)
                 .add("userAgentParser", userAgentParser)
                 .add("ip2geoDatabase", ip2geoDatabase)
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.ParametersAreNullableByDefault;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import java.util.Optional;
+
+@ParametersAreNonnullByDefault
+public class ParquetConfiguration {
+    private static final int DEFAULT_ROW_GROUP_SIZE = 128 * 1024 * 1024;
+    private static final ParquetCompressionCodec DEFAULT_COMPRESSION = ParquetCompressionCodec.SNAPPY;
+
+    static final ParquetConfiguration DEFAULT_PARQUET_CONFIGURATION = new ParquetConfiguration(null, null);
+
+    @Min(1)
+    @Max(Integer.MAX_VALUE)
+    public final int rowGroupSize;
+    public final ParquetCompressionCodec compression;
+
+    @JsonCreator
+    @ParametersAreNullableByDefault
+    public ParquetConfiguration(final Integer rowGroupSize,
+                                final ParquetCompressionCodec compression) {
+        this.rowGroupSize = Optional.ofNullable(rowGroupSize).orElse(DEFAULT_ROW_GROUP_SIZE);
+        this.compression = Optional.ofNullable(compression).orElse(DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("rowGroupSize", rowGroupSize)
+                .add("compression", compression)
+                .toString();
+    }
+}
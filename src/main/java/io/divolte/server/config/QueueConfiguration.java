@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.WaitStrategy;
+
+@ParametersAreNonnullByDefault
+public final class QueueConfiguration {
+    public final QueueType type;
+    public final QueueWaitStrategy waitStrategy;
+    public final Optional<Long> maxBytes;
+
+    @JsonCreator
+    QueueConfiguration(final QueueType type, final QueueWaitStrategy waitStrategy, final Optional<Long> maxBytes) {
+        this.type = Objects.requireNonNull(type);
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+        this.maxBytes = Objects.requireNonNull(maxBytes);
+    }
+
+    @JsonIgnore
+    public ItemQueueFactory getFactory() {
+        return type.factory.apply(waitStrategy.strategy);
+    }
+
+    /**
+     * Create the budget that limits the number of bytes queued by a pool.
+     *
+     * @param globalByteBudget the budget shared by all pools, which the new budget draws from.
+     * @return the budget for a single pool.
+     */
+    public ByteBudget createByteBudget(final ByteBudget globalByteBudget) {
+        return ByteBudget.create(maxBytes, globalByteBudget);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("type", type)
+                .add("waitStrategy", waitStrategy)
+                .add("maxBytes", maxBytes)
+                .toString();
+    }
+
+    @ParametersAreNonnullByDefault
+    public enum QueueType {
+        @JsonProperty("blocking")
+        BLOCKING(ignored -> ItemQueueFactory.blocking()),
+        @JsonProperty("ring_buffer")
+        RING_BUFFER(ItemQueueFactory::ringBuffer);
+
+        final Function<WaitStrategy, ItemQueueFactory> factory;
+
+        QueueType(final Function<WaitStrategy, ItemQueueFactory> factory) {
+            this.factory = Objects.requireNonNull(factory);
+        }
+    }
+
+    @ParametersAreNonnullByDefault
+    public enum QueueWaitStrategy {
+        @JsonProperty("park")
+        PARK(WaitStrategy.PARK),
+        @JsonProperty("spin")
+        SPIN(WaitStrategy.SPIN),
+        @JsonProperty("yield")
+        YIELD(WaitStrategy.YIELD);
+
+        final WaitStrategy strategy;
+
+        QueueWaitStrategy(final WaitStrategy strategy) {
+            this.strategy = Objects.requireNonNull(strategy);
+        }
+    }
+}
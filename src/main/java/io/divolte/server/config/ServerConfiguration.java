@@ -21,6 +21,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.Valid;
 import java.time.Duration;
 import java.util.Objects;
 import java.util.Optional;
@@ -35,6 +36,7 @@ public final class ServerConfiguration {
     public final boolean debugRequests;
     public final Duration shutdownDelay;
     public final Duration shutdownTimeout;
+    @Valid public final CheckpointConfiguration checkpoint;
 
     @JsonCreator
     ServerConfiguration(final Optional<String> host,
@@ -43,7 +45,8 @@ public final class ServerConfiguration {
                         final boolean serveStaticResources,
                         final boolean debugRequests,
                         final Duration shutdownDelay,
-                        final Duration shutdownTimeout) {
+                        final Duration shutdownTimeout,
+                        final CheckpointConfiguration checkpoint) {
         this.host = Objects.requireNonNull(host);
         this.port = port;
         this.useXForwardedFor = useXForwardedFor;
@@ -51,6 +54,7 @@ public final class ServerConfiguration {
         this.debugRequests = debugRequests;
         this.shutdownDelay = shutdownDelay;
         this.shutdownTimeout = shutdownTimeout;
+        this.checkpoint = Objects.requireNonNull(checkpoint);
     }
 
     @Override
@@ -63,6 +67,7 @@ public final class ServerConfiguration {
                 .add("debugRequests", debugRequests)
                 .add("shutdownDelay", shutdownDelay)
                 .add("shutdownTimeout", shutdownTimeout)
+                .add("checkpoint", checkpoint)
                 .toString();
     }
 }
@@ -16,6 +16,8 @@
 
 package io.divolte.server.config;
 
+import java.util.Optional;
+
 import javax.annotation.OverridingMethodsMustInvokeSuper;
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -23,15 +25,19 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
 
 import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteSchema;
 import io.divolte.server.SchemaRegistry;
+import io.divolte.server.processing.ByteBudget;
 import io.divolte.server.processing.ProcessingPool;
 
 @JsonTypeInfo(use=JsonTypeInfo.Id.NAME, include=JsonTypeInfo.As.PROPERTY, property = "type")
 @JsonSubTypes({
         @JsonSubTypes.Type(value=HdfsSinkConfiguration.class, name = "hdfs"),
         @JsonSubTypes.Type(value=GoogleCloudStorageSinkConfiguration.class, name = "gcs"),
+        @JsonSubTypes.Type(value=LocalFileSinkConfiguration.class, name = "local"),
         @JsonSubTypes.Type(value=KafkaSinkConfiguration.class, name = "kafka"),
         @JsonSubTypes.Type(value=GoogleCloudPubSubSinkConfiguration.class, name = "gcps"),
 })
@@ -50,10 +56,38 @@ public abstract class SinkConfiguration {
     @JsonIgnore
     public abstract SinkFactory getFactory();
 
+    /**
+     * Whether all sinks of this type share a single pool. If so, the pool for all of them
+     * is created by the factory of one of them.
+     *
+     * @return <code>true</code> if sinks of this type share their pool.
+     */
+    @JsonIgnore
+    public boolean sharesPool() {
+        return false;
+    }
+
+    /**
+     * The header with which this sink prefixes each serialized record, if any. Reserving it
+     * when records are serialized means the sink doesn't need to copy them to add it.
+     *
+     * @param schema the schema of the records written to this sink.
+     * @return the header for records written to this sink.
+     */
+    public Optional<byte[]> recordHeader(final DivolteSchema schema) {
+        return Optional.empty();
+    }
+
     @FunctionalInterface
     public interface SinkFactory {
+        /**
+         * Create the pool that processes the events for some sinks. Unless the sink type
+         * {@link #sharesPool() shares its pool} there is only a single sink. The index of
+         * each sink in the list is its destination within the pool.
+         */
         ProcessingPool<?, AvroRecordBuffer> create(ValidatedConfiguration configuration,
-                                                   String sinkName,
-                                                   SchemaRegistry schemaRegistry);
+                                                   ImmutableList<String> sinkNames,
+                                                   SchemaRegistry schemaRegistry,
+                                                   ByteBudget globalByteBudget);
     }
 }
@@ -20,6 +20,8 @@ import com.google.common.base.MoreObjects;
 
 import javax.annotation.OverridingMethodsMustInvokeSuper;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.Valid;
+import java.util.Objects;
 
 @ParametersAreNonnullByDefault
 public abstract class SinkTypeConfiguration {
@@ -27,10 +29,21 @@ public abstract class SinkTypeConfiguration {
     public final boolean enabled;
     public final int bufferSize;
     public final int threads;
+    @Valid public final QueueConfiguration queue;
+    @Valid public final SpillConfiguration spill;
+    @Valid public final BatchConfiguration batch;
 
-    protected SinkTypeConfiguration(final int bufferSize, final int threads, final boolean enabled) {
+    protected SinkTypeConfiguration(final int bufferSize,
+                                    final int threads,
+                                    final QueueConfiguration queue,
+                                    final SpillConfiguration spill,
+                                    final BatchConfiguration batch,
+                                    final boolean enabled) {
         this.bufferSize = bufferSize;
         this.threads = threads;
+        this.queue = Objects.requireNonNull(queue);
+        this.spill = Objects.requireNonNull(spill);
+        this.batch = Objects.requireNonNull(batch);
         this.enabled = enabled;
     }
 
@@ -39,7 +52,10 @@ public abstract class SinkTypeConfiguration {
         return MoreObjects.toStringHelper(this)
                 .add("enabled", enabled)
                 .add("bufferSize", bufferSize)
-                .add("threads", threads);
+                .add("threads", threads)
+                .add("queue", queue)
+                .add("spill", spill)
+                .add("batch", batch);
     }
 
     @Override
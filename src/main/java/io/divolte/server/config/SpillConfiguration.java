@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.Optional;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.base.MoreObjects;
+
+import io.divolte.server.processing.ItemCodec;
+import io.divolte.server.processing.SpillSettings;
+
+@ParametersAreNonnullByDefault
+public final class SpillConfiguration {
+    public final boolean enabled;
+    public final Optional<String> directory;
+    @Min(1)
+    public final int segmentSize;
+    @Min(1)
+    public final long maxSize;
+
+    @JsonCreator
+    SpillConfiguration(final boolean enabled,
+                       final Optional<String> directory,
+                       final int segmentSize,
+                       final long maxSize) {
+        this.enabled = enabled;
+        this.directory = Objects.requireNonNull(directory);
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Create the settings for spilling the items of a pool to disk.
+     *
+     * @param codec the codec used to store items on disk.
+     * @return the settings, or nothing if spilling is disabled.
+     */
+    public <E> Optional<SpillSettings<E>> createSettings(final ItemCodec<E> codec) {
+        return enabled
+                ? Optional.of(new SpillSettings<>(directory.map(Paths::get)
+                                                           .orElseGet(() -> Paths.get(System.getProperty("java.io.tmpdir"), "divolte-spill")),
+                                                  segmentSize,
+                                                  maxSize,
+                                                  codec))
+                : Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("enabled", enabled)
+                .add("directory", directory)
+                .add("segmentSize", segmentSize)
+                .add("maxSize", maxSize)
+                .toString();
+    }
+}
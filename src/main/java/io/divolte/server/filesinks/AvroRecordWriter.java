@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import io.divolte.server.AvroRecordBuffer;
+
+/*
+ * Writes records to an Avro container file. The records are already encoded, so they
+ * are copied into the file as-is.
+ */
+@ParametersAreNonnullByDefault
+public class AvroRecordWriter implements RecordWriter {
+    private final DataFileWriter<GenericRecord> writer;
+
+    public AvroRecordWriter(final DataFileWriter<GenericRecord> writer) {
+        this.writer = Objects.requireNonNull(writer);
+    }
+
+    @Override
+    public void append(final AvroRecordBuffer record) throws IOException {
+        writer.appendEncoded(record.getByteBuffer());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Forces the Avro file to write a block
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
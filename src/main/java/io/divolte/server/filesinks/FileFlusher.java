@@ -26,6 +26,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -36,6 +37,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.MoreObjects;
 
 import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.config.FileFormat;
 import io.divolte.server.config.FileStrategyConfiguration;
 import io.divolte.server.filesinks.FileManager.DivolteFile;
 import io.divolte.server.processing.Item;
@@ -56,6 +58,7 @@ public class FileFlusher implements ItemProcessor<AvroRecordBuffer> {
     private final long syncEveryNanos;
     private final int syncEveryRecords;
     private final long newFileEveryNanos;
+    private final String fileExtension;
 
     private final FileManager manager;
 
@@ -75,15 +78,20 @@ public class FileFlusher implements ItemProcessor<AvroRecordBuffer> {
     private Optional<TrackedFile> currentTrackedFile;
     private long lastFixAttemptNanoTime;
 
-    public FileFlusher(final FileStrategyConfiguration configuration, final FileManager manager) {
-        this(configuration, manager, DEFAULT_FILE_SYSTEM_RECONNECT_DELAY_NANOS);
+    public FileFlusher(final FileStrategyConfiguration configuration, final FileFormat format, final FileManager manager) {
+        this(configuration, format, manager, DEFAULT_FILE_SYSTEM_RECONNECT_DELAY_NANOS);
     }
 
     public FileFlusher(final FileStrategyConfiguration configuration, final FileManager manager, final long reconnectDelayNanos) {
         /*
          * Constructor with configurable reconnect delay for testability.
          */
+        this(configuration, FileFormat.AVRO, manager, reconnectDelayNanos);
+    }
+
+    private FileFlusher(final FileStrategyConfiguration configuration, final FileFormat format, final FileManager manager, final long reconnectDelayNanos) {
         this.reconnectDelayNanos = reconnectDelayNanos;
+        this.fileExtension = format.extension;
 
         syncEveryNanos = configuration.syncFileAfterDuration.toNanos();
         syncEveryRecords = configuration.syncFileAfterRecords;
@@ -132,6 +140,17 @@ public class FileFlusher implements ItemProcessor<AvroRecordBuffer> {
                 .orElseGet(() -> nanoTime - lastFixAttemptNanoTime > reconnectDelayNanos ? attemptRecovery(nanoTime) : PAUSE);
     }
 
+    @Override
+    public OptionalLong nextHeartbeat() {
+        // These mirror the conditions checked on each heartbeat: the first moment at which
+        // the file is due to be rolled or synced, or a reconnect should be attempted.
+        return OptionalLong.of(currentTrackedFile.map(trackedFile -> trackedFile.recordsSinceLastSync > 0
+                                                                     ? Math.min(trackedFile.projectedCloseNanoTime + 1,
+                                                                                trackedFile.lastSyncNanoTime + syncEveryNanos)
+                                                                     : trackedFile.projectedCloseNanoTime + 1)
+                                                 .orElseGet(() -> lastFixAttemptNanoTime + reconnectDelayNanos + 1));
+    }
+
     private ProcessingDirective handleHeartbeatWithHealthyFileSystem(final long nanoTime) {
         try {
             possiblySyncAndOrRoll(nanoTime);
@@ -259,7 +278,7 @@ public class FileFlusher implements ItemProcessor<AvroRecordBuffer> {
     }
 
     private String newFileName() {
-        return String.format("%s-divolte-tracking-%s-%d.avro", datePartFormat.format(new Date()), hostString, instanceNumber);
+        return String.format("%s-divolte-tracking-%s-%d%s", datePartFormat.format(new Date()), hostString, instanceNumber, fileExtension);
     }
 
     private static String findLocalHostName() {
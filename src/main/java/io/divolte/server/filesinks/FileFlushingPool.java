@@ -17,12 +17,17 @@
 package io.divolte.server.filesinks;
 
 import java.util.Objects;
+import java.util.Optional;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.config.FileSinkConfiguration;
 import io.divolte.server.config.ValidatedConfiguration;
+import io.divolte.server.processing.BatchSettings;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.SpillSettings;
 import io.divolte.server.processing.ProcessingPool;
 
 @ParametersAreNonnullByDefault
@@ -33,15 +38,25 @@ public class FileFlushingPool extends ProcessingPool<FileFlusher, AvroRecordBuff
             final String sinkName,
             final int numThreads,
             final int maxQueueSize,
+            final ItemQueueFactory queueFactory,
+            final ByteBudget byteBudget,
+            final Optional<SpillSettings<AvroRecordBuffer>> spillSettings,
+            final BatchSettings batchSettings,
             final FileManager.FileManagerFactory factory) {
         super(numThreads,
               maxQueueSize,
+              queueFactory,
+              byteBudget,
+              AvroRecordBuffer::size,
+              spillSettings,
+              batchSettings,
               String.format(
                       "%s Flusher [%s]",
                       vc.configuration().getSinkConfiguration(sinkName, FileSinkConfiguration.class).getReadableType(),
                       Objects.requireNonNull(sinkName)),
               () -> new FileFlusher(
                       vc.configuration().getSinkConfiguration(sinkName, FileSinkConfiguration.class).fileStrategy,
+                      vc.configuration().getSinkConfiguration(sinkName, FileSinkConfiguration.class).format,
                       factory.create())
               );
     }
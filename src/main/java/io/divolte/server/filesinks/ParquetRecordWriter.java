@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.ByteBufferInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.config.ParquetConfiguration;
+
+/*
+ * Writes records to a Parquet file. Records are decoded and buffered in memory until a
+ * row group is complete, at which point it is written to the underlying stream. The
+ * file is only readable once the writer has been closed, which writes the footer.
+ */
+@ParametersAreNonnullByDefault
+public class ParquetRecordWriter implements RecordWriter {
+    private final OutputStream stream;
+    private final ParquetWriter<GenericRecord> writer;
+    private final GenericDatumReader<GenericRecord> reader;
+
+    @Nullable private BinaryDecoder decoder;
+    @Nullable private GenericRecord record;
+
+    public ParquetRecordWriter(final Schema schema, final ParquetConfiguration configuration, final OutputStream stream) throws IOException {
+        this.stream = Objects.requireNonNull(stream);
+        this.writer = AvroParquetWriter.<GenericRecord>builder(new StreamOutputFile(stream))
+            .withSchema(schema)
+            .withDataModel(GenericData.get())
+            .withCompressionCodec(configuration.compression.codecName)
+            .withRowGroupSize(configuration.rowGroupSize)
+            // Don't pick up Hadoop configuration from the classpath.
+            .withConf(new Configuration(false))
+            .build();
+        this.reader = new GenericDatumReader<>(schema);
+    }
+
+    @Override
+    public void append(final AvroRecordBuffer buffer) throws IOException {
+        // The record is written to the column buffers straight away, so we can reuse it.
+        decoder = DecoderFactory.get().binaryDecoder(new ByteBufferInputStream(Collections.singletonList(buffer.getByteBuffer())), decoder);
+        record = reader.read(record, decoder);
+        writer.write(record);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Only complete row groups have been written; the current one stays in memory.
+        stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Writes the remaining row group and the footer, and closes the stream.
+        writer.close();
+    }
+
+    /*
+     * Parquet writes to files it creates itself; this lets it write to a stream we have
+     * already opened instead. The stream must be positioned at the start of the file.
+     */
+    private static final class StreamOutputFile implements OutputFile {
+        private final OutputStream stream;
+
+        private StreamOutputFile(final OutputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public PositionOutputStream create(final long blockSizeHint) {
+            return new PositionOutputStream() {
+                private long position;
+
+                @Override
+                public long getPos() {
+                    return position;
+                }
+
+                @Override
+                public void write(final int b) throws IOException {
+                    stream.write(b);
+                    ++position;
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    stream.write(b, off, len);
+                    position += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    stream.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    stream.close();
+                }
+            };
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(final long blockSizeHint) {
+            return create(blockSizeHint);
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import io.divolte.server.AvroRecordBuffer;
+
+/*
+ * Writes records to a single file, in the format configured for the sink. Closing the
+ * writer completes the file and closes the underlying stream.
+ */
+public interface RecordWriter extends Closeable {
+    void append(AvroRecordBuffer record) throws IOException;
+
+    /*
+     * Write as much of what has been appended as the format allows to the underlying
+     * stream, and flush it. It's up to the caller to make the stream durable.
+     */
+    void flush() throws IOException;
+}
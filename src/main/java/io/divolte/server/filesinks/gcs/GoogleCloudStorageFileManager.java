@@ -17,12 +17,28 @@
 package io.divolte.server.filesinks.gcs;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -31,12 +47,12 @@ import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.IOExceptions;
 import io.divolte.server.RetriableIOException;
 import io.divolte.server.config.GoogleCloudStorageSinkConfiguration;
+import io.divolte.server.config.GoogleCloudStorageUploadMode;
 import io.divolte.server.config.ValidatedConfiguration;
 import io.divolte.server.filesinks.FileManager;
 import io.divolte.server.filesinks.gcs.entities.ComposeRequest;
@@ -44,7 +60,15 @@ import io.divolte.server.filesinks.gcs.entities.ComposeRequest.SourceObject;
 import io.divolte.server.filesinks.gcs.entities.GcsObjectResponse;
 import io.divolte.server.filesinks.gcs.entities.GetBucketResponse;
 import net.jodah.failsafe.Failsafe;
+import net.jodah.failsafe.FailsafeException;
 import net.jodah.failsafe.RetryPolicy;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericDatumWriter;
@@ -52,6 +76,8 @@ import org.apache.avro.generic.GenericRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import static java.net.HttpURLConnection.*;
 
 public class GoogleCloudStorageFileManager implements FileManager {
@@ -65,10 +91,13 @@ public class GoogleCloudStorageFileManager implements FileManager {
         MAPPER.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
-    private static final String GET_BUCKET_URL_PREFIX = "https://www.googleapis.com/storage/v1/b/";
-    private static final String UPLOAD_FILE_URL_TEMPLATE = "https://www.googleapis.com/upload/storage/v1/b/%s/o?uploadType=media&name=%s";
-    private static final String COMPOSE_FILE_URL_TEMPLATE = "https://www.googleapis.com/storage/v1/b/%s/o/%s/compose";
-    private static final String DELETE_FILE_URL_TEMPLATE = "https://www.googleapis.com/storage/v1/b/%s/o/%s";
+    static final String DEFAULT_API_ROOT = "https://www.googleapis.com";
+
+    private static final String GET_BUCKET_URL_PREFIX = DEFAULT_API_ROOT + "/storage/v1/b/";
+    private static final String UPLOAD_FILE_URL_TEMPLATE = "%s/upload/storage/v1/b/%s/o?uploadType=media&name=%s";
+    private static final String COMPOSE_FILE_URL_TEMPLATE = "%s/storage/v1/b/%s/o/%s/compose";
+    private static final String DELETE_FILE_URL_TEMPLATE = "%s/storage/v1/b/%s/o/%s";
+    private static final String RESUMABLE_UPLOAD_URL_TEMPLATE = "%s/upload/storage/v1/b/%s/o?uploadType=resumable&name=%s";
 
     private static final char GCS_PATH_SEPARATOR_CHAR = '/';
     private static final String URL_ENCODING = "UTF-8";
@@ -78,15 +107,30 @@ public class GoogleCloudStorageFileManager implements FileManager {
     private static final String POST = "POST";
     private static final String GET = "GET";
     private static final String DELETE = "DELETE";
+    private static final String PUT = "PUT";
+
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int HTTP_CLIENT_CLOSED_REQUEST = 499;
+    // The bytes of a resumable upload that have been persisted, as reported in the Range header.
+    private static final Pattern PERSISTED_RANGE = Pattern.compile("bytes=0-(\\d+)");
 
     private static final String JSON_CONTENT_TYPE = "application/json";
-    private static final ImmutableMap<String,String> JSON_CONTENT_TYPE_HEADER = ImmutableMap.of("Content-Type", JSON_CONTENT_TYPE);
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse(JSON_CONTENT_TYPE);
 
     private static final String AVRO_CONTENT_TYPE = "application/octet-stream";
-    private static final ImmutableMap<String,String> AVRO_CONTENT_TYPE_HEADER = ImmutableMap.of("Content-Type", AVRO_CONTENT_TYPE);
+    private static final MediaType AVRO_MEDIA_TYPE = MediaType.parse(AVRO_CONTENT_TYPE);
+
+    private static final IOExceptions.IOSupplier<RequestBody> NO_BODY = () -> null;
 
     private static final String PART_CLASSIFIER = ".part";
 
+    private static final ImmutableMap<String,String> RESUMABLE_UPLOAD_START_HEADERS =
+        ImmutableMap.of("X-Upload-Content-Type", AVRO_CONTENT_TYPE);
+    private static final ImmutableMap<String,String> RESUMABLE_UPLOAD_METADATA = ImmutableMap.of("contentType", AVRO_CONTENT_TYPE);
+
+    // All chunks of a resumable upload except the last must be a multiple of this size.
+    private static final int RESUMABLE_UPLOAD_CHUNK_GRANULARITY = 256 * 1024;
+
     private final int recordBufferSize;
     private final Schema schema;
     private final String bucketEncoded;
@@ -94,6 +138,33 @@ public class GoogleCloudStorageFileManager implements FileManager {
     private final String publishDir;
 
     private final RetryPolicy<?> retryPolicy;
+    private final GoogleCloudStorageUploadMode uploadMode;
+    private final Optional<Path> spoolDirectory;
+
+    /*
+     * A single HTTP client is shared by all Google Cloud Storage sinks, so that they
+     * share a pool of keep-alive connections. Connections use HTTP/2 if the JVM
+     * supports ALPN. Redirects are never followed: the API doesn't use them, but
+     * does use status code 308 during resumable uploads.
+     */
+    private static final OkHttpClient DEFAULT_HTTP_CLIENT = new OkHttpClient.Builder()
+        .followRedirects(false)
+        .readTimeout(1, TimeUnit.MINUTES)
+        .writeTimeout(1, TimeUnit.MINUTES)
+        .build();
+
+    private final String apiRoot;
+    private final OkHttpClient httpClient;
+    private final IOExceptions.IOSupplier<Map<String, List<String>>> requestMetadata;
+
+    /*
+     * Parts are uploaded and composed on a single background thread, so that the
+     * flusher can continue appending records while a sync is in progress. As there
+     * is only one thread, all uploads and composes happen in the order in which
+     * they were handed off. File managers live as long as the sink's flusher does,
+     * and there is no hook for shutting them down; the thread is therefore a daemon.
+     */
+    private final ExecutorService uploader;
 
     public GoogleCloudStorageFileManager(
         final int recordBufferSize,
@@ -101,9 +172,38 @@ public class GoogleCloudStorageFileManager implements FileManager {
         final String bucket,
         final String inflightDir,
         final String publishDir,
-        RetryPolicy<?> retryPolicy
+        RetryPolicy<?> retryPolicy,
+        final GoogleCloudStorageUploadMode uploadMode,
+        final Optional<Path> spoolDirectory
+    ) {
+        this(recordBufferSize, schema, bucket, inflightDir, publishDir, retryPolicy, uploadMode, spoolDirectory,
+             DEFAULT_API_ROOT, DEFAULT_HTTP_CLIENT, GoogleCloudStorageFileManager::getDefaultRequestMetadata);
+    }
+
+    /*
+     * Constructor with configurable API endpoint and authentication for testability.
+     */
+    GoogleCloudStorageFileManager(
+        final int recordBufferSize,
+        final Schema schema,
+        final String bucket,
+        final String inflightDir,
+        final String publishDir,
+        final RetryPolicy<?> retryPolicy,
+        final GoogleCloudStorageUploadMode uploadMode,
+        final Optional<Path> spoolDirectory,
+        final String apiRoot,
+        final OkHttpClient httpClient,
+        final IOExceptions.IOSupplier<Map<String, List<String>>> requestMetadata
     ) {
         try {
+            this.apiRoot = Objects.requireNonNull(apiRoot);
+            this.httpClient = Objects.requireNonNull(httpClient);
+            this.requestMetadata = Objects.requireNonNull(requestMetadata);
+            this.uploader = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                                                                  .setNameFormat("Google Cloud Storage uploader - %d")
+                                                                  .setDaemon(true)
+                                                                  .build());
             this.recordBufferSize = recordBufferSize;
             this.schema = Objects.requireNonNull(schema);
             this.bucketEncoded = URLEncoder.encode(bucket, URL_ENCODING);
@@ -111,6 +211,8 @@ public class GoogleCloudStorageFileManager implements FileManager {
             this.publishDir = Objects.requireNonNull(publishDir);
             this.retryPolicy = Objects.requireNonNull(retryPolicy)
                                       .handle(RetriableIOException.class);
+            this.uploadMode = Objects.requireNonNull(uploadMode);
+            this.spoolDirectory = Objects.requireNonNull(spoolDirectory);
         } catch (final UnsupportedEncodingException e) {
             // Should not happen. URL encoding the bucket and dirs is verified during
             // configuration verification.
@@ -121,18 +223,331 @@ public class GoogleCloudStorageFileManager implements FileManager {
 
     @Override
     public DivolteFile createFile(final String name) throws IOException {
-        return new GoogleCloudStorageDivolteFile(name);
+        return GoogleCloudStorageUploadMode.RESUMABLE == uploadMode
+            ? new ResumableUploadDivolteFile(name)
+            : new GoogleCloudStorageDivolteFile(name);
     }
 
     public static FileManagerFactory newFactory(final ValidatedConfiguration configuration, final String sinkName, final Schema schema) {
         return new GoogleCloudStorageFileManagerFactory(configuration, sinkName, schema);
     }
 
-    public class GoogleCloudStorageDivolteFile implements DivolteFile {
-        private final AvroRecordBuffer[] buffer;
-        private final DataFileWriter<GenericRecord> writer;
-        private final DynamicDelegatingOutputStream avroTargetStream;
+    private interface PartUpload {
+        void upload(final EncodedPart part) throws IOException;
+    }
+
+    /*
+     * The Avro encoded bytes of the records appended between two syncs. Parts are
+     * only used by the uploader, which can send (ranges of) them repeatedly if a
+     * request needs to be retried.
+     */
+    private interface EncodedPart {
+        long size();
+
+        void writeTo(final BufferedSink sink, final long offset, final long length) throws IOException;
+    }
+
+    /*
+     * Holds the records appended between two syncs, until they have been uploaded.
+     */
+    private interface RecordSpool extends Closeable {
+        // Called on the flusher thread.
+        void append(final AvroRecordBuffer record) throws IOException;
+
+        boolean isEmpty();
+
+        // Called on the flusher thread when the spool is handed to the uploader.
+        void seal() throws IOException;
+
+        // Called on the uploader thread; the part is valid until the spool is cleared.
+        EncodedPart encode() throws IOException;
+
+        // Called on the uploader thread; afterwards the spool can be reused.
+        void clear() throws IOException;
+    }
+
+    private abstract class DoubleBufferedDivolteFile implements DivolteFile {
+        /*
+         * Records are appended to the current spool on the flusher thread. On sync,
+         * the current spool is handed to the uploader and the spare spool takes its
+         * place. The flusher only needs to wait when it syncs again before the previous
+         * upload has completed, i.e. when both spools are full.
+         *
+         * After construction, the writer and target stream are only used by the
+         * uploader when records are kept in memory, and only by the flusher when
+         * records are spooled to disk. Waiting for the pending upload to complete
+         * makes its effects visible to the flusher thread.
+         */
+        private RecordSpool spool;
+        private RecordSpool spareSpool;
+        private Future<?> pendingUpload;
+
+        /*
+         * We create a single Avro writer, but write parts of the Avro stream to
+         * multiple destinations. We use a DynamicDelegatingOutputStream for this, which
+         * is an output stream wrapper that supports changing the wrapped stream on the fly.
+         */
+        protected final DataFileWriter<GenericRecord> writer;
+        protected final DynamicDelegatingOutputStream avroTargetStream;
+
+        protected DoubleBufferedDivolteFile(final OutputStream headerTarget) throws IOException {
+            /*
+             * When creating an Avro writer, it immediately writes the Avro header to the
+             * underlying stream. The header is captured by the supplied stream; it's up to
+             * the subclass to upload it.
+             */
+            avroTargetStream = new DynamicDelegatingOutputStream();
+            avroTargetStream.attachDelegate(headerTarget);
+            try {
+                writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(schema)).create(schema, avroTargetStream);
+                writer.flush();
+            } finally {
+                avroTargetStream.detachDelegate();
+            }
+
+            /*
+             * Consider pooling these or assume only one file to be active at any point in
+             * time and use a single pair of spools per outer instance. While the latter is
+             * currently valid, new file syncing and rolling strategies might change this.
+             */
+            if (spoolDirectory.isPresent()) {
+                final Path directory = spoolDirectory.get();
+                Files.createDirectories(directory);
+                this.spool = new FileRecordSpool(directory);
+                try {
+                    this.spareSpool = new FileRecordSpool(directory);
+                } catch (final IOException e) {
+                    spool.close();
+                    throw e;
+                }
+                // Records are encoded straight into the current spool file.
+                avroTargetStream.attachDelegate(((FileRecordSpool) spool).stream);
+            } else {
+                this.spool = new HeapRecordSpool();
+                this.spareSpool = new HeapRecordSpool();
+            }
+        }
 
+        @Override
+        public void append(final AvroRecordBuffer record) throws IOException {
+            spool.append(record);
+        }
+
+        protected boolean hasBufferedRecords() {
+            return !spool.isEmpty();
+        }
+
+        protected void submitUpload(final Callable<?> upload) {
+            pendingUpload = uploader.submit(upload);
+        }
+
+        protected void handOffBuffer(final PartUpload upload) throws IOException {
+            // Both spools are in use until the previous upload has completed.
+            awaitPendingUpload();
+
+            final RecordSpool filledSpool = spool;
+            filledSpool.seal();
+            spool = spareSpool;
+            spareSpool = filledSpool;
+            if (spool instanceof FileRecordSpool) {
+                avroTargetStream.attachDelegate(((FileRecordSpool) spool).stream);
+            }
+
+            submitUpload(() -> {
+                upload.upload(filledSpool.encode());
+                // Since it has been written, release the records
+                filledSpool.clear();
+                return null;
+            });
+        }
+
+        protected void awaitPendingUpload() throws IOException {
+            try {
+                pendingUpload.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload to Google Cloud Storage.");
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause() instanceof FailsafeException && null != e.getCause().getCause()
+                    ? e.getCause().getCause()
+                    : e.getCause();
+                throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException("Upload to Google Cloud Storage failed.", cause);
+            }
+        }
+
+        protected void awaitPendingUploadQuietly() {
+            // the outcome of an outstanding upload no longer matters, but it may still create objects
+            try {
+                awaitPendingUpload();
+            } catch (final IOException e) {
+                logger.debug("Pending upload for discarded file failed.", e);
+            }
+        }
+
+        protected void closeSpools() {
+            // Only called once no upload is pending.
+            closeQuietly(spool);
+            closeQuietly(spareSpool);
+        }
+
+        private void closeQuietly(final RecordSpool spool) {
+            try {
+                spool.close();
+            } catch (final IOException e) {
+                logger.warn("Failed to remove spool file for Google Cloud Storage upload.", e);
+            }
+        }
+
+        /*
+         * Spool that hangs on to the record buffers, and encodes them in memory when
+         * they are uploaded.
+         */
+        private final class HeapRecordSpool implements RecordSpool {
+            private final AvroRecordBuffer[] records = new AvroRecordBuffer[recordBufferSize];
+            private int position;
+
+            @Override
+            public void append(final AvroRecordBuffer record) {
+                /*
+                 * We don't guard against overflow, as the buffer is allocated to the max
+                 * configured number of inflight records between syncing for the file strategy.
+                 */
+                records[position++] = record;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return 0 == position;
+            }
+
+            @Override
+            public void seal() {
+                // Nothing to do; records are encoded by the uploader.
+            }
+
+            @Override
+            public EncodedPart encode() throws IOException {
+                final Buffer content = new Buffer();
+                avroTargetStream.attachDelegate(content.outputStream());
+                try {
+                    for (int c = 0; c < position; c++) {
+                        // Write Avro record buffer to file
+                        writer.appendEncoded(records[c].getByteBuffer());
+                    }
+                    writer.flush();
+                } finally {
+                    avroTargetStream.detachDelegate();
+                }
+                return new EncodedPart() {
+                    @Override
+                    public long size() {
+                        return content.size();
+                    }
+
+                    @Override
+                    public void writeTo(final BufferedSink sink, final long offset, final long length) throws IOException {
+                        content.copyTo(sink.buffer(), offset, length);
+                        sink.emitCompleteSegments();
+                    }
+                };
+            }
+
+            @Override
+            public void clear() {
+                for (int c = 0; c < position; c++) {
+                    // Clear (our) reference to flushed buffer
+                    records[c] = null;
+                }
+                position = 0;
+            }
+
+            @Override
+            public void close() {
+                clear();
+            }
+        }
+
+        /*
+         * Spool that encodes records into a local file as they are appended, so that
+         * memory use doesn't depend on the number of records between syncs. The file is
+         * sent to Google Cloud Storage straight from disk, and truncated once it has been
+         * uploaded.
+         */
+        private final class FileRecordSpool implements RecordSpool {
+            private final FileChannel channel;
+            private final OutputStream stream;
+            private boolean empty = true;
+
+            private FileRecordSpool(final Path directory) throws IOException {
+                final Path file = Files.createTempFile(directory, "divolte-gcs-", ".avro.part");
+                this.channel = FileChannel.open(file,
+                                                StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.DELETE_ON_CLOSE);
+                this.stream = new BufferedOutputStream(Channels.newOutputStream(channel));
+            }
+
+            @Override
+            public void append(final AvroRecordBuffer record) throws IOException {
+                writer.appendEncoded(record.getByteBuffer());
+                empty = false;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return empty;
+            }
+
+            @Override
+            public void seal() throws IOException {
+                // Write out the last block; detaching flushes our stream.
+                writer.flush();
+                avroTargetStream.detachDelegate();
+            }
+
+            @Override
+            public EncodedPart encode() throws IOException {
+                final long size = channel.size();
+                return new EncodedPart() {
+                    @Override
+                    public long size() {
+                        return size;
+                    }
+
+                    @Override
+                    public void writeTo(final BufferedSink sink, final long offset, final long length) throws IOException {
+                        final WritableByteChannel target = Channels.newChannel(sink.outputStream());
+                        long transferred = 0;
+                        while (transferred < length) {
+                            final long count = channel.transferTo(offset + transferred, length - transferred, target);
+                            if (0 == count) {
+                                throw new EOFException("Spool file for Google Cloud Storage upload was truncated.");
+                            }
+                            transferred += count;
+                        }
+                        sink.emitCompleteSegments();
+                    }
+                };
+            }
+
+            @Override
+            public void clear() throws IOException {
+                channel.truncate(0);
+                channel.position(0);
+                empty = true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // The file is deleted when its channel is closed.
+                channel.close();
+            }
+        }
+    }
+
+    public class GoogleCloudStorageDivolteFile extends DoubleBufferedDivolteFile {
         private final String inflightNameEncoded;
         private final String inflightPartialNameEncoded;
         private final String publishNameEncoded;
@@ -141,15 +556,17 @@ public class GoogleCloudStorageFileManager implements FileManager {
         private final String inflightPartialName;
 
         private boolean partWritten;
-        private int position;
 
         private GoogleCloudStorageDivolteFile(final String fileName) throws IOException {
+            this(fileName, new ByteArrayOutputStream());
+        }
+
+        private GoogleCloudStorageDivolteFile(final String fileName, final ByteArrayOutputStream header) throws IOException {
             /*
-             * Consider pooling these or assume only one file to be active at any point in
-             * time and use a single buffer per outer instance. While the latter is
-             * currently valid, new file syncing and rolling strategies might change this.
+             * The parts of the Avro stream are written to multiple files, which are composed
+             * into a single file after flushing files. The header is the first of these.
              */
-            this.buffer = new AvroRecordBuffer[recordBufferSize];
+            super(header);
 
             this.inflightName = inflightDir + GCS_PATH_SEPARATOR_CHAR + fileName;
             this.inflightPartialName = inflightName + PART_CLASSIFIER;
@@ -159,108 +576,67 @@ public class GoogleCloudStorageFileManager implements FileManager {
             this.publishNameEncoded =  URLEncoder.encode(publishDir + GCS_PATH_SEPARATOR_CHAR + fileName, URL_ENCODING);
 
             final URL remoteFileUrl = uploadUrlFor(bucketEncoded, inflightNameEncoded);
-
-            /*
-             * We create a single Avro writer, but write parts of the Avro stream to
-             * multiple files, which are composed into a single file after flushing files.
-             * We use a DynamicDelegatingOutputStream for this, which is an output stream
-             * wrapper that supports changing the wrapped stream on the fly.
-             *
-             * When creating an Avro writer, it immediately writes the Avro header to the
-             * underlying stream. As such, we need to open the HTTP connection before
-             * creating the writer. As the writer is final, we cannot use the
-             * googlePost(...) helper in the constructor, because we cannot set a final from
-             * a lambda.
-             */
-            avroTargetStream = new DynamicDelegatingOutputStream();
-
-            writer = withRetry(POST, remoteFileUrl, true, AVRO_CONTENT_TYPE_HEADER, connection -> {
-                final DataFileWriter<GenericRecord> localWriter;
-                try (final OutputStream os = connection.getOutputStream()) {
-                    avroTargetStream.attachDelegate(os);
-                    try {
-                        localWriter = new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(schema)).create(schema, avroTargetStream);
-                        localWriter.flush();
-                    } finally {
-                        avroTargetStream.detachDelegate();
-                    }
-                }
-                final GcsObjectResponse response = parseResponse(GcsObjectResponse.class, connection);
-                logger.debug("Google Cloud Storage upload response: {}", response);
-                return localWriter;
-            }, retryPolicy);
             partWritten = false;
-        }
 
-        @Override
-        public void append(final AvroRecordBuffer record) {
-            /*
-             * Hang on to buffer; write later on sync. We don't guard against overflow, as
-             * the buffer is allocated to the max configured number of inflight records
-             * between syncing for the file strategy.
-             */
-            buffer[position++] = record;
+            submitUpload(() -> {
+                final GcsObjectResponse response = googlePost(remoteFileUrl, GcsObjectResponse.class, AVRO_MEDIA_TYPE, header::writeTo);
+                logger.debug("Google Cloud Storage upload response: {}", response);
+                return null;
+            });
         }
 
         @Override
         public void sync() throws IOException {
-            writeBufferAndComposeParts(inflightNameEncoded);
+            if (hasBufferedRecords()) {
+                handOffBuffer(part -> writePartAndComposeParts(part, inflightNameEncoded));
+            } else {
+                // Nothing to upload; still report any failure of the previous upload.
+                awaitPendingUpload();
+            }
         }
 
         @Override
         public void closeAndPublish() throws IOException {
             // write final part and compose all parts into published file
-            writeBufferAndComposeParts(publishNameEncoded);
+            handOffBuffer(part -> writePartAndComposeParts(part, publishNameEncoded));
+            try {
+                awaitPendingUpload();
+            } finally {
+                closeSpools();
+            }
 
             // delete inflight partial
-            googleDelete(deleteUrlFor(bucketEncoded, inflightPartialNameEncoded), retryPolicy);
+            googleDelete(deleteUrlFor(bucketEncoded, inflightPartialNameEncoded));
 
             // delete inflight composed
-            googleDelete(deleteUrlFor(bucketEncoded, inflightNameEncoded), retryPolicy);
+            googleDelete(deleteUrlFor(bucketEncoded, inflightNameEncoded));
         }
 
         @Override
         public void discard() throws IOException {
+            awaitPendingUploadQuietly();
+            closeSpools();
+
             // best effort to delete partial file
             if (partWritten) {
-                googleDelete(deleteUrlFor(bucketEncoded, inflightPartialNameEncoded), retryPolicy);
+                googleDelete(deleteUrlFor(bucketEncoded, inflightPartialNameEncoded));
             }
-            googleDelete(deleteUrlFor(bucketEncoded, inflightNameEncoded), retryPolicy);
+            googleDelete(deleteUrlFor(bucketEncoded, inflightNameEncoded));
         }
 
-        private void writeBufferAndComposeParts(final String composeDestinationObjectEncoded) throws IOException {
+        private void writePartAndComposeParts(final EncodedPart part,
+                                              final String composeDestinationObjectEncoded) throws IOException {
             final ImmutableList<SourceObject> sourcesToCompose;
 
-            if (position > 0) {
+            if (part.size() > 0) {
                 final URL partUploadUrl = uploadUrlFor(bucketEncoded, inflightPartialNameEncoded);
 
-                final GcsObjectResponse uploadResponse = googlePost(
-                    partUploadUrl,
-                    GcsObjectResponse.class,
-                    AVRO_CONTENT_TYPE_HEADER,
-                    os -> {
-                        avroTargetStream.attachDelegate(os);
-                        try {
-                            for (int c = 0; c < position; c++) {
-                                // Write Avro record buffer to file
-                                writer.appendEncoded(buffer[c].getByteBuffer());
-                            }
-                            writer.flush();
-                        } finally {
-                            avroTargetStream.detachDelegate();
-                        }
-                    },
-                    retryPolicy
-                );
-
-                // Since it has been written, clear the buffer
-                for (int c = 0; c < position; c++) {
-                    // Clear (our) reference to flushed buffer
-                    buffer[c] = null;
-                }
+                final GcsObjectResponse uploadResponse = withRetry(
+                    POST, partUploadUrl, () -> new PartRequestBody(AVRO_MEDIA_TYPE, new Buffer(), part, part.size()), ImmutableMap.of(),
+                    response -> parseResponse(GcsObjectResponse.class, response),
+                    retryPolicy, httpClient, requestMetadata);
 
                 partWritten = true;
-                position = 0;
 
                 logger.debug("Google Cloud Storage upload response {}", uploadResponse);
 
@@ -281,13 +657,132 @@ public class GoogleCloudStorageFileManager implements FileManager {
             final URL composeUrl = composeUrlFor(bucketEncoded, composeDestinationObjectEncoded);
 
             final GcsObjectResponse composeResponse = googlePost(
-                composeUrl, GcsObjectResponse.class, JSON_CONTENT_TYPE_HEADER,
-                os -> MAPPER.writeValue(os, composeRequest), retryPolicy);
+                composeUrl, GcsObjectResponse.class, JSON_MEDIA_TYPE,
+                os -> MAPPER.writeValue(os, composeRequest));
 
             logger.debug("Google Cloud Storage compose response {}", composeResponse);
         }
     }
 
+    public class ResumableUploadDivolteFile extends DoubleBufferedDivolteFile {
+        private final String publishNameEncoded;
+
+        /*
+         * Encoded bytes that have not been sent yet. Until the upload is finalized,
+         * only multiples of the chunk granularity can be sent; the remainder is kept
+         * for the next sync. This, the session and the upload offset are only used
+         * by the uploader.
+         */
+        private final Buffer unsent;
+        private long bytesUploaded;
+        @Nullable private URL sessionUrl;
+
+        private ResumableUploadDivolteFile(final String fileName) throws IOException {
+            this(fileName, new Buffer());
+        }
+
+        private ResumableUploadDivolteFile(final String fileName, final Buffer unsent) throws IOException {
+            // The header is sent as part of the first chunk.
+            super(unsent.outputStream());
+            this.unsent = unsent;
+
+            /*
+             * The object only becomes visible once the upload is finalized, so it is
+             * created under its published name right away. Nothing is written to the
+             * working directory.
+             */
+            this.publishNameEncoded = URLEncoder.encode(publishDir + GCS_PATH_SEPARATOR_CHAR + fileName, URL_ENCODING);
+
+            final URL startUrl = resumableUploadUrlFor(bucketEncoded, publishNameEncoded);
+            submitUpload(() -> {
+                sessionUrl = startResumableUpload(startUrl);
+                logger.debug("Started Google Cloud Storage resumable upload: {}", sessionUrl);
+                return null;
+            });
+        }
+
+        @Override
+        public void sync() throws IOException {
+            if (hasBufferedRecords()) {
+                handOffBuffer(part -> uploadChunk(part, false));
+            } else {
+                // Nothing to upload; still report any failure of the previous upload.
+                awaitPendingUpload();
+            }
+        }
+
+        @Override
+        public void closeAndPublish() throws IOException {
+            // send whatever remains and finalize the published object
+            handOffBuffer(part -> uploadChunk(part, true));
+            try {
+                awaitPendingUpload();
+            } finally {
+                closeSpools();
+            }
+        }
+
+        @Override
+        public void discard() throws IOException {
+            awaitPendingUploadQuietly();
+            closeSpools();
+
+            // nothing is visible until the upload is finalized; just cancel it
+            if (null != sessionUrl) {
+                cancelResumableUpload(sessionUrl);
+            }
+        }
+
+        private void uploadChunk(final EncodedPart part, final boolean last) throws IOException {
+            final long available = unsent.size() + part.size();
+            final long chunkLength = last
+                ? available
+                : available - available % RESUMABLE_UPLOAD_CHUNK_GRANULARITY;
+            if (!last && 0 == chunkLength) {
+                // Not enough data for a chunk yet.
+                part.writeTo(unsent, 0, part.size());
+                return;
+            }
+            // The chunk starts with the unsent bytes, followed by (the start of) this part.
+            final long partLength = chunkLength - unsent.size();
+
+            final long end = bytesUploaded + chunkLength;
+            final URL url = Objects.requireNonNull(sessionUrl);
+            // Google may persist only some of a chunk; whatever it didn't is sent again.
+            long partOffset = 0;
+            do {
+                final long start = bytesUploaded;
+                final String contentRange;
+                if (!last) {
+                    contentRange = "bytes " + start + '-' + (end - 1) + "/*";
+                } else if (chunkLength > 0) {
+                    contentRange = "bytes " + start + '-' + (end - 1) + '/' + end;
+                } else {
+                    contentRange = "bytes */" + end;
+                }
+
+                final long offset = partOffset;
+                final long persisted = withRetry(PUT, url, () -> new PartRequestBody(AVRO_MEDIA_TYPE, unsent, part, offset, partLength - offset), ImmutableMap.of("Content-Range", contentRange), response -> {
+                    if (last) {
+                        final GcsObjectResponse uploadResponse = parseResponse(GcsObjectResponse.class, response);
+                        logger.debug("Google Cloud Storage resumable upload response {}", uploadResponse);
+                        return end;
+                    } else {
+                        return expectResumeIncomplete(response, start, end);
+                    }
+                }, retryPolicy, httpClient, requestMetadata);
+
+                // The unsent bytes were sent first, so they're persisted before the part is.
+                final long persistedUnsent = Math.min(persisted - start, unsent.size());
+                unsent.skip(persistedUnsent);
+                partOffset += persisted - start - persistedUnsent;
+                bytesUploaded = persisted;
+            } while (bytesUploaded < end);
+
+            part.writeTo(unsent, partLength, part.size() - partLength);
+        }
+    }
+
     public static class GoogleCloudStorageFileManagerFactory implements FileManagerFactory {
         private final Schema schema;
         private final ValidatedConfiguration configuration;
@@ -321,7 +816,7 @@ public class GoogleCloudStorageFileManager implements FileManager {
                 // Empty RetryPolicy
                 final RetryPolicy retryPolicy = new RetryPolicy();
 
-                final GetBucketResponse response = googleGet(bucketUrl, GetBucketResponse.class, retryPolicy);
+                final GetBucketResponse response = googleGet(bucketUrl, GetBucketResponse.class, retryPolicy, DEFAULT_HTTP_CLIENT, GoogleCloudStorageFileManager::getDefaultRequestMetadata);
                 logger.info("Google Cloud Storage sink {} using bucket {}", name, response);
 
                 // Additionally, make sure that the working dir and publish dir are URL
@@ -343,7 +838,9 @@ public class GoogleCloudStorageFileManager implements FileManager {
                 sinkConfiguration.bucket,
                 sinkConfiguration.fileStrategy.workingDir,
                 sinkConfiguration.fileStrategy.publishDir,
-                sinkConfiguration.retrySettings.createRetryPolicy()
+                sinkConfiguration.retrySettings.createRetryPolicy(),
+                sinkConfiguration.uploadMode,
+                sinkConfiguration.spool.spoolDirectory()
             );
         }
     }
@@ -353,65 +850,121 @@ public class GoogleCloudStorageFileManager implements FileManager {
                          .createScoped(Collections.singletonList(GoogleCloudStorageFileManager.GCS_OAUTH_SCOPE));
     }
 
+    @Nullable
+    private static RefreshingCredentials defaultCredentials;
+
+    private static Map<String, List<String>> getDefaultRequestMetadata() throws IOException {
+        /*
+         * All sinks share the application default credentials. These are loaded once,
+         * after which the access token is refreshed in the background.
+         */
+        final RefreshingCredentials credentials;
+        synchronized (GoogleCloudStorageFileManager.class) {
+            if (null == defaultCredentials) {
+                defaultCredentials = RefreshingCredentials.start(getGoogleCredentials());
+            }
+            credentials = defaultCredentials;
+        }
+        return credentials.getRequestMetadata();
+    }
+
     private interface BodyWriter {
         void write(final OutputStream stream) throws IOException;
     }
 
-    private static <T> T parseResponse(final Class<T> resultType, final HttpURLConnection connection) throws IOException {
-        throwIOExceptionOnErrorResponse(connection);
-        try (InputStream stream = connection.getInputStream()) {
+    private static <T> T parseResponse(final Class<T> resultType, final Response response) throws IOException {
+        throwIOExceptionOnErrorResponse(response);
+        try (InputStream stream = response.body().byteStream()) {
             return MAPPER.readValue(stream, resultType);
         }
     }
 
-    private static <T> T googlePost(final URL url, final Class<T> resultType, final ImmutableMap<String,String> additionalHeaders, final BodyWriter writer, final RetryPolicy<?> retryPolicy) {
-        return withRetry(POST, url, true, additionalHeaders, connection -> {
-            try (final OutputStream os = connection.getOutputStream()) {
-                writer.write(os);
-                os.flush();
-            }
-            return parseResponse(resultType, connection);
-        }, retryPolicy);
+    private <T> T googlePost(final URL url, final Class<T> resultType, final MediaType contentType, final BodyWriter writer) {
+        return withRetry(POST, url, () -> BufferedRequestBody.of(contentType, writer), ImmutableMap.of(),
+                         response -> parseResponse(resultType, response),
+                         retryPolicy, httpClient, requestMetadata);
     }
 
-    private static <T> T googleGet(final URL url, final Class<T> resultType, final RetryPolicy retryPolicy) {
-        return withRetry(GET, url, false, ImmutableMap.of(), connection -> parseResponse(resultType, connection), retryPolicy);
+    private static <T> T googleGet(final URL url, final Class<T> resultType, final RetryPolicy retryPolicy, final OkHttpClient httpClient, final IOExceptions.IOSupplier<Map<String, List<String>>> requestMetadata) {
+        return withRetry(GET, url, NO_BODY, ImmutableMap.of(), response -> parseResponse(resultType, response), retryPolicy, httpClient, requestMetadata);
     }
 
-    private static void googleDelete(final URL url, final RetryPolicy retryPolicy) {
-        withRetry(DELETE, url, false, ImmutableMap.of(), connection -> {
-            throwIOExceptionOnErrorResponse(connection);
-            /*
-             * As per the docs, Google sends a empty response with a 200. We
-             * need to get and drain the stream for the HTTP client to
-             * consider the connection for reuse.
-             */
-            ByteStreams.exhaust(connection.getInputStream());
+    private void googleDelete(final URL url) {
+        withRetry(DELETE, url, NO_BODY, ImmutableMap.of(), response -> {
+            // As per the docs, Google sends a empty response on success.
+            throwIOExceptionOnErrorResponse(response);
             return null;
-        }, retryPolicy);
+        }, retryPolicy, httpClient, requestMetadata);
     }
 
-    private static void throwIOExceptionOnErrorResponse(final HttpURLConnection connection) throws IOException {
-        final int responseCode = connection.getResponseCode();
-        // Note: the docs are specific about closing the streams after reading in order
-        // to trigger proper Keep-Alive usage
-        if (responseCode < 200 || responseCode > 299) {
-            final String response;
-            try (InputStream stream = connection.getErrorStream()) {
-                // Read the error response as String; GCS sometimes sends a JSON error response
-                // and sometimes text/plain (e.g. "Not found.")
-                response = CharStreams.toString(new InputStreamReader(stream, URL_ENCODING));
+    private URL startResumableUpload(final URL url) {
+        return withRetry(POST, url, () -> RequestBody.create(JSON_MEDIA_TYPE, MAPPER.writeValueAsBytes(RESUMABLE_UPLOAD_METADATA)), RESUMABLE_UPLOAD_START_HEADERS, response -> {
+            throwIOExceptionOnErrorResponse(response);
+            final String location = response.header("Location");
+            if (null == location) {
+                throw new IOException("Google Cloud Storage did not provide a session URI for resumable upload.");
             }
+            return new URL(location);
+        }, retryPolicy, httpClient, requestMetadata);
+    }
+
+    private void cancelResumableUpload(final URL sessionUrl) {
+        withRetry(DELETE, sessionUrl, NO_BODY, ImmutableMap.of(), response -> {
+            // Google responds to a cancelled upload with a 499 status code.
+            if (HTTP_CLIENT_CLOSED_REQUEST != response.code()) {
+                throwIOExceptionOnErrorResponse(response);
+            }
+            return null;
+        }, retryPolicy, httpClient, requestMetadata);
+    }
+
+    /*
+     * Check the response to a chunk of a resumable upload, and return how many bytes of the
+     * upload have been persisted. This can be fewer than were sent; the rest must be sent again.
+     */
+    private static long expectResumeIncomplete(final Response response, final long startBytes, final long endBytes) throws IOException {
+        if (HTTP_RESUME_INCOMPLETE != response.code()) {
+            throwIOExceptionOnErrorResponse(response);
+            throw new IOException("Google Cloud Storage finalized resumable upload before it was complete.");
+        }
+        // The Range header tells us how many bytes have been persisted so far; without it, nothing has.
+        final String range = response.header("Range");
+        final long persisted;
+        if (null == range) {
+            persisted = 0;
+        } else {
+            final Matcher matcher = PERSISTED_RANGE.matcher(range);
+            if (!matcher.matches()) {
+                throw new IOException("Google Cloud Storage reported an invalid range for resumable upload: " + range);
+            }
+            persisted = Long.parseLong(matcher.group(1)) + 1;
+        }
+        if (persisted < startBytes || persisted > endBytes) {
+            throw new IOException("Google Cloud Storage persisted " + persisted + " bytes of resumable upload, outside of the chunk sent (" + startBytes + '-' + endBytes + ").");
+        }
+        if (persisted == startBytes) {
+            // Nothing was persisted; try sending the chunk again.
+            throw new RetriableIOException("Google Cloud Storage did not persist any of the chunk of resumable upload.");
+        }
+        return persisted;
+    }
+
+    private static void throwIOExceptionOnErrorResponse(final Response response) throws IOException {
+        final int responseCode = response.code();
+        if (!response.isSuccessful()) {
+            // Read the error response as String; GCS sometimes sends a JSON error response
+            // and sometimes text/plain (e.g. "Not found.")
+            final String body = response.body().string();
 
             switch (responseCode) {
                 case HTTP_INTERNAL_ERROR:
                 case HTTP_BAD_GATEWAY:
                 case HTTP_UNAVAILABLE:
                 case HTTP_GATEWAY_TIMEOUT:
-                    logger.error("Received retriable error response from Google Cloud Storage. Response status code: {}. Response body: {}", responseCode, response);
+                    logger.error("Received retriable error response from Google Cloud Storage. Response status code: {}. Response body: {}", responseCode, body);
                     throw new RetriableIOException("Received error response from Google Cloud Storage.");
                 default:
-                    logger.error("Received non-retriable error response from Google Cloud Storage. Response status code: {}. Response body: {}", responseCode, response);
+                    logger.error("Received non-retriable error response from Google Cloud Storage. Response status code: {}. Response body: {}", responseCode, body);
                     throw new IOException("Received error response from Google Cloud Storage.");
             }
         }
@@ -419,10 +972,12 @@ public class GoogleCloudStorageFileManager implements FileManager {
 
     private static <T> T withRetry(final String method,
                                    final URL url,
-                                   final boolean write,
+                                   final IOExceptions.IOSupplier<RequestBody> body,
                                    final ImmutableMap<String, String> additionalHeaders,
-                                   final IOExceptions.IOFunction<HttpURLConnection, T> consumer,
-                                   final RetryPolicy<?> retryPolicy) {
+                                   final IOExceptions.IOFunction<Response, T> handler,
+                                   final RetryPolicy<?> retryPolicy,
+                                   final OkHttpClient httpClient,
+                                   final IOExceptions.IOSupplier<Map<String, List<String>>> requestMetadata) {
         @SuppressWarnings("unchecked")
         final RetryPolicy<T> localPolicy = (RetryPolicy<T>) retryPolicy.copy();
         final RetryPolicy<T> listeningPolicy = localPolicy
@@ -430,39 +985,128 @@ public class GoogleCloudStorageFileManager implements FileManager {
         return Failsafe
             .with(listeningPolicy)
             .onFailure(event -> logger.error("Failed GCS API call after {} attempts: {} {}", event.getAttemptCount(), method, url, event.getFailure()))
-            .get(() -> consumer.apply(setupUrlConnection(method, url, write, additionalHeaders)));
+            .get(() -> {
+                // Closing the response hands the connection back to the pool.
+                try (final Response response = httpClient.newCall(buildRequest(method, url, body.get(), additionalHeaders, requestMetadata)).execute()) {
+                    return handler.apply(response);
+                }
+            });
     }
 
-    private static HttpURLConnection setupUrlConnection(final String method, final URL url, final boolean write, final ImmutableMap<String,String> additionalHeaders) throws IOException {
-        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setAllowUserInteraction(false);
-
-        getGoogleCredentials()
-            .getRequestMetadata()
+    private static Request buildRequest(final String method,
+                                        final URL url,
+                                        @Nullable final RequestBody body,
+                                        final ImmutableMap<String,String> additionalHeaders,
+                                        final IOExceptions.IOSupplier<Map<String, List<String>>> requestMetadata) throws IOException {
+        final Request.Builder request = new Request.Builder()
+            .url(url)
+            .method(method, body);
+
+        requestMetadata
+            .get()
             .forEach(
                     (headerName, headerValues) -> headerValues
                         .forEach(
-                                value -> connection.addRequestProperty(headerName, value))
+                                value -> request.addHeader(headerName, value))
                         );
 
-        additionalHeaders.forEach(connection::addRequestProperty);
+        additionalHeaders.forEach(request::addHeader);
 
-        connection.setRequestMethod(method);
-        connection.setDoInput(true);
-        connection.setDoOutput(write);
+        return request.build();
+    }
 
-        return connection;
+    private URL uploadUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
+        return new URL(String.format(UPLOAD_FILE_URL_TEMPLATE, apiRoot, bucketPart, namePart));
     }
 
-    private static URL uploadUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
-        return new URL(String.format(UPLOAD_FILE_URL_TEMPLATE, bucketPart, namePart));
+    private URL composeUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
+        return new URL(String.format(COMPOSE_FILE_URL_TEMPLATE, apiRoot, bucketPart, namePart));
     }
 
-    private static URL composeUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
-        return new URL(String.format(COMPOSE_FILE_URL_TEMPLATE, bucketPart, namePart));
+    private URL deleteUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
+        return new URL(String.format(DELETE_FILE_URL_TEMPLATE, apiRoot, bucketPart, namePart));
     }
 
-    private static URL deleteUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
-        return new URL(String.format(DELETE_FILE_URL_TEMPLATE, bucketPart, namePart));
+    private URL resumableUploadUrlFor(final String bucketPart, final String namePart) throws MalformedURLException {
+        return new URL(String.format(RESUMABLE_UPLOAD_URL_TEMPLATE, apiRoot, bucketPart, namePart));
+    }
+
+    /*
+     * Request body that is encoded into memory up front, so that its length is known
+     * and it can be sent again if a request needs to be repeated. The segments of the
+     * buffer are shared with the connection instead of being copied.
+     */
+    private static final class BufferedRequestBody extends RequestBody {
+        private final MediaType contentType;
+        private final Buffer content;
+
+        private BufferedRequestBody(final MediaType contentType, final Buffer content) {
+            this.contentType = Objects.requireNonNull(contentType);
+            this.content = Objects.requireNonNull(content);
+        }
+
+        static BufferedRequestBody of(final MediaType contentType, final BodyWriter writer) throws IOException {
+            final Buffer content = new Buffer();
+            writer.write(content.outputStream());
+            return new BufferedRequestBody(contentType, content);
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return content.size();
+        }
+
+        @Override
+        public void writeTo(final BufferedSink sink) throws IOException {
+            content.copyTo(sink.buffer(), 0, content.size());
+            sink.emitCompleteSegments();
+        }
+    }
+
+    /*
+     * Request body that sends some buffered bytes followed by the start of an
+     * encoded part. The buffered bytes are shared with the connection instead of
+     * being copied, and the part can be sent again if a request needs to be repeated.
+     */
+    private static final class PartRequestBody extends RequestBody {
+        private final MediaType contentType;
+        private final Buffer head;
+        private final EncodedPart part;
+        private final long partOffset;
+        private final long partLength;
+
+        private PartRequestBody(final MediaType contentType, final Buffer head, final EncodedPart part, final long partLength) {
+            this(contentType, head, part, 0, partLength);
+        }
+
+        private PartRequestBody(final MediaType contentType, final Buffer head, final EncodedPart part, final long partOffset, final long partLength) {
+            this.contentType = Objects.requireNonNull(contentType);
+            this.head = Objects.requireNonNull(head);
+            this.part = Objects.requireNonNull(part);
+            this.partOffset = partOffset;
+            this.partLength = partLength;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return head.size() + partLength;
+        }
+
+        @Override
+        public void writeTo(final BufferedSink sink) throws IOException {
+            head.copyTo(sink.buffer(), 0, head.size());
+            sink.emitCompleteSegments();
+            part.writeTo(sink, partOffset, partLength);
+        }
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.gcs;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Wrapper around credentials that refreshes the access token on a background
+ * thread, well before it expires. Left to themselves, credentials refresh the
+ * token on the thread that needs it once it is about to expire; that thread would
+ * then have to wait for the round-trip to the token endpoint.
+ *
+ * Should a background refresh fail, it is retried shortly after. If the token
+ * expires in the meantime, the credentials still refresh it on demand.
+ */
+@ParametersAreNonnullByDefault
+final class RefreshingCredentials {
+    private static final Logger logger = LoggerFactory.getLogger(RefreshingCredentials.class);
+
+    /*
+     * Credentials refresh the token themselves when it expires within 5 minutes;
+     * we need to be well ahead of that.
+     */
+    static final Duration REFRESH_AHEAD_OF_EXPIRY = Duration.ofMinutes(10);
+    static final Duration REFRESH_RETRY_DELAY = Duration.ofSeconds(10);
+
+    private final GoogleCredentials credentials;
+    private final ScheduledExecutorService refresher;
+
+    private RefreshingCredentials(final GoogleCredentials credentials, final ScheduledExecutorService refresher) {
+        this.credentials = Objects.requireNonNull(credentials);
+        this.refresher = Objects.requireNonNull(refresher);
+    }
+
+    static RefreshingCredentials start(final GoogleCredentials credentials) {
+        final ScheduledExecutorService refresher =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                                                           .setNameFormat("Google Cloud Storage credentials refresher - %d")
+                                                           .setDaemon(true)
+                                                           .build());
+        return start(credentials, refresher);
+    }
+
+    static RefreshingCredentials start(final GoogleCredentials credentials, final ScheduledExecutorService refresher) {
+        final RefreshingCredentials refreshingCredentials = new RefreshingCredentials(credentials, refresher);
+        refresher.execute(refreshingCredentials::refresh);
+        return refreshingCredentials;
+    }
+
+    Map<String, List<String>> getRequestMetadata() throws IOException {
+        return credentials.getRequestMetadata();
+    }
+
+    private void refresh() {
+        Duration nextRefresh;
+        try {
+            credentials.refresh();
+            final Optional<Duration> untilRefresh = untilRefresh(credentials.getAccessToken(), System.currentTimeMillis());
+            if (!untilRefresh.isPresent()) {
+                // The token never expires.
+                return;
+            }
+            nextRefresh = untilRefresh.get();
+            logger.debug("Refreshed Google Cloud Storage access token; next refresh in {}.", nextRefresh);
+        } catch (final IOException | RuntimeException e) {
+            logger.warn("Failed to refresh Google Cloud Storage access token; retrying in " + REFRESH_RETRY_DELAY + '.', e);
+            nextRefresh = REFRESH_RETRY_DELAY;
+        }
+        refresher.schedule(this::refresh, nextRefresh.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    static Optional<Duration> untilRefresh(final AccessToken token, final long nowMillis) {
+        final Date expirationTime = token.getExpirationTime();
+        if (null == expirationTime) {
+            return Optional.empty();
+        }
+        final Duration untilRefresh = Duration.ofMillis(expirationTime.getTime() - nowMillis).minus(REFRESH_AHEAD_OF_EXPIRY);
+        // If the token is short-lived, don't hammer the token endpoint.
+        return Optional.of(untilRefresh.compareTo(REFRESH_RETRY_DELAY) < 0 ? REFRESH_RETRY_DELAY : untilRefresh);
+    }
+}
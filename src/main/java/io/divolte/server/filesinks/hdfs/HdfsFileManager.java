@@ -19,10 +19,15 @@ package io.divolte.server.filesinks.hdfs;
 import com.google.common.base.MoreObjects;
 import com.google.common.io.Closeables;
 import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.config.FileFormat;
 import io.divolte.server.config.FileSinkConfiguration;
 import io.divolte.server.config.HdfsSinkConfiguration;
+import io.divolte.server.config.ParquetConfiguration;
 import io.divolte.server.config.ValidatedConfiguration;
+import io.divolte.server.filesinks.AvroRecordWriter;
 import io.divolte.server.filesinks.FileManager;
+import io.divolte.server.filesinks.ParquetRecordWriter;
+import io.divolte.server.filesinks.RecordWriter;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericDatumWriter;
@@ -51,13 +56,23 @@ public class HdfsFileManager implements FileManager {
     private final String workDir;
     private final String publishDir;
     private final Schema writeSchema;
-
-    private HdfsFileManager(final FileSystem hdfs, final short replication, final String workDir, final String publishDir, final Schema schema) {
+    private final FileFormat format;
+    private final ParquetConfiguration parquet;
+
+    private HdfsFileManager(final FileSystem hdfs,
+                            final short replication,
+                            final String workDir,
+                            final String publishDir,
+                            final Schema schema,
+                            final FileFormat format,
+                            final ParquetConfiguration parquet) {
         this.hdfs = Objects.requireNonNull(hdfs);
         this.workDir = Objects.requireNonNull(workDir);
         this.publishDir = Objects.requireNonNull(publishDir);
         this.writeSchema = Objects.requireNonNull(schema);
         this.replication = replication;
+        this.format = Objects.requireNonNull(format);
+        this.parquet = Objects.requireNonNull(parquet);
     }
 
     @Override
@@ -71,7 +86,7 @@ public class HdfsFileManager implements FileManager {
 
     public class HdfsDivolteFile implements DivolteFile {
         private final FSDataOutputStream stream;
-        private final DataFileWriter<GenericRecord> writer;
+        private final RecordWriter writer;
         private final Path inflightPath;
         private final Path publishPath;
 
@@ -82,9 +97,15 @@ public class HdfsFileManager implements FileManager {
 
             stream = hdfs.create(inflightPath, replication);
 
-            writer = new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(writeSchema)).create(writeSchema, stream);
-            writer.setSyncInterval(1 << 30);
-            writer.setFlushOnEveryBlock(true);
+            if (FileFormat.PARQUET == format) {
+                writer = new ParquetRecordWriter(writeSchema, parquet, stream);
+            } else {
+                final DataFileWriter<GenericRecord> avroWriter =
+                    new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(writeSchema)).create(writeSchema, stream);
+                avroWriter.setSyncInterval(1 << 30);
+                avroWriter.setFlushOnEveryBlock(true);
+                writer = new AvroRecordWriter(avroWriter);
+            }
 
             // Sync the file on open to make sure the
             // connection actually works, because
@@ -95,7 +116,7 @@ public class HdfsFileManager implements FileManager {
 
         @Override
         public void append(final AvroRecordBuffer buffer) throws IOException {
-            writer.appendEncoded(buffer.getByteBuffer());
+            writer.append(buffer);
         }
 
         @Override
@@ -109,8 +130,8 @@ public class HdfsFileManager implements FileManager {
 
         @Override
         public void sync() throws IOException {
-            // Forces the Avro file to write a block
-            writer.sync();
+            // Forces the writer to write whatever it can
+            writer.flush();
 
             // Forces a (HDFS) flush and sync on the underlying stream
             stream.hflush();
@@ -190,9 +211,11 @@ public class HdfsFileManager implements FileManager {
                       .getSinkConfiguration(Objects.requireNonNull(name), HdfsSinkConfiguration.class).replication;
 
             try {
-                final String hdfsWorkingDir = configuration.configuration().getSinkConfiguration(name, FileSinkConfiguration.class).fileStrategy.workingDir;
-                final String hdfsPublishDir = configuration.configuration().getSinkConfiguration(name, FileSinkConfiguration.class).fileStrategy.publishDir;
-                return new HdfsFileManager(getFileSystemInstance(), hdfsReplication, hdfsWorkingDir, hdfsPublishDir, schema);
+                final FileSinkConfiguration sinkConfiguration = configuration.configuration().getSinkConfiguration(name, FileSinkConfiguration.class);
+                final String hdfsWorkingDir = sinkConfiguration.fileStrategy.workingDir;
+                final String hdfsPublishDir = sinkConfiguration.fileStrategy.publishDir;
+                return new HdfsFileManager(getFileSystemInstance(), hdfsReplication, hdfsWorkingDir, hdfsPublishDir, schema,
+                                           sinkConfiguration.format, sinkConfiguration.parquet);
             } catch (final IOException e) {
                 logger.error("Failed to construct HDFS file system instance from verified configuration.");
                 throw new UncheckedIOException(e);
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.local;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.io.Closeables;
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.config.FileFormat;
+import io.divolte.server.config.LocalFileSinkConfiguration;
+import io.divolte.server.config.ParquetConfiguration;
+import io.divolte.server.config.ValidatedConfiguration;
+import io.divolte.server.filesinks.AvroRecordWriter;
+import io.divolte.server.filesinks.FileManager;
+import io.divolte.server.filesinks.ParquetRecordWriter;
+import io.divolte.server.filesinks.RecordWriter;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+@ParametersAreNonnullByDefault
+public class LocalFileManager implements FileManager {
+    private static final Logger logger = LoggerFactory.getLogger(LocalFileManager.class);
+
+    private final static String INFLIGHT_EXTENSION = ".partial";
+
+    private final Path workDir;
+    private final Path publishDir;
+    private final int writeBufferSize;
+    private final Schema writeSchema;
+    private final FileFormat format;
+    private final ParquetConfiguration parquet;
+
+    LocalFileManager(final Path workDir,
+                     final Path publishDir,
+                     final int writeBufferSize,
+                     final Schema schema,
+                     final FileFormat format,
+                     final ParquetConfiguration parquet) {
+        this.workDir = Objects.requireNonNull(workDir);
+        this.publishDir = Objects.requireNonNull(publishDir);
+        this.writeBufferSize = writeBufferSize;
+        this.writeSchema = Objects.requireNonNull(schema);
+        this.format = Objects.requireNonNull(format);
+        this.parquet = Objects.requireNonNull(parquet);
+    }
+
+    @Override
+    public DivolteFile createFile(final String name) throws IOException {
+        return new LocalDivolteFile(name);
+    }
+
+    public static FileManagerFactory newFactory(final ValidatedConfiguration configuration, final String sinkName, final Schema schema) {
+        return new LocalFileManagerFactory(configuration, sinkName, schema);
+    }
+
+    public class LocalDivolteFile implements DivolteFile {
+        private final FileChannel channel;
+        private final RecordWriter writer;
+        private final Path inflightPath;
+        private final Path publishPath;
+
+        @SuppressWarnings("resource")
+        LocalDivolteFile(final String name) throws IOException {
+            inflightPath = workDir.resolve(name + INFLIGHT_EXTENSION);
+            publishPath = publishDir.resolve(name);
+
+            channel = FileChannel.open(inflightPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                writer = createWriter(new ChannelOutputStream(channel, writeBufferSize));
+            } catch (final IOException | RuntimeException e) {
+                Closeables.close(channel, true);
+                Files.deleteIfExists(inflightPath);
+                throw e;
+            }
+        }
+
+        private RecordWriter createWriter(final ChannelOutputStream stream) throws IOException {
+            if (FileFormat.PARQUET == format) {
+                return new ParquetRecordWriter(writeSchema, parquet, stream);
+            }
+            final DataFileWriter<GenericRecord> avroWriter =
+                new DataFileWriter<GenericRecord>(new GenericDatumWriter<>(writeSchema)).create(writeSchema, stream);
+            /*
+             * Blocks are written when they reach the size of the write buffer, or on sync.
+             * They only reach the disk on sync, which is also the only time we force them
+             * to storage.
+             */
+            avroWriter.setSyncInterval(writeBufferSize);
+            return new AvroRecordWriter(avroWriter);
+        }
+
+        @Override
+        public void append(final AvroRecordBuffer buffer) throws IOException {
+            writer.append(buffer);
+        }
+
+        @Override
+        public void closeAndPublish() throws IOException {
+            writer.close(); // forces and closes underlying channel as well
+            Files.move(inflightPath, publishPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            // Forces the writer to write whatever it can, and our stream to write its buffer
+            writer.flush();
+
+            // A single fsync for everything written since the last sync
+            channel.force(false);
+        }
+
+        @Override
+        public void discard() throws IOException {
+            Closeables.close(writer, true);
+            Files.deleteIfExists(inflightPath);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects
+                    .toStringHelper(getClass())
+                    .add("inflight file", inflightPath)
+                    .add("publish file", publishPath)
+                    .toString();
+        }
+    }
+
+    /*
+     * Output stream that collects small writes (such as block headers and sync markers)
+     * in a direct buffer, and hands them to the channel together with the next large
+     * write (an encoded block) using a single gathering write. Nothing is written to the
+     * channel until the buffer fills up or the stream is flushed. Closing the stream
+     * forces the file to storage.
+     */
+    static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final ByteBuffer[] gather;
+
+        ChannelOutputStream(final FileChannel channel, final int bufferSize) {
+            this.channel = Objects.requireNonNull(channel);
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+            this.gather = new ByteBuffer[] { buffer, null };
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len <= buffer.remaining()) {
+                buffer.put(b, off, len);
+            } else {
+                buffer.flip();
+                gather[1] = ByteBuffer.wrap(b, off, len);
+                try {
+                    long remaining = buffer.remaining() + len;
+                    while (remaining > 0) {
+                        remaining -= channel.write(gather);
+                    }
+                } finally {
+                    gather[1] = null;
+                    buffer.clear();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    @ParametersAreNonnullByDefault
+    public static class LocalFileManagerFactory implements FileManager.FileManagerFactory {
+        private final ValidatedConfiguration configuration;
+        private final String name;
+        private final Schema schema;
+
+        private LocalFileManagerFactory(final ValidatedConfiguration vc, final String name, final Schema schema) {
+            this.schema = Objects.requireNonNull(schema);
+            this.configuration = Objects.requireNonNull(vc);
+            this.name = Objects.requireNonNull(name);
+        }
+
+        @Override
+        public void verifyFileSystemConfiguration() {
+            final LocalFileSinkConfiguration sinkConfiguration = configuration.configuration().getSinkConfiguration(name, LocalFileSinkConfiguration.class);
+            final Path workingDir = Paths.get(sinkConfiguration.fileStrategy.workingDir);
+            final Path publishDir = Paths.get(sinkConfiguration.fileStrategy.publishDir);
+
+            if (!Files.isDirectory(workingDir)) {
+                throw new RuntimeException("Working directory for in-flight AVRO records does not exist or is not a directory: " + workingDir);
+            }
+            if (!Files.isDirectory(publishDir)) {
+                throw new RuntimeException("Directory for publishing AVRO records does not exist or is not a directory: " + publishDir);
+            }
+            try {
+                // Publishing is an atomic rename, which can't cross file systems.
+                if (!Files.getFileStore(workingDir).equals(Files.getFileStore(publishDir))) {
+                    throw new RuntimeException("Working directory " + workingDir + " and publish directory " + publishDir + " are not on the same file system.");
+                }
+            } catch (final IOException ioe) {
+                logger.error("Could not determine file system of working and publish directories.", ioe);
+                throw new UncheckedIOException("Could not determine file system of working and publish directories.", ioe);
+            }
+        }
+
+        @Override
+        public FileManager create() {
+            final LocalFileSinkConfiguration sinkConfiguration = configuration.configuration().getSinkConfiguration(name, LocalFileSinkConfiguration.class);
+            return new LocalFileManager(Paths.get(sinkConfiguration.fileStrategy.workingDir),
+                                        Paths.get(sinkConfiguration.fileStrategy.publishDir),
+                                        sinkConfiguration.writeBufferSize,
+                                        schema,
+                                        sinkConfiguration.format,
+                                        sinkConfiguration.parquet);
+        }
+    }
+}
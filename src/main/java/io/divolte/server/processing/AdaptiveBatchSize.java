@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Tracks the batch size for a single consumer of a {@link ProcessingPool}, adjusting it
+ * after each batch according to its {@link BatchSettings}.
+ * <p>
+ * Only the consumer may update the size, but it can be read from any thread.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class AdaptiveBatchSize {
+    private final int minSize;
+    private final int maxSize;
+    private final long latencyTargetNanos;
+
+    private volatile int size;
+    private int previousBacklog;
+
+    AdaptiveBatchSize(final BatchSettings settings) {
+        this.minSize = settings.minSize;
+        this.maxSize = settings.maxSize;
+        this.latencyTargetNanos = settings.latencyTarget.toNanos();
+        this.size = minSize;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adjust the batch size after a batch has been processed.
+     *
+     * @param latencyNanos  how long it took to process the batch.
+     * @param backlog       the number of items that were still queued afterwards.
+     */
+    void update(final long latencyNanos, final int backlog) {
+        final int current = size;
+        final int next;
+        if (latencyTargetNanos < latencyNanos) {
+            // Too slow: back off quickly.
+            next = Math.max(minSize, current / 2);
+        } else if (current <= backlog && previousBacklog <= backlog) {
+            // Falling behind while there's latency to spare: take more at a time.
+            next = (int) Math.min(maxSize, 2L * current);
+        } else if (backlog < minSize) {
+            // Nearly idle: drift back towards the minimum.
+            next = Math.max(minSize, current - current / 4);
+        } else {
+            next = current;
+        }
+        previousBacklog = backlog;
+        size = next;
+    }
+}
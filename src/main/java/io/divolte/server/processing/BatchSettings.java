@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Settings for the size of the batches of items that the threads of a {@link ProcessingPool}
+ * take from their queues.
+ * <p>
+ * Batches start at the minimum size. They grow while the backlog in the queue keeps up with
+ * the batch size and processing a batch takes less than the latency target, and shrink again
+ * when processing takes too long or the queue is nearly empty.
+ */
+@ParametersAreNonnullByDefault
+public final class BatchSettings {
+    public final int minSize;
+    public final int maxSize;
+    public final Duration latencyTarget;
+
+    /**
+     * @param minSize       the smallest batch size.
+     * @param maxSize       the largest batch size.
+     * @param latencyTarget the time that processing a batch should take at most.
+     */
+    public BatchSettings(final int minSize, final int maxSize, final Duration latencyTarget) {
+        Preconditions.checkArgument(0 < minSize, "Minimum size must be positive: %s", minSize);
+        Preconditions.checkArgument(minSize <= maxSize, "Maximum size must be at least the minimum size: %s < %s", maxSize, minSize);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.latencyTarget = Objects.requireNonNull(latencyTarget);
+    }
+
+    /**
+     * @param size the size of each batch.
+     * @return settings for batches that always have the same size.
+     */
+    public static BatchSettings fixed(final int size) {
+        return new BatchSettings(size, size, Duration.ZERO);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("minSize", minSize)
+                .add("maxSize", maxSize)
+                .add("latencyTarget", latencyTarget)
+                .toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A queue that, in addition to the capacity of the queue it wraps, limits the
+ * number of bytes it holds using a {@link ByteBudget}.
+ * <p>
+ * Bytes are acquired from the budget when an element is offered, and returned
+ * when the element is removed by the consumer.
+ *
+ * @param <E> the type of element held in the queue.
+ */
+@ParametersAreNonnullByDefault
+final class ByteBoundedItemQueue<E> implements ItemQueue<E> {
+    private final ItemQueue<E> queue;
+    private final ByteBudget budget;
+    private final ToIntFunction<? super E> sizeOf;
+
+    // Only used by the consumer; reused to avoid allocating on each drain.
+    private final List<E> drained = new ArrayList<>();
+
+    ByteBoundedItemQueue(final ItemQueue<E> queue, final ByteBudget budget, final ToIntFunction<? super E> sizeOf) {
+        this.queue = Objects.requireNonNull(queue);
+        this.budget = Objects.requireNonNull(budget);
+        this.sizeOf = Objects.requireNonNull(sizeOf);
+    }
+
+    @Override
+    public boolean offer(final E e) {
+        final int size = sizeOf.applyAsInt(e);
+        if (!budget.tryAcquire(size)) {
+            return false;
+        }
+        if (!queue.offer(e)) {
+            budget.release(size);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements) {
+        queue.drainTo(drained, maxElements);
+        return handOn(c);
+    }
+
+    @Override
+    public int drainInMemoryTo(final Collection<? super E> c) {
+        queue.drainInMemoryTo(drained);
+        return handOn(c);
+    }
+
+    private int handOn(final Collection<? super E> c) {
+        // Elements are drained into a list of our own first, so that we make no assumptions
+        // about how the wrapped queue uses the collection it is given. The bytes for each
+        // element are returned to the budget as it is handed on.
+        final int count = drained.size();
+        try {
+            for (int i = 0; i < count; ++i) {
+                final E e = drained.get(i);
+                budget.release(sizeOf.applyAsInt(e));
+                c.add(e);
+            }
+            return count;
+        } finally {
+            drained.clear();
+        }
+    }
+
+    @Nullable
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final E e = queue.poll(timeout, unit);
+        if (null != e) {
+            budget.release(sizeOf.applyAsInt(e));
+        }
+        return e;
+    }
+
+    @Override
+    public void wakeConsumer() {
+        queue.wakeConsumer();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int capacity() {
+        return queue.capacity();
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * A limit on the number of bytes that may be queued at any one time.
+ * <p>
+ * Budgets can be nested: a budget with a parent only grants bytes if the parent
+ * also has room for them. This allows each {@link ProcessingPool} to have its own
+ * limit while all pools together are still bound by a global limit.
+ * <p>
+ * Every attempt to acquire bytes that is refused is counted, so that the number of
+ * bytes that have been dropped because of the budget can be reported.
+ */
+@ParametersAreNonnullByDefault
+public final class ByteBudget {
+    private static final ByteBudget UNLIMITED = new ByteBudget(Long.MAX_VALUE, Optional.empty());
+
+    private final long limit;
+    private final Optional<ByteBudget> parent;
+
+    private final AtomicLong used = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    private ByteBudget(final long limit, final Optional<ByteBudget> parent) {
+        Preconditions.checkArgument(0 < limit, "Byte budget must be positive: %s", limit);
+        this.limit = limit;
+        this.parent = Objects.requireNonNull(parent);
+    }
+
+    /**
+     * @return a budget that never refuses bytes and does not keep track of them.
+     */
+    public static ByteBudget unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Create a budget.
+     *
+     * @param limit     the maximum number of bytes that may be held, if any.
+     * @param parent    a budget that must also grant any bytes acquired from this one.
+     * @return a new budget, or an unlimited budget if neither this budget nor its parent has a limit.
+     */
+    public static ByteBudget create(final Optional<Long> limit, final ByteBudget parent) {
+        return limit.isPresent() || !parent.isUnlimited()
+                ? new ByteBudget(limit.orElse(Long.MAX_VALUE), parent.isUnlimited() ? Optional.empty() : Optional.of(parent))
+                : UNLIMITED;
+    }
+
+    /**
+     * Create a budget without a parent.
+     *
+     * @param limit the maximum number of bytes that may be held, if any.
+     * @return a new budget, or an unlimited budget if no limit was specified.
+     */
+    public static ByteBudget create(final Optional<Long> limit) {
+        return create(limit, UNLIMITED);
+    }
+
+    /**
+     * @return <code>true</code> if this budget never refuses bytes, <code>false</code> otherwise.
+     */
+    public boolean isUnlimited() {
+        return this == UNLIMITED;
+    }
+
+    /**
+     * Try to acquire bytes from this budget. If the bytes are granted they must
+     * later be returned using {@link #release(int)}.
+     *
+     * @param bytes the number of bytes to acquire.
+     * @return <code>true</code> if the bytes were granted, or <code>false</code> if this budget
+     *         (or its parent) is exhausted.
+     */
+    public boolean tryAcquire(final int bytes) {
+        if (isUnlimited()) {
+            return true;
+        }
+        final boolean acquired = reserve(bytes);
+        if (!acquired) {
+            rejected.add(bytes);
+        }
+        return acquired;
+    }
+
+    private boolean reserve(final int bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (limit - current < bytes) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        if (parent.isPresent() && !parent.get().tryAcquire(bytes)) {
+            used.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return bytes that were previously acquired from this budget.
+     *
+     * @param bytes the number of bytes to return.
+     */
+    public void release(final int bytes) {
+        if (!isUnlimited()) {
+            used.addAndGet(-bytes);
+            parent.ifPresent(p -> p.release(bytes));
+        }
+    }
+
+    /**
+     * @return the number of bytes currently acquired from this budget.
+     */
+    public long usedBytes() {
+        return used.get();
+    }
+
+    /**
+     * @return the fraction of this budget (or its parent, if that is fuller) that is
+     *         currently in use, between 0 and 1.
+     */
+    public double utilization() {
+        if (isUnlimited()) {
+            return 0.0;
+        }
+        final double utilization = Math.min(1.0, (double) used.get() / limit);
+        return parent.map(p -> Math.max(utilization, p.utilization())).orElse(utilization);
+    }
+
+    /**
+     * @return the total number of bytes for which acquisition has been refused.
+     */
+    public long rejectedBytes() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("limit", limit)
+                .add("used", used.get())
+                .add("rejected", rejected.sum())
+                .toString();
+    }
+}
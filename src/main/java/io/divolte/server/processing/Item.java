@@ -16,9 +16,15 @@
 
 package io.divolte.server.processing;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.IntStream;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
@@ -49,4 +55,78 @@ public final class Item<E> {
     public static <E> Item<E> withCopiedAffinity(final int sourceId, final Item<?> affinitySource, final E payload) {
         return new Item<>(sourceId, affinitySource.affinityHash, payload);
     }
+
+    public static <E> ItemCodec<Item<E>> codec(final ItemCodec<E> payloadCodec) {
+        Objects.requireNonNull(payloadCodec);
+        return new ItemCodec<Item<E>>() {
+            @Override
+            public int encodedSize(final Item<E> item) {
+                return 8 + payloadCodec.encodedSize(item.payload);
+            }
+
+            @Override
+            public void encode(final Item<E> item, final ByteBuffer buffer) {
+                buffer.putInt(item.sourceId).putInt(item.affinityHash);
+                payloadCodec.encode(item.payload, buffer);
+            }
+
+            @Override
+            public Item<E> decode(final ByteBuffer buffer) {
+                final int sourceId = buffer.getInt();
+                final int affinityHash = buffer.getInt();
+                final E payload = payloadCodec.decode(buffer.slice());
+                return null == payload ? null : new Item<>(sourceId, affinityHash, payload);
+            }
+        };
+    }
+
+    /**
+     * Create a codec for items bound for one of several named destinations, such as the sinks
+     * sharing a pool, where the source identifier of each item is the index of its destination.
+     * Encoded items hold the name of their destination instead of its index, so that they can
+     * still be decoded if the destinations have changed in the meantime. Items for a destination
+     * that no longer exists decode as <code>null</code>.
+     *
+     * @param payloadCodec  the codec for the payload of the items.
+     * @param destinations  the names of the destinations, by index.
+     * @return a codec for the items.
+     */
+    public static <E> ItemCodec<Item<E>> codec(final ItemCodec<E> payloadCodec, final List<String> destinations) {
+        Objects.requireNonNull(payloadCodec);
+        final ImmutableList<byte[]> encodedNames =
+            destinations.stream()
+                        .map(name -> name.getBytes(StandardCharsets.UTF_8))
+                        .peek(name -> Preconditions.checkArgument(name.length <= 0xFFFF, "Destination name too long: %s", name.length))
+                        .collect(ImmutableList.toImmutableList());
+        final ImmutableMap<String, Integer> indexesByName =
+            IntStream.range(0, destinations.size())
+                     .boxed()
+                     .collect(ImmutableMap.toImmutableMap(destinations::get, i -> i));
+        return new ItemCodec<Item<E>>() {
+            @Override
+            public int encodedSize(final Item<E> item) {
+                return 2 + encodedNames.get(item.sourceId).length + 4 + payloadCodec.encodedSize(item.payload);
+            }
+
+            @Override
+            public void encode(final Item<E> item, final ByteBuffer buffer) {
+                final byte[] name = encodedNames.get(item.sourceId);
+                buffer.putShort((short) name.length).put(name).putInt(item.affinityHash);
+                payloadCodec.encode(item.payload, buffer);
+            }
+
+            @Override
+            public Item<E> decode(final ByteBuffer buffer) {
+                final byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                final Integer sourceId = indexesByName.get(new String(name, StandardCharsets.UTF_8));
+                final int affinityHash = buffer.getInt();
+                if (null == sourceId) {
+                    return null;
+                }
+                final E payload = payloadCodec.decode(buffer.slice());
+                return null == payload ? null : new Item<>(sourceId, affinityHash, payload);
+            }
+        };
+    }
 }
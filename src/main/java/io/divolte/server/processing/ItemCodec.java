@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Converts items to and from a binary form, so that they can be stored outside the heap.
+ *
+ * @param <E> the type of item.
+ */
+@ParametersAreNonnullByDefault
+public interface ItemCodec<E> {
+    /**
+     * @param item the item that will be encoded.
+     * @return the exact number of bytes that {@link #encode(Object, ByteBuffer)} will write for the item.
+     */
+    int encodedSize(E item);
+
+    /**
+     * Encode an item.
+     *
+     * @param item      the item to encode.
+     * @param buffer    the buffer to write to, starting at its position. It has exactly
+     *                  {@link #encodedSize(Object)} bytes remaining.
+     */
+    void encode(E item, ByteBuffer buffer);
+
+    /**
+     * Decode an item. The buffer may no longer be valid after this method returns, so
+     * the item must not refer to it.
+     *
+     * @param buffer the buffer to read from, holding exactly one encoded item.
+     * @return the decoded item, or <code>null</code> if the item can no longer be used and
+     *         should be discarded.
+     */
+    @Nullable
+    E decode(ByteBuffer buffer);
+}
@@ -18,6 +18,7 @@ package io.divolte.server.processing;
 
 import static io.divolte.server.processing.ItemProcessor.ProcessingDirective.*;
 
+import java.util.OptionalLong;
 import java.util.Queue;
 
 public interface ItemProcessor<E> {
@@ -38,6 +39,24 @@ public interface ItemProcessor<E> {
         return CONTINUE;
     }
 
+    /**
+     * Declare when this processor next needs a heartbeat. The thread driving the processor
+     * waits for items until this deadline, and no longer; if no deadline is declared, or it
+     * is a long way off, heartbeats still occur about once a second.
+     * <p>
+     * Once a heartbeat has taken place the deadline should lie in the future again,
+     * otherwise the thread will keep delivering heartbeats.
+     * <p>
+     * While the processor is paused its thread is parked until the heartbeat; unparking the
+     * thread delivers the heartbeat early.
+     *
+     * @return the time of the next heartbeat, as a {@link System#nanoTime()} value, or
+     *         nothing if the processor has no particular deadline.
+     */
+    default OptionalLong nextHeartbeat() {
+        return OptionalLong.empty();
+    }
+
     default void cleanup() {
         // noop, override to implement cleanup
     }
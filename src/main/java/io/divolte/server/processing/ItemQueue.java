@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A bounded queue used to hand items from producer threads to the single consumer
+ * thread that drains it inside a {@link ProcessingPool}.
+ * <p>
+ * Implementations must allow {@link #offer(Object)} to be invoked concurrently from
+ * any number of threads. The remaining methods are only ever invoked by the consumer.
+ *
+ * @param <E> the type of element held in the queue.
+ */
+@ParametersAreNonnullByDefault
+public interface ItemQueue<E> {
+    /**
+     * Insert an element into the queue, without waiting for space to become available.
+     *
+     * @param e the element to insert.
+     * @return <code>true</code> if the element was added, or <code>false</code> if the queue is full.
+     */
+    boolean offer(E e);
+
+    /**
+     * Remove up to a given number of elements from the queue, adding them to the supplied collection.
+     *
+     * @param c             the collection to which elements should be transferred.
+     * @param maxElements   the maximum number of elements to transfer.
+     * @return the number of elements that were transferred.
+     */
+    int drainTo(Collection<? super E> c, int maxElements);
+
+    /**
+     * Remove the elements that the queue holds in memory, adding them to the supplied
+     * collection. Elements that the queue keeps on disk are left there, to be picked up
+     * again by a queue opened on the same storage. This is only invoked once the consumer
+     * has stopped.
+     *
+     * @param c the collection to which elements should be transferred.
+     * @return the number of elements that were transferred.
+     */
+    default int drainInMemoryTo(final Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Remove the head of the queue, waiting up to the specified time for an element to
+     * become available if the queue is empty.
+     *
+     * @return the head of the queue, or <code>null</code> if the timeout elapsed before an element became available.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Nullable
+    E poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Make the consumer return from {@link #poll(long, TimeUnit)} early if it is waiting
+     * there, or else from its next call to it. This is used when items become available
+     * by some route other than this queue. Like {@link #offer(Object)}, this may be invoked
+     * from any thread.
+     * <p>
+     * Queues that can't support this do nothing; their consumer only notices the other
+     * items once its current poll times out.
+     */
+    default void wakeConsumer() {
+    }
+
+    boolean isEmpty();
+
+    /**
+     * Estimate the number of elements in the queue. Unlike the other consumer methods,
+     * this may be invoked from any thread.
+     *
+     * @return the approximate number of elements in the queue.
+     */
+    int size();
+
+    /**
+     * @return the maximum number of elements that the queue can hold.
+     */
+    int capacity();
+
+    /**
+     * Release any resources held by the queue. This is invoked by the consumer once it
+     * has stopped.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.util.Objects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+@ParametersAreNonnullByDefault
+@FunctionalInterface
+public interface ItemQueueFactory {
+    <E> ItemQueue<E> create(int capacity);
+
+    /**
+     * A factory for queues backed by an {@link java.util.concurrent.ArrayBlockingQueue}.
+     * Producers and the consumer share a single lock.
+     */
+    static ItemQueueFactory blocking() {
+        return ArrayBlockingItemQueue::new;
+    }
+
+    /**
+     * A factory for lock-free ring buffers that support many producers and a single consumer.
+     * The capacity of each queue is rounded up to the nearest power of 2.
+     *
+     * @param waitStrategy how the consumer should wait for items while the queue is empty.
+     */
+    static ItemQueueFactory ringBuffer(final WaitStrategy waitStrategy) {
+        Objects.requireNonNull(waitStrategy);
+        return new ItemQueueFactory() {
+            @Override
+            public <E> ItemQueue<E> create(final int capacity) {
+                return new MpscRingBufferItemQueue<>(capacity, waitStrategy);
+            }
+        };
+    }
+}
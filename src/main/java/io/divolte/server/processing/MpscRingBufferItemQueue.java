@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+
+/**
+ * A bounded, lock-free queue that supports multiple producers and a single consumer.
+ * <p>
+ * Producers claim a slot in the ring by atomically advancing the producer index, and
+ * then publish the element into that slot. The consumer owns the consumer index; it
+ * takes elements from the ring in order and clears each slot after reading it. A slot
+ * that has been claimed but not yet published reads as <code>null</code>; the consumer
+ * treats this as the end of the available elements for the time being.
+ * <p>
+ * When the queue is empty the consumer waits according to the configured
+ * {@link WaitStrategy}. Producers only signal the consumer if it is parked.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+final class MpscRingBufferItemQueue<E> implements ItemQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+    // Producers cache the index they may advance to without checking the consumer
+    // index, to avoid contending on the consumer's cache line for every offer.
+    private volatile long producerLimit;
+
+    // The consumer thread, while it is parked waiting for an element.
+    @Nullable
+    private volatile Thread parkedConsumer;
+    // Set to make the consumer return from poll() without an element.
+    private volatile boolean wakeRequested;
+
+    MpscRingBufferItemQueue(final int capacity, final WaitStrategy waitStrategy) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s", capacity);
+        final int actualCapacity = IntMath.ceilingPowerOfTwo(capacity);
+        this.mask = actualCapacity - 1;
+        this.buffer = new AtomicReferenceArray<>(actualCapacity);
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+        this.producerLimit = actualCapacity;
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public boolean offer(final E e) {
+        Objects.requireNonNull(e);
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index >= producerLimit) {
+                final long limit = consumerIndex.get() + capacity();
+                if (index >= limit) {
+                    // Full.
+                    return false;
+                }
+                producerLimit = limit;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        buffer.lazySet(offset(index), e);
+
+        final Thread consumer = parkedConsumer;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements) {
+        long index = consumerIndex.get();
+        int count = 0;
+        while (count < maxElements) {
+            final int offset = offset(index);
+            final E e = buffer.get(offset);
+            if (null == e) {
+                break;
+            }
+            buffer.lazySet(offset, null);
+            ++index;
+            ++count;
+            c.add(e);
+        }
+        if (0 < count) {
+            consumerIndex.lazySet(index);
+        }
+        return count;
+    }
+
+    @Nullable
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while (null == (e = relaxedPoll())) {
+            if (wakeRequested) {
+                wakeRequested = false;
+                break;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            idle(remaining);
+        }
+        return e;
+    }
+
+    @Override
+    public void wakeConsumer() {
+        wakeRequested = true;
+        final Thread consumer = parkedConsumer;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        // Note: the consumer index must be read before the producer index.
+        return consumerIndex.get() == producerIndex.get();
+    }
+
+    @Override
+    public int size() {
+        // Note: the consumer index must be read before the producer index, otherwise
+        // the consumer may have overtaken the producer index that we read.
+        final long consumed = consumerIndex.get();
+        final long produced = producerIndex.get();
+        return (int) Math.min(capacity(), Math.max(0, produced - consumed));
+    }
+
+    @Nullable
+    private E relaxedPoll() {
+        final long index = consumerIndex.get();
+        final int offset = offset(index);
+        final E e = buffer.get(offset);
+        if (null != e) {
+            buffer.lazySet(offset, null);
+            consumerIndex.lazySet(index + 1);
+        }
+        return e;
+    }
+
+    private void idle(final long remainingNanos) {
+        switch (waitStrategy) {
+            case PARK:
+                parkedConsumer = Thread.currentThread();
+                // Having advertised that we're about to park, check again: a producer
+                // that published (or woke us) in the meantime may not have seen us.
+                if (isEmpty() && !wakeRequested) {
+                    LockSupport.parkNanos(this, remainingNanos);
+                }
+                parkedConsumer = null;
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case SPIN:
+            default:
+                // Nothing to do; just try again.
+        }
+    }
+
+    private int offset(final long index) {
+        return (int) index & mask;
+    }
+}
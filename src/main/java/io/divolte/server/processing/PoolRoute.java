@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.util.Objects;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * The way into a {@link ProcessingPool} for items bound for one of its destinations.
+ * <p>
+ * A pool can serve several destinations, such as the topics of several sinks. Items
+ * enqueued through a route have its destination index as their source identifier, so
+ * that the pool's processors can tell where each item needs to go.
+ *
+ * @param <E> the type of item processed by the pool.
+ */
+@ParametersAreNonnullByDefault
+public final class PoolRoute<E> {
+    public final ProcessingPool<?, E> pool;
+    public final int destination;
+
+    public PoolRoute(final ProcessingPool<?, E> pool, final int destination) {
+        this.pool = Objects.requireNonNull(pool);
+        this.destination = destination;
+    }
+
+    /**
+     * Queue an item for processing by the pool, bound for this route's destination.
+     *
+     * @param item the item to process.
+     * @return <code>true</code> if the item was queued, or <code>false</code> if it was dropped
+     *         because there was no space for it.
+     */
+    public boolean enqueue(final Item<E> item) {
+        return pool.enqueue(item.sourceId == destination ? item : Item.withCopiedAffinity(destination, item, item.payload));
+    }
+
+    /**
+     * Queue an item for processing by the pool, bound for this route's destination, waiting
+     * for space if there is none.
+     *
+     * @param item the item to process.
+     * @throws InterruptedException if interrupted while waiting for space.
+     * @see ProcessingPool#put(Item)
+     */
+    public void put(final Item<E> item) throws InterruptedException {
+        pool.put(item.sourceId == destination ? item : Item.withCopiedAffinity(destination, item, item.payload));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("pool", pool)
+                .add("destination", destination)
+                .toString();
+    }
+}
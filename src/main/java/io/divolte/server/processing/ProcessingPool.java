@@ -18,27 +18,40 @@ package io.divolte.server.processing;
 
 import static io.divolte.server.processing.ItemProcessor.ProcessingDirective.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.divolte.server.processing.ItemProcessor.ProcessingDirective;
@@ -47,117 +60,344 @@ import io.divolte.server.processing.ItemProcessor.ProcessingDirective;
 public class ProcessingPool<T extends ItemProcessor<E>, E> {
     private static final Logger logger = LoggerFactory.getLogger(ProcessingPool.class);
 
-    private static final int MAX_BATCH_SIZE = 128;
+    private static final int DEFAULT_BATCH_SIZE = 128;
+
+    private static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofHours(1);
+    private static final Duration ABANDON_TIMEOUT = Duration.ofSeconds(10);
+    private static final long MAX_HEARTBEAT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // How often to check for space when waiting to enqueue an item.
+    private static final long PUT_RETRY_MILLIS = 10;
 
     private final ExecutorService executorService;
-    private final List<BlockingQueue<Item<E>>> queues;
+    private final List<ItemQueue<Item<E>>> queues;
+    private final List<AdaptiveBatchSize> batchSizes;
+    private final Optional<ObjectName> mbeanName;
 
     private volatile boolean running;
+    private volatile boolean abandoned;
+    private final Queue<Item<E>> abandonedItems = new ConcurrentLinkedQueue<>();
 
     private final Supplier<T> processorSupplier;
 
+    private final String threadBaseName;
+    private final ByteBudget byteBudget;
+
+    public ProcessingPool(
+            final int numThreads,
+            final int maxQueueSize,
+            final ItemQueueFactory queueFactory,
+            final String threadBaseName,
+            final Supplier<T> processorSupplier) {
+        this(numThreads, maxQueueSize, queueFactory, ByteBudget.unlimited(), ignored -> 0, threadBaseName, processorSupplier);
+    }
+
+    public ProcessingPool(
+            final int numThreads,
+            final int maxQueueSize,
+            final ItemQueueFactory queueFactory,
+            final ByteBudget byteBudget,
+            final ToIntFunction<? super E> itemSize,
+            final String threadBaseName,
+            final Supplier<T> processorSupplier) {
+        this(numThreads, maxQueueSize, queueFactory, byteBudget, itemSize, Optional.empty(), threadBaseName, processorSupplier);
+    }
+
+    public ProcessingPool(
+            final int numThreads,
+            final int maxQueueSize,
+            final ItemQueueFactory queueFactory,
+            final ByteBudget byteBudget,
+            final ToIntFunction<? super E> itemSize,
+            final Optional<SpillSettings<E>> spillSettings,
+            final String threadBaseName,
+            final Supplier<T> processorSupplier) {
+        this(numThreads, maxQueueSize, queueFactory, byteBudget, itemSize, spillSettings,
+             BatchSettings.fixed(DEFAULT_BATCH_SIZE), threadBaseName, processorSupplier);
+    }
 
     public ProcessingPool(
             final int numThreads,
             final int maxQueueSize,
+            final ItemQueueFactory queueFactory,
+            final ByteBudget byteBudget,
+            final ToIntFunction<? super E> itemSize,
+            final Optional<SpillSettings<E>> spillSettings,
+            final BatchSettings batchSettings,
             final String threadBaseName,
             final Supplier<T> processorSupplier) {
 
         running = true;
 
         this.processorSupplier = processorSupplier;
+        this.threadBaseName = threadBaseName;
+        this.byteBudget = byteBudget;
 
         @SuppressWarnings("PMD.AvoidThreadGroup")
         final ThreadGroup threadGroup = new ThreadGroup(threadBaseName + " group");
         final ThreadFactory factory = createThreadFactory(threadGroup, threadBaseName + " - %d");
         executorService = Executors.newFixedThreadPool(numThreads, factory);
 
-        this.queues = Stream.<ArrayBlockingQueue<Item<E>>>
-                generate(() -> new ArrayBlockingQueue<>(maxQueueSize))
-                .limit(numThreads)
+        this.queues = IntStream.range(0, numThreads)
+                .mapToObj(i -> spillQueue(boundQueue(queueFactory.create(maxQueueSize), byteBudget, itemSize),
+                                          spillSettings, threadBaseName, i, numThreads))
                 .collect(Collectors.toCollection(() -> new ArrayList<>(numThreads)));
 
-        queues.forEach((queue) -> scheduleQueueReader(
+        this.batchSizes = queues.stream()
+                                .map(ignored -> new AdaptiveBatchSize(batchSettings))
+                                .collect(Collectors.toList());
+
+        IntStream.range(0, numThreads).forEach(i -> scheduleQueueReader(
                 executorService,
-                queue,
+                queues.get(i),
+                batchSizes.get(i),
                 processorSupplier.get()));
 
+        mbeanName = registerMBean(threadBaseName, new ProcessingPoolMXBean() {
+            @Override
+            public double getBatchSize() {
+                return batchSize();
+            }
+
+            @Override
+            public double getSaturation() {
+                return saturation();
+            }
+        });
     }
 
-    public void enqueue(final Item<E> item) {
-        final BlockingQueue<Item<E>> queue = queues.get(item.affinityHash % queues.size());
+    /**
+     * Queue an item for processing.
+     *
+     * @param item the item to process.
+     * @return <code>true</code> if the item was queued, or <code>false</code> if it was dropped
+     *         because there was no space for it.
+     */
+    public boolean enqueue(final Item<E> item) {
+        final ItemQueue<Item<E>> queue = queues.get(item.affinityHash % queues.size());
         if (!queue.offer(item)) {
             logger.warn("Failed to enqueue item. Dropping event.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue an item for processing, waiting for space if there is none. This is only for
+     * use while nothing else is competing for the queues, otherwise this can wait indefinitely.
+     *
+     * @param item the item to process.
+     * @throws InterruptedException if interrupted while waiting for space.
+     */
+    public void put(final Item<E> item) throws InterruptedException {
+        final ItemQueue<Item<E>> queue = queues.get(item.affinityHash % queues.size());
+        while (!queue.offer(item)) {
+            TimeUnit.MILLISECONDS.sleep(PUT_RETRY_MILLIS);
         }
     }
 
+    /**
+     * Estimate how full this pool is. This is the highest fraction in use of either the
+     * capacity of any of its queues, or its byte budget.
+     *
+     * @return the saturation of the pool, between 0 and 1.
+     */
+    public double saturation() {
+        double saturation = byteBudget.utilization();
+        for (final ItemQueue<Item<E>> queue : queues) {
+            saturation = Math.max(saturation, (double) queue.size() / queue.capacity());
+        }
+        // Queues that spill to disk can hold more than their capacity.
+        return Math.min(1.0, saturation);
+    }
+
+    /**
+     * @return the current batch size, averaged over the threads of the pool.
+     */
+    public double batchSize() {
+        return batchSizes.stream().mapToInt(AdaptiveBatchSize::size).average().orElse(0.0);
+    }
+
     public void stop() {
+        final List<Item<E>> remaining = stop(DEFAULT_DRAIN_TIMEOUT);
+        if (!remaining.isEmpty()) {
+            logger.warn("{}: Discarding {} items that were not processed in time.", threadBaseName, remaining.size());
+        }
+    }
+
+    /**
+     * Stop the pool, waiting for a limited time for the items that are still queued
+     * to be processed. Once the timeout has elapsed the processors are abandoned, and
+     * the items they did not get to are handed back to the caller.
+     * <p>
+     * Items that were in the middle of being processed when the processors were
+     * abandoned may be both processed and returned. Items that were spilled to disk
+     * are not returned; they are left on disk for the pool to pick up when it is next
+     * started.
+     *
+     * @param drainTimeout how long to wait for the queues to drain.
+     * @return the items that were not processed before the timeout elapsed.
+     */
+    public List<Item<E>> stop(final Duration drainTimeout) {
+        final List<Item<E>> remaining = new ArrayList<>();
         try {
             running = false;
             executorService.shutdown();
-            executorService.awaitTermination(1, TimeUnit.HOURS);
+            if (!executorService.awaitTermination(drainTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.warn("{}: Queues not drained within {}; abandoning processors.", threadBaseName, drainTimeout);
+                abandoned = true;
+                executorService.shutdownNow();
+            }
+            if (executorService.awaitTermination(ABANDON_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                remaining.addAll(abandonedItems);
+                // The consumers have all stopped, so it's safe to drain their queues from here.
+                queues.forEach(queue -> queue.drainInMemoryTo(remaining));
+            } else {
+                logger.error("{}: Processors did not stop; unable to recover queued items.", threadBaseName);
+            }
+            queues.forEach(ItemQueue::close);
+            mbeanName.ifPresent(ProcessingPool::unregisterMBean);
+            if (0 < byteBudget.rejectedBytes()) {
+                logger.warn("{}: {} bytes of events did not fit in the queue byte budget.",
+                            threadBaseName, byteBudget.rejectedBytes());
+            }
         } catch (final InterruptedException e) {
             logger.warn("Received an exception while stopping the executor service", e);
             Thread.currentThread().interrupt();
         }
+        return remaining;
     }
 
-    private void scheduleQueueReader(final ExecutorService es, final BlockingQueue<Item<E>> queue, final ItemProcessor<E> processor) {
-        CompletableFuture.runAsync(microBatchingQueueDrainerWithHeartBeat(queue, processor), es).whenComplete((voidValue, error) -> {
+    /**
+     * @return the budget that limits the number of bytes queued in this pool.
+     */
+    public ByteBudget byteBudget() {
+        return byteBudget;
+    }
+
+    private void scheduleQueueReader(final ExecutorService es,
+                                     final ItemQueue<Item<E>> queue,
+                                     final AdaptiveBatchSize batchSize,
+                                     final ItemProcessor<E> processor) {
+        CompletableFuture.runAsync(microBatchingQueueDrainerWithHeartBeat(queue, batchSize, processor), es).whenComplete((voidValue, error) -> {
             processor.cleanup();
 
             // In case the reader for some reason escapes its loop with an
             // exception, log any uncaught exceptions and reschedule
             if (error != null && running) {
                 logger.warn("Uncaught exception in incoming queue reader thread.", error);
-                scheduleQueueReader(es, queue, processorSupplier.get());
+                scheduleQueueReader(es, queue, batchSize, processorSupplier.get());
             }
         });
     }
 
     private Runnable microBatchingQueueDrainerWithHeartBeat(
-            final BlockingQueue<Item<E>> queue,
+            final ItemQueue<Item<E>> queue,
+            final AdaptiveBatchSize batchSize,
             final ItemProcessor<E> processor) {
         return () -> {
             // The default item processor implementation removes items one-by-one as they
             // are processed. Using a Queue ensures that this is efficient.
-            final Queue<Item<E>> batch = new ArrayDeque<>(MAX_BATCH_SIZE);
-
-            while (!queue.isEmpty() || running) {
-                ProcessingDirective directive;
-                do {
-                    queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
-                    if (batch.isEmpty()) {
-                        // If the batch was empty, block on the queue for some time
-                        // until something is available.
-                        directive = Optional.ofNullable(pollQuietly(queue, 1, TimeUnit.SECONDS))
-                                            .map((p) -> {
-                                                batch.add(p);
-                                                return CONTINUE;
-                                            })
-                                            .orElseGet(processor::heartbeat);
-                    } else {
-                        directive = processor.process(batch);
-                    }
-                } while (directive == CONTINUE && running);
+            final Queue<Item<E>> batch = new ArrayDeque<>(batchSize.size());
+
+            try {
+                while ((!queue.isEmpty() || running) && !abandoned) {
+                    ProcessingDirective directive;
+                    do {
+                        // The batch can be larger than its size if the size shrank while items were left over.
+                        queue.drainTo(batch, Math.max(0, batchSize.size() - batch.size()));
+                        if (batch.isEmpty()) {
+                            // If the batch was empty, block on the queue until something is
+                            // available or the processor is due a heartbeat.
+                            directive = Optional.ofNullable(pollQuietly(queue, nanosUntilHeartbeat(processor), TimeUnit.NANOSECONDS))
+                                                .map((p) -> {
+                                                    batch.add(p);
+                                                    return CONTINUE;
+                                                })
+                                                .orElseGet(processor::heartbeat);
+                        } else {
+                            final long start = System.nanoTime();
+                            directive = processor.process(batch);
+                            batchSize.update(System.nanoTime() - start, queue.size());
+                        }
+                    } while (directive == CONTINUE && running);
 
-                while (directive == PAUSE && running) {
-                    sleepOneSecond();
-                    directive = processor.heartbeat();
+                    while (directive == PAUSE && running) {
+                        // Processors can unpark this thread to be given their heartbeat early.
+                        LockSupport.parkNanos(nanosUntilHeartbeat(processor));
+                        directive = processor.heartbeat();
+                    }
+                }
+            } finally {
+                // If we're stopping, anything we didn't get to is handed back by the pool.
+                if (!running) {
+                    abandonedItems.addAll(batch);
                 }
             }
         };
     }
 
-    private static void sleepOneSecond() {
+    private static <E> ItemQueue<Item<E>> boundQueue(final ItemQueue<Item<E>> queue,
+                                                     final ByteBudget byteBudget,
+                                                     final ToIntFunction<? super E> itemSize) {
+        // All queues of a pool share its budget; an unlimited budget doesn't need tracking at all.
+        return byteBudget.isUnlimited()
+                ? queue
+                : new ByteBoundedItemQueue<>(queue, byteBudget, item -> itemSize.applyAsInt(item.payload));
+    }
+
+    private static <E> ItemQueue<Item<E>> spillQueue(final ItemQueue<Item<E>> queue,
+                                                     final Optional<SpillSettings<E>> spillSettings,
+                                                     final String poolName,
+                                                     final int index,
+                                                     final int numQueues) {
+        return spillSettings.<ItemQueue<Item<E>>>map(settings -> {
+            // Each queue has its own directory; these need to be stable between restarts so
+            // that anything left behind is picked up again.
+            final String poolDirectory = CharMatcher.inRange('a', 'z')
+                                                    .or(CharMatcher.inRange('0', '9'))
+                                                    .negate()
+                                                    .trimAndCollapseFrom(poolName.toLowerCase(Locale.ROOT), '-');
+            final Path directory = settings.directory.resolve(poolDirectory).resolve(Integer.toString(index));
+            try {
+                final SpillLog log = new SpillLog(directory, settings.segmentSize, settings.maxSize / numQueues);
+                return new SpillingItemQueue<>(queue, settings.itemCodec(), log);
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Could not open spill directory: " + directory, e);
+            }
+        }).orElse(queue);
+    }
+
+    private static Optional<ObjectName> registerMBean(final String poolName, final ProcessingPoolMXBean mbean) {
         try {
-            Thread.sleep(1000);
-        } catch(final InterruptedException e) {
-            Thread.currentThread().interrupt();
+            final ObjectName name = new ObjectName("io.divolte.server:type=ProcessingPool,name=" + ObjectName.quote(poolName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(mbean, ProcessingPoolMXBean.class, true), name);
+            return Optional.of(name);
+        } catch (final InstanceAlreadyExistsException e) {
+            // Only happens if several servers run within the same JVM, as during testing.
+            logger.debug("Metrics for pool already registered: {}", poolName);
+            return Optional.empty();
+        } catch (final JMException e) {
+            logger.warn("Unable to register metrics for pool: " + poolName, e);
+            return Optional.empty();
         }
     }
 
-    private static <E> E pollQuietly(final BlockingQueue<E> queue, final long timeout, final TimeUnit unit) {
+    private static void unregisterMBean(final ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (final JMException e) {
+            logger.warn("Unable to unregister metrics: " + name, e);
+        }
+    }
+
+    private static long nanosUntilHeartbeat(final ItemProcessor<?> processor) {
+        final OptionalLong deadline = processor.nextHeartbeat();
+        return deadline.isPresent()
+                ? Math.max(0, Math.min(MAX_HEARTBEAT_INTERVAL_NANOS, deadline.getAsLong() - System.nanoTime()))
+                : MAX_HEARTBEAT_INTERVAL_NANOS;
+    }
+
+    private static <E> E pollQuietly(final ItemQueue<E> queue, final long timeout, final TimeUnit unit) {
         try {
             return queue.poll(timeout, unit);
         } catch (final InterruptedException e) {
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+/**
+ * Management interface through which each {@link ProcessingPool} exports its metrics.
+ */
+public interface ProcessingPoolMXBean {
+    /**
+     * @return the current batch size, averaged over the threads of the pool.
+     */
+    double getBatchSize();
+
+    /**
+     * @return the saturation of the pool, between 0 and 1.
+     */
+    double getSaturation();
+}
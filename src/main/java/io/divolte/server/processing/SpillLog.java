@@ -0,0 +1,329 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A FIFO log of records, stored in a directory as a series of memory-mapped segment files.
+ * <p>
+ * Records are appended to the newest segment; when it is full a new segment is started.
+ * Records are read from the oldest segment, which is deleted once it has been fully read.
+ * Each record is stored as:
+ * <ol>
+ *     <li>its length, as a 4-byte integer;</li>
+ *     <li>the CRC-32 of its contents, as a 4-byte integer;</li>
+ *     <li>its contents.</li>
+ * </ol>
+ * The length is written last, so a record that was only partly written before a crash
+ * reads as the end of the segment. (Segments are created zero-filled.) When a segment is
+ * full, a length of -1 marks its end. When a record is read, its length is replaced by
+ * its bitwise complement; this marks it as read, without losing track of where the next
+ * record starts.
+ * <p>
+ * Segments left behind by a previous log in the same directory are read first, starting
+ * after the records that were already marked as read. Their records are verified against
+ * their checksums when the log is opened; reading a segment stops at the first record
+ * that is corrupt. (Read markers reach the disk along with the rest of the segment, so
+ * if the machine itself crashes some records may still be read again.)
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class SpillLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SpillLog.class);
+
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final int HEADER_SIZE = 8;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxSize;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long nextSequence;
+    private long size;
+    private long records;
+
+    SpillLog(final Path directory, final int segmentSize, final long maxSize) throws IOException {
+        Preconditions.checkArgument(0 < segmentSize, "Segment size must be positive: %s", segmentSize);
+        this.directory = Objects.requireNonNull(directory);
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * @return the number of records in the log.
+     */
+    long records() {
+        return records;
+    }
+
+    boolean isEmpty() {
+        return 0 == records;
+    }
+
+    /**
+     * Append a record to the log.
+     *
+     * @param length    the length of the record.
+     * @param writer    writes the contents of the record to the supplied buffer, which
+     *                  has exactly <code>length</code> bytes remaining.
+     * @return <code>true</code> if the record was appended, or <code>false</code> if this would
+     *         exceed the maximum size of the log.
+     */
+    boolean append(final int length, final Consumer<ByteBuffer> writer) throws IOException {
+        final int recordSize = HEADER_SIZE + length;
+        Segment tail = segments.peekLast();
+        if (null == tail || tail.sealed || tail.capacity - tail.writePosition < recordSize) {
+            // A record that is larger than a segment gets a segment of its own.
+            final int capacity = Math.max(segmentSize, recordSize);
+            if (maxSize - size < capacity) {
+                return false;
+            }
+            if (null != tail && !tail.sealed) {
+                seal(tail);
+            }
+            tail = createSegment(capacity);
+        }
+
+        final ByteBuffer buffer = tail.map();
+        final ByteBuffer contents = slice(buffer, tail.writePosition + HEADER_SIZE, length);
+        writer.accept(contents.duplicate());
+        buffer.putInt(tail.writePosition + 4, checksum(contents));
+        buffer.putInt(tail.writePosition, length);
+
+        tail.writePosition += recordSize;
+        ++tail.records;
+        ++records;
+        return true;
+    }
+
+    /**
+     * Remove the oldest record from the log.
+     *
+     * @param reader    reads the record from the supplied buffer. The buffer is only valid
+     *                  until the reader returns.
+     * @return the result of the reader, or <code>null</code> if the log is empty.
+     */
+    @Nullable
+    <T> T poll(final Function<ByteBuffer, T> reader) throws IOException {
+        Segment head;
+        while (null != (head = segments.peekFirst())) {
+            if (0 < head.records) {
+                final ByteBuffer buffer = head.map();
+                final int length = buffer.getInt(head.readPosition);
+                final int checksum = buffer.getInt(head.readPosition + 4);
+                final ByteBuffer contents = slice(buffer, head.readPosition + HEADER_SIZE, length);
+                buffer.putInt(head.readPosition, ~length);
+                head.readPosition += HEADER_SIZE + length;
+                --head.records;
+                --records;
+                if (checksum(contents) == checksum) {
+                    return reader.apply(contents);
+                }
+                logger.error("Skipping corrupt record in spill segment: {}", head.path);
+            } else if (head.sealed || head != segments.peekLast()) {
+                deleteSegment(segments.removeFirst());
+            } else {
+                // The segment being written is empty; keep it around for further records.
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isEmpty()) {
+            while (!segments.isEmpty()) {
+                deleteSegment(segments.removeFirst());
+            }
+        } else {
+            for (final Segment segment : segments) {
+                if (!segment.sealed) {
+                    seal(segment);
+                } else if (segment == segments.peekFirst()) {
+                    // Make sure the read markers of the segment being read reach the disk.
+                    segment.map().force();
+                }
+                segment.unmap();
+            }
+            logger.info("Left {} spilled records in: {}", records, directory);
+        }
+    }
+
+    private void recover() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        // Segments are named so that they sort in the order they were created.
+        Collections.sort(paths);
+        for (final Path path : paths) {
+            final String name = path.getFileName().toString();
+            nextSequence = Math.max(nextSequence, 1 + Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            final Segment segment = new Segment(path, (int) Files.size(path));
+            scan(segment);
+            segment.sealed = true;
+            segment.unmap();
+            if (0 < segment.records) {
+                segments.addLast(segment);
+                size += segment.capacity;
+                records += segment.records;
+            } else {
+                Files.delete(path);
+            }
+        }
+        if (0 < records) {
+            logger.info("Recovered {} spilled records from: {}", records, directory);
+        }
+    }
+
+    private void scan(final Segment segment) throws IOException {
+        final ByteBuffer buffer = segment.map();
+        int position = 0;
+        while (HEADER_SIZE <= segment.capacity - position) {
+            final int marker = buffer.getInt(position);
+            if (marker < END_OF_SEGMENT && 0 == segment.records) {
+                // A record that was already read; these only ever precede the unread records.
+                final int length = ~marker;
+                if (segment.capacity - position - HEADER_SIZE < length) {
+                    break;
+                }
+                position += HEADER_SIZE + length;
+                segment.readPosition = position;
+                continue;
+            }
+            final int length = marker;
+            if (length <= 0 || segment.capacity - position - HEADER_SIZE < length) {
+                break;
+            }
+            if (checksum(slice(buffer, position + HEADER_SIZE, length)) != buffer.getInt(position + 4)) {
+                logger.warn("Corrupt record in spill segment {} at offset {}; ignoring the rest of the segment.",
+                            segment.path, position);
+                break;
+            }
+            position += HEADER_SIZE + length;
+            ++segment.records;
+        }
+        segment.writePosition = position;
+    }
+
+    private Segment createSegment(final int capacity) throws IOException {
+        final Path path = directory.resolve(String.format("%020d%s", nextSequence++, SEGMENT_SUFFIX));
+        try (final RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+        }
+        final Segment segment = new Segment(path, capacity);
+        segments.addLast(segment);
+        size += capacity;
+        return segment;
+    }
+
+    private void seal(final Segment segment) throws IOException {
+        final MappedByteBuffer buffer = segment.map();
+        if (4 <= segment.capacity - segment.writePosition) {
+            buffer.putInt(segment.writePosition, END_OF_SEGMENT);
+        }
+        buffer.force();
+        segment.sealed = true;
+        // Only the segment being read needs to stay mapped.
+        if (segment != segments.peekFirst()) {
+            segment.unmap();
+        }
+    }
+
+    private void deleteSegment(final Segment segment) throws IOException {
+        segment.unmap();
+        Files.deleteIfExists(segment.path);
+        size -= segment.capacity;
+    }
+
+    private int checksum(final ByteBuffer contents) {
+        crc.reset();
+        crc.update(contents.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset).limit(offset + length);
+        return duplicate.slice();
+    }
+
+    @ParametersAreNonnullByDefault
+    private static final class Segment {
+        final Path path;
+        final int capacity;
+        int writePosition;
+        int readPosition;
+        int records;
+        boolean sealed;
+        @Nullable
+        private MappedByteBuffer buffer;
+
+        Segment(final Path path, final int capacity) {
+            this.path = Objects.requireNonNull(path);
+            this.capacity = capacity;
+        }
+
+        MappedByteBuffer map() throws IOException {
+            if (null == buffer) {
+                try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                }
+            }
+            return buffer;
+        }
+
+        void unmap() {
+            // Mappings can't be released explicitly; dropping the reference lets the GC do it.
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Settings for spilling items that don't fit in the queues of a {@link ProcessingPool} to local disk.
+ *
+ * @param <E> the type of item processed by the pool.
+ */
+@ParametersAreNonnullByDefault
+public final class SpillSettings<E> {
+    public final Path directory;
+    public final int segmentSize;
+    public final long maxSize;
+    public final ItemCodec<E> codec;
+    public final Optional<ImmutableList<String>> destinations;
+
+    /**
+     * @param directory     the directory below which the pool stores its spilled items.
+     * @param segmentSize   the size of each file to which items are appended.
+     * @param maxSize       the maximum number of bytes of disk space that the pool may use.
+     * @param codec         the codec used to store items on disk.
+     */
+    public SpillSettings(final Path directory, final int segmentSize, final long maxSize, final ItemCodec<E> codec) {
+        this(directory, segmentSize, maxSize, codec, Optional.empty());
+    }
+
+    private SpillSettings(final Path directory,
+                          final int segmentSize,
+                          final long maxSize,
+                          final ItemCodec<E> codec,
+                          final Optional<ImmutableList<String>> destinations) {
+        Preconditions.checkArgument(0 < segmentSize, "Segment size must be positive: %s", segmentSize);
+        Preconditions.checkArgument(0 < maxSize, "Maximum size must be positive: %s", maxSize);
+        this.directory = Objects.requireNonNull(directory);
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.codec = Objects.requireNonNull(codec);
+        this.destinations = Objects.requireNonNull(destinations);
+    }
+
+    /**
+     * Settings for a pool that serves several destinations, such as the sinks sharing it. Spilled
+     * items then record the name of their destination rather than its index, so that items left
+     * on disk still reach the right destination if the destinations change before they are read.
+     *
+     * @param destinations  the names of the destinations of the pool, by index.
+     * @return these settings, for a pool with the given destinations.
+     */
+    public SpillSettings<E> withDestinations(final ImmutableList<String> destinations) {
+        return new SpillSettings<>(directory, segmentSize, maxSize, codec, Optional.of(destinations));
+    }
+
+    ItemCodec<Item<E>> itemCodec() {
+        return destinations.map(names -> Item.codec(codec, names))
+                           .orElseGet(() -> Item.codec(codec));
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("directory", directory)
+                .add("segmentSize", segmentSize)
+                .add("maxSize", maxSize)
+                .add("destinations", destinations)
+                .toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A queue that appends elements to a {@link SpillLog} on local disk when the queue it
+ * wraps is full.
+ * <p>
+ * Once an element has been spilled, all subsequent elements are also spilled until the
+ * consumer has caught up with the log. The consumer always drains the in-memory queue
+ * before reading from the log, so elements are consumed in the order they were offered.
+ *
+ * @param <E> the type of element held in the queue.
+ */
+@ParametersAreNonnullByDefault
+final class SpillingItemQueue<E> implements ItemQueue<E> {
+    private static final Logger logger = LoggerFactory.getLogger(SpillingItemQueue.class);
+
+    private final ItemQueue<E> queue;
+    private final ItemCodec<E> codec;
+    // Guards itself, and spilling transitions.
+    private final SpillLog log;
+
+    private volatile boolean spilling;
+
+    SpillingItemQueue(final ItemQueue<E> queue, final ItemCodec<E> codec, final SpillLog log) {
+        this.queue = Objects.requireNonNull(queue);
+        this.codec = Objects.requireNonNull(codec);
+        this.log = Objects.requireNonNull(log);
+        // Anything left by a previous log must be consumed before anything new.
+        this.spilling = !log.isEmpty();
+    }
+
+    @Override
+    public boolean offer(final E e) {
+        if (!spilling && queue.offer(e)) {
+            return true;
+        }
+        synchronized (log) {
+            try {
+                if (!log.append(codec.encodedSize(e), buffer -> codec.encode(e, buffer))) {
+                    return false;
+                }
+            } catch (final IOException ioe) {
+                logger.error("Error while spilling item to disk.", ioe);
+                return false;
+            }
+            if (!spilling) {
+                logger.info("Queue is full; spilling items to disk.");
+                spilling = true;
+            }
+        }
+        // The consumer may be waiting on the in-memory queue, which won't see this item.
+        queue.wakeConsumer();
+        return true;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements) {
+        int count = queue.drainTo(c, maxElements);
+        if (count < maxElements && spilling) {
+            // The in-memory queue is empty, so it's the turn of the spilled elements.
+            synchronized (log) {
+                try {
+                    // The codec may decode an item as null, which means it must be discarded.
+                    Optional<E> e;
+                    int discarded = 0;
+                    while (count < maxElements && null != (e = log.poll(buffer -> Optional.ofNullable(codec.decode(buffer))))) {
+                        if (e.isPresent()) {
+                            c.add(e.get());
+                            ++count;
+                        } else {
+                            ++discarded;
+                        }
+                    }
+                    if (0 < discarded) {
+                        logger.warn("Discarded {} spilled items that can no longer be processed.", discarded);
+                    }
+                } catch (final IOException ioe) {
+                    throw new UncheckedIOException("Error while reading spilled items from disk.", ioe);
+                }
+                if (log.isEmpty()) {
+                    logger.info("Finished reading spilled items from disk.");
+                    spilling = false;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int drainInMemoryTo(final Collection<? super E> c) {
+        // Spilled items stay in the log, which is left on disk when we are closed.
+        return queue.drainInMemoryTo(c);
+    }
+
+    @Nullable
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        // Spilling producers wake us from the in-memory queue, after which the log is checked again.
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        do {
+            if (spilling) {
+                final List<E> drained = new ArrayList<>(1);
+                if (0 < drainTo(drained, 1)) {
+                    return drained.get(0);
+                }
+            }
+            final E e = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (null != e) {
+                return e;
+            }
+            remaining = deadline - System.nanoTime();
+        } while (0 < remaining);
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !spilling && queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        final long spilled;
+        synchronized (log) {
+            spilled = log.records();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, queue.size() + spilled);
+    }
+
+    @Override
+    public int capacity() {
+        return queue.capacity();
+    }
+
+    @Override
+    public void close() {
+        synchronized (log) {
+            try {
+                log.close();
+            } catch (final IOException ioe) {
+                logger.warn("Error while closing spilled items on disk.", ioe);
+            }
+        }
+        queue.close();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+/**
+ * How the consumer of a {@link MpscRingBufferItemQueue} waits for items while the
+ * queue is empty.
+ */
+public enum WaitStrategy {
+    /**
+     * Park the consumer thread until a producer signals that an item is available.
+     * This uses no CPU while idle, at the cost of some latency when waking up.
+     */
+    PARK,
+    /**
+     * Busy-spin on the queue. This gives the lowest latency, but occupies a CPU
+     * core per consumer thread even while idle.
+     */
+    SPIN,
+    /**
+     * Spin on the queue, yielding the CPU to other threads between attempts.
+     */
+    YIELD
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.recordmapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.Script;
+
+/**
+ * A mapping script that has been compiled, ready to be applied to mappings.
+ * <p>
+ * Compiling a mapping script is expensive, so this should happen once per script. The
+ * compiled script can then be applied to a new {@link DslRecordMapping} for each mapper
+ * thread; this only involves executing the script against the mapping.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class CompiledMappingScript {
+    private final static Logger logger = LoggerFactory.getLogger(CompiledMappingScript.class);
+
+    private final String groovyFile;
+    private final Class<? extends Script> scriptClass;
+
+    private CompiledMappingScript(final String groovyFile, final Class<? extends Script> scriptClass) {
+        this.groovyFile = Objects.requireNonNull(groovyFile);
+        this.scriptClass = Objects.requireNonNull(scriptClass);
+    }
+
+    public static CompiledMappingScript compile(final String groovyFile) {
+        final CompilerConfiguration compilerConfig = new CompilerConfiguration();
+        compilerConfig.setScriptBaseClass("io.divolte.groovyscript.MappingBase");
+
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            final GroovyCodeSource groovySource = new GroovyCodeSource(new File(groovyFile), StandardCharsets.UTF_8.name());
+            @SuppressWarnings("resource")
+            final GroovyClassLoader classLoader = new GroovyClassLoader(CompiledMappingScript.class.getClassLoader(), compilerConfig);
+            final Class<?> parsedClass = classLoader.parseClass(groovySource);
+            final Class<? extends Script> scriptClass = parsedClass.asSubclass(Script.class);
+            logger.info("Compiled mapping script {} in {} ms.", groovyFile, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            return new CompiledMappingScript(groovyFile, scriptClass);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Could not load mapping script file: " + groovyFile, e);
+        }
+    }
+
+    /**
+     * Run the script against a mapping, populating it with the actions the script defines.
+     *
+     * @param mapping the (fresh) mapping to which the script should be applied.
+     */
+    void applyTo(final DslRecordMapping mapping) {
+        final Binding binding = new Binding();
+        binding.setProperty("mapping", mapping);
+        InvokerHelper.createScript(scriptClass, binding).run();
+    }
+
+    @Override
+    public String toString() {
+        return groovyFile;
+    }
+}
@@ -16,76 +16,106 @@
 
 package io.divolte.server.recordmapping;
 
-import com.google.common.collect.Maps;
-import groovy.lang.Binding;
-import groovy.lang.GroovyCodeSource;
-import groovy.lang.GroovyShell;
 import io.divolte.server.DivolteEvent;
-import io.divolte.server.config.ValidatedConfiguration;
+import io.divolte.server.RequestSnapshot;
 import io.divolte.server.ip2geo.LookupService;
 import io.divolte.server.recordmapping.DslRecordMapping.MappingAction;
 import io.divolte.server.recordmapping.DslRecordMapping.MappingAction.MappingResult;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericRecordBuilder;
-import org.codehaus.groovy.control.CompilerConfiguration;
+import org.apache.avro.io.Encoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.NotThreadSafe;
-import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+/**
+ * Maps events to records according to a mapping script.
+ *
+ * A mapper holds mutable state for the event it is mapping: the field values produced
+ * so far and the values of memoizing producers are kept in instance fields that are
+ * reused from one event to the next. A mapper must therefore only be used by a single
+ * thread; callers that map events on several threads need a mapper per thread. The
+ * producers of a mapping also remember their slot in the memoization context of the
+ * mapper using them, so mappers on different threads must not share a mapping either.
+ */
 @ParametersAreNonnullByDefault
 @NotThreadSafe
 public class DslRecordMapper {
     private final static Logger logger = LoggerFactory.getLogger(DslRecordMapper.class);
 
-    private final Schema schema;
     private final List<DslRecordMapping.MappingAction> actions;
+    private final RequestSnapshot.Capture requestCapture;
+    private final FieldValues values;
+    // Memoized producer values for the current event; cleared before each event is mapped.
+    private final MemoizationContext context = new MemoizationContext();
+    private final FieldValuesEncoder encoder;
+
+    public DslRecordMapper(final String groovyFile,
+                           final Schema schema,
+                           final UserAgentParserAndCache uaParser,
+                           final Optional<LookupService> geoipService) {
+        this(CompiledMappingScript.compile(groovyFile), schema, uaParser, geoipService);
+    }
 
-    public DslRecordMapper(final ValidatedConfiguration vc, final String groovyFile, final Schema schema, final Optional<LookupService> geoipService) {
-        this.schema = Objects.requireNonNull(schema);
-
-        logger.info("Using mapping from script file: {}", groovyFile);
-
-        try {
-            final DslRecordMapping mapping = new DslRecordMapping(schema, new UserAgentParserAndCache(vc), geoipService);
-
-            final GroovyCodeSource groovySource = new GroovyCodeSource(new File(groovyFile), StandardCharsets.UTF_8.name());
-
-            final CompilerConfiguration compilerConfig = new CompilerConfiguration();
-            compilerConfig.setScriptBaseClass("io.divolte.groovyscript.MappingBase");
-
-            final Binding binding = new Binding();
-            binding.setProperty("mapping", mapping);
+    public DslRecordMapper(final CompiledMappingScript mappingScript,
+                           final Schema schema,
+                           final UserAgentParserAndCache uaParser,
+                           final Optional<LookupService> geoipService) {
+        logger.debug("Using mapping from script file: {}", mappingScript);
 
-            final GroovyShell shell = new GroovyShell(binding, compilerConfig);
-            shell.evaluate(groovySource);
-            actions = mapping.actions();
-        } catch (final IOException e) {
-            throw new UncheckedIOException("Could not load mapping script file: " + groovyFile, e);
-        }
+        final DslRecordMapping mapping = new DslRecordMapping(schema, uaParser, geoipService);
+        mappingScript.applyTo(mapping);
+        actions = mapping.actions();
+        requestCapture = mapping.requestCapture();
+        values = new FieldValues(schema);
+        encoder = new FieldValuesEncoder(schema);
     }
 
     public DslRecordMapper(final Schema schema, final DslRecordMapping mapping) {
-        this.schema = schema;
         actions = mapping.actions();
+        requestCapture = mapping.requestCapture();
+        values = new FieldValues(schema);
+        encoder = new FieldValuesEncoder(schema);
+    }
+
+    /**
+     * @return the parts of a request that need to be captured for this mapper to work.
+     */
+    public RequestSnapshot.Capture requestCapture() {
+        return requestCapture;
     }
 
     public GenericRecord newRecordFromExchange(final DivolteEvent event) {
-        final GenericRecordBuilder builder = new GenericRecordBuilder(schema);
-        final Map<String,Optional<?>> context = Maps.newHashMapWithExpectedSize(20);
+        mapFields(event);
+        return values.toRecordBuilder().build();
+    }
+
+    /**
+     * Map an event and write the resulting record to an encoder, without building an
+     * intermediate {@link GenericRecord}. The bytes written are the same as if the record
+     * returned by {@link #newRecordFromExchange(DivolteEvent)} had been written with a
+     * datum writer.
+     *
+     * @param event     the event to map.
+     * @param encoder   the encoder to write the record to.
+     * @throws IOException if the encoder could not be written to.
+     */
+    public void writeRecordFromExchange(final DivolteEvent event, final Encoder encoder) throws IOException {
+        mapFields(event);
+        this.encoder.encode(values, encoder);
+    }
+
+    private void mapFields(final DivolteEvent event) {
+        values.clear();
+        context.clear();
 
         for (final Iterator<MappingAction> itr = actions.iterator();
-             itr.hasNext() && itr.next().perform(event, context, builder) == MappingResult.CONTINUE;) {
+             itr.hasNext() && itr.next().perform(event, context, values) == MappingResult.CONTINUE;) {
             // Nothing needed in here.
         }
-
-        return builder.build();
     }
 }
@@ -35,19 +35,19 @@ import com.maxmind.geoip2.model.AbstractCountryResponse;
 import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.record.*;
 import io.divolte.server.DivolteEvent;
+import io.divolte.server.RequestSnapshot;
 import io.divolte.server.ip2geo.LookupService;
 import io.divolte.server.ip2geo.LookupService.ClosedServiceException;
-import io.undertow.server.HttpServerExchange;
-import io.undertow.server.handlers.Cookie;
 import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
 import net.sf.uadetector.ReadableUserAgent;
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.Schema.Type;
-import org.apache.avro.generic.GenericRecordBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.IOException;
@@ -87,6 +87,9 @@ public final class DslRecordMapping {
     private final Optional<LookupService> geoIpService;
     private final AvroGenericRecordMapper jsonMapper = JacksonSupport.createAvroMapper();
 
+    private final Set<HttpString> referencedHeaders = new HashSet<>();
+    private final Set<String> referencedCookies = new HashSet<>();
+
     public DslRecordMapping(final Schema schema, final UserAgentParserAndCache uaParser, final Optional<LookupService> geoIpService) {
         this.schema = Objects.requireNonNull(schema);
         this.uaParser = Objects.requireNonNull(uaParser);
@@ -199,6 +202,14 @@ public final class DslRecordMapping {
         stack.getLast().add((e,c,r) -> MappingAction.MappingResult.EXIT);
     }
 
+    /*
+     * The request headers and cookies referred to by the mapping. Only these need to be
+     * captured when an event is queued for mapping.
+     */
+    RequestSnapshot.Capture requestCapture() {
+        return new RequestSnapshot.Capture(referencedHeaders, referencedCookies);
+    }
+
     /*
      * The mapping result, used by the record mapper.
      */
@@ -267,7 +278,7 @@ public final class DslRecordMapping {
     }
 
     public BooleanValueProducer duplicate() {
-        return new BooleanValueProducer("duplicate()", (e,c) -> Optional.ofNullable(e.exchange.getAttachment(DUPLICATE_EVENT_KEY)));
+        return new BooleanValueProducer("duplicate()", (e,c) -> Optional.ofNullable(e.request.getAttachment(DUPLICATE_EVENT_KEY)));
     }
 
     public ValueProducer<Long> timestamp() {
@@ -279,7 +290,7 @@ public final class DslRecordMapping {
     }
 
     public ValueProducer<String> remoteHost() {
-        return new PrimitiveValueProducer<>("remoteHost()", String.class, (e,c) -> Optional.ofNullable(e.exchange.getSourceAddress()).map(InetSocketAddress::getHostString));
+        return new PrimitiveValueProducer<>("remoteHost()", String.class, (e,c) -> e.request.sourceAddress.map(InetSocketAddress::getHostString));
     }
 
     public ValueProducer<Integer> viewportPixelWidth() {
@@ -322,10 +333,10 @@ public final class DslRecordMapping {
      * User agent mapping
      */
     public ValueProducer<String> userAgentString() {
+        referencedHeaders.add(Headers.USER_AGENT);
         return new PrimitiveValueProducer<>("userAgentString()",
                                             String.class,
-                                            (e, c) ->
-                                                    Optional.ofNullable(e.exchange.getRequestHeaders().getFirst(Headers.USER_AGENT)));
+                                            (e, c) -> e.request.firstHeader(Headers.USER_AGENT));
     }
 
     public UserAgentValueProducer userAgent() {
@@ -564,9 +575,10 @@ public final class DslRecordMapping {
      * Cookie mapping
      */
     public ValueProducer<String> cookie(final String name) {
+        referencedCookies.add(name);
         return new PrimitiveValueProducer<>("cookie(" + name + ")",
                                             String.class,
-                                            (e,c) -> Optional.ofNullable(e.exchange.getRequestCookies().get(name)).map(Cookie::getValue));
+                                            (e,c) -> e.request.cookie(name));
     }
 
     /*
@@ -648,23 +660,28 @@ public final class DslRecordMapping {
      * Custom header mapping
      */
     public HeaderValueProducer header(final String name) {
+        referencedHeaders.add(HttpString.tryFromString(name));
         return new HeaderValueProducer(name);
     }
 
     public final static class HeaderValueProducer extends PrimitiveListValueProducer<String> {
         private final static Joiner COMMA_JOINER = Joiner.on(',');
-        private final String headerName;
+        private final HttpString headerName;
 
         HeaderValueProducer(final String headerName) {
+            this(HttpString.tryFromString(headerName));
+        }
+
+        private HeaderValueProducer(final HttpString headerName) {
             super("header(" + headerName + ")",
                   String.class,
-                  (e,c) -> normalizedValues(e.exchange, headerName).map(x -> x.collect(Collectors.toList())));
+                  (e,c) -> normalizedValues(e.request, headerName).map(x -> x.collect(Collectors.toList())));
             this.headerName = Objects.requireNonNull(headerName);
         }
 
-        private static Optional<Stream<String>> normalizedValues(final HttpServerExchange exchange, final String headerName) {
-            return Optional.ofNullable(exchange.getRequestHeaders().get(headerName))
-                           .map(h -> h.stream().flatMap(HeaderValueParser::values));
+        private static Optional<Stream<String>> normalizedValues(final RequestSnapshot request, final HttpString headerName) {
+            return request.header(headerName)
+                          .map(h -> h.stream().flatMap(HeaderValueParser::values));
         }
 
         public ValueProducer<String> first() {
@@ -674,7 +691,7 @@ public final class DslRecordMapping {
         private ValueProducer<String> first(final String readableName) {
             return new PrimitiveValueProducer<>(readableName,
                                                 String.class,
-                                                (e,c) -> normalizedValues(e.exchange, headerName).map(s -> s.findFirst().orElse(null)));
+                                                (e,c) -> normalizedValues(e.request, headerName).map(s -> s.findFirst().orElse(null)));
         }
 
         public ValueProducer<String> last() {
@@ -683,7 +700,7 @@ public final class DslRecordMapping {
         public ValueProducer<String> last(final String readableName) {
             return new PrimitiveValueProducer<>(readableName,
                                                 String.class,
-                                                (e,c) -> normalizedValues(e.exchange, headerName).map(s -> Streams.findLast(s).orElse(null)));
+                                                (e,c) -> normalizedValues(e.request, headerName).map(s -> Streams.findLast(s).orElse(null)));
         }
 
         // Find the x'th element from the end.
@@ -710,9 +727,9 @@ public final class DslRecordMapping {
                     break;
                 default:
                     final ValueProducer.FieldSupplier<String> supplier = 0 < index
-                        ? (e,c) -> normalizedValues(e.exchange, headerName)
+                        ? (e,c) -> normalizedValues(e.request, headerName)
                                     .map(s -> s.skip(index).findFirst().orElse(null))
-                        : (e,c) -> normalizedValues(e.exchange, headerName)
+                        : (e,c) -> normalizedValues(e.request, headerName)
                                     .map(s -> findFromEnd(s, -index - 1).orElse(null));
                     producer = new PrimitiveValueProducer<>(readableName, String.class, supplier);
             }
@@ -742,7 +759,7 @@ public final class DslRecordMapping {
         final PrimitiveValueProducer<InetAddress> addressProducer =
                 new PrimitiveValueProducer<>("<remote host IP>",
                                              InetAddress.class,
-                                             (e,c) -> Optional.ofNullable(e.exchange.getSourceAddress()).map(InetSocketAddress::getAddress));
+                                             (e,c) -> e.request.sourceAddress.map(InetSocketAddress::getAddress));
         return new GeoIpValueProducer(addressProducer, verifyAndReturnLookupService());
     }
 
@@ -1001,7 +1018,7 @@ public final class DslRecordMapping {
 
         protected interface FieldSupplier<T> {
             Optional<T> apply(DivolteEvent eventData,
-                              Map<String,Optional<?>> context);
+                              MemoizationContext context);
         }
 
         protected final String identifier;
@@ -1009,6 +1026,11 @@ public final class DslRecordMapping {
         private final FieldSupplier<T> supplier;
         private final boolean memoize;
 
+        // The context, and our slot within it, used for memoization.
+        @Nullable
+        private MemoizationContext memoizationContext;
+        private int memoizationSlot;
+
         ValueProducer(final String identifier, final TypeToken<T> producerType, final FieldSupplier<T> supplier, final boolean memoize) {
             this.identifier   = Objects.requireNonNull(identifier);
             this.producerType = Objects.requireNonNull(producerType);
@@ -1022,19 +1044,20 @@ public final class DslRecordMapping {
 
         @SuppressWarnings("unchecked")
         final Optional<T> produce(final DivolteEvent divolteEvent,
-                                  final Map<String,Optional<?>> context) {
+                                  final MemoizationContext context) {
             final Optional<T> result;
             if (memoize) {
-                // We can't use context.computeIfAbsent(): in Java 9 they've made it clear that the supplier
-                // isn't allowed to modify the mapping being modified, and doing so will (often) throw
-                // ConcurrentModificationException.
-                // This makes memoization slightly more expensive since the first reference will incur an extra
-                // lookup (for the put).
+                // The slot is looked up by identifier only the first time we're used with a context;
+                // a mapper reuses the same context for all events.
                 // Note that recursive producers will trigger an infinite loop.
-                final Optional<?> candidate = context.get(identifier);
+                if (context != memoizationContext) {
+                    memoizationSlot = context.slotFor(identifier);
+                    memoizationContext = context;
+                }
+                final Optional<?> candidate = context.get(memoizationSlot);
                 if (null == candidate) {
                     result = supplier.apply(divolteEvent, context);
-                    context.put(identifier, result);
+                    context.put(memoizationSlot, result);
                 } else {
                     result = (Optional<T>) candidate;
                 }
@@ -1205,7 +1228,7 @@ public final class DslRecordMapping {
             STOP, EXIT, CONTINUE
         }
         MappingResult perform(DivolteEvent divolteEvent,
-                              Map<String,Optional<?>> context,
-                              GenericRecordBuilder record);
+                              MemoizationContext context,
+                              FieldValues record);
     }
 }
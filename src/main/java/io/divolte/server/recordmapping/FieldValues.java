@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.recordmapping;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.generic.GenericRecordBuilder;
+
+/*
+ * The values assigned to the fields of a record by the mapping actions, indexed by field
+ * position. Unlike a GenericRecordBuilder this is cheap to reuse between events, and
+ * the values can be encoded directly without first building a record.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class FieldValues {
+    private final Schema schema;
+    private final Object[] values;
+
+    FieldValues(final Schema schema) {
+        this.schema = schema;
+        this.values = new Object[schema.getFields().size()];
+    }
+
+    void set(final Field field, final Object value) {
+        values[field.pos()] = value;
+    }
+
+    @Nullable
+    Object get(final Field field) {
+        return values[field.pos()];
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+    }
+
+    GenericRecordBuilder toRecordBuilder() {
+        final GenericRecordBuilder builder = new GenericRecordBuilder(schema);
+        for (final Field field : schema.getFields()) {
+            final Object value = values[field.pos()];
+            if (null != value) {
+                builder.set(field, value);
+            }
+        }
+        return builder;
+    }
+}
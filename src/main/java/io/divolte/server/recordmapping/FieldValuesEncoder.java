@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.recordmapping;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.Encoder;
+
+import com.google.common.collect.ImmutableList;
+
+/*
+ * Writes the field values produced by a mapping straight to an Avro encoder, in the
+ * binary format of a record with the given schema.
+ *
+ * The encoding plan is worked out up front from the schema: each field gets an encoder
+ * for its type, with its default value (if any) resolved once. Primitive types and
+ * nullable unions of them are written directly; anything more complicated (records,
+ * arrays, maps, enums, etc.) is handed off to a datum writer for that field's schema.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class FieldValuesEncoder {
+    private final List<FieldEncoder> fieldEncoders;
+
+    FieldValuesEncoder(final Schema schema) {
+        if (schema.getType() != Type.RECORD) {
+            throw new IllegalArgumentException("Can only encode records, not: " + schema);
+        }
+        fieldEncoders = schema.getFields()
+                              .stream()
+                              .map(FieldValuesEncoder::fieldEncoder)
+                              .collect(ImmutableList.toImmutableList());
+    }
+
+    void encode(final FieldValues values, final Encoder encoder) throws IOException {
+        for (final FieldEncoder fieldEncoder : fieldEncoders) {
+            fieldEncoder.encode(values, encoder);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FieldEncoder {
+        void encode(FieldValues values, Encoder encoder) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ValueEncoder {
+        void encode(@Nullable Object value, Encoder encoder) throws IOException;
+    }
+
+    private static FieldEncoder fieldEncoder(final Field field) {
+        final ValueEncoder valueEncoder = valueEncoder(field.schema());
+        if (field.hasDefaultValue()) {
+            @Nullable
+            final Object defaultValue = GenericData.get().getDefaultValue(field);
+            if (null == defaultValue) {
+                // Only possible for nullable unions, which handle null themselves.
+                return (values, encoder) -> valueEncoder.encode(values.get(field), encoder);
+            }
+            return (values, encoder) -> {
+                final Object value = values.get(field);
+                valueEncoder.encode(null != value ? value : defaultValue, encoder);
+            };
+        } else {
+            return (values, encoder) -> {
+                final Object value = values.get(field);
+                if (null == value) {
+                    // Same error as a GenericRecordBuilder would raise.
+                    throw new AvroRuntimeException("Field " + field + " not set and has no default value");
+                }
+                valueEncoder.encode(value, encoder);
+            };
+        }
+    }
+
+    private static ValueEncoder valueEncoder(final Schema schema) {
+        switch (schema.getType()) {
+            case NULL:
+                return (value, encoder) -> encoder.writeNull();
+            case BOOLEAN:
+                return (value, encoder) -> encoder.writeBoolean((Boolean) value);
+            case INT:
+                return (value, encoder) -> encoder.writeInt(((Number) value).intValue());
+            case LONG:
+                return (value, encoder) -> encoder.writeLong(((Number) value).longValue());
+            case FLOAT:
+                return (value, encoder) -> encoder.writeFloat(((Number) value).floatValue());
+            case DOUBLE:
+                return (value, encoder) -> encoder.writeDouble(((Number) value).doubleValue());
+            case STRING:
+                return (value, encoder) -> encoder.writeString((CharSequence) value);
+            case BYTES:
+                return (value, encoder) -> encoder.writeBytes((ByteBuffer) value);
+            case UNION:
+                final Integer nullIndex = schema.getIndexNamed(Type.NULL.getName());
+                if (null != nullIndex && schema.getTypes().size() == 2) {
+                    return nullableValueEncoder(nullIndex, schema.getTypes().get(1 - nullIndex));
+                }
+                // Other unions need to be resolved against the value.
+            default:
+                final GenericDatumWriter<Object> writer = new GenericDatumWriter<>(schema);
+                return (value, encoder) -> writer.write(value, encoder);
+        }
+    }
+
+    private static ValueEncoder nullableValueEncoder(final int nullIndex, final Schema valueSchema) {
+        final int valueIndex = 1 - nullIndex;
+        final ValueEncoder valueEncoder = valueEncoder(valueSchema);
+        return (value, encoder) -> {
+            if (null == value) {
+                encoder.writeIndex(nullIndex);
+                encoder.writeNull();
+            } else {
+                encoder.writeIndex(valueIndex);
+                valueEncoder.encode(value, encoder);
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.recordmapping;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/*
+ * Holds the values of memoizing producers while an event is being mapped.
+ *
+ * Each memoizing producer is assigned an integer slot, the first time it is evaluated
+ * against this context. Producers with the same identifier share a slot, and thus a
+ * value. After that a lookup is just an array access, and the context can be reused
+ * between events by clearing it.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class MemoizationContext {
+    private static final int INITIAL_SLOT_COUNT = 16;
+
+    private final Map<String,Integer> slotsByIdentifier = new HashMap<>();
+    private Optional<?>[] values = new Optional<?>[INITIAL_SLOT_COUNT];
+
+    int slotFor(final String identifier) {
+        return slotsByIdentifier.computeIfAbsent(identifier, ignored -> {
+            final int slot = slotsByIdentifier.size();
+            if (slot == values.length) {
+                values = Arrays.copyOf(values, slot * 2);
+            }
+            return slot;
+        });
+    }
+
+    @Nullable
+    Optional<?> get(final int slot) {
+        return values[slot];
+    }
+
+    void put(final int slot, final Optional<?> value) {
+        values[slot] = value;
+    }
+
+    void clear() {
+        Arrays.fill(values, 0, slotsByIdentifier.size(), null);
+    }
+}
@@ -32,11 +32,23 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
 
+/**
+ * Parser for user agent strings, with a cache of recent results.
+ * <p>
+ * A single instance is intended to be shared between all mapper threads and mappings:
+ * the parser data only needs to be loaded once, and each distinct user agent string
+ * only needs to be parsed once regardless of which thread encounters it first. (If
+ * several threads concurrently need the same user agent, one of them parses it while
+ * the others wait for the result.)
+ */
 @ParametersAreNonnullByDefault
+@ThreadSafe
 public final class UserAgentParserAndCache {
     private final static Logger logger = LoggerFactory.getLogger(UserAgentParserAndCache.class);
 
@@ -44,7 +56,9 @@ public final class UserAgentParserAndCache {
 
     public UserAgentParserAndCache(final ValidatedConfiguration vc) {
         final UserAgentStringParser parser = parserBasedOnTypeConfig(vc.configuration().global.mapper.userAgentParser.type);
-        this.cache = sizeBoundCacheFromLoadingFunction(parser::parse, vc.configuration().global.mapper.userAgentParser.cacheSize);
+        this.cache = sizeBoundCacheFromLoadingFunction(parser::parse,
+                                                       vc.configuration().global.mapper.userAgentParser.cacheSize,
+                                                       vc.configuration().global.mapper.threads);
         logger.info("User agent parser data version: {}", parser.getDataVersion());
     }
 
@@ -57,6 +71,14 @@ public final class UserAgentParserAndCache {
         }
     }
 
+    /**
+     * Obtain a snapshot of the cache statistics, including the number of hits, misses
+     * and evictions since this instance was created.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
     private static UserAgentStringParser parserBasedOnTypeConfig(UserAgentParserConfiguration.ParserType type) {
         switch (type) {
         case CACHING_AND_UPDATING:
@@ -73,11 +95,13 @@ public final class UserAgentParserAndCache {
         }
     }
 
-    private static <K,V> LoadingCache<K, V> sizeBoundCacheFromLoadingFunction(Function<K, V> loader, int size) {
+    private static <K,V> LoadingCache<K, V> sizeBoundCacheFromLoadingFunction(Function<K, V> loader, int size, int concurrency) {
         return CacheBuilder
                 .newBuilder()
                 .maximumSize(size)
                 .initialCapacity(size)
+                .concurrencyLevel(concurrency)
+                .recordStats()
                 .build(new CacheLoader<K, V>() {
                     @Override
                     public V load(K key) throws Exception {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the messages that have been sent asynchronously but not yet acknowledged, both by
+ * number and by size. Flushers acquire room for each message before sending it, and release
+ * it when sending completes (successfully or not).
+ * <p>
+ * A thread that fails to acquire room is unparked as soon as room is released again, so
+ * it can pause by parking (as the threads of a processing pool do) instead of polling.
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class InFlightLimit {
+    private final Semaphore messages;
+    private final Semaphore bytes;
+    private final int maxBytes;
+    // The threads that failed to acquire room, and need waking once some is released.
+    private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+
+    public InFlightLimit(final int maxMessages, final int maxBytes) {
+        Preconditions.checkArgument(0 < maxMessages, "Maximum number of messages in flight must be positive: %s", maxMessages);
+        Preconditions.checkArgument(0 < maxBytes, "Maximum number of bytes in flight must be positive: %s", maxBytes);
+        this.messages = new Semaphore(maxMessages);
+        this.bytes = new Semaphore(maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Try to acquire room for a message, without waiting. If there is no room, the calling
+     * thread is unparked when room is next released.
+     *
+     * @param size the size of the message, in bytes.
+     * @return <code>true</code> if the message can be sent, or <code>false</code> if too many
+     *         messages (or bytes) are already in flight.
+     */
+    public boolean tryAcquire(final int size) {
+        if (tryAcquireRoom(size)) {
+            return true;
+        }
+        // Try again once registered, in case room was released before we were.
+        final Thread thread = Thread.currentThread();
+        waiters.add(thread);
+        if (tryAcquireRoom(size)) {
+            waiters.remove(thread);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean tryAcquireRoom(final int size) {
+        if (!messages.tryAcquire()) {
+            return false;
+        }
+        // A message larger than the limit can still be sent, once nothing else is in flight.
+        if (!bytes.tryAcquire(Math.min(size, maxBytes))) {
+            messages.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the room acquired for a message.
+     *
+     * @param size the size of the message, in bytes, as when room for it was acquired.
+     */
+    public void release(final int size) {
+        bytes.release(Math.min(size, maxBytes));
+        messages.release();
+        for (final Iterator<Thread> it = waiters.iterator(); it.hasNext();) {
+            LockSupport.unpark(it.next());
+            it.remove();
+        }
+    }
+}
@@ -26,8 +26,10 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 
 import static io.divolte.server.processing.ItemProcessor.ProcessingDirective.CONTINUE;
@@ -40,12 +42,13 @@ public abstract class TopicFlusher<T> implements ItemProcessor<AvroRecordBuffer>
 
     // On failure, we store the list of messages that are still pending here.
     private ImmutableList<T> pendingMessages = ImmutableList.of();
+    // Messages that failed after being sent asynchronously; these are added from other threads.
+    private final Queue<T> failedMessages = new ConcurrentLinkedQueue<>();
 
     @Override
     public final ProcessingDirective process(final Item<AvroRecordBuffer> item) {
-        final AvroRecordBuffer record = item.payload;
-        logger.debug("Processing individual event: {}", record);
-        return flush(ImmutableList.of(buildRecord(record)));
+        logger.debug("Processing individual event: {}", item.payload);
+        return flush(buildRecords(ImmutableList.of(item)));
     }
 
     @Override
@@ -62,11 +65,7 @@ public abstract class TopicFlusher<T> implements ItemProcessor<AvroRecordBuffer>
             break;
         default:
             logger.debug("Processing batch of {} events.", batchSize);
-            final List<T> messages =
-                    batch.stream()
-                         .map(i -> i.payload)
-                         .map(this::buildRecord)
-                         .collect(Collectors.toCollection(() -> new ArrayList<>(batchSize)));
+            final List<T> messages = buildRecords(batch);
             // Clear the messages now; on failure they'll be retried as part of our
             // pending operation.
             batch.clear();
@@ -77,17 +76,54 @@ public abstract class TopicFlusher<T> implements ItemProcessor<AvroRecordBuffer>
 
     @Override
     public final ProcessingDirective heartbeat() {
-        if (pendingMessages.isEmpty()) {
+        final ImmutableList<T> messages = withFailedMessages(pendingMessages);
+        if (messages.isEmpty()) {
             return CONTINUE;
         } else {
-            logger.debug("Trying to re-send {} pending event(s) that previously failed.", pendingMessages.size());
-            return flush(pendingMessages);
+            logger.debug("Trying to re-send {} pending event(s) that previously failed.", messages.size());
+            return flush(messages);
         }
     }
 
+    /**
+     * Record a message that failed after it was sent asynchronously, but which may succeed if
+     * it is sent again. It is retried along with any other pending messages. This may be
+     * invoked from any thread.
+     *
+     * @param message the message to send again.
+     */
+    protected final void retryLater(final T message) {
+        failedMessages.add(message);
+    }
+
+    /**
+     * Take the messages that have not been sent: those that are pending, and those that failed
+     * asynchronously and have not been retried yet. This is only safe once the flusher is no longer
+     * being driven; the messages are handed over once and then forgotten.
+     *
+     * @return the messages that have not been sent.
+     */
+    protected final ImmutableList<T> takeUnsentMessages() {
+        final ImmutableList<T> messages = withFailedMessages(pendingMessages);
+        pendingMessages = ImmutableList.of();
+        return messages;
+    }
+
+    private ImmutableList<T> withFailedMessages(final ImmutableList<T> messages) {
+        if (failedMessages.isEmpty()) {
+            return messages;
+        }
+        final ImmutableList.Builder<T> builder = ImmutableList.<T>builder().addAll(messages);
+        for (T message; null != (message = failedMessages.poll());) {
+            builder.add(message);
+        }
+        return builder.build();
+    }
+
     private ProcessingDirective flush(final List<T> batch) {
         try {
-            final ImmutableList<T> remaining = sendBatch(batch);
+            // Anything that failed asynchronously in the meantime is also pending now.
+            final ImmutableList<T> remaining = withFailedMessages(sendBatch(batch));
             pendingMessages = remaining;
             return remaining.isEmpty() ? CONTINUE : PAUSE;
         } catch (final InterruptedException e) {
@@ -100,6 +136,19 @@ public abstract class TopicFlusher<T> implements ItemProcessor<AvroRecordBuffer>
         }
     }
 
-    protected abstract T buildRecord(final AvroRecordBuffer record);
+    /**
+     * Build the messages to send for some events. By default there is a message for each
+     * event, but several events may also be combined into a single message.
+     *
+     * @param items the events to send.
+     * @return the messages to send.
+     */
+    protected List<T> buildRecords(final Collection<Item<AvroRecordBuffer>> items) {
+        return items.stream()
+                    .map(this::buildRecord)
+                    .collect(Collectors.toCollection(() -> new ArrayList<>(items.size())));
+    }
+
+    protected abstract T buildRecord(final Item<AvroRecordBuffer> item);
     protected abstract ImmutableList<T> sendBatch(final List<T> batch) throws InterruptedException;
 }
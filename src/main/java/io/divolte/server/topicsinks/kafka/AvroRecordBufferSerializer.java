@@ -20,11 +20,12 @@ import io.divolte.server.AvroRecordBuffer;
 import org.apache.kafka.common.serialization.Serializer;
 
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.nio.ByteBuffer;
 import java.util.Map;
 
 @ParametersAreNonnullByDefault
 class AvroRecordBufferSerializer implements Serializer<AvroRecordBuffer> {
+    private static final byte[] NO_HEADER = new byte[0];
+
     @Override
     public void configure(final Map<String, ?> configs, final boolean isKey) {
         // Nothing to do.
@@ -32,12 +33,8 @@ class AvroRecordBufferSerializer implements Serializer<AvroRecordBuffer> {
 
     @Override
     public byte[] serialize(final String topic, final AvroRecordBuffer data) {
-        // Extract the AVRO record as a byte array.
-        // (There's no way to do this without copying the array.)
-        final ByteBuffer avroBuffer = data.getByteBuffer();
-        final byte[] avroBytes = new byte[avroBuffer.remaining()];
-        avroBuffer.get(avroBytes);
-        return avroBytes;
+        // Unless a header was reserved for another sink, this is the array backing the buffer.
+        return data.toByteArray(NO_HEADER);
     }
 
     @Override
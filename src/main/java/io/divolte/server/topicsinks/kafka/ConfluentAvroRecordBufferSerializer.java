@@ -20,29 +20,14 @@ import io.divolte.server.AvroRecordBuffer;
 import org.apache.kafka.common.serialization.Serializer;
 
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.nio.ByteBuffer;
 import java.util.Map;
 
 @ParametersAreNonnullByDefault
 class ConfluentAvroRecordBufferSerializer implements Serializer<AvroRecordBuffer> {
-    private static final int CONFLUENT_RECORD_MAGIC = 0;
-
     private final byte[] header;
 
     public ConfluentAvroRecordBufferSerializer(final int schemaId) {
-        this.header = createConfluentRecordHeader(schemaId);
-    }
-
-    private static byte[] createConfluentRecordHeader(final int schemaId) {
-        // Reference: https://docs.confluent.io/3.3.0/schema-registry/docs/serializer-formatter.html#wire-format
-        // (The documentation doesn't specify the byte-order, but it's network byte order.)
-        final byte[] header = new byte[5];
-        header[0] = CONFLUENT_RECORD_MAGIC;
-        header[1] = (byte) ((schemaId >> 24) & 0xff);
-        header[2] = (byte) ((schemaId >> 16) & 0xff);
-        header[3] = (byte) ((schemaId >> 8)  & 0xff);
-        header[4] = (byte) ( schemaId        & 0xff);
-        return header;
+        this.header = Serializers.createConfluentRecordHeader(schemaId);
     }
 
     @Override
@@ -53,13 +38,8 @@ class ConfluentAvroRecordBufferSerializer implements Serializer<AvroRecordBuffer
     @Override
     public final byte[] serialize(final String topic, final AvroRecordBuffer data) {
         // Confluent format is the header (pre-calculated), and then the Avro record bytes.
-        // (There's no way to do this without copying the array.)
-        final ByteBuffer avroBuffer = data.getByteBuffer();
-        final int recordBodySize = avroBuffer.remaining();
-        final byte[] confluentRecordBytes = new byte[header.length + recordBodySize];
-        System.arraycopy(header, 0, confluentRecordBytes, 0, header.length);
-        avroBuffer.get(confluentRecordBytes, header.length, recordBodySize);
-        return confluentRecordBytes;
+        // (Usually the header was reserved when the record was serialized, and nothing needs to be copied.)
+        return data.toByteArray(header);
     }
 
     @Override
@@ -19,6 +19,8 @@ package io.divolte.server.topicsinks.kafka;
 import com.google.common.collect.ImmutableList;
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.processing.Item;
+import io.divolte.server.topicsinks.InFlightLimit;
 import io.divolte.server.topicsinks.TopicFlusher;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
@@ -32,30 +34,92 @@ import javax.annotation.concurrent.NotThreadSafe;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 @ParametersAreNonnullByDefault
 @NotThreadSafe
-public final class KafkaFlusher extends TopicFlusher<ProducerRecord<DivolteIdentifier, AvroRecordBuffer>> {
+public final class KafkaFlusher extends TopicFlusher<KafkaFlusher.EventRecord> {
     private final static Logger logger = LoggerFactory.getLogger(KafkaFlusher.class);
 
-    private final String topic;
+    // The topic of each sink, indexed by its destination within the pool.
+    private final ImmutableList<String> topics;
     private final Producer<DivolteIdentifier, AvroRecordBuffer> producer;
+    // When sending asynchronously, the limit on events in flight. (This is shared by all threads: they share the producer.)
+    private final Optional<InFlightLimit> inFlight;
 
-    KafkaFlusher(final String topic, final Producer<DivolteIdentifier, AvroRecordBuffer> producer) {
-        this.topic = Objects.requireNonNull(topic);
+    KafkaFlusher(final ImmutableList<String> topics, final Producer<DivolteIdentifier, AvroRecordBuffer> producer) {
+        this(topics, producer, Optional.empty());
+    }
+
+    KafkaFlusher(final ImmutableList<String> topics,
+                 final Producer<DivolteIdentifier, AvroRecordBuffer> producer,
+                 final Optional<InFlightLimit> inFlight) {
+        this.topics = Objects.requireNonNull(topics);
         this.producer = Objects.requireNonNull(producer);
+        this.inFlight = Objects.requireNonNull(inFlight);
     }
 
     @Override
-    protected ProducerRecord<DivolteIdentifier, AvroRecordBuffer> buildRecord(final AvroRecordBuffer record) {
-        return new ProducerRecord<>(topic, null, record.getTimestamp().toEpochMilli(), record.getPartyId(), record);
+    protected EventRecord buildRecord(final Item<AvroRecordBuffer> item) {
+        return new EventRecord(topics.get(item.sourceId), item);
+    }
+
+    /**
+     * Take the events that this flusher did not manage to send: those that are pending, including
+     * any waiting for events in flight to be acknowledged, and those that failed asynchronously
+     * and have not been retried yet. This should only be used once the flusher has stopped and
+     * the producer has been closed, after which no further messages can fail.
+     *
+     * @return the events that were not sent.
+     */
+    List<Item<AvroRecordBuffer>> takeUnsentItems() {
+        return takeUnsentMessages().stream()
+                                   .map(record -> record.item)
+                                   .collect(Collectors.toList());
     }
 
     @Override
-    protected ImmutableList<ProducerRecord<DivolteIdentifier,AvroRecordBuffer>> sendBatch(final List<ProducerRecord<DivolteIdentifier, AvroRecordBuffer>> batch) throws InterruptedException {
+    protected ImmutableList<EventRecord> sendBatch(final List<EventRecord> batch) throws InterruptedException {
+        return inFlight.isPresent() ? sendBatchAsync(batch, inFlight.get()) : sendBatchSync(batch);
+    }
+
+    private ImmutableList<EventRecord> sendBatchAsync(final List<EventRecord> batch,
+                                                      final InFlightLimit inFlight) {
+        // Hand the messages to the producer without flushing or waiting; the producer batches them
+        // according to its own policy and the outcome of each is dealt with as it completes.
+        final int batchSize = batch.size();
+        for (int i = 0; i < batchSize; ++i) {
+            final EventRecord record = batch.get(i);
+            final int size = record.value().size();
+            if (!inFlight.tryAcquire(size)) {
+                // Whatever we couldn't send remains pending until enough events have been acknowledged;
+                // the limit wakes this thread as soon as one is.
+                logger.debug("Too many events in flight; pausing with {} event(s) pending.", batchSize - i);
+                return ImmutableList.copyOf(batch.subList(i, batchSize));
+            }
+            try {
+                // Note: the callback is invoked on the I/O thread of the producer.
+                producer.send(record, (metadata, exception) -> {
+                    inFlight.release(size);
+                    if (null == exception) {
+                        logSent(record, metadata);
+                    } else if (isRetriable(record, exception)) {
+                        retryLater(record);
+                    }
+                });
+            } catch (final RuntimeException e) {
+                // The callback won't be invoked if sending fails outright.
+                inFlight.release(size);
+                throw e;
+            }
+        }
+        return ImmutableList.of();
+    }
+
+    private ImmutableList<EventRecord> sendBatchSync(final List<EventRecord> batch) throws InterruptedException {
         // First start sending the messages.
         // (This will serialize them, determine the partition and then assign them to a per-partition buffer.)
         final int batchSize = batch.size();
@@ -72,31 +136,49 @@ public final class KafkaFlusher extends TopicFlusher<ProducerRecord<DivolteIdent
         //  - An error occurred, but a retry may succeed.
         //  - A fatal error occurred.
         // (In addition, we can be interrupted due to shutdown.)
-        final ImmutableList.Builder<ProducerRecord<DivolteIdentifier, AvroRecordBuffer>> remaining = ImmutableList.builder();
+        final ImmutableList.Builder<EventRecord> remaining = ImmutableList.builder();
         for (int i = 0; i < batchSize; ++i) {
             final Future<RecordMetadata> result = sendResults.get(i);
+            final EventRecord record = batch.get(i);
             try {
-                final RecordMetadata metadata = result.get();
-                if (logger.isDebugEnabled()) {
-                    final ProducerRecord<DivolteIdentifier, AvroRecordBuffer> record = batch.get(i);
-                    logger.debug("Finished sending event (partyId={}) to Kafka: topic/partition/offset = {}/{}/{}",
-                                 record.key(), metadata.topic(), metadata.partition(), metadata.offset());
-                }
+                logSent(record, result.get());
             } catch (final ExecutionException e) {
-                final Throwable cause = e.getCause();
-                final ProducerRecord<DivolteIdentifier, AvroRecordBuffer> record = batch.get(i);
-                if (cause instanceof RetriableException) {
-                    // A retry may succeed.
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Transient error sending event (partyId=" + record.key() + ") to Kafka. Will retry.", cause);
-                    }
+                if (isRetriable(record, e.getCause())) {
                     remaining.add(record);
-                } else {
-                    // Fatal error.
-                    logger.error("Error sending event (partyId=" + record.key() + ") to Kafka; abandoning.", cause);
                 }
             }
         }
         return remaining.build();
     }
+
+    private static void logSent(final ProducerRecord<DivolteIdentifier, AvroRecordBuffer> record, final RecordMetadata metadata) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Finished sending event (partyId={}) to Kafka: topic/partition/offset = {}/{}/{}",
+                         record.key(), metadata.topic(), metadata.partition(), metadata.offset());
+        }
+    }
+
+    static final class EventRecord extends ProducerRecord<DivolteIdentifier, AvroRecordBuffer> {
+        // The event the record was built from, so that it can be handed back if it's never sent.
+        final Item<AvroRecordBuffer> item;
+
+        private EventRecord(final String topic, final Item<AvroRecordBuffer> item) {
+            super(topic, null, item.payload.getTimestamp().toEpochMilli(), item.payload.getPartyId(), item.payload);
+            this.item = item;
+        }
+    }
+
+    private static boolean isRetriable(final ProducerRecord<DivolteIdentifier, AvroRecordBuffer> record, final Throwable cause) {
+        final boolean retriable = cause instanceof RetriableException;
+        if (retriable) {
+            // A retry may succeed.
+            if (logger.isDebugEnabled()) {
+                logger.debug("Transient error sending event (partyId=" + record.key() + ") to Kafka. Will retry.", cause);
+            }
+        } else {
+            // Fatal error.
+            logger.error("Error sending event (partyId=" + record.key() + ") to Kafka; abandoning.", cause);
+        }
+        return retriable;
+    }
 }
@@ -16,34 +16,83 @@
 
 package io.divolte.server.topicsinks.kafka;
 
+import com.google.common.collect.ImmutableList;
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.processing.BatchSettings;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.SpillSettings;
 import io.divolte.server.processing.ProcessingPool;
+import io.divolte.server.topicsinks.InFlightLimit;
 import org.apache.kafka.clients.producer.Producer;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 @ParametersAreNonnullByDefault
 public class KafkaFlushingPool extends ProcessingPool<KafkaFlusher, AvroRecordBuffer> {
 
     private final Producer<DivolteIdentifier, AvroRecordBuffer> producer;
+    // Every flusher the pool has created; when stopping, whatever they didn't send is handed back.
+    private final Queue<KafkaFlusher> flushers;
 
-    public KafkaFlushingPool(final String name,
+    public KafkaFlushingPool(final ImmutableList<String> topics,
                              final int numThreads,
                              final int maxWriteQueue,
-                             final String topic,
+                             final ItemQueueFactory queueFactory,
+                             final ByteBudget byteBudget,
+                             final Optional<SpillSettings<AvroRecordBuffer>> spillSettings,
+                             final BatchSettings batchSettings,
+                             final Optional<InFlightLimit> inFlight,
                              final Producer<DivolteIdentifier, AvroRecordBuffer> producer ) {
+        this(topics, numThreads, maxWriteQueue, queueFactory, byteBudget, spillSettings, batchSettings, inFlight, producer, new ConcurrentLinkedQueue<>());
+    }
+
+    private KafkaFlushingPool(final ImmutableList<String> topics,
+                              final int numThreads,
+                              final int maxWriteQueue,
+                              final ItemQueueFactory queueFactory,
+                              final ByteBudget byteBudget,
+                              final Optional<SpillSettings<AvroRecordBuffer>> spillSettings,
+                              final BatchSettings batchSettings,
+                              final Optional<InFlightLimit> inFlight,
+                              final Producer<DivolteIdentifier, AvroRecordBuffer> producer,
+                              final Queue<KafkaFlusher> flushers) {
         super(numThreads,
               maxWriteQueue,
-              String.format("Kafka Flusher [%s]", Objects.requireNonNull(name)),
-              () -> new KafkaFlusher(topic, producer));
+              queueFactory,
+              byteBudget,
+              AvroRecordBuffer::size,
+              spillSettings,
+              batchSettings,
+              "Kafka Flusher",
+              () -> {
+                  final KafkaFlusher flusher = new KafkaFlusher(topics, producer, inFlight);
+                  flushers.add(flusher);
+                  return flusher;
+              });
         this.producer = Objects.requireNonNull(producer);
+        this.flushers = Objects.requireNonNull(flushers);
     }
 
     @Override
-    public void stop() {
-        super.stop();
-        producer.close();
+    public List<Item<AvroRecordBuffer>> stop(final Duration drainTimeout) {
+        // Closing the producer waits for events in flight, but only for what's left of the timeout.
+        final Instant deadline = Instant.now().plus(drainTimeout);
+        final List<Item<AvroRecordBuffer>> remaining = super.stop(drainTimeout);
+        final Duration closeTimeout = Duration.between(Instant.now(), deadline);
+        producer.close(closeTimeout.isNegative() ? Duration.ZERO : closeTimeout);
+        // Once the producer is closed nothing else can fail, so anything the flushers still hold
+        // was never sent: events that are pending, failed in flight or never got permission to send.
+        flushers.forEach(flusher -> remaining.addAll(flusher.takeUnsentItems()));
+        return remaining;
     }
 }
@@ -16,6 +16,7 @@
 
 package io.divolte.server.topicsinks.kafka;
 
+import com.google.common.collect.ImmutableMap;
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.DivolteIdentifier;
 import io.divolte.server.DivolteSchema;
@@ -25,6 +26,8 @@ import javax.annotation.ParametersAreNonnullByDefault;
 
 @ParametersAreNonnullByDefault
 public final class Serializers {
+    private static final int CONFLUENT_RECORD_MAGIC = 0;
+
     private Serializers() {
         // Prevent external instantiation.
     }
@@ -42,4 +45,20 @@ public final class Serializers {
             .map(ConfluentAvroRecordBufferSerializer::new)
             .orElseThrow(() -> new IllegalArgumentException("Cannot create Confluent-compatible serializer without registry id"));
     }
+
+    static public byte[] createConfluentRecordHeader(final int schemaId) {
+        // Reference: https://docs.confluent.io/3.3.0/schema-registry/docs/serializer-formatter.html#wire-format
+        // (The documentation doesn't specify the byte-order, but it's network byte order.)
+        final byte[] header = new byte[5];
+        header[0] = CONFLUENT_RECORD_MAGIC;
+        header[1] = (byte) ((schemaId >> 24) & 0xff);
+        header[2] = (byte) ((schemaId >> 16) & 0xff);
+        header[3] = (byte) ((schemaId >> 8)  & 0xff);
+        header[4] = (byte) ( schemaId        & 0xff);
+        return header;
+    }
+
+    static public Serializer<AvroRecordBuffer> createTopicRoutingSerializer(final ImmutableMap<String, Serializer<AvroRecordBuffer>> serializersByTopic) {
+        return new TopicRoutingSerializer(serializersByTopic);
+    }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.kafka;
+
+import com.google.common.collect.ImmutableMap;
+import io.divolte.server.AvroRecordBuffer;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Serializer for a producer shared by several sinks, which delegates to the serializer of
+ * the sink that writes to the topic of each record.
+ */
+@ParametersAreNonnullByDefault
+class TopicRoutingSerializer implements Serializer<AvroRecordBuffer> {
+    private final ImmutableMap<String, Serializer<AvroRecordBuffer>> serializersByTopic;
+
+    TopicRoutingSerializer(final ImmutableMap<String, Serializer<AvroRecordBuffer>> serializersByTopic) {
+        this.serializersByTopic = Objects.requireNonNull(serializersByTopic);
+    }
+
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+        serializersByTopic.values().forEach(serializer -> serializer.configure(configs, isKey));
+    }
+
+    @Override
+    public byte[] serialize(final String topic, final AvroRecordBuffer data) {
+        final Serializer<AvroRecordBuffer> serializer = serializersByTopic.get(topic);
+        if (null == serializer) {
+            throw new SerializationException("No serializer for topic: " + topic);
+        }
+        return serializer.serialize(topic, data);
+    }
+
+    @Override
+    public void close() {
+        serializersByTopic.values().forEach(Serializer::close);
+    }
+}
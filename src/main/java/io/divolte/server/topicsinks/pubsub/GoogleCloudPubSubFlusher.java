@@ -17,13 +17,18 @@
 package io.divolte.server.topicsinks.pubsub;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.rpc.ApiException;
 import com.google.cloud.pubsub.v1.Publisher;
 import com.google.common.collect.ImmutableList;
-import com.google.protobuf.ByteString;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.pubsub.v1.PubsubMessage;
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.DivolteSchema;
+import io.divolte.server.processing.Item;
+import io.divolte.server.topicsinks.InFlightLimit;
 import io.divolte.server.topicsinks.TopicFlusher;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaNormalization;
@@ -33,20 +38,21 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.security.NoSuchAlgorithmException;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 @ParametersAreNonnullByDefault
 @NotThreadSafe
-public final class GoogleCloudPubSubFlusher extends TopicFlusher<PubsubMessage> {
+public final class GoogleCloudPubSubFlusher extends TopicFlusher<GoogleCloudPubSubFlusher.EventMessage> {
     private final static Logger logger = LoggerFactory.getLogger(GoogleCloudPubSubFlusher.class);
     private final static String MESSAGE_ATTRIBUTE_PARTYID = "partyIdentifier";
     private final static String MESSAGE_ATTRIBUTE_EVENTID = "eventIdentifier";
     private final static String MESSAGE_ATTRIBUTE_TIMESTAMP = "timestamp";
     private final static String MESSAGE_ATTRIBUTE_SCHEMA_CONFLUENT_ID = "schemaConfluentId";
     private final static String MESSAGE_ATTRIBUTE_SCHEMA_FINGERPRINT = "schemaFingerprint";
+    private final static String MESSAGE_ATTRIBUTE_RECORD_COUNT = "recordCount";
 
     // The most compact fingerprint encoding that is practical is Base64, using the URL encoding
     // because that's safe for file names (which some registries might use to index schemas).
@@ -55,9 +61,32 @@ public final class GoogleCloudPubSubFlusher extends TopicFlusher<PubsubMessage>
     private final Publisher publisher;
     private final String schemaFingerprint;
     private final Optional<String> schemaConfluentId;
+    // When sending asynchronously, the limit on messages in flight. (This is shared by all threads: they share the publisher.)
+    private final Optional<InFlightLimit> inFlight;
+    private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+    // When packing records, the data of the message being assembled.
+    private final Optional<PackedMessageData> packedMessageData;
+
+    // When sending asynchronously, the messages that have been published but not completed yet.
+    private final Set<EventMessage> inFlightMessages = ConcurrentHashMap.newKeySet();
 
     GoogleCloudPubSubFlusher(final Publisher publisher, final DivolteSchema schema) {
+        this(publisher, schema, Optional.empty());
+    }
+
+    GoogleCloudPubSubFlusher(final Publisher publisher,
+                             final DivolteSchema schema,
+                             final Optional<InFlightLimit> inFlight) {
+        this(publisher, schema, inFlight, Optional.empty());
+    }
+
+    GoogleCloudPubSubFlusher(final Publisher publisher,
+                             final DivolteSchema schema,
+                             final Optional<InFlightLimit> inFlight,
+                             final Optional<PackingSettings> packing) {
         this.publisher = Objects.requireNonNull(publisher);
+        this.inFlight = Objects.requireNonNull(inFlight);
+        this.packedMessageData = packing.map(PackedMessageData::new);
         this.schemaFingerprint = schemaFingerprint(schema);
         this.schemaConfluentId = schema.confluentId.map(i -> "0x" + Integer.toHexString(i));
     }
@@ -75,21 +104,129 @@ public final class GoogleCloudPubSubFlusher extends TopicFlusher<PubsubMessage>
     }
 
     @Override
-    protected PubsubMessage buildRecord(final AvroRecordBuffer record) {
+    protected List<EventMessage> buildRecords(final Collection<Item<AvroRecordBuffer>> items) {
+        return packedMessageData.isPresent() ? buildPackedRecords(items, packedMessageData.get()) : super.buildRecords(items);
+    }
+
+    private List<EventMessage> buildPackedRecords(final Collection<Item<AvroRecordBuffer>> items,
+                                                  final PackedMessageData data) {
+        // Records are packed into as few messages as will hold them, in order.
+        final List<EventMessage> messages = new ArrayList<>();
+        ImmutableList.Builder<Item<AvroRecordBuffer>> packedItems = ImmutableList.builder();
+        for (final Item<AvroRecordBuffer> item : items) {
+            if (!data.fits(item.payload)) {
+                messages.add(new EventMessage(buildPackedRecord(data), packedItems.build()));
+                packedItems = ImmutableList.builder();
+            }
+            data.add(item.payload);
+            packedItems.add(item);
+        }
+        if (!data.isEmpty()) {
+            messages.add(new EventMessage(buildPackedRecord(data), packedItems.build()));
+        }
+        return messages;
+    }
+
+    private PubsubMessage buildPackedRecord(final PackedMessageData data) {
+        // Attributes that describe individual records don't apply to a packed message.
+        final PubsubMessage.Builder builder = PubsubMessage.newBuilder()
+            .putAttributes(MESSAGE_ATTRIBUTE_SCHEMA_FINGERPRINT, schemaFingerprint)
+            .putAttributes(MESSAGE_ATTRIBUTE_RECORD_COUNT, Integer.toString(data.recordCount()))
+            .setData(data.build());
+        return schemaConfluentId
+            .map(id -> builder.putAttributes(MESSAGE_ATTRIBUTE_SCHEMA_CONFLUENT_ID, id))
+            .orElse(builder)
+            .build();
+    }
+
+    @Override
+    protected EventMessage buildRecord(final Item<AvroRecordBuffer> item) {
+        final AvroRecordBuffer record = item.payload;
         final PubsubMessage.Builder builder = PubsubMessage.newBuilder()
             .putAttributes(MESSAGE_ATTRIBUTE_SCHEMA_FINGERPRINT, schemaFingerprint)
             .putAttributes(MESSAGE_ATTRIBUTE_PARTYID, record.getPartyId().toString())
             .putAttributes(MESSAGE_ATTRIBUTE_EVENTID, record.getEventId())
-            .putAttributes(MESSAGE_ATTRIBUTE_TIMESTAMP, DateTimeFormatter.ISO_INSTANT.format(record.getTimestamp()))
-            .setData(ByteString.copyFrom(record.getByteBuffer()));
-        return schemaConfluentId
+            .putAttributes(MESSAGE_ATTRIBUTE_TIMESTAMP, timestampFormatter.format(record.getTimestamp()))
+            // The buffer is immutable, so it's safe to wrap instead of copying.
+            .setData(UnsafeByteOperations.unsafeWrap(record.getByteBuffer()));
+        final PubsubMessage message = schemaConfluentId
             .map(id -> builder.putAttributes(MESSAGE_ATTRIBUTE_SCHEMA_CONFLUENT_ID, id))
             .orElse(builder)
             .build();
+        return new EventMessage(message, ImmutableList.of(item));
+    }
+
+    /**
+     * Take the events that this flusher did not manage to send: those that are pending, including
+     * any waiting for messages in flight to be acknowledged, those that failed asynchronously and
+     * have not been retried yet, and those still in flight. This should only be used once the
+     * flusher has stopped and the publisher has been shut down.
+     *
+     * @return the events that were not sent.
+     */
+    List<Item<AvroRecordBuffer>> takeUnsentItems() {
+        final List<EventMessage> unsent = new ArrayList<>(takeUnsentMessages());
+        for (final Iterator<EventMessage> it = inFlightMessages.iterator(); it.hasNext();) {
+            unsent.add(it.next());
+            it.remove();
+        }
+        // A message that failed while we were looking may have been seen twice.
+        return unsent.stream()
+                     .distinct()
+                     .flatMap(message -> message.items.stream())
+                     .collect(Collectors.toList());
     }
 
     @Override
-    protected ImmutableList<PubsubMessage> sendBatch(final List<PubsubMessage> batch) throws InterruptedException {
+    protected ImmutableList<EventMessage> sendBatch(final List<EventMessage> batch) throws InterruptedException {
+        return inFlight.isPresent() ? sendBatchAsync(batch, inFlight.get()) : sendBatchSync(batch);
+    }
+
+    private ImmutableList<EventMessage> sendBatchAsync(final List<EventMessage> batch, final InFlightLimit inFlight) {
+        // Hand the messages to the publisher without waiting; the outcome of each is dealt with as it completes.
+        final int batchSize = batch.size();
+        for (int i = 0; i < batchSize; ++i) {
+            final EventMessage message = batch.get(i);
+            final int size = message.message.getData().size();
+            if (!inFlight.tryAcquire(size)) {
+                // Whatever we couldn't send remains pending until enough messages have been acknowledged;
+                // the limit wakes this thread as soon as one is.
+                logger.debug("Too many events in flight; pausing with {} event(s) pending.", batchSize - i);
+                return ImmutableList.copyOf(batch.subList(i, batchSize));
+            }
+            final ApiFuture<String> result;
+            inFlightMessages.add(message);
+            try {
+                result = publisher.publish(message.message);
+            } catch (final RuntimeException e) {
+                inFlightMessages.remove(message);
+                inFlight.release(size);
+                throw e;
+            }
+            // Note: the callback is invoked on whichever thread completes the publication.
+            ApiFutures.addCallback(result, new ApiFutureCallback<String>() {
+                @Override
+                public void onSuccess(final String messageId) {
+                    inFlightMessages.remove(message);
+                    inFlight.release(size);
+                    logSent(message.message, messageId);
+                }
+
+                @Override
+                public void onFailure(final Throwable cause) {
+                    if (isRetriable(message.message, cause)) {
+                        retryLater(message);
+                    }
+                    // Only forget it once it's been handed back for retrying, so it can't be missed while stopping.
+                    inFlightMessages.remove(message);
+                    inFlight.release(size);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return ImmutableList.of();
+    }
+
+    private ImmutableList<EventMessage> sendBatchSync(final List<EventMessage> batch) throws InterruptedException {
         // For Pub/Sub we assume the following:
         //  - Batching behaviour is set to flush everything ASAP.
         //  - Retry behaviour will retry indefinitely, so long as it seems likely to succeed.
@@ -99,7 +236,7 @@ public final class GoogleCloudPubSubFlusher extends TopicFlusher<PubsubMessage>
         final int batchSize = batch.size();
         final List<ApiFuture<String>> sendResults =
             batch.stream()
-                .map(publisher::publish)
+                .map(message -> publisher.publish(message.message))
                 .collect(Collectors.toCollection(() -> new ArrayList<>(batchSize)));
 
         // At this point the messages are in flight, and we assume being flushed.
@@ -107,45 +244,66 @@ public final class GoogleCloudPubSubFlusher extends TopicFlusher<PubsubMessage>
         //  - Completed.
         //  - An error occurred, but a retry may succeed.
         //  - A fatal error occurred.
-        final ImmutableList.Builder<PubsubMessage> remaining = ImmutableList.builder();
+        final ImmutableList.Builder<EventMessage> remaining = ImmutableList.builder();
         for (int i = 0; i < batchSize; ++i) {
             final ApiFuture<String> pendingResult = sendResults.get(i);
+            final EventMessage message = batch.get(i);
             try {
-                final String messageId = pendingResult.get();
-                if (logger.isDebugEnabled()) {
-                    final PubsubMessage message = batch.get(i);
-                    logger.debug("Finished sending event (partyId={}, eventId={}) to Pub/Sub: messageId = {}",
-                                 message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
-                                 message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
-                                 messageId);
-                }
+                logSent(message.message, pendingResult.get());
             } catch (final ExecutionException e) {
-                final PubsubMessage message = batch.get(i);
-                // The Pub/Sub publisher internally has a retry policy, but outside that we also
-                // retry indefinitely unless it's a cause that we don't understand.
-                final Throwable cause = e.getCause();
-                if (cause instanceof ApiException) {
-                    final ApiException apiException = (ApiException) cause;
-                    if (apiException.isRetryable()) {
-                        logger.debug("Transient error sending event (partyId={}, eventId={}) to Pub/Sub; retrying.",
-                                     message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
-                                     message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
-                                     cause);
-                        remaining.add(message);
-                    } else {
-                        logger.warn("Permanent error sending event (partyId={}, eventId={}) to Pub/Sub; abandoning.",
-                                    message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
-                                    message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
-                                    cause);
-                    }
-                } else {
-                    logger.error("Unknown error sending event (partyId={}, eventId={}) to Pub/Sub; abandoning.",
-                                 message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
-                                 message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
-                                 cause);
+                if (isRetriable(message.message, e.getCause())) {
+                    remaining.add(message);
                 }
             }
         }
         return remaining.build();
     }
+
+    static final class EventMessage {
+        final PubsubMessage message;
+        // The events in the message, so that they can be handed back if it's never sent.
+        final ImmutableList<Item<AvroRecordBuffer>> items;
+
+        private EventMessage(final PubsubMessage message, final ImmutableList<Item<AvroRecordBuffer>> items) {
+            this.message = Objects.requireNonNull(message);
+            this.items = Objects.requireNonNull(items);
+        }
+    }
+
+    private static void logSent(final PubsubMessage message, final String messageId) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Finished sending event (partyId={}, eventId={}) to Pub/Sub: messageId = {}",
+                         message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
+                         message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
+                         messageId);
+        }
+    }
+
+    private static boolean isRetriable(final PubsubMessage message, final Throwable cause) {
+        // The Pub/Sub publisher internally has a retry policy, but outside that we also
+        // retry indefinitely unless it's a cause that we don't understand.
+        final boolean retriable;
+        if (cause instanceof ApiException) {
+            final ApiException apiException = (ApiException) cause;
+            retriable = apiException.isRetryable();
+            if (retriable) {
+                logger.debug("Transient error sending event (partyId={}, eventId={}) to Pub/Sub; retrying.",
+                             message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
+                             message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
+                             cause);
+            } else {
+                logger.warn("Permanent error sending event (partyId={}, eventId={}) to Pub/Sub; abandoning.",
+                            message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
+                            message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
+                            cause);
+            }
+        } else {
+            retriable = false;
+            logger.error("Unknown error sending event (partyId={}, eventId={}) to Pub/Sub; abandoning.",
+                         message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_PARTYID, "N/A"),
+                         message.getAttributesOrDefault(MESSAGE_ATTRIBUTE_EVENTID, "N/A"),
+                         cause);
+        }
+        return retriable;
+    }
 }
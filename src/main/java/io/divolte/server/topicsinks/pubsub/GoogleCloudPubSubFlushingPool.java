@@ -19,39 +19,102 @@ package io.divolte.server.topicsinks.pubsub;
 import com.google.cloud.pubsub.v1.Publisher;
 import io.divolte.server.AvroRecordBuffer;
 import io.divolte.server.DivolteSchema;
+import io.divolte.server.processing.BatchSettings;
+import io.divolte.server.processing.ByteBudget;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.SpillSettings;
 import io.divolte.server.processing.ProcessingPool;
+import io.divolte.server.topicsinks.InFlightLimit;
 import io.grpc.ManagedChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 @ParametersAreNonnullByDefault
 public class GoogleCloudPubSubFlushingPool extends ProcessingPool<GoogleCloudPubSubFlusher, AvroRecordBuffer> {
+    private static final Logger logger = LoggerFactory.getLogger(GoogleCloudPubSubFlushingPool.class);
 
     private final Publisher publisher;
     private final Optional<ManagedChannel> channel;
+    // Every flusher the pool has created; when stopping, whatever they didn't send is handed back.
+    private final Queue<GoogleCloudPubSubFlusher> flushers;
 
     public GoogleCloudPubSubFlushingPool(final String name,
                                          final int numThreads,
                                          final int maxWriteQueue,
+                                         final ItemQueueFactory queueFactory,
+                                         final ByteBudget byteBudget,
+                                         final Optional<SpillSettings<AvroRecordBuffer>> spillSettings,
+                                         final BatchSettings batchSettings,
+                                         final Optional<InFlightLimit> inFlight,
+                                         final Optional<PackingSettings> packing,
                                          final Publisher publisher,
                                          final Optional<ManagedChannel> channel,
                                          final DivolteSchema schema) {
+        this(name, numThreads, maxWriteQueue, queueFactory, byteBudget, spillSettings, batchSettings, inFlight, packing, publisher, channel, schema, new ConcurrentLinkedQueue<>());
+    }
+
+    private GoogleCloudPubSubFlushingPool(final String name,
+                                          final int numThreads,
+                                          final int maxWriteQueue,
+                                          final ItemQueueFactory queueFactory,
+                                          final ByteBudget byteBudget,
+                                          final Optional<SpillSettings<AvroRecordBuffer>> spillSettings,
+                                          final BatchSettings batchSettings,
+                                          final Optional<InFlightLimit> inFlight,
+                                          final Optional<PackingSettings> packing,
+                                          final Publisher publisher,
+                                          final Optional<ManagedChannel> channel,
+                                          final DivolteSchema schema,
+                                          final Queue<GoogleCloudPubSubFlusher> flushers) {
         super(numThreads,
               maxWriteQueue,
+              queueFactory,
+              byteBudget,
+              AvroRecordBuffer::size,
+              spillSettings,
+              batchSettings,
               String.format("Google Cloud Pub/Sub Flusher [%s]", Objects.requireNonNull(name)),
-              () -> new GoogleCloudPubSubFlusher(publisher, schema));
+              () -> {
+                  final GoogleCloudPubSubFlusher flusher = new GoogleCloudPubSubFlusher(publisher, schema, inFlight, packing);
+                  flushers.add(flusher);
+                  return flusher;
+              });
         this.publisher = Objects.requireNonNull(publisher);
         this.channel = Objects.requireNonNull(channel);
+        this.flushers = Objects.requireNonNull(flushers);
     }
 
     @Override
-    public void stop() {
-        super.stop();
+    public List<Item<AvroRecordBuffer>> stop(final Duration drainTimeout) {
+        // Messages in flight are waited for, but only for what's left of the timeout.
+        final Instant deadline = Instant.now().plus(drainTimeout);
+        final List<Item<AvroRecordBuffer>> remaining = super.stop(drainTimeout);
         try {
             publisher.shutdown();
+            try {
+                final Duration awaitTimeout = Duration.between(Instant.now(), deadline);
+                if (!publisher.awaitTermination(Math.max(0, awaitTimeout.toMillis()), TimeUnit.MILLISECONDS)) {
+                    logger.warn("Pub/Sub messages for topic {} still in flight after {}; handing them back.", publisher.getTopicNameString(), drainTimeout);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             channel.ifPresent(ManagedChannel::shutdown);
+            // Anything the flushers still hold was not acknowledged: events that are pending,
+            // failed in flight, never got permission to send or are still in flight.
+            flushers.forEach(flusher -> remaining.addAll(flusher.takeUnsentItems()));
+            return remaining;
         } catch (final RuntimeException e) {
             // Pass-through without re-wrapping.
             throw e;
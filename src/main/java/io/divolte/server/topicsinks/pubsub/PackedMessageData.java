@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.pubsub;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.divolte.server.AvroRecordBuffer;
+import org.apache.avro.io.BinaryData;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Objects;
+
+/*
+ * Accumulates the data of a packed message: an Avro array of records, using the binary
+ * encoding. This is a single block with the number of records, followed by the records
+ * themselves and the (empty) terminating block. The records are not copied; the data is
+ * a concatenation of the buffers.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class PackedMessageData {
+    // An Avro long takes at most 10 bytes; the terminating block is a single 0.
+    private static final int MAX_OVERHEAD = 10 + 1;
+    private static final ByteString END_OF_ARRAY = ByteString.copyFrom(new byte[] { 0 });
+
+    private final PackingSettings settings;
+
+    private ByteString records = ByteString.EMPTY;
+    private int recordCount;
+
+    PackedMessageData(final PackingSettings settings) {
+        this.settings = Objects.requireNonNull(settings);
+    }
+
+    boolean isEmpty() {
+        return 0 == recordCount;
+    }
+
+    int recordCount() {
+        return recordCount;
+    }
+
+    /*
+     * Whether the record fits in the message; a message always has room for its first record.
+     */
+    boolean fits(final AvroRecordBuffer record) {
+        return isEmpty()
+            || recordCount < settings.maxRecords
+               && records.size() + record.size() + MAX_OVERHEAD <= settings.maxBytes;
+    }
+
+    void add(final AvroRecordBuffer record) {
+        // The buffer is immutable, so it's safe to wrap instead of copying.
+        records = records.concat(UnsafeByteOperations.unsafeWrap(record.getByteBuffer()));
+        ++recordCount;
+    }
+
+    /*
+     * Produce the data of the message, and start a new one.
+     */
+    ByteString build() {
+        final byte[] blockCount = new byte[MAX_OVERHEAD];
+        final int blockCountLength = BinaryData.encodeLong(recordCount, blockCount, 0);
+        final ByteString data = ByteString.copyFrom(blockCount, 0, blockCountLength)
+                                          .concat(records)
+                                          .concat(END_OF_ARRAY);
+        records = ByteString.EMPTY;
+        recordCount = 0;
+        return data;
+    }
+}
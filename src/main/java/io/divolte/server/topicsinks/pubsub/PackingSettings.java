@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.pubsub;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Settings for packing several records into a single Pub/Sub message.
+ * <p>
+ * The records in a batch taken from the queue are packed into as few messages as possible,
+ * subject to these limits. A single record larger than the size limit is sent by itself.
+ */
+@ParametersAreNonnullByDefault
+public final class PackingSettings {
+    public final int maxRecords;
+    public final int maxBytes;
+
+    /**
+     * @param maxRecords the maximum number of records in a message.
+     * @param maxBytes   the maximum size of the data of a message, in bytes.
+     */
+    public PackingSettings(final int maxRecords, final int maxBytes) {
+        Preconditions.checkArgument(0 < maxRecords, "Maximum number of records must be positive: %s", maxRecords);
+        Preconditions.checkArgument(0 < maxBytes, "Maximum size must be positive: %s", maxBytes);
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("maxRecords", maxRecords)
+                .add("maxBytes", maxBytes)
+                .toString();
+    }
+}
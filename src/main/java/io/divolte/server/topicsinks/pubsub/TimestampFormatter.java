@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.pubsub;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+/*
+ * Formats timestamps the same way as DateTimeFormatter.ISO_INSTANT, but remembers the formatted
+ * date and time (up to seconds) of the previous timestamp. Events arrive roughly in order, so
+ * this usually only leaves the fraction of a second to be formatted.
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+final class TimestampFormatter {
+    private static final int NANOS_PER_MILLI = 1_000_000;
+    private static final int NANOS_PER_MICRO = 1_000;
+
+    private final StringBuilder builder = new StringBuilder(32);
+    private long epochSecond = Long.MIN_VALUE;
+    private String dateTime = "";
+
+    String format(final Instant timestamp) {
+        if (timestamp.getEpochSecond() != epochSecond) {
+            final String formatted = DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochSecond(timestamp.getEpochSecond()));
+            // Remove the trailing 'Z'.
+            dateTime = formatted.substring(0, formatted.length() - 1);
+            epochSecond = timestamp.getEpochSecond();
+        }
+        builder.setLength(0);
+        builder.append(dateTime);
+        // Like ISO_INSTANT, the fraction is written as milliseconds, microseconds or nanoseconds; whichever suffices.
+        final int nano = timestamp.getNano();
+        if (0 != nano) {
+            builder.append('.');
+            if (0 == nano % NANOS_PER_MILLI) {
+                appendDigits(nano / NANOS_PER_MILLI, 100);
+            } else if (0 == nano % NANOS_PER_MICRO) {
+                appendDigits(nano / NANOS_PER_MICRO, 100_000);
+            } else {
+                appendDigits(nano, 100_000_000);
+            }
+        }
+        return builder.append('Z').toString();
+    }
+
+    // Append the value with leading zeroes; the divisor determines the number of digits.
+    private void appendDigits(final int value, final int firstDivisor) {
+        for (int divisor = firstDivisor; 0 < divisor; divisor /= 10) {
+            builder.append((char) ('0' + value / divisor % 10));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+import io.divolte.server.processing.ItemCodec;
+
+public class AvroRecordBufferTest {
+    private static final Schema SCHEMA = SchemaBuilder.record("TestRecord").fields()
+            .requiredString("value")
+            .endRecord();
+
+    private static GenericRecord roundTrip(final GenericRecord record,
+                                           final RecordSizeEstimator sizeEstimator) throws IOException {
+        final AvroRecordBuffer buffer = AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(),
+                                                                    DivolteIdentifier.generate(),
+                                                                    "eventId",
+                                                                    Instant.now(),
+                                                                    record,
+                                                                    sizeEstimator);
+        final byte[] bytes = new byte[buffer.size()];
+        buffer.getByteBuffer().get(bytes);
+        return new GenericDatumReader<GenericRecord>(SCHEMA).read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+    }
+
+    private static GenericRecord record(final String value) {
+        final GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("value", value);
+        return record;
+    }
+
+    @Test
+    public void shouldSerializeRecordsOfVaryingSizes() throws IOException {
+        final RecordSizeEstimator sizeEstimator = new RecordSizeEstimator();
+        // Sizes chosen to be smaller than, equal to and far larger than the initial allocation.
+        for (final int length : new int[] { 0, 10, 510, 511, 512, 513, 5000, 100_000, 10 }) {
+            final String value = Strings.repeat("x", length);
+            assertEquals(value, roundTrip(record(value), sizeEstimator).get("value").toString());
+        }
+    }
+
+    @Test
+    public void shouldEncodeBuffersWithCodec() {
+        final AvroRecordBuffer buffer = AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(),
+                                                                    DivolteIdentifier.generate(),
+                                                                    "événement",
+                                                                    Instant.ofEpochSecond(1234567890, 123456789),
+                                                                    record("value"));
+        final ItemCodec<AvroRecordBuffer> codec = AvroRecordBuffer.codec();
+        final ByteBuffer encoded = ByteBuffer.allocate(codec.encodedSize(buffer));
+        codec.encode(buffer, encoded);
+        assertFalse(encoded.hasRemaining());
+        encoded.flip();
+
+        final AvroRecordBuffer decoded = codec.decode(encoded);
+        assertEquals(buffer.getPartyId(), decoded.getPartyId());
+        assertEquals(buffer.getSessionId(), decoded.getSessionId());
+        assertEquals(buffer.getEventId(), decoded.getEventId());
+        assertEquals(buffer.getTimestamp(), decoded.getTimestamp());
+        assertEquals(buffer.getByteBuffer(), decoded.getByteBuffer());
+    }
+
+    @Test
+    public void shouldSerializeRecordsLargerThanTheEstimate() throws IOException {
+        final RecordSizeEstimator sizeEstimator = new RecordSizeEstimator();
+        for (int i = 0; i < 1000; ++i) {
+            roundTrip(record("small"), sizeEstimator);
+        }
+        final String value = Strings.repeat("large", 10_000);
+        assertTrue(value.length() > sizeEstimator.estimate());
+        assertEquals(value, roundTrip(record(value), sizeEstimator).get("value").toString());
+    }
+
+    @Test
+    public void shouldReturnBackingArrayWhenHeaderWasReserved() {
+        final byte[] header = { 0, 0, 0, 0, 42 };
+        final AvroRecordBuffer buffer = AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(),
+                                                                    DivolteIdentifier.generate(),
+                                                                    "eventId",
+                                                                    Instant.now(),
+                                                                    record("value"),
+                                                                    new RecordSizeEstimator(),
+                                                                    header);
+        final ByteBuffer record = buffer.getByteBuffer();
+        assertEquals(buffer.size(), record.remaining());
+
+        final byte[] withHeader = buffer.toByteArray(header.clone());
+        assertSame(withHeader, buffer.toByteArray(header));
+        assertEquals(ByteBuffer.wrap(header), ByteBuffer.wrap(withHeader, 0, header.length));
+        assertEquals(record, ByteBuffer.wrap(withHeader, header.length, buffer.size()));
+
+        // A different header means copying.
+        final byte[] withoutHeader = buffer.toByteArray(new byte[0]);
+        assertEquals(buffer.size(), withoutHeader.length);
+        assertEquals(record, ByteBuffer.wrap(withoutHeader));
+        final byte[] otherHeader = { 0, 0, 0, 0, 43 };
+        final byte[] withOtherHeader = buffer.toByteArray(otherHeader);
+        assertEquals(ByteBuffer.wrap(otherHeader), ByteBuffer.wrap(withOtherHeader, 0, otherHeader.length));
+        assertEquals(record, ByteBuffer.wrap(withOtherHeader, otherHeader.length, buffer.size()));
+    }
+
+    @Test
+    public void shouldReturnBackingArrayWithoutHeader() {
+        final AvroRecordBuffer buffer = AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(),
+                                                                    DivolteIdentifier.generate(),
+                                                                    "eventId",
+                                                                    Instant.now(),
+                                                                    record("value"));
+        final byte[] bytes = buffer.toByteArray(new byte[0]);
+        assertSame(bytes, buffer.toByteArray(new byte[0]));
+        assertEquals(buffer.getByteBuffer(), ByteBuffer.wrap(bytes));
+    }
+}
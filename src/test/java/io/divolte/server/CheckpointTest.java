@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemProcessor;
+import io.divolte.server.processing.ItemQueueFactory;
+import io.divolte.server.processing.PoolRoute;
+import io.divolte.server.processing.ProcessingPool;
+
+public class CheckpointTest {
+    private static final Schema SCHEMA = SchemaBuilder.record("TestRecord").fields()
+            .requiredString("value")
+            .endRecord();
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static Item<AvroRecordBuffer> event(final int value) {
+        final GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("value", Integer.toString(value));
+        final DivolteIdentifier partyId = DivolteIdentifier.generate();
+        final AvroRecordBuffer buffer = AvroRecordBuffer.fromRecord(partyId,
+                                                                    DivolteIdentifier.generate(),
+                                                                    "event-" + value,
+                                                                    Instant.ofEpochSecond(value),
+                                                                    record);
+        return Item.of(0, partyId.value, buffer);
+    }
+
+    private static ProcessingPool<?, AvroRecordBuffer> stuckPool(final CountDownLatch stuck) {
+        return new ProcessingPool<ItemProcessor<AvroRecordBuffer>, AvroRecordBuffer>(
+                1, 1024, ItemQueueFactory.blocking(), "Stuck", () -> new ItemProcessor<AvroRecordBuffer>() {
+            @Override
+            public ProcessingDirective process(final Item<AvroRecordBuffer> e) {
+                throw new AssertionError("Single items are never processed.");
+            }
+
+            @Override
+            public ProcessingDirective process(final Queue<Item<AvroRecordBuffer>> batch) {
+                // Never make any progress with the batch.
+                stuck.countDown();
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ProcessingDirective.PAUSE;
+            }
+        });
+    }
+
+    private static ProcessingPool<?, AvroRecordBuffer> recordingPool(final Queue<AvroRecordBuffer> processed) {
+        return new ProcessingPool<ItemProcessor<AvroRecordBuffer>, AvroRecordBuffer>(
+                1, 1024, ItemQueueFactory.blocking(), "Recording", () -> item -> {
+                    processed.add(item.payload);
+                    return ItemProcessor.ProcessingDirective.CONTINUE;
+                });
+    }
+
+    @Test
+    public void shouldReturnItemsThatWereNotProcessedInTime() throws InterruptedException {
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final ProcessingPool<?, AvroRecordBuffer> pool = stuckPool(stuck);
+        final List<Item<AvroRecordBuffer>> events = IntStream.range(0, 10).mapToObj(CheckpointTest::event).collect(Collectors.toList());
+        events.forEach(pool::enqueue);
+        stuck.await();
+
+        final List<Item<AvroRecordBuffer>> remaining = pool.stop(Duration.ofMillis(100));
+        assertEquals(events.stream().map(e -> e.payload.getEventId()).collect(Collectors.toSet()),
+                     remaining.stream().map(e -> e.payload.getEventId()).collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void shouldReplayCheckpointIntoSinks() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+        final List<Item<AvroRecordBuffer>> events = IntStream.range(0, 10).mapToObj(CheckpointTest::event).collect(Collectors.toList());
+        assertEquals(15, Checkpoint.write(file, ImmutableMap.of("sink", events,
+                                                                "removed", events.subList(0, 5))));
+
+        final Queue<AvroRecordBuffer> processed = new ConcurrentLinkedQueue<>();
+        final ProcessingPool<?, AvroRecordBuffer> pool = recordingPool(processed);
+        assertEquals(10, Checkpoint.replay(file, ImmutableMap.of("sink", new PoolRoute<>(pool, 0))));
+        pool.stop();
+
+        assertFalse(Files.exists(file));
+        assertEquals(events.size(), processed.size());
+        for (final Item<AvroRecordBuffer> event : events) {
+            final AvroRecordBuffer replayed = processed.stream()
+                                                       .filter(b -> b.getEventId().equals(event.payload.getEventId()))
+                                                       .findFirst()
+                                                       .orElseThrow(AssertionError::new);
+            assertEquals(event.payload.getPartyId(), replayed.getPartyId());
+            assertEquals(event.payload.getTimestamp(), replayed.getTimestamp());
+            assertEquals(event.payload.getByteBuffer(), replayed.getByteBuffer());
+        }
+    }
+
+    @Test
+    public void shouldWaitForSpaceWhenReplayingCheckpoint() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+        final List<Item<AvroRecordBuffer>> events = IntStream.range(0, 50).mapToObj(CheckpointTest::event).collect(Collectors.toList());
+        Checkpoint.write(file, ImmutableMap.of("sink", events));
+
+        // The queue can only hold a few of the events at a time, and they're processed slowly.
+        final Queue<AvroRecordBuffer> processed = new ConcurrentLinkedQueue<>();
+        final ProcessingPool<?, AvroRecordBuffer> pool = new ProcessingPool<ItemProcessor<AvroRecordBuffer>, AvroRecordBuffer>(
+                1, 4, ItemQueueFactory.blocking(), "Slow", () -> item -> {
+                    try {
+                        Thread.sleep(1);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    processed.add(item.payload);
+                    return ItemProcessor.ProcessingDirective.CONTINUE;
+                });
+        assertEquals(50, Checkpoint.replay(file, ImmutableMap.of("sink", new PoolRoute<>(pool, 0))));
+        pool.stop();
+
+        assertFalse(Files.exists(file));
+        assertEquals(50, processed.size());
+    }
+
+    @Test
+    public void shouldIgnoreMissingCheckpoint() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+        assertEquals(0, Checkpoint.replay(file, ImmutableMap.of()));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectCorruptCheckpoint() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+        Checkpoint.write(file, ImmutableMap.of("sink", IntStream.range(0, 3).mapToObj(CheckpointTest::event).collect(Collectors.toList())));
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+        Checkpoint.replay(file, ImmutableMap.of());
+    }
+}
@@ -31,11 +31,16 @@ import io.divolte.server.ServerTestUtils.TestServer;
 import io.divolte.server.config.ValidatedConfiguration;
 import io.divolte.server.ip2geo.LookupService;
 import io.divolte.server.ip2geo.LookupService.ClosedServiceException;
+import io.divolte.server.recordmapping.CompiledMappingScript;
 import io.divolte.server.recordmapping.DslRecordMapper;
 import io.divolte.server.recordmapping.SchemaMappingException;
+import io.divolte.server.recordmapping.UserAgentParserAndCache;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.util.Utf8;
 import org.junit.After;
 import org.junit.Test;
@@ -51,6 +56,11 @@ import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
@@ -399,9 +409,9 @@ public class DslRecordMapperTest {
         when(mockLookupService.lookup(any())).thenReturn(Optional.of(mockResponseWithEverything));
 
         final DslRecordMapper mapper = new DslRecordMapper(
-                vc,
                 geoMappingFile.getAbsolutePath(),
                 new Schema.Parser().parse(Resources.toString(Resources.getResource("TestRecord.avsc"), StandardCharsets.UTF_8)),
+                new UserAgentParserAndCache(vc),
                 Optional.of(mockLookupService));
 
         final GenericRecord record = mapper.newRecordFromExchange(payload.event);
@@ -417,6 +427,88 @@ public class DslRecordMapperTest {
         Files.delete(geoMappingFile.toPath());
     }
 
+    @Test
+    public void shouldEncodeFlatFieldsDirectly() throws IOException, InterruptedException {
+        assertDirectEncodingMatchesRecord("flat-mapping.groovy", Collections.singletonList("r=" + encodeUrl("http://example.com/")));
+    }
+
+    @Test
+    public void shouldEncodeEventParametersDirectly() throws IOException, InterruptedException {
+        assertDirectEncodingMatchesRecord("event-param-all.groovy", Collections.singletonList(HETEROGENOUS_EVENT_PARAMS));
+    }
+
+    @Test
+    public void shouldEncodeHeadersDirectly() throws IOException, InterruptedException {
+        assertDirectEncodingMatchesRecord("header-mapping.groovy", Collections.emptyList());
+    }
+
+    @Test
+    public void shouldEncodeBytesDirectly() throws IOException, InterruptedException {
+        assertDirectEncodingMatchesRecord("digest-bytebuffer.groovy", Collections.emptyList());
+    }
+
+    private void assertDirectEncodingMatchesRecord(final String mapping,
+                                                   final List<String> extraEncodedQueryParameters) throws IOException, InterruptedException {
+        setupServer(mapping);
+        final EventPayload payload = request("https://example.com/", extraEncodedQueryParameters);
+
+        final Schema schema = new Schema.Parser().parse(avroFile);
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("base-test-server.conf")
+                                                                                        .withFallback(ConfigFactory.parseResources("reference-test.conf")));
+        final DslRecordMapper mapper = new DslRecordMapper(mappingFile.getAbsolutePath(),
+                                                           schema,
+                                                           new UserAgentParserAndCache(vc),
+                                                           Optional.empty());
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final BinaryEncoder expectedEncoder = EncoderFactory.get().directBinaryEncoder(expected, null);
+        new GenericDatumWriter<GenericRecord>(schema).write(mapper.newRecordFromExchange(payload.event), expectedEncoder);
+
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        mapper.writeRecordFromExchange(payload.event, EncoderFactory.get().directBinaryEncoder(actual, null));
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void shouldNotShareMemoizedValuesBetweenMappersOnDifferentThreads() throws Exception {
+        setupServer("regex-mapping.groovy");
+        final EventPayload first = request("http://example.com/path/with/1/first.html");
+        final EventPayload second = request("http://example.com/path/with/2/second.html");
+
+        final Schema schema = new Schema.Parser().parse(avroFile);
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("base-test-server.conf")
+                                                                                        .withFallback(ConfigFactory.parseResources("reference-test.conf")));
+        final CompiledMappingScript mappingScript = CompiledMappingScript.compile(mappingFile.getAbsolutePath());
+        final UserAgentParserAndCache uaParser = new UserAgentParserAndCache(vc);
+
+        // Each thread maps with its own mapper, built from the same compiled script. The regular
+        // expression match is memoized, so a mapper that saw another thread's event would map the
+        // wrong group.
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Boolean>> results =
+                IntStream.range(0, 4)
+                         .mapToObj(i -> executor.submit(() -> {
+                             final DslRecordMapper mapper = new DslRecordMapper(mappingScript, schema, uaParser, Optional.empty());
+                             boolean allMatched = true;
+                             for (int j = 0; j < 1000; ++j) {
+                                 final boolean useFirst = (i + j) % 2 == 0;
+                                 final GenericRecord record = mapper.newRecordFromExchange(useFirst ? first.event : second.event);
+                                 allMatched &= (useFirst ? "1" : "2").equals(record.get("client"))
+                                            && (useFirst ? "first" : "second").equals(record.get("pageview"));
+                             }
+                             return allMatched;
+                         }))
+                         .collect(Collectors.toList());
+            for (final Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test(expected=SchemaMappingException.class)
     public void shouldFailOnIncompatibleTypesWithLiteral() throws IOException, InterruptedException {
         setupServer("wrong-types-literal.groovy");
@@ -133,6 +133,19 @@ public class JsonSourceTest {
         assertEquals(HTTP_NO_CONTENT, conn.getResponseCode());
     }
 
+    @Test
+    public void shouldRespondUnavailableWhenEventIsNotAdmitted() throws IOException {
+        // Shedding all events while at or above an empty high-water mark means nothing is admitted.
+        startServer(ImmutableMap.of("divolte.global.mapper.admission.policy", "shed",
+                                    "divolte.global.mapper.admission.shed_percentage", 100,
+                                    "divolte.global.mapper.admission.high_water_mark", 0.0,
+                                    "divolte.global.mapper.admission.retry_after", "1500 ms"));
+        final HttpURLConnection conn = request();
+
+        assertEquals(HTTP_UNAVAILABLE, conn.getResponseCode());
+        assertEquals("2", conn.getHeaderField("Retry-After"));
+    }
+
     @Test
     public void shouldOnlySupportPostRequests() throws IOException {
         startServer();
@@ -59,7 +59,7 @@ public class ProxyAdjacentPeerAddressHandlerTest {
         assertEquals(200, conn.getResponseCode());
 
         final EventPayload payload = server.waitForEvent();
-        assertEquals("192.168.13.23", payload.event.exchange.getSourceAddress().getHostString());
+        assertEquals("192.168.13.23", payload.event.request.sourceAddress.get().getHostString());
     }
 
     @Test
@@ -72,7 +72,7 @@ public class ProxyAdjacentPeerAddressHandlerTest {
         assertEquals(200, conn.getResponseCode());
 
         final EventPayload payload = server.waitForEvent();
-        assertEquals("127.0.0.1", payload.event.exchange.getSourceAddress().getHostString());
+        assertEquals("127.0.0.1", payload.event.request.sourceAddress.get().getHostString());
     }
 
     @Test
@@ -85,7 +85,7 @@ public class ProxyAdjacentPeerAddressHandlerTest {
         assertEquals(200, conn.getResponseCode());
 
         final EventPayload payload = server.waitForEvent();
-        assertEquals("192.168.13.23", payload.event.exchange.getSourceAddress().getHostString());
+        assertEquals("192.168.13.23", payload.event.request.sourceAddress.get().getHostString());
     }
 
     @Test
@@ -99,7 +99,7 @@ public class ProxyAdjacentPeerAddressHandlerTest {
         assertEquals(200, conn.getResponseCode());
 
         final EventPayload payload = server.waitForEvent();
-        assertEquals("192.168.13.23", payload.event.exchange.getSourceAddress().getHostString());
+        assertEquals("192.168.13.23", payload.event.request.sourceAddress.get().getHostString());
     }
 
     @Before
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RecordSizeEstimatorTest {
+    @Test
+    public void shouldEstimateUpperPercentileOfRecordSizes() {
+        final RecordSizeEstimator estimator = new RecordSizeEstimator();
+        for (int i = 0; i < 10_000; ++i) {
+            // 1 in 200 records is large.
+            estimator.record(0 == i % 200 ? 4000 : 100);
+        }
+        assertEquals(128, estimator.estimate());
+    }
+
+    @Test
+    public void shouldCoverAllRecordsWhenLargeOnesAreCommon() {
+        final RecordSizeEstimator estimator = new RecordSizeEstimator();
+        for (int i = 0; i < 10_000; ++i) {
+            // 1 in 20 records is large.
+            estimator.record(0 == i % 20 ? 4000 : 100);
+        }
+        assertTrue(estimator.estimate() > 4000);
+    }
+
+    @Test
+    public void shouldFollowChangesInRecordSizes() {
+        final RecordSizeEstimator estimator = new RecordSizeEstimator();
+        for (int i = 0; i < 10_000; ++i) {
+            estimator.record(2000);
+        }
+        assertTrue(estimator.estimate() > 2000);
+        for (int i = 0; i < 100_000; ++i) {
+            estimator.record(100);
+        }
+        assertEquals(128, estimator.estimate());
+    }
+}
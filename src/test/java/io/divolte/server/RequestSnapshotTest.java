@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.InetSocketAddress;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.xnio.OptionMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.ServerConnection;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+
+public class RequestSnapshotTest {
+    private static HttpServerExchange createExchange() {
+        final ServerConnection connection = mock(ServerConnection.class);
+        when(connection.getUndertowOptions()).thenReturn(OptionMap.EMPTY);
+        final HttpServerExchange exchange = new HttpServerExchange(connection);
+        exchange.setSourceAddress(new InetSocketAddress("192.168.13.23", 0));
+        exchange.addQueryParam("p", "party")
+                .addQueryParam("a", "first")
+                .addQueryParam("a", "second");
+        exchange.getRequestHeaders()
+                .put(Headers.USER_AGENT, "Test/1.0")
+                .put(Headers.COOKIE, "wanted=yes; unwanted=no")
+                .addAll(HttpString.tryFromString("X-Divolte-Test"), ImmutableList.of("first", "last"))
+                .put(HttpString.tryFromString("X-Divolte-Unwanted"), "ignored");
+        return exchange;
+    }
+
+    @Test
+    public void shouldCaptureSourceAddressAndQueryParameters() {
+        final RequestSnapshot snapshot = RequestSnapshot.capture(createExchange(), RequestSnapshot.Capture.NONE);
+
+        assertEquals(Optional.of("192.168.13.23"), snapshot.sourceAddress.map(InetSocketAddress::getHostString));
+        assertEquals(ImmutableList.of("a", "p"), snapshot.queryParameters.keySet().asList());
+        assertEquals(ImmutableList.of("first", "second"), snapshot.queryParameters.get("a"));
+        assertEquals(Optional.of("first"), snapshot.queryParameter("a"));
+        assertEquals(Optional.empty(), snapshot.queryParameter("missing"));
+    }
+
+    @Test
+    public void shouldOnlyCaptureReferencedHeadersAndCookies() {
+        final RequestSnapshot.Capture capture =
+                new RequestSnapshot.Capture(ImmutableSet.of(Headers.USER_AGENT, HttpString.tryFromString("x-divolte-test")),
+                                            ImmutableSet.of("wanted", "missing"));
+        final RequestSnapshot snapshot = RequestSnapshot.capture(createExchange(), capture);
+
+        assertEquals(Optional.of("Test/1.0"), snapshot.firstHeader(Headers.USER_AGENT));
+        assertEquals(Optional.of(ImmutableList.of("first", "last")), snapshot.header(HttpString.tryFromString("X-DIVOLTE-TEST")));
+        assertEquals(Optional.empty(), snapshot.header(HttpString.tryFromString("X-Divolte-Unwanted")));
+        assertEquals(Optional.empty(), snapshot.header(Headers.COOKIE));
+        assertEquals(Optional.of("yes"), snapshot.cookie("wanted"));
+        assertEquals(Optional.empty(), snapshot.cookie("unwanted"));
+        assertEquals(Optional.empty(), snapshot.cookie("missing"));
+    }
+}
@@ -199,7 +199,7 @@ public class SeleniumJavaScriptTest extends SeleniumTestBase {
         final EventPayload payload = server.waitForEvent();
 
         final DivolteEvent eventData = payload.event;
-        final Boolean detectedDuplicate = payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY);
+        final Boolean detectedDuplicate = payload.event.request.getAttachment(DUPLICATE_EVENT_KEY);
 
         assertFalse(eventData.corruptEvent);
         assertFalse(detectedDuplicate);
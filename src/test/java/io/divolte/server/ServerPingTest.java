@@ -18,6 +18,7 @@ package io.divolte.server;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import io.divolte.server.ServerTestUtils.TestServer;
 import org.junit.After;
@@ -88,6 +89,19 @@ public class ServerPingTest {
         }
     }
 
+    @Test
+    public void shouldReportUnavailableWhenOverloaded() throws IOException {
+        Preconditions.checkState(null != testServer);
+        testServer.shutdown();
+        // With an empty high-water mark the server is always considered overloaded.
+        testServer = new TestServer("reference-test.conf",
+                                    ImmutableMap.of("divolte.global.mapper.admission.high_water_mark", 0.0,
+                                                    "divolte.global.mapper.admission.unhealthy_after", "0 seconds"));
+        final URL url = new URL(String.format("http://%s:%d/ping", testServer.host, testServer.port));
+
+        assertEquals(HTTP_UNAVAILABLE, pingServer(url, Optional.empty()));
+    }
+
     private static int pingServer(final URL url, final Optional<String> expectedBody) throws IOException {
         final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         final int responseCode;
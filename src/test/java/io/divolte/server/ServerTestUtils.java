@@ -17,12 +17,12 @@
 package io.divolte.server;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
 import io.divolte.server.config.ValidatedConfiguration;
-import io.undertow.server.HttpServerExchange;
-import io.undertow.server.ServerConnection;
 import org.apache.avro.generic.GenericRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,8 +43,6 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.mockito.Mockito.mock;
-
 public final class ServerTestUtils {
     private static final Logger logger = LoggerFactory.getLogger(ServerTestUtils.class);
 
@@ -205,8 +203,8 @@ public final class ServerTestUtils {
 
     public static DivolteEvent createMockBrowserEvent() {
         final Instant now = Instant.now();
-        final HttpServerExchange mockExchange = new HttpServerExchange(mock(ServerConnection.class));
-        return new DivolteEvent(mockExchange,
+        final RequestSnapshot request = new RequestSnapshot(Optional.empty(), ImmutableSortedMap.of(), ImmutableMap.of(), ImmutableMap.of());
+        return new DivolteEvent(request,
                                 false,
                                 DivolteIdentifier.generate(),
                                 DivolteIdentifier.generate(),
@@ -96,15 +96,15 @@ public class ShortTermDuplicateMemoryTest {
 
         request(0);
         payload = server.waitForEvent();
-        assertEquals(false, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(false, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
 
         request(1);
         payload = server.waitForEvent();
-        assertEquals(false, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(false, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
 
         request(0);
         payload = server.waitForEvent();
-        assertEquals(true, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(true, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
     }
 
     @Test
@@ -113,23 +113,23 @@ public class ShortTermDuplicateMemoryTest {
 
         request(1);
         payload = server.waitForEvent();
-        assertEquals(false, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(false, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
 
         request(0);
         payload = server.waitForEvent();
-        assertEquals(false, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(false, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
 
         request(1);
         payload = server.waitForEvent();
-        assertEquals(true, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(true, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
 
         request(2);
         payload = server.waitForEvent();
-        assertEquals(false, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(false, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
 
         request(1);
         payload = server.waitForEvent();
-        assertEquals(false, payload.event.exchange.getAttachment(DUPLICATE_EVENT_KEY));
+        assertEquals(false, payload.event.request.getAttachment(DUPLICATE_EVENT_KEY));
     }
 
     private void request(final int which) throws IOException {
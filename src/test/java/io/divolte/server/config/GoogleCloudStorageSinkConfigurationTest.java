@@ -20,6 +20,7 @@ import com.typesafe.config.ConfigFactory;
 import net.jodah.failsafe.RetryPolicy;
 import org.junit.Test;
 
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Optional;
 
@@ -75,4 +76,41 @@ public class GoogleCloudStorageSinkConfigurationTest {
         assertEquals(Duration.of(25, SECONDS), retryPolicy.getMaxDelay());
         assertEquals(1925, retryPolicy.getJitter().toMillis(), DEFAULT_DELTA);
     }
+
+    @Test
+    public void testUploadModeDefaultsToCompose() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("gcs-jitter-factor.conf"));
+        assertEquals(GoogleCloudStorageUploadMode.COMPOSE,
+                     vc.configuration().getSinkConfiguration("gcs", GoogleCloudStorageSinkConfiguration.class).uploadMode);
+    }
+
+    @Test
+    public void testResumableUploadMode() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("gcs-sink.conf"));
+        assertEquals(GoogleCloudStorageUploadMode.RESUMABLE,
+                     vc.configuration().getSinkConfiguration("gcs", GoogleCloudStorageSinkConfiguration.class).uploadMode);
+    }
+
+    @Test
+    public void testSpoolingDisabledByDefault() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("gcs-jitter-factor.conf"));
+        assertEquals(Optional.empty(),
+                     vc.configuration().getSinkConfiguration("gcs", GoogleCloudStorageSinkConfiguration.class).spool.spoolDirectory());
+    }
+
+    @Test
+    public void testSpoolConfiguration() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("gcs-sink.conf"));
+        assertEquals(Optional.of(Paths.get("/var/spool/divolte")),
+                     vc.configuration().getSinkConfiguration("gcs", GoogleCloudStorageSinkConfiguration.class).spool.spoolDirectory());
+    }
+
+    @Test
+    public void testParquetFormatInvalid() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseString("divolte.sinks.gcs.format = parquet")
+                                                                                        .withFallback(ConfigFactory.parseResources("gcs-sink.conf")));
+        assertFalse(vc.isValid());
+        assertEquals(1, vc.errors().size());
+        assertTrue(vc.errors().get(0).contains("Google Cloud Storage sinks can only write Avro files."));
+    }
 }
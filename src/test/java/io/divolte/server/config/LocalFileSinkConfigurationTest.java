@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.config;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocalFileSinkConfigurationTest {
+    @Test
+    public void testWriteBufferSizeDefault() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseString("divolte.sinks.local.type = local")
+                                                                                        .withFallback(ConfigFactory.parseResources("reference.conf")));
+        assertTrue(vc.isValid());
+        assertEquals(1048576, vc.configuration().getSinkConfiguration("local", LocalFileSinkConfiguration.class).writeBufferSize);
+    }
+
+    @Test
+    public void testFormatDefaultsToAvro() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("local-sink.conf"));
+        assertEquals(FileFormat.AVRO, vc.configuration().getSinkConfiguration("local", LocalFileSinkConfiguration.class).format);
+    }
+
+    @Test
+    public void testParquetConfiguration() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseString("divolte.sinks.local { format = parquet, parquet.compression = gzip }")
+                                                                                        .withFallback(ConfigFactory.parseResources("local-sink.conf")));
+        assertTrue(vc.isValid());
+
+        final LocalFileSinkConfiguration sinkConfiguration = vc.configuration().getSinkConfiguration("local", LocalFileSinkConfiguration.class);
+        assertEquals(FileFormat.PARQUET, sinkConfiguration.format);
+        assertEquals(ParquetCompressionCodec.GZIP, sinkConfiguration.parquet.compression);
+        assertEquals(128 * 1024 * 1024, sinkConfiguration.parquet.rowGroupSize);
+    }
+
+    @Test
+    public void testWriteBufferSize() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("local-sink.conf"));
+        assertTrue(vc.isValid());
+
+        final LocalFileSinkConfiguration sinkConfiguration = vc.configuration().getSinkConfiguration("local", LocalFileSinkConfiguration.class);
+        assertEquals(4194304, sinkConfiguration.writeBufferSize);
+        assertEquals("/var/divolte/inflight", sinkConfiguration.fileStrategy.workingDir);
+    }
+
+    @Test
+    public void testTinyWriteBufferSizeInvalid() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseString("divolte.sinks.local.write_buffer_size = 16")
+                                                                                        .withFallback(ConfigFactory.parseResources("local-sink.conf")));
+        assertFalse(vc.isValid());
+        assertEquals(1, vc.errors().size());
+        assertTrue(vc.errors().get(0).startsWith("Property 'divolte.sinks[local].writeBufferSize'"));
+    }
+}
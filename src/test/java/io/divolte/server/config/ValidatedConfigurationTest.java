@@ -25,6 +25,7 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import java.time.Duration;
+import java.util.Optional;
 
 public class ValidatedConfigurationTest {
     @Test
@@ -75,6 +76,49 @@ public class ValidatedConfigurationTest {
         assertTrue(vc.errors().isEmpty());
     }
 
+    @Test
+    public void checkpointingRequiresFile() {
+        final Config config = ConfigFactory.parseMap(ImmutableMap.of("divolte.global.server.checkpoint.enabled", true))
+                                           .withFallback(ConfigFactory.parseResources("base-test-server.conf"))
+                                           .withFallback(ConfigFactory.parseResources("reference-test.conf"));
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> config);
+
+        assertFalse(vc.isValid());
+        assertEquals(1, vc.errors().size());
+        assertTrue(vc.errors().get(0).contains("A checkpoint file must be configured if checkpointing is enabled."));
+
+        final ValidatedConfiguration withFile = new ValidatedConfiguration(() -> ConfigFactory.parseMap(ImmutableMap.of("divolte.global.server.checkpoint.file", "/var/lib/divolte/checkpoint"))
+                                                                                               .withFallback(config));
+        assertTrue(withFile.isValid());
+    }
+
+    @Test
+    public void shouldMapQueueByteLimits() {
+        final Config config = ConfigFactory.parseMap(ImmutableMap.of("divolte.global.max_queued_bytes", 1000,
+                                                                     "divolte.global.kafka.queue.max_bytes", 100))
+                                           .withFallback(ConfigFactory.parseResources("base-test-server.conf"))
+                                           .withFallback(ConfigFactory.parseResources("reference-test.conf"));
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> config);
+
+        assertTrue(vc.errors().isEmpty());
+        assertEquals(Optional.of(1000L), vc.configuration().global.maxQueuedBytes);
+        assertEquals(Optional.of(100L), vc.configuration().global.kafka.queue.maxBytes);
+        assertEquals(Optional.empty(), vc.configuration().global.mapper.queue.maxBytes);
+    }
+
+    @Test
+    public void shouldRejectMinimumBatchSizeAboveMaximum() {
+        final Config config = ConfigFactory.parseMap(ImmutableMap.of("divolte.global.kafka.batch.min_size", 100,
+                                                                     "divolte.global.kafka.batch.max_size", 10))
+                                           .withFallback(ConfigFactory.parseResources("base-test-server.conf"))
+                                           .withFallback(ConfigFactory.parseResources("reference-test.conf"));
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> config);
+
+        assertFalse(vc.isValid());
+        assertEquals(1, vc.errors().size());
+        assertTrue(vc.errors().get(0).contains("The minimum batch size may not be larger than the maximum batch size."));
+    }
+
     @Test
     public void shouldReportMissingSourcesAndSinks() {
         final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("missing-sources-sinks.conf"));
@@ -165,6 +209,25 @@ public class ValidatedConfigurationTest {
         );
     }
 
+    @Test
+    public void kafkaSinksSharingTopicMustSerializeTheSame() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("kafka-sink-shared-topic-conflict.conf"));
+        assertFalse(vc.isValid());
+        assertEquals(1, vc.errors().size());
+        assertTrue(
+            vc.errors()
+                .get(0)
+                .startsWith("Property 'divolte.' Kafka sinks that publish to the same topic must use the same mode and, in confluent mode, the same 'confluent_id'. The following topics have sinks that differ: [events]..")
+        );
+    }
+
+    @Test
+    public void kafkaSinksSharingTopicInNakedModeMayUseDifferentSchemas() {
+        final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseString("divolte.sinks.kafka-confluent.mode = naked")
+                                                                                        .withFallback(ConfigFactory.parseResources("kafka-sink-shared-topic-conflict.conf")));
+        assertTrue(vc.isValid());
+    }
+
     @Test
     public void shouldSetShutdownDelay() {
         final ValidatedConfiguration vc = new ValidatedConfiguration(() -> ConfigFactory.parseResources("reference-test-shutdown.conf"));
@@ -274,6 +274,38 @@ public class FileFlusherTest {
         calls.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void shouldDeclareHeartbeatForNextSyncRollOrReconnect() throws IOException {
+        final FileStrategyConfiguration fileStrategyConfiguration = setupConfiguration("1 hour", "200 milliseconds", "200");
+
+        // Mocks
+        final FileManager manager = mock(FileManager.class);
+        final DivolteFile file = mock(DivolteFile.class);
+
+        final Item<AvroRecordBuffer> item = itemFromAvroRecordBuffer(newAvroRecordBuffer());
+
+        when(manager.createFile(anyString())).thenReturn(file);
+        doNothing().doThrow(new IOException("append")).when(file).append(item.payload);
+
+        final long start = System.nanoTime();
+        final FileFlusher flusher = new FileFlusher(fileStrategyConfiguration, manager, 50_000_000L);
+
+        // Nothing to sync yet: the next deadline is rolling the file.
+        final long rollDeadline = flusher.nextHeartbeat().getAsLong();
+        assertTrue(rollDeadline - start > 3_500_000_000_000L);
+
+        // A pending record has to be synced within 200 milliseconds.
+        assertEquals(CONTINUE, flusher.process(item));
+        final long syncDeadline = flusher.nextHeartbeat().getAsLong() - start;
+        assertTrue(syncDeadline > 0 && syncDeadline <= 200_000_000L + (System.nanoTime() - start));
+
+        // Once the file system is unavailable, the next deadline is reconnecting.
+        final long failure = System.nanoTime();
+        assertEquals(PAUSE, flusher.process(item));
+        final long reconnectDeadline = flusher.nextHeartbeat().getAsLong() - failure;
+        assertTrue(reconnectDeadline > 0 && reconnectDeadline <= 50_000_001L + (System.nanoTime() - failure));
+    }
+
     @Test
     public void shouldAttemptReconnectMoreThanOnceAfterProcessFailure() throws IOException, InterruptedException {
         final FileStrategyConfiguration fileStrategyConfiguration = setupConfiguration("1 hour", "1 hour", "200");
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.gcs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.config.GoogleCloudStorageUploadMode;
+import io.divolte.server.filesinks.FileManager.DivolteFile;
+import net.jodah.failsafe.RetryPolicy;
+import okhttp3.OkHttpClient;
+
+public class GoogleCloudStorageFileManagerTest {
+    private static final int SYNC_AFTER_RECORDS = 10;
+    // Enough records to fill at least one chunk of a resumable upload.
+    private static final int RESUMABLE_SYNC_AFTER_RECORDS = 20_000;
+
+    private final Schema schema;
+
+    @Rule
+    public final TemporaryFolder spoolFolder = new TemporaryFolder();
+
+    private LocalGoogleCloudStorage storage;
+    private GoogleCloudStorageFileManager manager;
+
+    public GoogleCloudStorageFileManagerTest() throws IOException {
+        try (final InputStream resourceStream = this.getClass().getResourceAsStream("/MinimalRecord.avsc")) {
+            schema = new Schema.Parser().parse(resourceStream);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        storage = new LocalGoogleCloudStorage();
+        manager = newManager(GoogleCloudStorageUploadMode.COMPOSE, SYNC_AFTER_RECORDS);
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+    }
+
+    @Test
+    public void shouldComposeSyncedPartsIntoPublishedFile() throws IOException {
+        final DivolteFile file = manager.createFile("file.avro");
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        appendAndSync(file, SYNC_AFTER_RECORDS, SYNC_AFTER_RECORDS);
+        append(file, 2 * SYNC_AFTER_RECORDS, 3);
+        file.closeAndPublish();
+
+        assertEquals(ImmutableList.of("published/file.avro"), ImmutableList.copyOf(storage.objects().keySet()));
+        assertEquals(expectedTimestamps(2 * SYNC_AFTER_RECORDS + 3), publishedTimestamps("published/file.avro"));
+        assertEquals(ImmutableList.of("UPLOAD inflight/file.avro",
+                                      "UPLOAD inflight/file.avro.part",
+                                      "COMPOSE inflight/file.avro",
+                                      "UPLOAD inflight/file.avro.part",
+                                      "COMPOSE inflight/file.avro",
+                                      "UPLOAD inflight/file.avro.part",
+                                      "COMPOSE published/file.avro",
+                                      "DELETE inflight/file.avro.part",
+                                      "DELETE inflight/file.avro"),
+                     storage.requestLog());
+    }
+
+    @Test
+    public void shouldContinueAppendingWhileUploading() throws Exception {
+        storage.holdPartUploads();
+
+        final DivolteFile file = manager.createFile("file.avro");
+        // Handing off the first buffer does not wait for its upload.
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        append(file, SYNC_AFTER_RECORDS, SYNC_AFTER_RECORDS);
+
+        // With both buffers full, the next sync has to wait for the upload.
+        final CompletableFuture<Void> secondSync = CompletableFuture.runAsync(() -> {
+            try {
+                file.sync();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            secondSync.get(200, TimeUnit.MILLISECONDS);
+            fail("Sync completed while both buffers were full.");
+        } catch (final TimeoutException e) {
+            // Expected.
+        }
+
+        storage.releasePartUploads();
+        secondSync.get(10, TimeUnit.SECONDS);
+        file.closeAndPublish();
+
+        assertEquals(expectedTimestamps(2 * SYNC_AFTER_RECORDS), publishedTimestamps("published/file.avro"));
+    }
+
+    @Test
+    public void shouldReportFailedUploadOnNextSync() throws IOException {
+        storage.failPartUploads(403);
+
+        final DivolteFile file = manager.createFile("file.avro");
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        append(file, SYNC_AFTER_RECORDS, 1);
+        try {
+            file.sync();
+            fail("Failed upload was not reported.");
+        } catch (final IOException e) {
+            // Expected.
+        }
+
+        file.discard();
+        assertThat(storage.objects().keySet(), is(empty()));
+    }
+
+    @Test
+    public void shouldDeleteObjectsOnDiscard() throws IOException {
+        final DivolteFile file = manager.createFile("file.avro");
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        append(file, SYNC_AFTER_RECORDS, 1);
+        file.discard();
+
+        assertThat(storage.objects().keySet(), is(empty()));
+        assertThat(storage.requestLog(), hasItems("DELETE inflight/file.avro.part", "DELETE inflight/file.avro"));
+    }
+
+    @Test
+    public void shouldAppendSyncsToResumableUploadAndFinalizeOnPublish() throws IOException {
+        final GoogleCloudStorageFileManager resumableManager = newManager(GoogleCloudStorageUploadMode.RESUMABLE, RESUMABLE_SYNC_AFTER_RECORDS);
+
+        final DivolteFile file = resumableManager.createFile("file.avro");
+        // Too little data for a chunk; nothing is sent.
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        appendAndSync(file, SYNC_AFTER_RECORDS, RESUMABLE_SYNC_AFTER_RECORDS);
+        append(file, SYNC_AFTER_RECORDS + RESUMABLE_SYNC_AFTER_RECORDS, 3);
+        file.closeAndPublish();
+
+        assertEquals(ImmutableList.of("published/file.avro"), ImmutableList.copyOf(storage.objects().keySet()));
+        assertEquals(expectedTimestamps(SYNC_AFTER_RECORDS + RESUMABLE_SYNC_AFTER_RECORDS + 3), publishedTimestamps("published/file.avro"));
+        assertEquals(ImmutableList.of("START published/file.avro",
+                                      "CHUNK published/file.avro",
+                                      "FINISH published/file.avro"),
+                     storage.requestLog());
+    }
+
+    @Test
+    public void shouldResendWhatWasNotPersistedOfChunk() throws IOException {
+        final GoogleCloudStorageFileManager resumableManager = newManager(GoogleCloudStorageUploadMode.RESUMABLE, 2 * RESUMABLE_SYNC_AFTER_RECORDS);
+
+        final DivolteFile file = resumableManager.createFile("file.avro");
+        storage.persistPartialChunk();
+        appendAndSync(file, 0, 2 * RESUMABLE_SYNC_AFTER_RECORDS);
+        append(file, 2 * RESUMABLE_SYNC_AFTER_RECORDS, 3);
+        file.closeAndPublish();
+
+        assertEquals(expectedTimestamps(2 * RESUMABLE_SYNC_AFTER_RECORDS + 3), publishedTimestamps("published/file.avro"));
+        assertEquals(ImmutableList.of("START published/file.avro",
+                                      "PARTIAL CHUNK published/file.avro",
+                                      "CHUNK published/file.avro",
+                                      "FINISH published/file.avro"),
+                     storage.requestLog());
+    }
+
+    @Test
+    public void shouldCancelResumableUploadOnDiscard() throws IOException {
+        final GoogleCloudStorageFileManager resumableManager = newManager(GoogleCloudStorageUploadMode.RESUMABLE, RESUMABLE_SYNC_AFTER_RECORDS);
+
+        final DivolteFile file = resumableManager.createFile("file.avro");
+        appendAndSync(file, 0, RESUMABLE_SYNC_AFTER_RECORDS);
+        file.discard();
+
+        assertThat(storage.objects().keySet(), is(empty()));
+        assertEquals(0, storage.openResumableUploads());
+        assertThat(storage.requestLog(), hasItem("CANCEL published/file.avro"));
+    }
+
+    @Test
+    public void shouldComposeSpooledParts() throws IOException {
+        final Path spoolDirectory = spoolFolder.getRoot().toPath().resolve("spool");
+        final GoogleCloudStorageFileManager spoolingManager = newManager(GoogleCloudStorageUploadMode.COMPOSE, SYNC_AFTER_RECORDS, Optional.of(spoolDirectory));
+
+        final DivolteFile file = spoolingManager.createFile("file.avro");
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        appendAndSync(file, SYNC_AFTER_RECORDS, SYNC_AFTER_RECORDS);
+        append(file, 2 * SYNC_AFTER_RECORDS, 3);
+        file.closeAndPublish();
+
+        assertEquals(ImmutableList.of("published/file.avro"), ImmutableList.copyOf(storage.objects().keySet()));
+        assertEquals(expectedTimestamps(2 * SYNC_AFTER_RECORDS + 3), publishedTimestamps("published/file.avro"));
+        // The spool directory is created on demand, and cleaned up afterwards.
+        assertThat(spoolDirectory.toFile().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldAppendSpooledPartsToResumableUpload() throws IOException {
+        final Path spoolDirectory = spoolFolder.getRoot().toPath();
+        final GoogleCloudStorageFileManager spoolingManager = newManager(GoogleCloudStorageUploadMode.RESUMABLE, RESUMABLE_SYNC_AFTER_RECORDS, Optional.of(spoolDirectory));
+
+        final DivolteFile file = spoolingManager.createFile("file.avro");
+        // Too little data for a chunk; nothing is sent.
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        appendAndSync(file, SYNC_AFTER_RECORDS, RESUMABLE_SYNC_AFTER_RECORDS);
+        appendAndSync(file, SYNC_AFTER_RECORDS + RESUMABLE_SYNC_AFTER_RECORDS, RESUMABLE_SYNC_AFTER_RECORDS);
+        append(file, SYNC_AFTER_RECORDS + 2 * RESUMABLE_SYNC_AFTER_RECORDS, 3);
+        file.closeAndPublish();
+
+        assertEquals(expectedTimestamps(SYNC_AFTER_RECORDS + 2 * RESUMABLE_SYNC_AFTER_RECORDS + 3), publishedTimestamps("published/file.avro"));
+        assertEquals(ImmutableList.of("START published/file.avro",
+                                      "CHUNK published/file.avro",
+                                      "CHUNK published/file.avro",
+                                      "FINISH published/file.avro"),
+                     storage.requestLog());
+        assertThat(spoolDirectory.toFile().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldRemoveSpoolFilesOnDiscard() throws IOException {
+        final Path spoolDirectory = spoolFolder.getRoot().toPath();
+        final GoogleCloudStorageFileManager spoolingManager = newManager(GoogleCloudStorageUploadMode.COMPOSE, SYNC_AFTER_RECORDS, Optional.of(spoolDirectory));
+
+        final DivolteFile file = spoolingManager.createFile("file.avro");
+        appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+        append(file, SYNC_AFTER_RECORDS, 1);
+        file.discard();
+
+        assertThat(storage.objects().keySet(), is(empty()));
+        assertThat(spoolDirectory.toFile().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldReuseConnectionOverHttps() throws IOException, GeneralSecurityException {
+        try (final LocalGoogleCloudStorage httpsStorage = new LocalGoogleCloudStorage(LocalGoogleCloudStorage.sslContext())) {
+            final OkHttpClient httpsClient = new OkHttpClient.Builder()
+                .followRedirects(false)
+                .sslSocketFactory(LocalGoogleCloudStorage.sslContext().getSocketFactory(), LocalGoogleCloudStorage.trustManager())
+                .build();
+            final GoogleCloudStorageFileManager httpsManager = newManager(GoogleCloudStorageUploadMode.COMPOSE, SYNC_AFTER_RECORDS, Optional.empty(), httpsStorage, httpsClient);
+
+            for (int i = 0; i < 3; ++i) {
+                final DivolteFile file = httpsManager.createFile("file-" + i + ".avro");
+                appendAndSync(file, 0, SYNC_AFTER_RECORDS);
+                append(file, SYNC_AFTER_RECORDS, 1);
+                file.closeAndPublish();
+            }
+
+            assertThat(httpsStorage.objects().keySet(), containsInAnyOrder("published/file-0.avro", "published/file-1.avro", "published/file-2.avro"));
+            assertThat(httpsStorage.requestLog(), hasSize(3 * 7));
+            assertEquals(1, httpsStorage.connectionCount());
+        }
+    }
+
+    private GoogleCloudStorageFileManager newManager(final GoogleCloudStorageUploadMode uploadMode, final int recordBufferSize) {
+        return newManager(uploadMode, recordBufferSize, Optional.empty());
+    }
+
+    private GoogleCloudStorageFileManager newManager(final GoogleCloudStorageUploadMode uploadMode,
+                                                     final int recordBufferSize,
+                                                     final Optional<Path> spoolDirectory) {
+        return newManager(uploadMode, recordBufferSize, spoolDirectory, storage, new OkHttpClient.Builder().followRedirects(false).build());
+    }
+
+    private GoogleCloudStorageFileManager newManager(final GoogleCloudStorageUploadMode uploadMode,
+                                                     final int recordBufferSize,
+                                                     final Optional<Path> spoolDirectory,
+                                                     final LocalGoogleCloudStorage standIn,
+                                                     final OkHttpClient httpClient) {
+        return new GoogleCloudStorageFileManager(recordBufferSize,
+                                                 schema,
+                                                 "bucket",
+                                                 "inflight",
+                                                 "published",
+                                                 new RetryPolicy<>().withMaxRetries(0),
+                                                 uploadMode,
+                                                 spoolDirectory,
+                                                 standIn.apiRoot(),
+                                                 httpClient,
+                                                 ImmutableMap::of);
+    }
+
+    private void appendAndSync(final DivolteFile file, final int first, final int count) throws IOException {
+        append(file, first, count);
+        file.sync();
+    }
+
+    private void append(final DivolteFile file, final int first, final int count) throws IOException {
+        for (int i = first; i < first + count; ++i) {
+            file.append(newAvroRecordBuffer(i));
+        }
+    }
+
+    private static List<Long> expectedTimestamps(final int count) {
+        final List<Long> timestamps = Lists.newArrayListWithCapacity(count);
+        for (long i = 0; i < count; ++i) {
+            timestamps.add(i);
+        }
+        return timestamps;
+    }
+
+    private List<Long> publishedTimestamps(final String name) throws IOException {
+        final byte[] content = storage.object(name).orElseThrow(() -> new AssertionError("Missing object: " + name));
+        final List<Long> timestamps = Lists.newArrayList();
+        try (final DataFileStream<GenericRecord> stream = new DataFileStream<>(new ByteArrayInputStream(content), new GenericDatumReader<>(schema))) {
+            stream.forEach(record -> timestamps.add((Long) record.get("ts")));
+        }
+        return timestamps;
+    }
+
+    private AvroRecordBuffer newAvroRecordBuffer(final long timestamp) {
+        final GenericRecord record = new GenericRecordBuilder(schema)
+            .set("ts", timestamp)
+            .set("remoteHost", "127.0.0.1")
+            .build();
+        return AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(),
+                                           DivolteIdentifier.generate(),
+                                           "anEventId",
+                                           Instant.ofEpochMilli(timestamp),
+                                           record);
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.gcs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/*
+ * Minimal in-memory stand-in for the parts of the Google Cloud Storage JSON API
+ * that are used by the file manager: media and resumable uploads, composing and
+ * deleting objects. Objects are kept per name; the bucket name in requests is ignored.
+ *
+ * The stand-in serves either plain HTTP or HTTPS, using a self-signed certificate
+ * for localhost from the test resources.
+ */
+@ParametersAreNonnullByDefault
+final class LocalGoogleCloudStorage implements AutoCloseable {
+    private static final String UPLOAD_PATH_PREFIX = "/upload/storage/v1/b/";
+    private static final String OBJECT_PATH_PREFIX = "/storage/v1/b/";
+    private static final String COMPOSE_PATH_SUFFIX = "/compose";
+    private static final String PART_SUFFIX = ".part";
+    private static final String UPLOAD_ID = "upload_id";
+    private static final int CHUNK_GRANULARITY = 256 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String KEYSTORE_RESOURCE = "/gcs-stand-in.p12";
+    private static final char[] KEYSTORE_PASSWORD = "divolte".toCharArray();
+
+    private final HttpServer server;
+    private final String scheme;
+    private final ExecutorService executor;
+    private final Set<InetSocketAddress> clientConnections = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, ResumableUpload> resumableUploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final List<String> requestLog = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile CountDownLatch partUploadGate = new CountDownLatch(0);
+    private volatile Optional<Integer> partUploadFailureStatus = Optional.empty();
+    private final AtomicBoolean persistPartialChunk = new AtomicBoolean();
+
+    LocalGoogleCloudStorage() throws IOException {
+        this(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0), "http");
+    }
+
+    LocalGoogleCloudStorage(final SSLContext sslContext) throws IOException {
+        this(httpsServer(sslContext), "https");
+    }
+
+    private LocalGoogleCloudStorage(final HttpServer server, final String scheme) {
+        this.server = server;
+        this.scheme = scheme;
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String apiRoot() {
+        return scheme + "://" + server.getAddress().getHostString() + ':' + server.getAddress().getPort();
+    }
+
+    Optional<byte[]> object(final String name) {
+        return Optional.ofNullable(objects.get(name));
+    }
+
+    Map<String, byte[]> objects() {
+        return Collections.unmodifiableMap(objects);
+    }
+
+    int connectionCount() {
+        return clientConnections.size();
+    }
+
+    int openResumableUploads() {
+        return resumableUploads.size();
+    }
+
+    ImmutableList<String> requestLog() {
+        synchronized (requestLog) {
+            return ImmutableList.copyOf(requestLog);
+        }
+    }
+
+    void holdPartUploads() {
+        partUploadGate = new CountDownLatch(1);
+    }
+
+    void releasePartUploads() {
+        partUploadGate.countDown();
+    }
+
+    void failPartUploads(final int status) {
+        partUploadFailureStatus = Optional.of(status);
+    }
+
+    /*
+     * Persist only some of the next chunk of a resumable upload that is larger than the
+     * minimum, as Google Cloud Storage may do: all of it but the last 256 KiB.
+     */
+    void persistPartialChunk() {
+        persistPartialChunk.set(true);
+    }
+
+    @Override
+    public void close() {
+        releasePartUploads();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static SSLContext sslContext() throws IOException, GeneralSecurityException {
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory().getKeyManagers(), new TrustManager[] { trustManager() }, null);
+        return sslContext;
+    }
+
+    static X509TrustManager trustManager() throws IOException, GeneralSecurityException {
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore());
+        return (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
+    }
+
+    private static KeyManagerFactory keyManagerFactory() throws IOException, GeneralSecurityException {
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore(), KEYSTORE_PASSWORD);
+        return keyManagerFactory;
+    }
+
+    private static KeyStore keyStore() throws IOException, GeneralSecurityException {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (final InputStream stream = LocalGoogleCloudStorage.class.getResourceAsStream(KEYSTORE_RESOURCE)) {
+            keyStore.load(stream, KEYSTORE_PASSWORD);
+        }
+        return keyStore;
+    }
+
+    private static HttpServer httpsServer(final SSLContext sslContext) throws IOException {
+        final HttpsServer server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        return server;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        clientConnections.add(exchange.getRemoteAddress());
+        try (final InputStream body = exchange.getRequestBody()) {
+            final String method = exchange.getRequestMethod();
+            final String path = exchange.getRequestURI().getRawPath();
+            final byte[] content = ByteStreams.toByteArray(body);
+            final Optional<String> uploadId = queryParameter(exchange, UPLOAD_ID);
+            if ("POST".equals(method) && path.startsWith(UPLOAD_PATH_PREFIX)
+                    && queryParameter(exchange, "uploadType").filter("resumable"::equals).isPresent()) {
+                startResumableUpload(exchange, requiredQueryParameter(exchange, "name"));
+            } else if ("PUT".equals(method) && uploadId.isPresent()) {
+                continueResumableUpload(exchange, uploadId.get(), content);
+            } else if ("DELETE".equals(method) && uploadId.isPresent()) {
+                cancelResumableUpload(exchange, uploadId.get());
+            } else if ("POST".equals(method) && path.startsWith(UPLOAD_PATH_PREFIX)) {
+                upload(exchange, requiredQueryParameter(exchange, "name"), content);
+            } else if ("POST".equals(method) && path.endsWith(COMPOSE_PATH_SUFFIX)) {
+                compose(exchange, objectName(path.substring(0, path.length() - COMPOSE_PATH_SUFFIX.length())), content);
+            } else if ("DELETE".equals(method)) {
+                delete(exchange, objectName(path));
+            } else {
+                respond(exchange, 400, "Unsupported request: " + method + ' ' + path);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted.");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void upload(final HttpExchange exchange, final String name, final byte[] content) throws IOException, InterruptedException {
+        if (name.endsWith(PART_SUFFIX)) {
+            partUploadGate.await();
+            final Optional<Integer> failureStatus = partUploadFailureStatus;
+            if (failureStatus.isPresent()) {
+                requestLog.add("FAILED UPLOAD " + name);
+                respond(exchange, failureStatus.get(), "Upload failed.");
+                return;
+            }
+        }
+        objects.put(name, content);
+        requestLog.add("UPLOAD " + name);
+        respondWithObject(exchange, name);
+    }
+
+    private void startResumableUpload(final HttpExchange exchange, final String name) throws IOException {
+        final String uploadId = Integer.toString(uploadIds.incrementAndGet());
+        resumableUploads.put(uploadId, new ResumableUpload(name));
+        requestLog.add("START " + name);
+        exchange.getResponseHeaders().add("Location", apiRoot() + UPLOAD_PATH_PREFIX + "bucket/o?uploadType=resumable&" + UPLOAD_ID + '=' + uploadId);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void continueResumableUpload(final HttpExchange exchange, final String uploadId, final byte[] content) throws IOException {
+        final ResumableUpload upload = resumableUploads.get(uploadId);
+        final Matcher range = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+        if (null == upload) {
+            respond(exchange, 404, "Not found.");
+            return;
+        }
+        if (!range.matches()
+                || null != range.group(1) && Long.parseLong(range.group(1)) != upload.content.size()
+                || null != range.group(2) && Long.parseLong(range.group(2)) != upload.content.size() + content.length - 1) {
+            respond(exchange, 400, "Invalid Content-Range.");
+            return;
+        }
+        if ("*".equals(range.group(3))) {
+            final int persisted = content.length > CHUNK_GRANULARITY && persistPartialChunk.getAndSet(false)
+                ? content.length - CHUNK_GRANULARITY
+                : content.length;
+            upload.content.write(content, 0, persisted);
+            if (0 != upload.content.size() % CHUNK_GRANULARITY) {
+                respond(exchange, 400, "Chunk size must be a multiple of 256 KiB.");
+                return;
+            }
+            requestLog.add((persisted < content.length ? "PARTIAL CHUNK " : "CHUNK ") + upload.name);
+            exchange.getResponseHeaders().add("Range", "bytes=0-" + (upload.content.size() - 1));
+            exchange.sendResponseHeaders(308, -1);
+        } else if (Long.parseLong(range.group(3)) != upload.content.size() + content.length) {
+            respond(exchange, 400, "Invalid total size.");
+        } else {
+            upload.content.write(content);
+            resumableUploads.remove(uploadId);
+            objects.put(upload.name, upload.content.toByteArray());
+            requestLog.add("FINISH " + upload.name);
+            respondWithObject(exchange, upload.name);
+        }
+    }
+
+    private void cancelResumableUpload(final HttpExchange exchange, final String uploadId) throws IOException {
+        final ResumableUpload upload = resumableUploads.remove(uploadId);
+        if (null == upload) {
+            respond(exchange, 404, "Not found.");
+        } else {
+            requestLog.add("CANCEL " + upload.name);
+            exchange.sendResponseHeaders(499, -1);
+        }
+    }
+
+    private void compose(final HttpExchange exchange, final String destination, final byte[] content) throws IOException {
+        final JsonNode request = MAPPER.readTree(content);
+        final ByteArrayOutputStream composed = new ByteArrayOutputStream();
+        for (final JsonNode source : request.get("sourceObjects")) {
+            final byte[] sourceContent = objects.get(source.get("name").asText());
+            if (null == sourceContent) {
+                respond(exchange, 404, "Not found.");
+                return;
+            }
+            composed.write(sourceContent);
+        }
+        objects.put(destination, composed.toByteArray());
+        requestLog.add("COMPOSE " + destination);
+        respondWithObject(exchange, destination);
+    }
+
+    private void delete(final HttpExchange exchange, final String name) throws IOException {
+        if (null == objects.remove(name)) {
+            respond(exchange, 404, "Not found.");
+        } else {
+            requestLog.add("DELETE " + name);
+            exchange.sendResponseHeaders(204, -1);
+        }
+    }
+
+    private void respondWithObject(final HttpExchange exchange, final String name) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        respond(exchange, 200, MAPPER.createObjectNode()
+                                     .put("kind", "storage#object")
+                                     .put("name", name)
+                                     .put("size", Integer.toString(objects.get(name).length))
+                                     .toString());
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (final OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String objectName(final String rawPath) {
+        // Paths are of the form /storage/v1/b/<bucket>/o/<name>
+        final int nameStart = rawPath.indexOf("/o/", OBJECT_PATH_PREFIX.length()) + "/o/".length();
+        return decode(rawPath.substring(nameStart));
+    }
+
+    private static String requiredQueryParameter(final HttpExchange exchange, final String parameter) {
+        return queryParameter(exchange, parameter)
+            .orElseThrow(() -> new IllegalArgumentException("Missing query parameter: " + parameter));
+    }
+
+    private static Optional<String> queryParameter(final HttpExchange exchange, final String parameter) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (null != query) {
+            for (final String pair : query.split("&")) {
+                final int separator = pair.indexOf('=');
+                if (decode(pair.substring(0, separator)).equals(parameter)) {
+                    return Optional.of(decode(pair.substring(separator + 1)));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static final class ResumableUpload {
+        final String name;
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        ResumableUpload(final String name) {
+            this.name = name;
+        }
+    }
+
+    private static String decode(final String encoded) {
+        try {
+            return URLDecoder.decode(encoded, StandardCharsets.UTF_8.name());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
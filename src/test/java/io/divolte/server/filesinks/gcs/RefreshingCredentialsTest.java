@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.gcs;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+
+public class RefreshingCredentialsTest {
+    private static final long NOW = 1_500_000_000_000L;
+
+    @Test
+    public void shouldRefreshAheadOfExpiry() {
+        final AccessToken token = new AccessToken("token", new Date(NOW + Duration.ofHours(1).toMillis()));
+        assertEquals(Optional.of(Duration.ofMinutes(50)), RefreshingCredentials.untilRefresh(token, NOW));
+    }
+
+    @Test
+    public void shouldNotRefreshShortLivedTokenTooOften() {
+        final AccessToken token = new AccessToken("token", new Date(NOW + Duration.ofMinutes(5).toMillis()));
+        assertEquals(Optional.of(RefreshingCredentials.REFRESH_RETRY_DELAY), RefreshingCredentials.untilRefresh(token, NOW));
+    }
+
+    @Test
+    public void shouldNotRefreshTokenWithoutExpiry() {
+        final AccessToken token = new AccessToken("token", null);
+        assertEquals(Optional.empty(), RefreshingCredentials.untilRefresh(token, NOW));
+    }
+
+    @Test
+    public void shouldRefreshInBackground() throws Exception {
+        final CountingCredentials credentials = new CountingCredentials();
+        final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final RefreshingCredentials refreshingCredentials = RefreshingCredentials.start(credentials, refresher);
+
+            // Wait for the initial refresh to happen.
+            refresher.submit(() -> { }).get(10, TimeUnit.SECONDS);
+            assertEquals(1, credentials.refreshes.get());
+
+            // Using the credentials does not refresh them again.
+            assertEquals(Collections.singletonList("Bearer token-1"),
+                         refreshingCredentials.getRequestMetadata().get("Authorization"));
+            assertEquals(1, credentials.refreshes.get());
+        } finally {
+            refresher.shutdownNow();
+        }
+    }
+
+    private static final class CountingCredentials extends GoogleCredentials {
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger refreshes = new AtomicInteger();
+
+        @Override
+        public AccessToken refreshAccessToken() {
+            final int refresh = refreshes.incrementAndGet();
+            return new AccessToken("token-" + refresh, new Date(System.currentTimeMillis() + Duration.ofHours(1).toMillis()));
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
@@ -38,6 +39,10 @@ import org.apache.avro.generic.GenericData.Record;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecordBuilder;
 import org.apache.avro.io.DatumReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -118,6 +123,27 @@ public class FileFlusherLocalHdfsTest {
              .anyMatch(p -> p.toString().endsWith(".avro.partial")));
     }
 
+    @Test
+    public void shouldCreateAndPopulateParquetFile() throws IOException {
+        setupFlusher("1 day", 10, "parquet");
+        processRecords();
+
+        assertTrue(Files.walk(tempInflightDir)
+             .anyMatch(p -> p.toString().endsWith(".parquet.partial")));
+
+        flusher.cleanup();
+
+        final long verifiedFileCount =
+            Files.walk(tempPublishDir)
+                 .filter(p -> p.toString().endsWith(".parquet"))
+                 .filter(p -> {
+                     verifyParquetFile(records, p);
+                     return true;
+                 })
+                 .count();
+        assertEquals(1, verifiedFileCount);
+    }
+
     @Test
     public void shouldRollFilesWithSimpleStrategy() throws IOException, InterruptedException {
         setupFlusher("1 second", 5);
@@ -171,8 +197,13 @@ public class FileFlusherLocalHdfsTest {
     }
 
     private void setupFlusher(final String rollEvery, final int recordCount) throws IOException {
+        setupFlusher(rollEvery, recordCount, "avro");
+    }
+
+    private void setupFlusher(final String rollEvery, final int recordCount, final String format) throws IOException {
         final Config config = ConfigFactory
                 .parseMap(ImmutableMap.of(
+                        "divolte.sinks.hdfs.format", format,
                         "divolte.sinks.hdfs.file_strategy.roll_every", rollEvery,
                         "divolte.sinks.hdfs.file_strategy.working_dir", tempInflightDir.toString(),
                         "divolte.sinks.hdfs.file_strategy.publish_dir", tempPublishDir.toString()))
@@ -190,6 +221,7 @@ public class FileFlusherLocalHdfsTest {
 
         flusher = new FileFlusher(
                 vc.configuration().getSinkConfiguration("hdfs", FileSinkConfiguration.class).fileStrategy,
+                vc.configuration().getSinkConfiguration("hdfs", FileSinkConfiguration.class).format,
                 HdfsFileManager.newFactory(vc, "hdfs", schema).create()
                 );
     }
@@ -220,6 +252,20 @@ public class FileFlusherLocalHdfsTest {
         assertEquals(expected, result);
     }
 
+    private void verifyParquetFile(final List<Record> expected, final Path parquetFile) {
+        final List<Record> result = new ArrayList<>();
+        final org.apache.hadoop.fs.Path path = new org.apache.hadoop.fs.Path(parquetFile.toUri());
+        try (final ParquetReader<Record> reader =
+                 AvroParquetReader.<Record>builder(HadoopInputFile.fromPath(path, new Configuration(false))).build()) {
+            for (Record record = reader.read(); null != record; record = reader.read()) {
+                result.add(record);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        assertEquals(expected, result);
+    }
+
     private DataFileReader<Record> readAvroFile(final Schema schema, final File file) {
         final DatumReader<Record> dr = new GenericDatumReader<>(schema);
         try {
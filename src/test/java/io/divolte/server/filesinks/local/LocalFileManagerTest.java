@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.filesinks.local;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.config.FileFormat;
+import io.divolte.server.config.ParquetCompressionCodec;
+import io.divolte.server.config.ParquetConfiguration;
+import io.divolte.server.filesinks.FileManager.DivolteFile;
+
+public class LocalFileManagerTest {
+    // Small enough for records to regularly not fit in the remaining buffer.
+    private static final int WRITE_BUFFER_SIZE = 256;
+    // Small enough for a file to consist of several row groups.
+    private static final ParquetConfiguration PARQUET = new ParquetConfiguration(1024, ParquetCompressionCodec.SNAPPY);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Schema schema;
+
+    private Path inflightDir;
+    private Path publishDir;
+    private LocalFileManager manager;
+
+    public LocalFileManagerTest() throws IOException {
+        try (final InputStream resourceStream = this.getClass().getResourceAsStream("/MinimalRecord.avsc")) {
+            schema = new Schema.Parser().parse(resourceStream);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        inflightDir = folder.newFolder("inflight").toPath();
+        publishDir = folder.newFolder("published").toPath();
+        manager = new LocalFileManager(inflightDir, publishDir, WRITE_BUFFER_SIZE, schema, FileFormat.AVRO, PARQUET);
+    }
+
+    @Test
+    public void shouldWriteInProgressFileWithPartialExtension() throws IOException {
+        final DivolteFile file = manager.createFile("file.avro");
+
+        assertTrue(Files.exists(inflightDir.resolve("file.avro.partial")));
+        assertThat(publishDir.toFile().list(), emptyArray());
+        file.discard();
+    }
+
+    @Test
+    public void shouldMakeRecordsReadableOnSync() throws IOException {
+        final DivolteFile file = manager.createFile("file.avro");
+        append(file, 0, 100);
+        file.sync();
+
+        assertEquals(expectedTimestamps(0, 100), timestamps(inflightDir.resolve("file.avro.partial")));
+        file.discard();
+    }
+
+    @Test
+    public void shouldPublishFileWithAllRecords() throws IOException {
+        final DivolteFile file = manager.createFile("file.avro");
+        append(file, 0, 100);
+        file.sync();
+        append(file, 100, 50);
+        file.closeAndPublish();
+
+        assertThat(inflightDir.toFile().list(), emptyArray());
+        assertEquals(expectedTimestamps(0, 150), timestamps(publishDir.resolve("file.avro")));
+    }
+
+    @Test
+    public void shouldWriteRecordsLargerThanWriteBuffer() throws IOException {
+        final String largeValue = Strings.repeat("x", 4 * WRITE_BUFFER_SIZE);
+        final DivolteFile file = manager.createFile("file.avro");
+        for (long i = 0; i < 10; ++i) {
+            file.append(newAvroRecordBuffer(i, largeValue));
+        }
+        file.closeAndPublish();
+
+        try (final DataFileReader<GenericRecord> reader = new DataFileReader<>(publishDir.resolve("file.avro").toFile(), new GenericDatumReader<>(schema))) {
+            long expected = 0;
+            for (final GenericRecord record : reader) {
+                assertEquals(expected++, record.get("ts"));
+                assertEquals(largeValue, record.get("remoteHost").toString());
+            }
+            assertEquals(10, expected);
+        }
+    }
+
+    @Test
+    public void shouldRemoveFileOnDiscard() throws IOException {
+        final DivolteFile file = manager.createFile("file.avro");
+        append(file, 0, 10);
+        file.sync();
+        file.discard();
+
+        assertThat(inflightDir.toFile().list(), emptyArray());
+        assertThat(publishDir.toFile().list(), emptyArray());
+    }
+
+    @Test
+    public void shouldPublishParquetFileWithAllRecords() throws IOException {
+        final LocalFileManager parquetManager = new LocalFileManager(inflightDir, publishDir, WRITE_BUFFER_SIZE, schema, FileFormat.PARQUET, PARQUET);
+        final DivolteFile file = parquetManager.createFile("file.parquet");
+        append(file, 0, 1000);
+        file.sync();
+        append(file, 1000, 500);
+        file.closeAndPublish();
+
+        assertThat(inflightDir.toFile().list(), emptyArray());
+        final List<Long> timestamps = Lists.newArrayList();
+        try (final ParquetReader<GenericRecord> reader =
+                 AvroParquetReader.<GenericRecord>builder(HadoopInputFile.fromPath(new org.apache.hadoop.fs.Path(publishDir.resolve("file.parquet").toUri()),
+                                                                                   new Configuration(false)))
+                                  .build()) {
+            for (GenericRecord record = reader.read(); null != record; record = reader.read()) {
+                timestamps.add((Long) record.get("ts"));
+                assertEquals("127.0.0.1", record.get("remoteHost").toString());
+            }
+        }
+        assertEquals(expectedTimestamps(0, 1500), timestamps);
+    }
+
+    @Test
+    public void shouldRemoveParquetFileOnDiscard() throws IOException {
+        final LocalFileManager parquetManager = new LocalFileManager(inflightDir, publishDir, WRITE_BUFFER_SIZE, schema, FileFormat.PARQUET, PARQUET);
+        final DivolteFile file = parquetManager.createFile("file.parquet");
+        append(file, 0, 1000);
+        file.sync();
+        file.discard();
+
+        assertThat(inflightDir.toFile().list(), emptyArray());
+        assertThat(publishDir.toFile().list(), emptyArray());
+    }
+
+    private void append(final DivolteFile file, final long first, final int count) throws IOException {
+        for (long i = first; i < first + count; ++i) {
+            file.append(newAvroRecordBuffer(i, "127.0.0.1"));
+        }
+    }
+
+    private static List<Long> expectedTimestamps(final long first, final int count) {
+        return LongStream.range(first, first + count).boxed().collect(Collectors.toList());
+    }
+
+    private List<Long> timestamps(final Path path) throws IOException {
+        final List<Long> timestamps = Lists.newArrayList();
+        try (final DataFileReader<GenericRecord> reader = new DataFileReader<>(path.toFile(), new GenericDatumReader<>(schema))) {
+            reader.forEach(record -> timestamps.add((Long) record.get("ts")));
+        }
+        return timestamps;
+    }
+
+    private AvroRecordBuffer newAvroRecordBuffer(final long timestamp, final String remoteHost) {
+        final GenericRecord record = new GenericRecordBuilder(schema)
+            .set("ts", timestamp)
+            .set("remoteHost", remoteHost)
+            .build();
+        return AvroRecordBuffer.fromRecord(DivolteIdentifier.generate(),
+                                           DivolteIdentifier.generate(),
+                                           "anEventId",
+                                           Instant.ofEpochMilli(timestamp),
+                                           record);
+    }
+}
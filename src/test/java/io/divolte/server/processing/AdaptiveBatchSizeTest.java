@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+    private static final long FAST = Duration.ofMillis(1).toNanos();
+    private static final long SLOW = Duration.ofSeconds(1).toNanos();
+
+    private final AdaptiveBatchSize batchSize = new AdaptiveBatchSize(new BatchSettings(16, 256, Duration.ofMillis(100)));
+
+    @Test
+    public void shouldStartAtMinimumSize() {
+        assertEquals(16, batchSize.size());
+    }
+
+    @Test
+    public void shouldGrowWhileBacklogGrowsUpToMaximum() {
+        batchSize.update(FAST, 100);
+        assertEquals(32, batchSize.size());
+        batchSize.update(FAST, 200);
+        assertEquals(64, batchSize.size());
+        batchSize.update(FAST, 10_000);
+        batchSize.update(FAST, 10_000);
+        batchSize.update(FAST, 10_000);
+        assertEquals(256, batchSize.size());
+    }
+
+    @Test
+    public void shouldHoldWhileBacklogShrinks() {
+        batchSize.update(FAST, 1000);
+        batchSize.update(FAST, 500);
+        assertEquals(32, batchSize.size());
+    }
+
+    @Test
+    public void shouldShrinkWhenLatencyTargetIsMissed() {
+        batchSize.update(FAST, 1000);
+        batchSize.update(FAST, 1000);
+        batchSize.update(FAST, 1000);
+        assertEquals(128, batchSize.size());
+        // Even if the backlog keeps growing.
+        batchSize.update(SLOW, 2000);
+        assertEquals(64, batchSize.size());
+    }
+
+    @Test
+    public void shouldDriftToMinimumWhenQueueIsNearlyEmpty() {
+        batchSize.update(FAST, 1000);
+        batchSize.update(FAST, 1000);
+        assertEquals(64, batchSize.size());
+        batchSize.update(FAST, 0);
+        assertEquals(48, batchSize.size());
+        for (int i = 0; i < 10; ++i) {
+            batchSize.update(FAST, 0);
+        }
+        assertEquals(16, batchSize.size());
+    }
+
+    @Test
+    public void shouldNotChangeFixedSize() {
+        final AdaptiveBatchSize fixed = new AdaptiveBatchSize(BatchSettings.fixed(128));
+        fixed.update(FAST, 10_000);
+        fixed.update(SLOW, 10_000);
+        fixed.update(FAST, 0);
+        assertEquals(128, fixed.size());
+    }
+}
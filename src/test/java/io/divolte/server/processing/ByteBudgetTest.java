@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ByteBudgetTest {
+    @Test
+    public void shouldNotLimitWithoutAnyLimits() {
+        final ByteBudget budget = ByteBudget.create(Optional.empty(), ByteBudget.create(Optional.empty()));
+        assertTrue(budget.isUnlimited());
+        assertTrue(budget.tryAcquire(Integer.MAX_VALUE));
+        assertEquals(0, budget.rejectedBytes());
+    }
+
+    @Test
+    public void shouldRefuseBytesBeyondLimit() {
+        final ByteBudget budget = ByteBudget.create(Optional.of(100L));
+        assertTrue(budget.tryAcquire(60));
+        assertFalse(budget.tryAcquire(41));
+        assertTrue(budget.tryAcquire(40));
+        assertEquals(100, budget.usedBytes());
+        assertEquals(41, budget.rejectedBytes());
+
+        budget.release(60);
+        assertTrue(budget.tryAcquire(41));
+        assertEquals(81, budget.usedBytes());
+    }
+
+    @Test
+    public void shouldRespectParentLimit() {
+        final ByteBudget global = ByteBudget.create(Optional.of(100L));
+        final ByteBudget first = ByteBudget.create(Optional.of(80L), global);
+        final ByteBudget second = ByteBudget.create(Optional.empty(), global);
+        assertFalse(second.isUnlimited());
+
+        assertTrue(first.tryAcquire(70));
+        assertFalse(second.tryAcquire(40));
+        assertTrue(second.tryAcquire(30));
+        assertEquals(100, global.usedBytes());
+
+        // Refused by the parent, so nothing may remain acquired from the child.
+        assertFalse(first.tryAcquire(5));
+        assertEquals(70, first.usedBytes());
+        assertEquals(5, first.rejectedBytes());
+        assertEquals(40, second.rejectedBytes());
+
+        first.release(70);
+        assertEquals(30, global.usedBytes());
+        assertTrue(second.tryAcquire(70));
+    }
+
+    @Test
+    public void shouldReleaseBytesWhenItemsLeaveQueue() throws InterruptedException {
+        final ByteBudget budget = ByteBudget.create(Optional.of(10L));
+        final ItemQueue<String> queue =
+                new ByteBoundedItemQueue<>(ItemQueueFactory.blocking().create(100), budget, String::length);
+
+        assertTrue(queue.offer("abcd"));
+        assertTrue(queue.offer("efgh"));
+        assertFalse(queue.offer("ijk"));
+        assertEquals(8, budget.usedBytes());
+
+        final List<String> drained = new ArrayList<>();
+        assertEquals(1, queue.drainTo(drained, 1));
+        assertEquals(4, budget.usedBytes());
+        assertTrue(queue.offer("ijk"));
+
+        assertEquals("efgh", queue.poll(1, TimeUnit.SECONDS));
+        assertEquals(3, budget.usedBytes());
+    }
+
+    @Test
+    public void shouldReleaseBytesWhenQueueDrainsInBulk() {
+        final ByteBudget budget = ByteBudget.create(Optional.of(100L));
+        final ItemQueue<String> wrapped = ItemQueueFactory.blocking().create(100);
+        // A queue that uses more of the collection it drains to than just add().
+        final ItemQueue<String> bulkDraining = new ItemQueue<String>() {
+            @Override
+            public boolean offer(final String e) {
+                return wrapped.offer(e);
+            }
+
+            @Override
+            public int drainTo(final Collection<? super String> c, final int maxElements) {
+                final List<String> elements = new ArrayList<>();
+                wrapped.drainTo(elements, maxElements);
+                final int sizeBefore = c.size();
+                c.addAll(elements);
+                return c.size() - sizeBefore;
+            }
+
+            @Override
+            public String poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+                return wrapped.poll(timeout, unit);
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return wrapped.isEmpty();
+            }
+
+            @Override
+            public int size() {
+                return wrapped.size();
+            }
+
+            @Override
+            public int capacity() {
+                return wrapped.capacity();
+            }
+        };
+        final ItemQueue<String> queue = new ByteBoundedItemQueue<>(bulkDraining, budget, String::length);
+
+        assertTrue(queue.offer("abc"));
+        assertTrue(queue.offer("defg"));
+        assertEquals(7, budget.usedBytes());
+
+        final List<String> drained = new ArrayList<>();
+        assertEquals(2, queue.drainTo(drained, 10));
+        assertEquals(0, budget.usedBytes());
+        assertEquals(2, drained.size());
+    }
+
+    @Test
+    public void shouldReturnBytesWhenQueueIsFull() {
+        final ByteBudget budget = ByteBudget.create(Optional.of(100L));
+        final ItemQueue<String> queue =
+                new ByteBoundedItemQueue<>(ItemQueueFactory.blocking().create(1), budget, String::length);
+
+        assertTrue(queue.offer("abc"));
+        assertFalse(queue.offer("def"));
+        assertEquals(3, budget.usedBytes());
+    }
+}
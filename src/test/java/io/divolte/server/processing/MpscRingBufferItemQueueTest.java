@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class MpscRingBufferItemQueueTest {
+    @Test
+    public void shouldRoundCapacityUpToPowerOfTwo() {
+        assertEquals(1, new MpscRingBufferItemQueue<String>(1, WaitStrategy.PARK).capacity());
+        assertEquals(8, new MpscRingBufferItemQueue<String>(5, WaitStrategy.PARK).capacity());
+        assertEquals(16, new MpscRingBufferItemQueue<String>(16, WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    public void shouldRejectItemsWhenFull() {
+        final ItemQueue<Integer> queue = new MpscRingBufferItemQueue<>(4, WaitStrategy.SPIN);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+
+        // Once drained, there is space again.
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(2, queue.drainTo(drained, 2));
+        assertTrue(queue.offer(4));
+        assertTrue(queue.offer(5));
+        assertFalse(queue.offer(6));
+    }
+
+    @Test
+    public void shouldReportSize() {
+        final ItemQueue<Integer> queue = new MpscRingBufferItemQueue<>(4, WaitStrategy.SPIN);
+        assertEquals(0, queue.size());
+        queue.offer(1);
+        queue.offer(2);
+        assertEquals(2, queue.size());
+        queue.drainTo(new ArrayList<>(), 1);
+        assertEquals(1, queue.size());
+        assertEquals(4, queue.capacity());
+    }
+
+    @Test
+    public void shouldDrainInFifoOrder() {
+        final ItemQueue<Integer> queue = new MpscRingBufferItemQueue<>(8, WaitStrategy.SPIN);
+        // Wrap around the ring a few times.
+        final List<Integer> drained = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(queue.offer(i));
+            if (i % 3 == 2) {
+                queue.drainTo(drained, 8);
+            }
+        }
+        queue.drainTo(drained, 8);
+        assertTrue(queue.isEmpty());
+        assertEquals(IntStream.range(0, 20).boxed().collect(Collectors.toList()), drained);
+    }
+
+    @Test
+    public void shouldReturnNullWhenPollTimesOut() throws InterruptedException {
+        for (final WaitStrategy waitStrategy : WaitStrategy.values()) {
+            final ItemQueue<Integer> queue = new MpscRingBufferItemQueue<>(8, waitStrategy);
+            assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldWakeParkedConsumer() throws InterruptedException {
+        final ItemQueue<Integer> queue = new MpscRingBufferItemQueue<>(8, WaitStrategy.PARK);
+        final Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            queue.offer(42);
+        });
+        producer.start();
+        assertEquals(Integer.valueOf(42), queue.poll(1, TimeUnit.MINUTES));
+        producer.join();
+    }
+
+    @Test(timeout = 60000)
+    public void shouldDeliverAllItemsFromConcurrentProducers() throws InterruptedException {
+        final int producerCount = 8;
+        final int itemsPerProducer = 100000;
+        final ItemQueue<int[]> queue = new MpscRingBufferItemQueue<>(1024, WaitStrategy.PARK);
+
+        final ExecutorService producers = Executors.newFixedThreadPool(producerCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producerCount; ++p) {
+            final int producerId = p;
+            producers.execute(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < itemsPerProducer; ++i) {
+                    final int[] item = { producerId, i };
+                    while (!queue.offer(item)) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        start.countDown();
+
+        // Items from each producer must arrive in the order they were produced.
+        final int[] expectedNext = new int[producerCount];
+        final List<int[]> batch = new ArrayList<>(128);
+        int received = 0;
+        while (received < producerCount * itemsPerProducer) {
+            if (0 == queue.drainTo(batch, 128)) {
+                final int[] item = queue.poll(1, TimeUnit.SECONDS);
+                if (null != item) {
+                    batch.add(item);
+                }
+            }
+            for (final int[] item : batch) {
+                assertEquals(expectedNext[item[0]]++, item[1]);
+            }
+            received += batch.size();
+            batch.clear();
+        }
+        producers.shutdown();
+        assertTrue(producers.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+    }
+}
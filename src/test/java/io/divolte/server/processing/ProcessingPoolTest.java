@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import static org.junit.Assert.*;
+
+import java.util.OptionalLong;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ProcessingPoolTest {
+    @Test
+    public void shouldDeliverHeartbeatsAtDeclaredDeadlines() throws InterruptedException {
+        final CountDownLatch heartbeats = new CountDownLatch(10);
+        final ProcessingPool<ItemProcessor<String>, String> pool =
+                new ProcessingPool<>(1, 16, ItemQueueFactory.blocking(), "Heartbeat", () -> new ItemProcessor<String>() {
+                    private long nextHeartbeat = System.nanoTime();
+
+                    @Override
+                    public ProcessingDirective process(final Item<String> e) {
+                        return ProcessingDirective.CONTINUE;
+                    }
+
+                    @Override
+                    public ProcessingDirective heartbeat() {
+                        heartbeats.countDown();
+                        nextHeartbeat = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+                        return ProcessingDirective.CONTINUE;
+                    }
+
+                    @Override
+                    public OptionalLong nextHeartbeat() {
+                        return OptionalLong.of(nextHeartbeat);
+                    }
+                });
+        try {
+            // Heartbeats every 20 milliseconds; with the default interval this would take 10 seconds.
+            assertTrue(heartbeats.await(2, TimeUnit.SECONDS));
+        } finally {
+            pool.stop();
+        }
+    }
+}
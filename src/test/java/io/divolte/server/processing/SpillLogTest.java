@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillLogTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static boolean append(final SpillLog log, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return log.append(bytes.length, buffer -> buffer.put(bytes));
+    }
+
+    @Nullable
+    private static String poll(final SpillLog log) throws IOException {
+        return log.poll(buffer -> StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    private static long countSegments(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void shouldReadRecordsInOrderAcrossSegments() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final SpillLog log = new SpillLog(directory, 64, Long.MAX_VALUE);
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(append(log, "record " + i));
+        }
+        assertEquals(20, log.records());
+        assertTrue(1 < countSegments(directory));
+
+        for (int i = 0; i < 20; ++i) {
+            assertEquals("record " + i, poll(log));
+        }
+        assertNull(poll(log));
+        assertTrue(log.isEmpty());
+        // Only the segment being written remains.
+        assertEquals(1, countSegments(directory));
+
+        log.close();
+        assertEquals(0, countSegments(directory));
+    }
+
+    @Test
+    public void shouldStoreRecordsLargerThanASegment() throws IOException {
+        final SpillLog log = new SpillLog(folder.getRoot().toPath(), 16, Long.MAX_VALUE);
+        final String large = "a record that is larger than a segment";
+        assertTrue(append(log, "small"));
+        assertTrue(append(log, large));
+        assertTrue(append(log, "small"));
+        assertEquals("small", poll(log));
+        assertEquals(large, poll(log));
+        assertEquals("small", poll(log));
+    }
+
+    @Test
+    public void shouldRefuseRecordsBeyondMaximumSize() throws IOException {
+        final SpillLog log = new SpillLog(folder.getRoot().toPath(), 32, 64);
+        int appended = 0;
+        while (append(log, "record")) {
+            ++appended;
+        }
+        // Two segments, each of which holds two records.
+        assertEquals(4, appended);
+
+        // Once the first segment has been read, there's space again.
+        poll(log);
+        poll(log);
+        poll(log);
+        assertTrue(append(log, "record"));
+    }
+
+    @Test
+    public void shouldRecoverRecordsFromPreviousLog() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final SpillLog log = new SpillLog(directory, 64, Long.MAX_VALUE);
+        for (int i = 0; i < 10; ++i) {
+            append(log, "record " + i);
+        }
+        assertEquals("record 0", poll(log));
+        log.close();
+
+        final SpillLog recovered = new SpillLog(directory, 64, Long.MAX_VALUE);
+        assertEquals(9, recovered.records());
+        append(recovered, "record 10");
+        for (int i = 1; i <= 10; ++i) {
+            assertEquals("record " + i, poll(recovered));
+        }
+        assertNull(poll(recovered));
+    }
+
+    @Test
+    public void shouldOnlyRecoverUnreadRecords() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final SpillLog log = new SpillLog(directory, 1024, Long.MAX_VALUE);
+        for (int i = 0; i < 10; ++i) {
+            append(log, "record " + i);
+        }
+        // Read part of the (only) segment.
+        for (int i = 0; i < 4; ++i) {
+            assertEquals("record " + i, poll(log));
+        }
+        log.close();
+
+        final SpillLog reopened = new SpillLog(directory, 1024, Long.MAX_VALUE);
+        assertEquals(6, reopened.records());
+        assertEquals("record 4", poll(reopened));
+        reopened.close();
+
+        // Reading after a recovery also moves the read position that is recovered next.
+        final SpillLog recovered = new SpillLog(directory, 1024, Long.MAX_VALUE);
+        assertEquals(5, recovered.records());
+        for (int i = 5; i < 10; ++i) {
+            assertEquals("record " + i, poll(recovered));
+        }
+        assertNull(poll(recovered));
+    }
+
+    @Test
+    public void shouldIgnoreCorruptRecordsWhenRecovering() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final SpillLog log = new SpillLog(directory, 1024, Long.MAX_VALUE);
+        append(log, "first");
+        append(log, "second");
+        append(log, "third");
+        log.close();
+
+        // Corrupt the contents of the second record.
+        final Path segment;
+        try (final Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow(IllegalStateException::new);
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(8 + 5 + 8);
+            file.write('S');
+        }
+
+        final SpillLog recovered = new SpillLog(directory, 1024, Long.MAX_VALUE);
+        assertEquals(1, recovered.records());
+        assertEquals("first", poll(recovered));
+        assertNull(poll(recovered));
+    }
+
+    @Test
+    public void shouldReturnNothingWhenEmpty() throws IOException {
+        final SpillLog log = new SpillLog(folder.getRoot().toPath(), 64, Long.MAX_VALUE);
+        assertTrue(log.isEmpty());
+        assertNull(log.poll(ByteBuffer::remaining));
+    }
+}
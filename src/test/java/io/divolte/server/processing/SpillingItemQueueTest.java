@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.processing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+public class SpillingItemQueueTest {
+    private static final ItemCodec<Integer> CODEC = new ItemCodec<Integer>() {
+        @Override
+        public int encodedSize(final Integer item) {
+            return 4;
+        }
+
+        @Override
+        public void encode(final Integer item, final ByteBuffer buffer) {
+            buffer.putInt(item);
+        }
+
+        @Override
+        public Integer decode(final ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SpillingItemQueue<Integer> createQueue(final Path directory, final int capacity) throws IOException {
+        return new SpillingItemQueue<>(ItemQueueFactory.blocking().create(capacity),
+                                       CODEC,
+                                       new SpillLog(directory, 64, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldSpillItemsThatDoNotFitInOrder() throws IOException {
+        final ItemQueue<Integer> queue = createQueue(folder.getRoot().toPath(), 4);
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(20, queue.size());
+
+        // Draining makes space in memory, but while items are spilled new ones must follow them.
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(6, queue.drainTo(drained, 6));
+        assertTrue(queue.offer(20));
+        assertEquals(15, queue.drainTo(drained, 100));
+        assertEquals(IntStream.rangeClosed(0, 20).boxed().collect(Collectors.toList()), drained);
+        assertTrue(queue.isEmpty());
+
+        // Once caught up, items are queued in memory again.
+        assertTrue(queue.offer(21));
+        queue.offer(22);
+        queue.offer(23);
+        queue.offer(24);
+        queue.offer(25);
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void shouldPollSpilledItems() throws IOException, InterruptedException {
+        final ItemQueue<Integer> queue = createQueue(folder.getRoot().toPath(), 1);
+        queue.offer(1);
+        queue.offer(2);
+        assertEquals(Integer.valueOf(1), queue.poll(1, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(2), queue.poll(1, TimeUnit.SECONDS));
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void shouldWakeConsumerWaitingForSpilledItems() throws Exception {
+        final ItemQueue<Integer> ringBuffer = ItemQueueFactory.ringBuffer(WaitStrategy.PARK).create(1);
+        // An in-memory queue without any room, so that the consumer waits on it while items are spilled.
+        final ItemQueue<Integer> noRoom = new ItemQueue<Integer>() {
+            @Override
+            public boolean offer(final Integer e) {
+                return false;
+            }
+
+            @Override
+            public int drainTo(final Collection<? super Integer> c, final int maxElements) {
+                return ringBuffer.drainTo(c, maxElements);
+            }
+
+            @Override
+            public Integer poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+                return ringBuffer.poll(timeout, unit);
+            }
+
+            @Override
+            public void wakeConsumer() {
+                ringBuffer.wakeConsumer();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return ringBuffer.isEmpty();
+            }
+
+            @Override
+            public int size() {
+                return ringBuffer.size();
+            }
+
+            @Override
+            public int capacity() {
+                return ringBuffer.capacity();
+            }
+        };
+        final ItemQueue<Integer> queue = new SpillingItemQueue<>(noRoom, CODEC, new SpillLog(folder.getRoot().toPath(), 64, Long.MAX_VALUE));
+
+        final CompletableFuture<Integer> polled = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.poll(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // Give the consumer a chance to start waiting.
+        Thread.sleep(100);
+        assertTrue(queue.offer(42));
+        assertEquals(Integer.valueOf(42), polled.get());
+    }
+
+    @Test
+    public void shouldLeaveSpilledItemsOnDiskWhenDrainingInMemoryItems() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final ItemQueue<Integer> queue = createQueue(directory, 2);
+        for (int i = 0; i < 5; ++i) {
+            queue.offer(i);
+        }
+        final List<Integer> inMemory = new ArrayList<>();
+        assertEquals(2, queue.drainInMemoryTo(inMemory));
+        assertEquals(ImmutableList.of(0, 1), inMemory);
+        queue.close();
+
+        final ItemQueue<Integer> reopened = createQueue(directory, 2);
+        final List<Integer> drained = new ArrayList<>();
+        reopened.drainTo(drained, 100);
+        assertEquals(ImmutableList.of(2, 3, 4), drained);
+    }
+
+    @Test
+    public void shouldRouteRecoveredItemsByDestinationName() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final ItemQueue<Item<Integer>> queue =
+                new SpillingItemQueue<>(ItemQueueFactory.blocking().create(1),
+                                        Item.codec(CODEC, ImmutableList.of("a", "b", "c")),
+                                        new SpillLog(directory, 64, Long.MAX_VALUE));
+        queue.offer(Item.of(0, "party", 0));
+        queue.offer(Item.of(0, "party", 1));
+        queue.offer(Item.of(1, "party", 2));
+        queue.offer(Item.of(2, "party", 3));
+        queue.close();
+
+        // Destination 'a' has gone, and the others have been reordered.
+        final ItemQueue<Item<Integer>> reopened =
+                new SpillingItemQueue<>(ItemQueueFactory.blocking().create(1),
+                                        Item.codec(CODEC, ImmutableList.of("c", "b")),
+                                        new SpillLog(directory, 64, Long.MAX_VALUE));
+        final List<Item<Integer>> drained = new ArrayList<>();
+        reopened.drainTo(drained, 100);
+        assertEquals(2, drained.size());
+        assertEquals(1, drained.get(0).sourceId);
+        assertEquals(Integer.valueOf(2), drained.get(0).payload);
+        assertEquals(0, drained.get(1).sourceId);
+        assertEquals(Integer.valueOf(3), drained.get(1).payload);
+        assertTrue(reopened.isEmpty());
+    }
+
+    @Test
+    public void shouldKeepSpilledItemsAcrossRestarts() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final ItemQueue<Integer> queue = createQueue(directory, 2);
+        for (int i = 0; i < 5; ++i) {
+            queue.offer(i);
+        }
+        queue.close();
+
+        final ItemQueue<Integer> reopened = createQueue(directory, 2);
+        assertFalse(reopened.isEmpty());
+        reopened.offer(5);
+        final List<Integer> drained = new ArrayList<>();
+        reopened.drainTo(drained, 100);
+        assertEquals(ImmutableList.of(2, 3, 4, 5), drained);
+    }
+}
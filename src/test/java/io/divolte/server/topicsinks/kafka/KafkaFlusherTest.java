@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.kafka;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.divolte.server.AvroRecordBuffer;
+import io.divolte.server.DivolteIdentifier;
+import io.divolte.server.processing.Item;
+import io.divolte.server.processing.ItemProcessor.ProcessingDirective;
+import io.divolte.server.topicsinks.InFlightLimit;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.Serializer;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KafkaFlusherTest {
+    private static final Schema SCHEMA = SchemaBuilder.record("TestRecord").fields()
+            .requiredString("value")
+            .endRecord();
+
+    private static Item<AvroRecordBuffer> item(final int destination, final String value) {
+        final GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("value", value);
+        final DivolteIdentifier partyId = DivolteIdentifier.generate();
+        return Item.of(destination,
+                       partyId.value,
+                       AvroRecordBuffer.fromRecord(partyId, DivolteIdentifier.generate(), value, Instant.now(), record));
+    }
+
+    @Test
+    public void shouldRouteRecordsToTopicOfTheirDestination() {
+        final MockProducer<DivolteIdentifier, AvroRecordBuffer> producer =
+                new MockProducer<>(true, Serializers.createKeySerializer(), Serializers.createNakedAvroSerializer(null));
+        final KafkaFlusher flusher = new KafkaFlusher(ImmutableList.of("first", "second"), producer);
+
+        final Queue<Item<AvroRecordBuffer>> batch = new ArrayDeque<>();
+        batch.add(item(0, "a"));
+        batch.add(item(1, "b"));
+        batch.add(item(0, "c"));
+        assertEquals(ProcessingDirective.CONTINUE, flusher.process(batch));
+        assertEquals(ProcessingDirective.CONTINUE, flusher.process(item(1, "d")));
+
+        final List<String> sent = producer.history()
+                                          .stream()
+                                          .map(record -> record.topic() + ':' + record.value().getEventId())
+                                          .collect(Collectors.toList());
+        assertEquals(ImmutableList.of("first:a", "second:b", "first:c", "second:d"), sent);
+    }
+
+    @Test
+    public void shouldPauseWhenTooManyEventsAreInFlight() {
+        final MockProducer<DivolteIdentifier, AvroRecordBuffer> producer =
+                new MockProducer<>(false, Serializers.createKeySerializer(), Serializers.createNakedAvroSerializer(null));
+        final InFlightLimit inFlight = new InFlightLimit(2, Integer.MAX_VALUE);
+        final KafkaFlusher flusher = new KafkaFlusher(ImmutableList.of("topic"), producer, Optional.of(inFlight));
+
+        final Queue<Item<AvroRecordBuffer>> batch = new ArrayDeque<>();
+        batch.add(item(0, "a"));
+        batch.add(item(0, "b"));
+        batch.add(item(0, "c"));
+        assertEquals(ProcessingDirective.PAUSE, flusher.process(batch));
+        assertEquals(2, producer.history().size());
+        // There's no need to poll; the thread is woken when an event is acknowledged.
+        assertFalse(flusher.nextHeartbeat().isPresent());
+
+        // Nothing has been acknowledged yet.
+        assertEquals(ProcessingDirective.PAUSE, flusher.heartbeat());
+        assertEquals(2, producer.history().size());
+
+        assertTrue(producer.completeNext());
+        assertEquals(ProcessingDirective.CONTINUE, flusher.heartbeat());
+        assertEquals(3, producer.history().size());
+
+        producer.flush();
+        assertTrue(inFlight.tryAcquire(0));
+        assertTrue(inFlight.tryAcquire(0));
+        assertFalse(inFlight.tryAcquire(0));
+    }
+
+    @Test
+    public void shouldWakePausedThreadWhenEventIsAcknowledged() throws InterruptedException {
+        final MockProducer<DivolteIdentifier, AvroRecordBuffer> producer =
+                new MockProducer<>(false, Serializers.createKeySerializer(), Serializers.createNakedAvroSerializer(null));
+        final KafkaFlusher flusher = new KafkaFlusher(ImmutableList.of("topic"), producer, Optional.of(new InFlightLimit(1, Integer.MAX_VALUE)));
+
+        final Queue<Item<AvroRecordBuffer>> batch = new ArrayDeque<>();
+        batch.add(item(0, "a"));
+        batch.add(item(0, "b"));
+        assertEquals(ProcessingDirective.PAUSE, flusher.process(batch));
+
+        final Thread acknowledger = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            producer.completeNext();
+        });
+        acknowledger.start();
+        // Pause the way a processing pool does; the acknowledgement has to cut this short.
+        final long start = System.nanoTime();
+        while (producer.history().size() < 2 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30)) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(30));
+            flusher.heartbeat();
+        }
+        acknowledger.join();
+
+        assertEquals(2, producer.history().size());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void shouldRetryEventsThatFailedAsynchronously() {
+        final MockProducer<DivolteIdentifier, AvroRecordBuffer> producer =
+                new MockProducer<>(false, Serializers.createKeySerializer(), Serializers.createNakedAvroSerializer(null));
+        final KafkaFlusher flusher = new KafkaFlusher(ImmutableList.of("topic"), producer, Optional.of(new InFlightLimit(16, Integer.MAX_VALUE)));
+
+        assertEquals(ProcessingDirective.CONTINUE, flusher.process(item(0, "a")));
+        assertEquals(ProcessingDirective.CONTINUE, flusher.process(item(0, "b")));
+        // A transient failure for the first, and a fatal one for the second.
+        assertTrue(producer.errorNext(new TimeoutException("Simulated")));
+        assertTrue(producer.errorNext(new IllegalStateException("Simulated")));
+
+        // The next flush notices the failure, and pauses to retry it.
+        assertEquals(ProcessingDirective.PAUSE, flusher.process(item(0, "c")));
+        assertEquals(ProcessingDirective.CONTINUE, flusher.heartbeat());
+        producer.flush();
+
+        final List<String> sent = producer.history()
+                                          .stream()
+                                          .map(record -> record.value().getEventId())
+                                          .collect(Collectors.toList());
+        assertEquals(ImmutableList.of("a", "b", "c", "a"), sent);
+    }
+
+    @Test
+    public void shouldHandBackEventsThatWereNotSent() {
+        final MockProducer<DivolteIdentifier, AvroRecordBuffer> producer =
+                new MockProducer<>(false, Serializers.createKeySerializer(), Serializers.createNakedAvroSerializer(null));
+        final KafkaFlusher flusher = new KafkaFlusher(ImmutableList.of("first", "second"), producer, Optional.of(new InFlightLimit(2, Integer.MAX_VALUE)));
+
+        final Item<AvroRecordBuffer> failed = item(1, "a");
+        final Item<AvroRecordBuffer> waiting = item(0, "c");
+        final Queue<Item<AvroRecordBuffer>> batch = new ArrayDeque<>();
+        batch.add(failed);
+        batch.add(item(0, "b"));
+        batch.add(waiting);
+        // The last event has to wait for one of the others to be acknowledged.
+        assertEquals(ProcessingDirective.PAUSE, flusher.process(batch));
+
+        // While stopping, the first fails but could have been retried; the second succeeds.
+        assertTrue(producer.errorNext(new TimeoutException("Simulated")));
+        assertTrue(producer.completeNext());
+
+        final List<Item<AvroRecordBuffer>> unsent = flusher.takeUnsentItems();
+        assertEquals(2, unsent.size());
+        assertTrue(unsent.contains(failed));
+        assertTrue(unsent.contains(waiting));
+        assertTrue(flusher.takeUnsentItems().isEmpty());
+    }
+
+    @Test
+    public void shouldSerializeRecordsForTheirTopic() {
+        final Serializer<AvroRecordBuffer> serializer =
+                Serializers.createTopicRoutingSerializer(ImmutableMap.of("naked", new AvroRecordBufferSerializer(),
+                                                                         "confluent", new ConfluentAvroRecordBufferSerializer(42)));
+        final AvroRecordBuffer record = item(0, "a").payload;
+        final int length = record.size();
+
+        assertEquals(length, serializer.serialize("naked", record).length);
+        assertEquals(length + 5, serializer.serialize("confluent", record).length);
+    }
+
+    @Test(expected = org.apache.kafka.common.errors.SerializationException.class)
+    public void shouldRefuseRecordsForUnknownTopic() {
+        Serializers.createTopicRoutingSerializer(ImmutableMap.of("naked", new AvroRecordBufferSerializer()))
+                   .serialize("other", item(0, "a").payload);
+    }
+}
@@ -30,6 +30,7 @@ import io.divolte.server.DivolteIdentifier;
 import io.divolte.server.DivolteSchema;
 import io.divolte.server.processing.Item;
 import io.divolte.server.processing.ItemProcessor;
+import io.divolte.server.topicsinks.InFlightLimit;
 import io.grpc.Status;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
@@ -37,6 +38,7 @@ import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.Decoder;
 import org.apache.avro.io.DecoderFactory;
@@ -51,13 +53,23 @@ import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -278,4 +290,191 @@ public class GoogleCloudPubSubFlusherTest {
         verify(publisher).publish(any(PubsubMessage.class));
         verifyNoMoreInteractions(publisher);
     }
+
+    @Test
+    public void testMessagesArePublishedAsynchronouslyWithinLimit() {
+        final Publisher publisher = mockPublisher.orElseThrow(IllegalStateException::new);
+        final List<SettableApiFuture<String>> results = new ArrayList<>();
+        when(publisher.publish(any(PubsubMessage.class))).thenAnswer(invocationOnMock -> {
+            final SettableApiFuture<String> result = SettableApiFuture.create();
+            results.add(result);
+            return result;
+        });
+
+        final DivolteSchema schema = new DivolteSchema(MINIMAL_SCHEMA, Optional.empty());
+        final GoogleCloudPubSubFlusher flusher =
+            new GoogleCloudPubSubFlusher(publisher, schema, Optional.of(new InFlightLimit(2, Integer.MAX_VALUE)));
+        final Queue<Item<AvroRecordBuffer>> items =
+            Stream.generate(this::generateMessage)
+                  .limit(3)
+                  .map(this::itemFromAvroRecordBuffer)
+                  .collect(Collectors.toCollection(() -> new ArrayBlockingQueue<>(3)));
+
+        // Only two messages fit; nothing has completed yet.
+        assertEquals(ItemProcessor.ProcessingDirective.PAUSE, flusher.process(items));
+        verify(publisher, times(2)).publish(any(PubsubMessage.class));
+        // There's no need to poll; the thread is woken when a message is acknowledged.
+        assertFalse(flusher.nextHeartbeat().isPresent());
+        assertEquals(ItemProcessor.ProcessingDirective.PAUSE, flusher.heartbeat());
+
+        // Once one completes, the last one can be published.
+        results.get(0).set("0");
+        assertEquals(ItemProcessor.ProcessingDirective.CONTINUE, flusher.heartbeat());
+        verify(publisher, times(3)).publish(any(PubsubMessage.class));
+    }
+
+    @Test
+    public void testPausedThreadIsWokenWhenMessageIsAcknowledged() throws InterruptedException {
+        final Publisher publisher = mockPublisher.orElseThrow(IllegalStateException::new);
+        final List<SettableApiFuture<String>> results = new CopyOnWriteArrayList<>();
+        when(publisher.publish(any(PubsubMessage.class))).thenAnswer(invocationOnMock -> {
+            final SettableApiFuture<String> result = SettableApiFuture.create();
+            results.add(result);
+            return result;
+        });
+
+        final DivolteSchema schema = new DivolteSchema(MINIMAL_SCHEMA, Optional.empty());
+        final GoogleCloudPubSubFlusher flusher =
+            new GoogleCloudPubSubFlusher(publisher, schema, Optional.of(new InFlightLimit(1, Integer.MAX_VALUE)));
+        final Queue<Item<AvroRecordBuffer>> items =
+            Stream.generate(this::generateMessage)
+                  .limit(2)
+                  .map(this::itemFromAvroRecordBuffer)
+                  .collect(Collectors.toCollection(ArrayDeque::new));
+        assertEquals(ItemProcessor.ProcessingDirective.PAUSE, flusher.process(items));
+
+        final Thread acknowledger = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            results.get(0).set("0");
+        });
+        acknowledger.start();
+        // Pause the way a processing pool does; the acknowledgement has to cut this short.
+        final long start = System.nanoTime();
+        while (results.size() < 2 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30)) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(30));
+            flusher.heartbeat();
+        }
+        acknowledger.join();
+
+        assertEquals(2, results.size());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testMessagesAreRetriedOnAsynchronousRetriableFailure() {
+        final Publisher publisher = mockPublisher.orElseThrow(IllegalStateException::new);
+        when(publisher.publish(any(PubsubMessage.class)))
+            .thenReturn(failedFuture(new ApiException("simulated transient failure",
+                                                      new IOException(),
+                                                      GrpcStatusCode.of(Status.Code.INTERNAL),
+                                                      true)))
+            .thenAnswer(invocationOnMock -> completedFuture(String.valueOf(messageIdCounter++)));
+
+        final DivolteSchema schema = new DivolteSchema(MINIMAL_SCHEMA, Optional.empty());
+        final GoogleCloudPubSubFlusher flusher =
+            new GoogleCloudPubSubFlusher(publisher, schema, Optional.of(new InFlightLimit(16, Integer.MAX_VALUE)));
+
+        // The publication fails immediately; it's noticed before the flush completes, which pauses to retry it.
+        assertEquals(ItemProcessor.ProcessingDirective.PAUSE, flusher.process(itemFromAvroRecordBuffer(generateMessage())));
+        assertEquals(ItemProcessor.ProcessingDirective.CONTINUE, flusher.heartbeat());
+        assertEquals(ItemProcessor.ProcessingDirective.CONTINUE, flusher.process(itemFromAvroRecordBuffer(generateMessage())));
+
+        final ArgumentCaptor<PubsubMessage> argumentCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+        verify(publisher, times(3)).publish(argumentCaptor.capture());
+        final List<String> eventIds = argumentCaptor.getAllValues()
+                                                    .stream()
+                                                    .map(message -> message.getAttributesOrThrow("eventIdentifier"))
+                                                    .collect(Collectors.toList());
+        final String sessionId = this.sessionId.orElseThrow(IllegalStateException::new).toString();
+        assertEquals(Arrays.asList(sessionId + "-0", sessionId + "-0", sessionId + "-1"), eventIds);
+    }
+
+    @Test
+    public void testUnsentEventsAreHandedBack() {
+        final Publisher publisher = mockPublisher.orElseThrow(IllegalStateException::new);
+        final List<SettableApiFuture<String>> results = new ArrayList<>();
+        when(publisher.publish(any(PubsubMessage.class))).thenAnswer(invocationOnMock -> {
+            final SettableApiFuture<String> result = SettableApiFuture.create();
+            results.add(result);
+            return result;
+        });
+
+        final DivolteSchema schema = new DivolteSchema(MINIMAL_SCHEMA, Optional.empty());
+        final GoogleCloudPubSubFlusher flusher =
+            new GoogleCloudPubSubFlusher(publisher, schema, Optional.of(new InFlightLimit(3, Integer.MAX_VALUE)));
+        final List<Item<AvroRecordBuffer>> items =
+            Stream.generate(this::generateMessage)
+                  .limit(4)
+                  .map(this::itemFromAvroRecordBuffer)
+                  .collect(Collectors.toList());
+
+        // The last event has to wait for one of the others to be acknowledged.
+        assertEquals(ItemProcessor.ProcessingDirective.PAUSE, flusher.process(new ArrayDeque<>(items)));
+        // While stopping, the first fails but could have been retried, the second succeeds and the third never completes.
+        results.get(0).setException(new ApiException("simulated transient failure",
+                                                     new IOException(),
+                                                     GrpcStatusCode.of(Status.Code.INTERNAL),
+                                                     true));
+        results.get(1).set("1");
+
+        final List<Item<AvroRecordBuffer>> unsent = flusher.takeUnsentItems();
+        assertEquals(3, unsent.size());
+        assertTrue(unsent.containsAll(Arrays.asList(items.get(0), items.get(2), items.get(3))));
+        assertTrue(flusher.takeUnsentItems().isEmpty());
+    }
+
+    private List<PubsubMessage> processPacked(final int recordCount, final PackingSettings packing) {
+        final Publisher publisher = mockPublisher.orElseThrow(IllegalStateException::new);
+        final DivolteSchema schema = new DivolteSchema(MINIMAL_SCHEMA, Optional.of(0x252));
+        final GoogleCloudPubSubFlusher flusher =
+            new GoogleCloudPubSubFlusher(publisher, schema, Optional.empty(), Optional.of(packing));
+        final Queue<Item<AvroRecordBuffer>> items =
+            Stream.generate(this::generateMessage)
+                  .limit(recordCount)
+                  .map(this::itemFromAvroRecordBuffer)
+                  .collect(Collectors.toCollection(() -> new ArrayBlockingQueue<>(recordCount)));
+        assertEquals(ItemProcessor.ProcessingDirective.CONTINUE, flusher.process(items));
+
+        final ArgumentCaptor<PubsubMessage> argumentCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+        verify(publisher, atLeastOnce()).publish(argumentCaptor.capture());
+        return argumentCaptor.getAllValues();
+    }
+
+    private static List<Long> unpackCounters(final PubsubMessage message) throws IOException {
+        final DatumReader<List<GenericRecord>> reader = new GenericDatumReader<>(Schema.createArray(MINIMAL_SCHEMA));
+        final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(message.getData().newInput(), null);
+        final List<GenericRecord> records = reader.read(null, decoder);
+        assertTrue(decoder.isEnd());
+        assertEquals(String.valueOf(records.size()), message.getAttributesOrThrow("recordCount"));
+        return records.stream().map(record -> (Long) record.get("counter")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testRecordsArePackedUpToMaximumCount() throws IOException {
+        final List<PubsubMessage> messages = processPacked(5, new PackingSettings(2, 1_000_000));
+
+        assertEquals(3, messages.size());
+        assertEquals(Arrays.asList(0L, 1L), unpackCounters(messages.get(0)));
+        assertEquals(Arrays.asList(2L, 3L), unpackCounters(messages.get(1)));
+        assertEquals(Collections.singletonList(4L), unpackCounters(messages.get(2)));
+        for (final PubsubMessage message : messages) {
+            assertEquals("0x252", message.getAttributesOrThrow("schemaConfluentId"));
+            assertFalse(message.containsAttributes("partyIdentifier"));
+        }
+    }
+
+    @Test
+    public void testRecordsArePackedUpToMaximumSize() throws IOException {
+        // Each record is more than half the maximum size, so only one fits in each message.
+        final List<PubsubMessage> messages = processPacked(3, new PackingSettings(100, 100));
+
+        assertEquals(3, messages.size());
+        for (int i = 0; i < messages.size(); ++i) {
+            assertEquals(Collections.singletonList((long) i), unpackCounters(messages.get(i)));
+        }
+    }
 }
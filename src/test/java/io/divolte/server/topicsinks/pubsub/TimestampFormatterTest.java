@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 GoDataDriven B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.divolte.server.topicsinks.pubsub;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimestampFormatterTest {
+    private static void assertFormattedAsIsoInstant(final TimestampFormatter formatter, final Instant timestamp) {
+        assertEquals(DateTimeFormatter.ISO_INSTANT.format(timestamp), formatter.format(timestamp));
+    }
+
+    @Test
+    public void shouldFormatFractionsLikeIsoInstant() {
+        final TimestampFormatter formatter = new TimestampFormatter();
+        for (final int nano : new int[] { 0, 1, 10, 1_000, 1_000_000, 34_261_025, 34_000_000, 34_261_000, 999_999_999 }) {
+            assertFormattedAsIsoInstant(formatter, Instant.ofEpochSecond(1536931930, nano));
+        }
+    }
+
+    @Test
+    public void shouldFormatArbitraryTimestampsLikeIsoInstant() {
+        final TimestampFormatter formatter = new TimestampFormatter();
+        final Random random = new Random(42);
+        Instant timestamp = Instant.ofEpochSecond(-62_000_000_000L);
+        for (int i = 0; i < 10_000; ++i) {
+            // Mostly small steps, so that successive timestamps often share a second.
+            timestamp = timestamp.plusNanos(random.nextInt(10) == 0
+                                                ? (random.nextLong() & Long.MAX_VALUE) % 1_000_000_000_000_000_000L
+                                                : random.nextInt(100_000_000));
+            assertFormattedAsIsoInstant(formatter, timestamp);
+        }
+    }
+}